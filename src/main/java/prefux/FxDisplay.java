@@ -142,8 +142,7 @@ public class FxDisplay extends Group implements Display, EventHandler<Event> {
 
     @Override
     public double getScale() {
-        // TODO Auto-generated method stub
-        return 0;
+        return zoomFactor.get();
     }
 
     @Override
@@ -460,8 +460,10 @@ public class Visualization {
      
         addDataGroup(group, vg, graph);
         
-        TupleManager ntm = new TupleManager(nt, vg, TableNodeItem.class);
-        TupleManager etm = new TupleManager(et, vg, TableEdgeItem.class);
+        TupleManager ntm = new TupleManager(nt, vg, TableNodeItem.class,
+                                            TableNodeItem::new);
+        TupleManager etm = new TupleManager(et, vg, TableEdgeItem.class,
+                                            TableEdgeItem::new);
         nt.setTupleManager(ntm);
         et.setTupleManager(etm);
         vg.setTupleManagers(ntm, etm);
@@ -533,8 +535,10 @@ public class Visualization {
         
         addDataGroup(group, vt, tree);
         
-        TupleManager ntm = new TupleManager(nt, vt, TableNodeItem.class);
-        TupleManager etm = new TupleManager(et, vt, TableEdgeItem.class);
+        TupleManager ntm = new TupleManager(nt, vt, TableNodeItem.class,
+                                            TableNodeItem::new);
+        TupleManager etm = new TupleManager(et, vt, TableEdgeItem.class,
+                                            TableEdgeItem::new);
         nt.setTupleManager(ntm);
         et.setTupleManager(etm);
         vt.setTupleManagers(ntm, etm);
@@ -652,7 +656,8 @@ public class Visualization {
             String group, String source, Predicate filter)
     {
         VisualTable t = addDerivedTable(group,source,filter,VisualItem.SCHEMA);
-        t.setTupleManager(new TupleManager(t, null, TableDecoratorItem.class));
+        t.setTupleManager(new TupleManager(t, null, TableDecoratorItem.class,
+                                           TableDecoratorItem::new));
         return t;
     }
     
@@ -676,7 +681,8 @@ public class Visualization {
             String group, String source, Predicate filter, Schema schema)
     {
         VisualTable t = addDerivedTable(group, source, filter, schema);
-        t.setTupleManager(new TupleManager(t, null, TableDecoratorItem.class));
+        t.setTupleManager(new TupleManager(t, null, TableDecoratorItem.class,
+                                           TableDecoratorItem::new));
         return t;
     }
     
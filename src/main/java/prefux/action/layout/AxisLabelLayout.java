@@ -328,7 +328,8 @@ public class AxisLabelLayout extends Layout {
         if ( step == 0 ) step = 1;
         int r;
 
-        for ( double x, v=vlo; v<=m_hi; v+=step ) {
+        long k = firstStep(vlo, step);
+        for ( double x, v=vlo+k*step; v<=m_hi; v=vlo+(++k)*step ) {
             x = ((v-m_lo)/span)*breadth;
             if ( x < -0.5 ) {
                 continue;
@@ -376,7 +377,8 @@ public class AxisLabelLayout extends Layout {
         double step = getLinearStep(span, breadth/span);
         if ( step == 0 ) step = 1;
         int r;
-        for ( double x, v=vlo; v<=m_hi; v+=step ) {
+        long k = firstStep(vlo, step);
+        for ( double x, v=vlo+k*step; v<=m_hi; v=vlo+(++k)*step ) {
             x = ((MathLib.safeSqrt(v)-slo)/sspan)*breadth;
             if ( x < -0.5 ) {
                 continue;
@@ -497,6 +499,18 @@ public class AxisLabelLayout extends Layout {
         return step;
     }
     
+    /**
+     * Get the number of steps from a start value to a mark just below the
+     * low value of the axis. Marks are enumerated from there, rather than
+     * from the start value, which may lie many steps below the axis when
+     * the range is narrow compared to its values. The marks are computed
+     * from their number of steps, so that rounding errors do not add up.
+     */
+    private long firstStep(double start, double step) {
+        double k = Math.floor((m_lo-start)/step) - 1;
+        return ( k > 0 ? (long)k : 0 );
+    }
+    
     // ------------------------------------------------------------------------
     // Ordinal Axis Layout
     
@@ -30,34 +30,61 @@
  */
 package prefux.action.layout;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.Constants;
 import prefux.data.Table;
 import prefux.data.Tuple;
+import prefux.data.column.Column;
+import prefux.data.column.DoubleColumn;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
 import prefux.data.expression.Predicate;
 import prefux.data.query.NumberRangeModel;
 import prefux.data.query.ObjectRangeModel;
 import prefux.data.tuple.TupleSet;
+import prefux.data.util.Index;
 import prefux.util.DataLib;
 import prefux.util.MathLib;
+import prefux.util.collections.DefaultLiteralComparator;
+import prefux.util.collections.IntIterator;
 import prefux.util.ui.ValuedRangeModel;
 import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
 
 /**
- * Layout Action that assigns positions along a single dimension (either x or
+ * <p>Layout Action that assigns positions along a single dimension (either x or
  * y) according to a specified data field. By default, the range of values
  * along the axis is automatically determined by the minimum and maximum
  * values of the data field. The range bounds can be manually set using the
  * {@link #setRangeModel(ValuedRangeModel)} method. Also, the set of items
  * processed by this layout can be filtered by providing a filtering
- * predicate (@link #setFilter(Predicate)).
- * 
+ * predicate (@link #setFilter(Predicate)).</p>
+ *
+ * <p>If the data group is a {@link VisualTable}, the layout works on the
+ * rows of the table instead of its items. The range of values is kept up
+ * to date from the table events, so that only changed rows are read
+ * again, and is taken from an {@link Index} on the data field if the
+ * table has one. Likewise, the ordinal position of each row is only
+ * computed again after the data field changed, in index order if there is
+ * an index. The positions of the rows are then computed in one pass over
+ * primitive arrays, in parallel for large tables, and written in bulk,
+ * with a single update event for each of the current, start and end
+ * coordinate columns, when these are plain double columns.</p>
+ *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class AxisLayout extends Layout {
 
+    /** The number of rows from which positions are computed in parallel */
+    private static final int PARALLEL_ROW_COUNT = 50000;
+
     private String m_field;
     private int m_scale = Constants.LINEAR_SCALE;
     private int m_axis = Constants.X_AXIS;
@@ -75,7 +102,45 @@ public class AxisLayout extends Layout {
     
     // value range / distribution
     private double[] m_dist = new double[2];
-    
+
+    // state kept for VisualTable groups, indexed by table row
+    private VisualTable m_table;
+    private int       m_col = -1;
+    private boolean   m_parallel = true;
+    private boolean   m_rangeValid = false;
+    private double    m_lo, m_hi;        // value range of the data field
+    private int       m_loRow, m_hiRow;  // rows holding the range bounds
+    private boolean   m_ordinalValid = false;
+    private int[]     m_ordinal = new int[0];
+    private int[]     m_dirty = new int[0];
+    private boolean[] m_dirtyMark = new boolean[0];
+    private int       m_dirtyCount = 0;
+    private int[]     m_rows = new int[0];
+    private double[]  m_pos = new double[0];
+    private double[]  m_cur = new double[0];
+    private double[]  m_start = new double[0];
+    private double[]  m_end = new double[0];
+    private TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( col == EventConstants.ALL_COLUMNS ) {
+                if ( type == EventConstants.UPDATE ) {
+                    invalidate(); // a non-measurable update
+                } else {
+                    for ( int r=start; r<=end; ++r )
+                        markDirty(r);
+                }
+            } else if ( type != EventConstants.UPDATE ) {
+                m_col = -1; // a column was added or removed
+                invalidate();
+            } else if ( col == m_col ) {
+                for ( int r=start; r<=end; ++r )
+                    markDirty(r);
+            }
+        }
+    };
+
     /**
      * Create a new AxisLayout. Defaults to using the x-axis.
      * @param group the data group to layout
@@ -125,6 +190,8 @@ public class AxisLayout extends Layout {
      */
     public void setDataField(String field) {
         m_field = field;
+        m_col = -1;
+        invalidate();
         if ( !m_modelSet )
             m_model = null;
     }
@@ -148,6 +215,7 @@ public class AxisLayout extends Layout {
     public void setRangeModel(ValuedRangeModel model) {
         m_model = model;
         m_modelSet = (model != null);
+        m_ordinalValid = false;
     }
     
     /**
@@ -259,7 +327,54 @@ public class AxisLayout extends Layout {
                     "Unrecognized data type value: "+type);
         m_type = type;
     }
-    
+
+    /**
+     * Indicates if positions are computed in parallel for large tables.
+     * @return true if parallel computation is enabled
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+
+    /**
+     * Sets if positions are computed in parallel for large tables, in the
+     * common fork/join pool. Parallel computation is enabled by default,
+     * and does not change the result.
+     * @param b true for parallel computation, false for sequential
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+
+    /**
+     * Get a key of the parameters of this layout. The key holds the data
+     * field, scale, axis, data type and filter, and the range of an
+     * explicitly set range model. Predicates are compared by identity.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( getClass() != AxisLayout.class )
+            return super.getParameterKey();
+        ValuedRangeModel m = m_modelSet ? m_model : null;
+        return Arrays.asList(getBaseParameterKey(), m_field, m_scale,
+            m_axis, m_type, m_filter, m,
+            m == null ? null : m.getMinimum(),
+            m == null ? null : m.getMaximum(),
+            m == null ? null : m.getValue(),
+            m == null ? null : m.getExtent(),
+            m == null ? null : m.getLowValue(),
+            m == null ? null : m.getHighValue());
+    }
+
+    /**
+     * The result of this layout is the coordinate of its axis.
+     * @see prefux.action.layout.Layout#getResultFields()
+     */
+    protected String[] getResultFields() {
+        return new String[] { m_axis == Constants.X_AXIS
+            ? VisualItem.X : VisualItem.Y };
+    }
+
     // ------------------------------------------------------------------------
     
     /**
@@ -268,7 +383,8 @@ public class AxisLayout extends Layout {
     public void run(double frac) {
         TupleSet ts = m_vis.getGroup(m_group);
         setMinMax();
-        
+        watch(ts instanceof VisualTable ? (VisualTable)ts : null);
+
         switch ( getDataType(ts) ) {
         case Constants.NUMERICAL:
             numericalLayout(ts);
@@ -318,8 +434,10 @@ public class AxisLayout extends Layout {
         }
     }
     
+    
     /**
-     * Set the layout position of an item.
+     * Set the layout position of an item. The rows of a {@link VisualTable}
+     * group are positioned directly, without calling this method.
      */
     protected void set(VisualItem item, double frac) {
         double xOrY = m_min + frac*m_range;
@@ -335,8 +453,14 @@ public class AxisLayout extends Layout {
      */
     protected void numericalLayout(TupleSet ts) {
         if ( !m_modelSet ) {
-            m_dist[0] = DataLib.min(ts, m_field).getDouble(m_field);
-            m_dist[1] = DataLib.max(ts, m_field).getDouble(m_field);
+            if ( m_table != null ) {
+                updateRange();
+                m_dist[0] = m_lo;
+                m_dist[1] = m_hi;
+            } else {
+                m_dist[0] = DataLib.min(ts, m_field).getDouble(m_field);
+                m_dist[1] = DataLib.max(ts, m_field).getDouble(m_field);
+            }
             
             double lo = m_dist[0], hi = m_dist[1];
             if ( m_model == null ) {
@@ -349,6 +473,14 @@ public class AxisLayout extends Layout {
             m_dist[1] = ((Number)m_model.getHighValue()).doubleValue();
         }
         
+        if ( m_table != null ) {
+            int n = rows();
+            for ( int i=0; i<n; ++i )
+                m_pos[i] = m_table.getDouble(m_rows[i], m_col);
+            positions(n, true);
+            return;
+        }
+        
         Iterator iter = m_vis.items(m_group, m_filter);
         while ( iter.hasNext() ) {
             VisualItem item = (VisualItem)iter.next();
@@ -362,14 +494,19 @@ public class AxisLayout extends Layout {
      * Compute an ordinal axis layout.
      */
     protected void ordinalLayout(TupleSet ts) {
-        if ( !m_modelSet) {
-            Object[] array = DataLib.ordinalArray(ts, m_field);
+        if ( !m_modelSet && !(m_ordinalValid && m_model != null) ) {
+            Index index = ( m_table != null ? m_table.getIndex(m_field) : null );
+            Object[] array = ( index != null ? ordinalArray(index)
+                                   : DataLib.ordinalArray(ts, m_field) );
             
             if ( m_model == null ) {
                 m_model = new ObjectRangeModel(array);
             } else {
                 ((ObjectRangeModel)m_model).setValueRange(array);
             }
+            if ( m_table != null && index == null )
+                ordinalCodes((ObjectRangeModel)m_model);
+            m_ordinalValid = ( m_table != null );
         }
         
         ObjectRangeModel model = (ObjectRangeModel)m_model;
@@ -377,6 +514,19 @@ public class AxisLayout extends Layout {
         int end = start + model.getExtent();
         double total = (double)(end-start);
         
+        if ( m_table != null ) {
+            int n = rows();
+            for ( int i=0; i<n; ++i ) {
+                int r = m_rows[i];
+                int order = ( m_modelSet
+                    ? model.getIndex(m_table.get(r, m_col))
+                    : m_ordinal[r] ) - start;
+                m_pos[i] = (total > 0.0) ? order/total : 0.5;
+            }
+            positions(n, false);
+            return;
+        }
+        
         Iterator iter = m_vis.items(m_group, m_filter);
         while ( iter.hasNext() ) {
             VisualItem item = (VisualItem)iter.next();
@@ -385,4 +535,272 @@ public class AxisLayout extends Layout {
         }
     }
     
+    // ------------------------------------------------------------------------
+    // Table Layout
+    
+    /**
+     * Start listening to the table of the data group, if any.
+     */
+    private void watch(VisualTable t) {
+        if ( m_table != t ) {
+            if ( m_table != null )
+                m_table.removeTableListener(m_listener);
+            m_table = t;
+            if ( t != null )
+                t.addTableListener(m_listener);
+            m_col = -1;
+            invalidate();
+        }
+        if ( t != null && m_col < 0 ) {
+            m_col = t.getColumnNumber(m_field);
+            if ( m_col < 0 ) {
+                // not a column of the table, lay out the items
+                t.removeTableListener(m_listener);
+                m_table = null;
+            }
+        }
+    }
+    
+    /**
+     * Invalidate the value range and the ordinal positions.
+     * @see prefux.action.layout.Layout#invalidate()
+     */
+    public void invalidate() {
+        m_rangeValid = false;
+        m_ordinalValid = false;
+        for ( int i=0; i<m_dirtyCount; ++i )
+            m_dirtyMark[m_dirty[i]] = false;
+        m_dirtyCount = 0;
+    }
+    
+    /**
+     * Record a row that was added, removed or changed.
+     */
+    private void markDirty(int r) {
+        m_ordinalValid = false;
+        if ( !m_rangeValid ) return;
+        if ( r >= m_dirtyMark.length ) {
+            int n = Math.max(r+1, 2*m_dirtyMark.length);
+            m_dirtyMark = Arrays.copyOf(m_dirtyMark, n);
+            m_dirty = Arrays.copyOf(m_dirty, n);
+        }
+        if ( !m_dirtyMark[r] ) {
+            m_dirtyMark[r] = true;
+            m_dirty[m_dirtyCount++] = r;
+        }
+    }
+    
+    /**
+     * Bring the value range up to date. Changed rows widen the range,
+     * unless one of the rows holding the range bounds moved inwards or was
+     * removed, in which case the range is taken from the index on the data
+     * field, or found in a pass over all rows.
+     */
+    private void updateRange() {
+        Table t = m_table;
+        for ( int i=0; i<m_dirtyCount; ++i ) {
+            int r = m_dirty[i];
+            m_dirtyMark[r] = false;
+            if ( !m_rangeValid ) continue;
+            
+            boolean valid = t.isValidRow(r);
+            double v = valid ? t.getDouble(r, m_col) : Double.NaN;
+            if ( (r == m_loRow && !(v <= m_lo)) ||
+                 (r == m_hiRow && !(v >= m_hi)) )
+            {
+                m_rangeValid = false;
+            } else if ( valid ) {
+                include(r, v);
+            }
+        }
+        m_dirtyCount = 0;
+        if ( m_rangeValid ) return;
+        
+        m_loRow = m_hiRow = -1;
+        m_lo = m_hi = 0;
+        Index index = t.getIndex(m_field);
+        if ( index != null ) {
+            if ( index.size() > 0 ) {
+                int lo = index.minimum(), hi = index.maximum();
+                include(lo, t.getDouble(lo, m_col));
+                include(hi, t.getDouble(hi, m_col));
+            }
+        } else {
+            for ( IntIterator rows = t.rows(); rows.hasNext(); ) {
+                int r = rows.nextInt();
+                include(r, t.getDouble(r, m_col));
+            }
+        }
+        m_rangeValid = true;
+    }
+    
+    /**
+     * Widen the value range to include a value.
+     */
+    private void include(int r, double v) {
+        if ( Double.isNaN(v) ) return;
+        if ( m_loRow < 0 || v < m_lo ) {
+            m_lo = v;
+            m_loRow = r;
+        }
+        if ( m_hiRow < 0 || v > m_hi ) {
+            m_hi = v;
+            m_hiRow = r;
+        }
+    }
+    
+    /**
+     * Compute the sorted distinct values of the data field by walking the
+     * index in ascending order, recording the ordinal position of each row
+     * on the way.
+     */
+    private Object[] ordinalArray(Index index) {
+        Table t = m_table;
+        if ( m_ordinal.length <= t.getMaximumRow() )
+            m_ordinal = new int[t.getMaximumRow()+1];
+        
+        Comparator<Object> cmp = DefaultLiteralComparator.getInstance();
+        List<Object> values = new ArrayList<Object>();
+        Object prev = null;
+        IntIterator rows = index.allRows(Index.TYPE_ASCENDING);
+        while ( rows.hasNext() ) {
+            int r = rows.nextInt();
+            Object v = t.get(r, m_col);
+            if ( values.isEmpty() || cmp.compare(prev, v) != 0 ) {
+                values.add(v);
+                prev = v;
+            }
+            m_ordinal[r] = values.size()-1;
+        }
+        return values.toArray();
+    }
+    
+    /**
+     * Record the ordinal position of each row, as given by a range model.
+     */
+    private void ordinalCodes(ObjectRangeModel model) {
+        Table t = m_table;
+        if ( m_ordinal.length <= t.getMaximumRow() )
+            m_ordinal = new int[t.getMaximumRow()+1];
+        for ( IntIterator rows = t.rows(); rows.hasNext(); ) {
+            int r = rows.nextInt();
+            m_ordinal[r] = model.getIndex(t.get(r, m_col));
+        }
+    }
+    
+    /**
+     * Collect the rows to lay out.
+     * @return the number of rows
+     */
+    private int rows() {
+        int n = m_table.getRowCount();
+        if ( m_rows.length < n ) {
+            m_rows = new int[n];
+            m_pos = new double[n];
+        }
+        IntIterator rows = ( m_filter == null ? m_table.rows()
+                                              : m_table.rows(m_filter) );
+        int i = 0;
+        while ( rows.hasNext() )
+            m_rows[i++] = rows.nextInt();
+        return i;
+    }
+    
+    /**
+     * Turn the values of the collected rows into screen coordinates, and
+     * set them.
+     * @param n the number of rows
+     * @param numerical true if the values are data values to interpolate,
+     * false if they are fractions along the axis
+     */
+    private void positions(int n, final boolean numerical) {
+        final double[] pos = m_pos;
+        final double[] dist = m_dist;
+        final double min = m_min, range = m_range;
+        final int scale = m_scale;
+        
+        if ( m_parallel && n >= PARALLEL_ROW_COUNT ) {
+            IntStream.range(0, n).parallel().forEach(i -> {
+                double f = numerical ? MathLib.interp(scale, pos[i], dist)
+                                     : pos[i];
+                pos[i] = min + f*range;
+            });
+        } else {
+            for ( int i=0; i<n; ++i ) {
+                double f = numerical ? MathLib.interp(scale, pos[i], dist)
+                                     : pos[i];
+                pos[i] = min + f*range;
+            }
+        }
+        
+        boolean x = ( m_axis == Constants.X_AXIS );
+        if ( x ) {
+            write(n, VisualItem.X, VisualItem.STARTX, VisualItem.ENDX);
+        } else {
+            write(n, VisualItem.Y, VisualItem.STARTY, VisualItem.ENDY);
+        }
+    }
+    
+    /**
+     * Write the computed positions of the collected rows. The current
+     * positions become the start positions, unless they are not set, and
+     * the new positions become the current and end positions.
+     */
+    private void write(int n, String field, String startField,
+                       String endField)
+    {
+        VisualTable t = m_table;
+        final double[] pos = m_pos;
+        final int[] rows = m_rows;
+        Column cc = t.getColumn(field);
+        Column sc = t.getColumn(startField);
+        Column ec = t.getColumn(endField);
+        if ( !(cc instanceof DoubleColumn && sc instanceof DoubleColumn
+                && ec instanceof DoubleColumn) )
+        {
+            for ( int i=0; i<n; ++i ) {
+                int r = rows[i];
+                double s = t.getDouble(r, field);
+                if ( Double.isNaN(s) ) s = pos[i];
+                t.setDouble(r, startField, s);
+                t.setDouble(r, endField, pos[i]);
+                t.setDouble(r, field, pos[i]);
+            }
+            return;
+        }
+        
+        DoubleColumn cur = (DoubleColumn)cc;
+        DoubleColumn start = (DoubleColumn)sc;
+        DoubleColumn end = (DoubleColumn)ec;
+        int len = Math.min(t.getMaximumRow()+1, Math.min(cur.getRowCount(),
+                  Math.min(start.getRowCount(), end.getRowCount())));
+        if ( m_cur.length < len ) {
+            m_cur = new double[len];
+            m_start = new double[len];
+            m_end = new double[len];
+        }
+        final double[] c = m_cur, b = m_start, e = m_end;
+        cur.getDoubles(c, 0, len);
+        start.getDoubles(b, 0, len);
+        end.getDoubles(e, 0, len);
+        
+        if ( m_parallel && n >= PARALLEL_ROW_COUNT ) {
+            IntStream.range(0, n).parallel().forEach(i -> {
+                int r = rows[i];
+                b[r] = Double.isNaN(c[r]) ? pos[i] : c[r];
+                e[r] = c[r] = pos[i];
+            });
+        } else {
+            for ( int i=0; i<n; ++i ) {
+                int r = rows[i];
+                b[r] = Double.isNaN(c[r]) ? pos[i] : c[r];
+                e[r] = c[r] = pos[i];
+            }
+        }
+        
+        start.setDoubles(b, 0, len);
+        end.setDoubles(e, 0, len);
+        cur.setDoubles(c, 0, len);
+    }
+    
 } // end of class AxisLayout
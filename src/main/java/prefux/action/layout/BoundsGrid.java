@@ -0,0 +1,287 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout;
+
+import java.util.Arrays;
+
+import javafx.geometry.Rectangle2D;
+import prefux.Constants;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Uniform grid over axis-aligned boxes, used by layouts to find
+ * overlapping items in near-linear time. Each box is entered into every
+ * cell it covers, in per-cell lists kept in primitive arrays, so boxes
+ * can be added while the grid is queried. Boxes outside the domain of the
+ * grid are entered into its border cells, and are still found.</p>
+ *
+ * <p>Boxes are identified by the order in which they were added, starting
+ * at zero. Boxes overlap if their interiors intersect; boxes that only
+ * touch do not overlap.</p>
+ */
+final class BoundsGrid {
+
+    private double m_minX, m_minY, m_cell = 1;
+    private int    m_nx = 1, m_ny = 1;
+    private int[]  m_head = new int[1];
+
+    // boxes, indexed by id
+    private int      m_count = 0;
+    private double[] m_x0 = new double[0], m_y0 = new double[0];
+    private double[] m_x1 = new double[0], m_y1 = new double[0];
+    private int[]    m_stamp = new int[0];
+    private int      m_query = 0;
+
+    // cell list entries
+    private int   m_entries = 0;
+    private int[] m_next = new int[0];
+    private int[] m_id = new int[0];
+
+    // result of the last query
+    private int[] m_found = new int[0];
+
+    /**
+     * Clear the grid and set its domain.
+     * @param x0 the minimum x-coordinate of the domain
+     * @param y0 the minimum y-coordinate of the domain
+     * @param x1 the maximum x-coordinate of the domain
+     * @param y1 the maximum y-coordinate of the domain
+     * @param cell the preferred cell size, which is increased if the grid
+     * would have many more cells than boxes
+     * @param count the expected number of boxes
+     */
+    void reset(double x0, double y0, double x1, double y1, double cell,
+               int count)
+    {
+        double w = x1-x0, h = y1-y0;
+        if ( !(w > 0 && w < Double.POSITIVE_INFINITY) ) w = 0;
+        if ( !(h > 0 && h < Double.POSITIVE_INFINITY) ) h = 0;
+        if ( !(cell > 0) || Double.isInfinite(cell) )
+            cell = Math.max(Math.max(w, h), 1);
+        int max = Math.max(16, 4*count);
+        while ( (w/cell+1)*(h/cell+1) > max )
+            cell *= 2;
+
+        m_minX = x0;
+        m_minY = y0;
+        m_cell = cell;
+        m_nx = (int)(w/cell) + 1;
+        m_ny = (int)(h/cell) + 1;
+        if ( m_head.length < m_nx*m_ny )
+            m_head = new int[m_nx*m_ny];
+        Arrays.fill(m_head, 0, m_nx*m_ny, -1);
+        m_count = 0;
+        m_entries = 0;
+    }
+
+    /**
+     * Get the number of boxes in the grid.
+     * @return the number of boxes
+     */
+    int size() {
+        return m_count;
+    }
+
+    /**
+     * Add a box to the grid.
+     * @return the id of the box
+     */
+    int add(double x0, double y0, double x1, double y1) {
+        int id = m_count++;
+        if ( id >= m_x0.length ) {
+            int n = Math.max(16, 2*m_x0.length);
+            m_x0 = Arrays.copyOf(m_x0, n);
+            m_y0 = Arrays.copyOf(m_y0, n);
+            m_x1 = Arrays.copyOf(m_x1, n);
+            m_y1 = Arrays.copyOf(m_y1, n);
+            m_stamp = Arrays.copyOf(m_stamp, n);
+            m_found = Arrays.copyOf(m_found, n);
+        }
+        m_x0[id] = x0; m_y0[id] = y0;
+        m_x1[id] = x1; m_y1[id] = y1;
+        m_stamp[id] = m_query;
+
+        int cx0 = cellX(x0), cx1 = cellX(x1);
+        int cy0 = cellY(y0), cy1 = cellY(y1);
+        for ( int cy=cy0; cy<=cy1; ++cy ) {
+            for ( int cx=cx0; cx<=cx1; ++cx ) {
+                int e = m_entries++;
+                if ( e >= m_next.length ) {
+                    int n = Math.max(16, 2*m_next.length);
+                    m_next = Arrays.copyOf(m_next, n);
+                    m_id = Arrays.copyOf(m_id, n);
+                }
+                int c = cy*m_nx + cx;
+                m_id[e] = id;
+                m_next[e] = m_head[c];
+                m_head[c] = e;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Find the boxes overlapping a box. The ids of the boxes are available
+     * from {@link #found()} until the next query.
+     * @return the number of overlapping boxes
+     */
+    int query(double x0, double y0, double x1, double y1) {
+        int n = 0;
+        int q = stamp();
+        int cx0 = cellX(x0), cx1 = cellX(x1);
+        int cy0 = cellY(y0), cy1 = cellY(y1);
+        for ( int cy=cy0; cy<=cy1; ++cy ) {
+            for ( int cx=cx0; cx<=cx1; ++cx ) {
+                for ( int e=m_head[cy*m_nx+cx]; e>=0; e=m_next[e] ) {
+                    int id = m_id[e];
+                    if ( m_stamp[id] == q ) continue;
+                    m_stamp[id] = q;
+                    if ( overlaps(id, x0, y0, x1, y1) )
+                        m_found[n++] = id;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the ids found by the last query.
+     * @return the found ids, valid up to the count returned by the query
+     */
+    int[] found() {
+        return m_found;
+    }
+
+    /**
+     * Indicates if any box overlaps a box.
+     * @return true if a box in the grid overlaps the given box
+     */
+    boolean intersects(double x0, double y0, double x1, double y1) {
+        int q = stamp();
+        int cx0 = cellX(x0), cx1 = cellX(x1);
+        int cy0 = cellY(y0), cy1 = cellY(y1);
+        for ( int cy=cy0; cy<=cy1; ++cy ) {
+            for ( int cx=cx0; cx<=cx1; ++cx ) {
+                for ( int e=m_head[cy*m_nx+cx]; e>=0; e=m_next[e] ) {
+                    int id = m_id[e];
+                    if ( m_stamp[id] == q ) continue;
+                    m_stamp[id] = q;
+                    if ( overlaps(id, x0, y0, x1, y1) )
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the total area in which boxes overlap a box.
+     * @return the sum of the areas of intersection
+     */
+    double overlap(double x0, double y0, double x1, double y1) {
+        double area = 0;
+        int n = query(x0, y0, x1, y1);
+        for ( int i=0; i<n; ++i ) {
+            int id = m_found[i];
+            area += (Math.min(x1, m_x1[id]) - Math.max(x0, m_x0[id]))
+                  * (Math.min(y1, m_y1[id]) - Math.max(y0, m_y0[id]));
+        }
+        return area;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the extent of an item: the size of its bounds, if a renderer set
+     * them, or else a square of its size times a base size.
+     * @param item the item
+     * @param base the side length of an item of size one
+     * @param out receives the width and height of the item
+     */
+    static void extent(VisualItem item, double base, double[] out) {
+        Rectangle2D b = item.getBounds();
+        if ( b != null && (b.getWidth() > 0 || b.getHeight() > 0) ) {
+            out[0] = b.getWidth();
+            out[1] = b.getHeight();
+        } else {
+            out[0] = out[1] = base * item.getSize();
+        }
+    }
+
+    /**
+     * Get the offset of the box of an item from its position.
+     * @param align the alignment of the box at the item position, one of
+     * {@link Constants#LEFT}, {@link Constants#RIGHT},
+     * {@link Constants#TOP}, {@link Constants#BOTTOM}, or
+     * {@link Constants#CENTER}
+     * @param extent the width or height of the box
+     * @return the offset of the minimum coordinate of the box
+     */
+    static double offset(int align, double extent) {
+        switch ( align ) {
+        case Constants.LEFT:
+        case Constants.TOP:
+            return 0;
+        case Constants.RIGHT:
+        case Constants.BOTTOM:
+            return -extent;
+        default:
+            return -extent/2;
+        }
+    }
+
+    private boolean overlaps(int id, double x0, double y0,
+                             double x1, double y1)
+    {
+        return x0 < m_x1[id] && m_x0[id] < x1
+            && y0 < m_y1[id] && m_y0[id] < y1;
+    }
+
+    private int stamp() {
+        if ( ++m_query == 0 ) {
+            // wrapped around, forget all stamps
+            Arrays.fill(m_stamp, 0);
+            m_query = 1;
+        }
+        return m_query;
+    }
+
+    private int cellX(double x) {
+        double c = (x - m_minX) / m_cell;
+        return c <= 0 ? 0 : c >= m_nx-1 ? m_nx-1 : (int)c;
+    }
+
+    private int cellY(double y) {
+        double c = (y - m_minY) / m_cell;
+        return c <= 0 ? 0 : c >= m_ny-1 ? m_ny-1 : (int)c;
+    }
+
+} // end of class BoundsGrid
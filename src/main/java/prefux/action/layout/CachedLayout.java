@@ -0,0 +1,425 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import prefux.Visualization;
+import prefux.action.GroupAction;
+import prefux.data.Table;
+import prefux.data.column.Column;
+import prefux.data.column.DoubleColumn;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
+import prefux.data.tuple.CompositeTupleSet;
+import prefux.data.tuple.TupleSet;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Action that caches the results of another {@link Layout}. Each result
+ * is stored under a key made of the layout's
+ * {@link Layout#getParameterKey() parameters} and its layout bounds. When
+ * the layout is run again with a key of a stored result, and the data of
+ * the layout's group did not change in the meantime, the stored
+ * {@link Layout#getResultFields() result fields} are restored instead of
+ * running the layout: the current, start and end coordinate columns of
+ * each table are written in bulk, along with further fields such as the
+ * visibility of the items, which layouts such as the {@link GridLayout}
+ * set. The start positions are set to the positions the items have when
+ * the result is restored, so that animations start from where the items
+ * are. This makes switching back and forth between views, or re-running
+ * an action list on a repaint, cheap for expensive layouts.</p>
+ *
+ * <p>The data version of the group is tracked by listening to its tables,
+ * which are the table of a visual table group, or the node and edge tables
+ * of a visual graph. Any change of the tables, other than changes of the
+ * item coordinates or of the cached item bounds, clears all stored
+ * results. Changes made while the wrapped layout runs are part of its
+ * result and are ignored. Since coordinate changes are ignored, only
+ * layouts that compute positions without regard to the current positions
+ * of the items should be cached. Groups not backed by tables are always
+ * laid out by the wrapped layout.</p>
+ *
+ * <p>Caching is opt-in: layouts that do not describe all their parameters
+ * in their parameter key return a different key on each call, and are
+ * always run. Of the layouts in this package, the {@link GridLayout}, the
+ * {@link CircleLayout}, the {@link AxisLayout}, a deterministic
+ * {@link RandomLayout}, and the node-link, radial and squarified treemap
+ * tree layouts without culling are cached. After a result is restored,
+ * the layout is {@link Layout#invalidate() invalidated}, so that layouts
+ * that only update what changed since their last run lay out all items
+ * the next time they run.</p>
+ *
+ * <p>At most {@link #getMaxEntries()} results are retained; when the limit
+ * is exceeded, the least recently used result is dropped. Call
+ * {@link #dispose()} when the action is no longer used, to stop listening
+ * to the tables of the group.</p>
+ */
+public class CachedLayout extends GroupAction {
+
+    /** The current, start and end coordinate columns of each axis. */
+    private static final String[][] AXES = {
+        { VisualItem.X, VisualItem.STARTX, VisualItem.ENDX },
+        { VisualItem.Y, VisualItem.STARTY, VisualItem.ENDY }
+    };
+
+    /** Columns whose updates do not change the data version. */
+    private static final Set<String> IGNORED = new HashSet<String>(
+        Arrays.asList(VisualItem.X, VisualItem.STARTX, VisualItem.ENDX,
+                      VisualItem.Y, VisualItem.STARTY, VisualItem.ENDY,
+                      VisualItem.VALIDATED, VisualItem.BOUNDS));
+
+    private final Layout m_layout;
+    private int m_maxEntries = 4;
+
+    private Table[] m_tables = new Table[0];
+    private long    m_version = 0, m_cacheVersion = -1;
+    private boolean m_writing = false; // ignore events of own writes
+
+    private final Map<Object,Result> m_cache
+        = new LinkedHashMap<Object,Result>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(
+            Map.Entry<Object,Result> eldest)
+        {
+            return size() > m_maxEntries;
+        }
+    };
+
+    private final TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( m_writing ) return;
+            if ( type == EventConstants.UPDATE && col >= 0
+                    && IGNORED.contains(t.getColumnName(col)) )
+                return;
+            ++m_version;
+        }
+    };
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a new CachedLayout.
+     * @param layout the layout whose results to cache
+     */
+    public CachedLayout(Layout layout) {
+        super(layout.getVisualization(), layout.getGroup());
+        m_layout = layout;
+    }
+
+    /**
+     * Get the layout whose results are cached.
+     * @return the cached layout
+     */
+    public Layout getLayout() {
+        return m_layout;
+    }
+
+    /**
+     * @see prefux.action.GroupAction#getGroup()
+     */
+    public String getGroup() {
+        return m_layout.getGroup();
+    }
+
+    /**
+     * Set the group of the cached layout.
+     * @see prefux.action.GroupAction#setGroup(java.lang.String)
+     */
+    public void setGroup(String group) {
+        m_layout.setGroup(group);
+    }
+
+    /**
+     * Set the visualization of this action and of the cached layout.
+     * @see prefux.action.Action#setVisualization(prefux.Visualization)
+     */
+    public void setVisualization(Visualization vis) {
+        super.setVisualization(vis);
+        m_layout.setVisualization(vis);
+    }
+
+    /**
+     * Get the maximum number of retained layout results.
+     * @return the maximum number of results
+     */
+    public int getMaxEntries() {
+        return m_maxEntries;
+    }
+
+    /**
+     * Set the maximum number of retained layout results. When the limit is
+     * exceeded, the least recently used results are dropped. The default
+     * is 4.
+     * @param n the maximum number of results, at least 1
+     */
+    public void setMaxEntries(int n) {
+        if ( n < 1 )
+            throw new IllegalArgumentException(
+                "Maximum entries must be a positive number!");
+        m_maxEntries = n;
+        Iterator<?> iter = m_cache.keySet().iterator();
+        for ( int i=m_cache.size(); i > n; --i ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Drop all retained layout results, for example after changing a
+     * setting of the cached layout that is not part of its parameter key.
+     */
+    public void clear() {
+        m_cache.clear();
+    }
+
+    /**
+     * Drop all retained layout results and stop listening to the tables of
+     * the group. The action can still be run afterwards, and then listens
+     * to the tables again.
+     */
+    public void dispose() {
+        for ( Table t : m_tables )
+            t.removeTableListener(m_listener);
+        m_tables = new Table[0];
+        m_cache.clear();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see prefux.action.Action#run(double)
+     */
+    public void run(double frac) {
+        Object params = m_layout.getParameterKey();
+        if ( !params.equals(m_layout.getParameterKey())
+                || !watch(m_vis.getGroup(m_layout.getGroup())) )
+        {
+            // the layout does not opt in to caching, or the group is not
+            // backed by tables
+            m_layout.run(frac);
+            return;
+        }
+        if ( m_version != m_cacheVersion ) {
+            m_cache.clear();
+            m_cacheVersion = m_version;
+        }
+
+        Object key = Arrays.asList(params, m_layout.getLayoutBounds());
+        Result result = m_cache.get(key);
+        m_writing = true;
+        try {
+            if ( result != null ) {
+                restore(result);
+                m_layout.invalidate();
+            } else {
+                m_layout.run(frac);
+                m_cache.put(key, store());
+            }
+        } finally {
+            m_writing = false;
+        }
+    }
+
+    /**
+     * Listen to the tables of a group.
+     * @return true if the group is backed by tables
+     */
+    private boolean watch(TupleSet ts) {
+        List<Table> tables = new ArrayList<Table>(2);
+        if ( ts instanceof Table ) {
+            tables.add((Table)ts);
+        } else if ( ts instanceof CompositeTupleSet ) {
+            Iterator<TupleSet> sets = ((CompositeTupleSet)ts).sets();
+            while ( sets.hasNext() ) {
+                TupleSet set = sets.next();
+                if ( !(set instanceof Table) )
+                    return false;
+                tables.add((Table)set);
+            }
+        }
+        Table[] t = tables.toArray(new Table[tables.size()]);
+        if ( !Arrays.equals(t, m_tables) ) {
+            for ( Table old : m_tables )
+                old.removeTableListener(m_listener);
+            for ( Table cur : t )
+                cur.addTableListener(m_listener);
+            m_tables = t;
+            ++m_version;
+        }
+        return t.length > 0;
+    }
+
+    /**
+     * Copy the result fields of the layout from all tables.
+     */
+    private Result store() {
+        String[] fields = m_layout.getResultFields();
+        Result result = new Result(fields, m_tables.length);
+        for ( int k=0; k<m_tables.length; ++k ) {
+            Table t = m_tables[k];
+            for ( int j=0; j<fields.length; ++j ) {
+                if ( t.getColumn(fields[j]) == null ) continue;
+                String[] axis = axis(fields[j]);
+                if ( axis != null ) {
+                    result.values[k][j] = new double[][] {
+                        read(t, axis[0]), read(t, axis[2]) };
+                } else {
+                    Object[] v = new Object[t.getMaximumRow()+1];
+                    for ( int r=0; r<v.length; ++r )
+                        v[r] = t.isValidRow(r) ? t.get(r, fields[j]) : null;
+                    result.values[k][j] = v;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the current, start and end columns of a coordinate field, or
+     * null if the field is not a coordinate.
+     */
+    private static String[] axis(String field) {
+        for ( String[] axis : AXES ) {
+            if ( axis[0].equals(field) )
+                return axis;
+        }
+        return null;
+    }
+
+    /**
+     * Copy a coordinate column, or return null if the table has none.
+     */
+    private static double[] read(Table t, String field) {
+        Column c = t.getColumn(field);
+        if ( c == null ) return null;
+        int len = t.getMaximumRow()+1;
+        double[] v = new double[len];
+        if ( c instanceof DoubleColumn && c.getRowCount() >= len ) {
+            ((DoubleColumn)c).getDoubles(v, 0, len);
+        } else {
+            for ( int r=0; r<len; ++r )
+                v[r] = t.isValidRow(r) ? t.getDouble(r, field) : Double.NaN;
+        }
+        return v;
+    }
+
+    /**
+     * Write the stored result fields back to the tables. For coordinates,
+     * the current positions become the start positions, and the stored
+     * positions the current and end positions. Other fields are only
+     * written where their values differ.
+     */
+    private void restore(Result result) {
+        for ( int k=0; k<m_tables.length; ++k ) {
+            Table t = m_tables[k];
+            for ( int j=0; j<result.fields.length; ++j ) {
+                Object v = result.values[k][j];
+                if ( v == null ) continue;
+                String[] axis = axis(result.fields[j]);
+                if ( axis != null ) {
+                    double[][] coords = (double[][])v;
+                    restore(t, axis, coords[0], coords[1]);
+                } else {
+                    restore(t, result.fields[j], (Object[])v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the stored values of a field where they differ.
+     */
+    private static void restore(Table t, String field, Object[] values) {
+        int len = Math.min(values.length, t.getMaximumRow()+1);
+        for ( int r=0; r<len; ++r ) {
+            if ( t.isValidRow(r)
+                    && !Objects.equals(values[r], t.get(r, field)) )
+                t.set(r, field, values[r]);
+        }
+    }
+
+    /**
+     * Write the stored current and end columns of a coordinate.
+     */
+    private static void restore(Table t, String[] f, double[] cur,
+                                double[] end)
+    {
+        Column cc = t.getColumn(f[0]);
+        Column sc = t.getColumn(f[1]);
+        Column ec = t.getColumn(f[2]);
+        if ( cur == null || end == null || sc == null ) return;
+        int len = Math.min(cur.length, t.getMaximumRow()+1);
+        if ( cc instanceof DoubleColumn && sc instanceof DoubleColumn
+                && ec instanceof DoubleColumn
+                && cc.getRowCount() >= len && sc.getRowCount() >= len
+                && ec.getRowCount() >= len )
+        {
+            double[] start = new double[len];
+            ((DoubleColumn)cc).getDoubles(start, 0, len);
+            ((DoubleColumn)sc).setDoubles(start, 0, len);
+            ((DoubleColumn)ec).setDoubles(end, 0, len);
+            ((DoubleColumn)cc).setDoubles(cur, 0, len);
+        } else {
+            for ( int r=0; r<len; ++r ) {
+                if ( !t.isValidRow(r) ) continue;
+                t.setDouble(r, f[1], t.getDouble(r, f[0]));
+                t.setDouble(r, f[2], end[r]);
+                t.setDouble(r, f[0], cur[r]);
+            }
+        }
+    }
+
+    /**
+     * A stored layout result: per table and result field, the current and
+     * end columns of a coordinate, or the value of each row.
+     */
+    private static class Result {
+        final String[] fields;
+        final Object[][] values;
+
+        Result(String[] fields, int tables) {
+            this.fields = fields;
+            values = new Object[tables][fields.length];
+        }
+    }
+
+} // end of class CachedLayout
@@ -30,22 +30,39 @@
  */
 package prefux.action.layout;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.data.tuple.TupleSet;
 import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
 
 /**
  * Layout action that positions visual items along a circle. By default,
  * items are sorted in the order in which they iterated over.
  * 
+ * <p>Items can also be sorted by a data field. For groups backed by a
+ * table, the ordering is cached, the positions of large groups are
+ * computed in parallel and written in bulk, and runs in which neither the
+ * ordering, the radius nor the layout bounds changed are skipped.</p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class CircleLayout extends Layout {
     
     private double m_radius; // radius of the circle layout
     
+    private String  m_sortField = null;
+    private boolean m_ascending = true;
+    private boolean m_parallel = true;
+    
+    private final RowOrder m_order = new RowOrder();
+    private Rectangle2D m_lastBounds = null;
+    private double m_lastRadius = Double.NaN;
+    private double[] m_x = new double[0], m_y = new double[0];
+    
     /**
      * Create a CircleLayout; the radius of the circle layout will be computed
      * automatically based on the display size.
@@ -82,6 +99,69 @@ public class CircleLayout extends Layout {
         m_radius = radius;
     }
     
+    /**
+     * Get the data field by which items are sorted.
+     * @return the sort field, or null if items are placed in table order
+     */
+    public String getSortField() {
+        return m_sortField;
+    }
+    
+    /**
+     * Set the data field by which items are sorted. The field is indexed
+     * to sort the items, if it is not indexed already.
+     * @param field the sort field, or null to place items in table order
+     */
+    public void setSortField(String field) {
+        m_sortField = field;
+    }
+    
+    /**
+     * Indicates if items are sorted in ascending order.
+     * @return true for ascending order, false for descending order
+     */
+    public boolean isAscending() {
+        return m_ascending;
+    }
+    
+    /**
+     * Set if items are sorted in ascending order.
+     * @param b true for ascending order, false for descending order
+     */
+    public void setAscending(boolean b) {
+        m_ascending = b;
+    }
+    
+    /**
+     * Indicates if positions are computed in parallel for large groups.
+     * @return true if positions are computed in parallel
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+    
+    /**
+     * Set if positions are computed in parallel for large groups, in the
+     * common fork/join pool. This is enabled by default, and does not
+     * change the result.
+     * @param b true to compute positions in parallel
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+    
+    /**
+     * Get the parameter key of this layout. Subclasses are not cached,
+     * unless they override this method to cover their own parameters.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( getClass() != CircleLayout.class )
+            return super.getParameterKey();
+        return Arrays.asList(getBaseParameterKey(), m_radius,
+            m_sortField, m_ascending);
+    }
+    
     /**
      * @see prefux.action.Action#run(double)
      */
@@ -101,6 +181,11 @@ public class CircleLayout extends Layout {
             radius = 0.45 * (height < width ? height : width);
         }
 
+        if ( ts instanceof VisualTable ) {
+            layout((VisualTable)ts, r, cx, cy, radius);
+            return;
+        }
+        
         Iterator items = ts.tuples();
         for (int i=0; items.hasNext(); i++) {
             VisualItem n = (VisualItem)items.next();
@@ -112,4 +197,46 @@ public class CircleLayout extends Layout {
         }
     }
 
+    /**
+     * Make the next run set the positions of all rows, even if the
+     * ordering, radius and bounds did not change.
+     * @see prefux.action.layout.Layout#invalidate()
+     */
+    public void invalidate() {
+        m_lastBounds = null;
+    }
+
+    /**
+     * Lay out the rows of a table from the cached ordering.
+     */
+    private void layout(VisualTable t, Rectangle2D b, double cx, double cy,
+                        double radius)
+    {
+        boolean changed = m_order.update(t, m_sortField, m_ascending);
+        if ( !changed && radius == m_lastRadius && b.equals(m_lastBounds) )
+            return;
+        
+        int nn = m_order.count();
+        if ( m_x.length < nn ) {
+            m_x = new double[nn];
+            m_y = new double[nn];
+        }
+        if ( m_parallel && nn >= RowOrder.PARALLEL_ROW_COUNT ) {
+            IntStream.range(0, nn).parallel().forEach(
+                i -> position(i, nn, cx, cy, radius));
+        } else {
+            for ( int i=0; i<nn; ++i )
+                position(i, nn, cx, cy, radius);
+        }
+        m_order.setPositions(m_x, m_y, nn, m_parallel);
+        m_lastBounds = b;
+        m_lastRadius = radius;
+    }
+    
+    private void position(int i, int nn, double cx, double cy, double radius) {
+        double angle = (2*Math.PI*i) / nn;
+        m_x[i] = Math.cos(angle)*radius + cx;
+        m_y[i] = Math.sin(angle)*radius + cy;
+    }
+
 } // end of class CircleLayout
@@ -30,12 +30,15 @@
  */
 package prefux.action.layout;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.data.Node;
 import prefux.data.tuple.TupleSet;
 import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
 
 
 /**
@@ -43,6 +46,12 @@ import prefux.visual.VisualItem;
  * preset grid dimensions or analyze a grid-shaped graph to determine them
  * automatically.
  * 
+ * <p>Items are placed in the order of their table rows, or sorted by a
+ * data field. For groups backed by a table, the ordering is cached, the
+ * positions of large groups are computed in parallel and written in bulk,
+ * and runs in which neither the ordering, the grid nor the layout bounds
+ * changed are skipped.</p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class GridLayout extends Layout {
@@ -51,6 +60,15 @@ public class GridLayout extends Layout {
     protected int cols;
     protected boolean analyze = false;
     
+    private String  m_sortField = null;
+    private boolean m_ascending = true;
+    private boolean m_parallel = true;
+    
+    private final RowOrder m_order = new RowOrder();
+    private Rectangle2D m_lastBounds = null;
+    private int m_lastRows = -1, m_lastCols = -1;
+    private double[] m_x = new double[0], m_y = new double[0];
+    
     /**
      * Create a new GridLayout without preset dimensions. The layout will
      * attempt to analyze an input graph to determine grid parameters.
@@ -87,6 +105,11 @@ public class GridLayout extends Layout {
         double w = b.getWidth(), h = b.getHeight();
         
         TupleSet ts = m_vis.getGroup(m_group);
+        if ( ts instanceof VisualTable ) {
+            layout((VisualTable)ts, b);
+            return;
+        }
+        
         int m = rows, n = cols;
         if ( analyze ) {
             int[] d = analyzeGraphGrid(ts);
@@ -110,6 +133,64 @@ public class GridLayout extends Layout {
         }
     }
     
+    /**
+     * Make the next run set the positions of all rows, even if the
+     * ordering, grid size and bounds did not change.
+     * @see prefux.action.layout.Layout#invalidate()
+     */
+    public void invalidate() {
+        m_lastBounds = null;
+    }
+
+    /**
+     * Lay out the rows of a table from the cached ordering.
+     */
+    private void layout(VisualTable t, Rectangle2D b) {
+        boolean changed = m_order.update(t, m_sortField, m_ascending);
+        int m = rows, n = cols;
+        if ( analyze ) {
+            if ( changed ) {
+                int[] d = analyzeGraphGrid(t);
+                m = d[0]; n = d[1];
+            } else {
+                m = m_lastRows; n = m_lastCols;
+            }
+        }
+        if ( !changed && m == m_lastRows && n == m_lastCols
+                && b.equals(m_lastBounds) )
+            return;
+        
+        int count = (int)Math.min(m_order.count(), (long)m*n);
+        if ( m_x.length < count ) {
+            m_x = new double[count];
+            m_y = new double[count];
+        }
+        double bx = b.getMinX(), by = b.getMinY();
+        double w = b.getWidth(), h = b.getHeight();
+        int mm = m, nn = n;
+        if ( m_parallel && count >= RowOrder.PARALLEL_ROW_COUNT ) {
+            IntStream.range(0, count).parallel().forEach(
+                i -> position(i, bx, by, w, h, mm, nn));
+        } else {
+            for ( int i=0; i<count; ++i )
+                position(i, bx, by, w, h, m, n);
+        }
+        
+        // layout grid contents, and set left-overs invisible
+        m_order.setVisible(count);
+        m_order.setPositions(m_x, m_y, count, m_parallel);
+        m_lastBounds = b;
+        m_lastRows = m;
+        m_lastCols = n;
+    }
+    
+    private void position(int i, double bx, double by, double w, double h,
+                          int m, int n)
+    {
+        m_x[i] = bx + w*((i%n)/(double)(n-1));
+        m_y[i] = by + h*((i/n)/(double)(m-1));
+    }
+    
     /**
      * Analyzes a set of nodes to try and determine grid dimensions. Currently
      * looks for the edge count on a node to drop to 2 to determine the end of
@@ -163,4 +244,68 @@ public class GridLayout extends Layout {
         this.rows = rows;
     }
     
+    /**
+     * Get the data field by which items are sorted.
+     * @return the sort field, or null if items are placed in table order
+     */
+    public String getSortField() {
+        return m_sortField;
+    }
+    
+    /**
+     * Set the data field by which items are sorted. The field is indexed
+     * to sort the items, if it is not indexed already.
+     * @param field the sort field, or null to place items in table order
+     */
+    public void setSortField(String field) {
+        m_sortField = field;
+    }
+    
+    /**
+     * Indicates if items are sorted in ascending order.
+     * @return true for ascending order, false for descending order
+     */
+    public boolean isAscending() {
+        return m_ascending;
+    }
+    
+    /**
+     * Set if items are sorted in ascending order.
+     * @param b true for ascending order, false for descending order
+     */
+    public void setAscending(boolean b) {
+        m_ascending = b;
+    }
+    
+    /**
+     * Indicates if positions are computed in parallel for large groups.
+     * @return true if positions are computed in parallel
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+    
+    /**
+     * Set if positions are computed in parallel for large groups, in the
+     * common fork/join pool. This is enabled by default, and does not
+     * change the result.
+     * @param b true to compute positions in parallel
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+    
+    /**
+     * Get the parameter key of this layout. Subclasses are not cached,
+     * unless they override this method to cover their own parameters.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( getClass() != GridLayout.class )
+            return super.getParameterKey();
+        return Arrays.asList(getBaseParameterKey(), analyze,
+            analyze ? null : rows, analyze ? null : cols,
+            m_sortField, m_ascending);
+    }
+    
 } // end of class GridLayout
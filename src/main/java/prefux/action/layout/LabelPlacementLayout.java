@@ -0,0 +1,549 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import prefux.Constants;
+import prefux.util.ArrayLib;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Layout Action that places labels around their anchor positions so
+ * that they do not overlap. Labels are placed greedily in order of
+ * priority: each label takes the first of a fixed set of candidate
+ * positions that is free of the labels placed before it, trying its
+ * natural position at the anchor first, then the four diagonal, the two
+ * horizontal and the two vertical positions around the anchor. Placed
+ * labels are kept in a uniform grid, so each test takes near-constant
+ * time. A label without a free position is hidden, or, if hiding is
+ * disabled, takes the position of least overlap. Labels hidden by this
+ * layout are reconsidered, and shown again, in later runs.</p>
+ *
+ * <p>The anchor of a label is its position, unless that is the position
+ * this layout gave it in the last run, in which case the anchor of the
+ * last run is kept. The box of a label is given by its bounds, if a
+ * renderer set them, or else is a square of its size times a base size,
+ * and is placed at the anchor according to the horizontal and vertical
+ * alignment for the natural position.</p>
+ *
+ * <p>In incremental mode, which is enabled by default, a run over the same
+ * labels in the same order of priority as the last run only re-evaluates
+ * the labels that changed, and the labels whose candidate positions reach
+ * into a region where the placement changed. The result is the same as
+ * that of a full run.</p>
+ */
+public class LabelPlacementLayout extends Layout {
+
+    // candidate positions around the anchor, in order of preference;
+    // the first one is the natural position of the label
+    private static final int[] CANDIDATE_X = { 0,  1, -1, 1, -1, 1, -1,  0, 0 };
+    private static final int[] CANDIDATE_Y = { 0, -1, -1, 1,  1, 0,  0, -1, 1 };
+
+    private String  m_priorityField = null;
+    private double  m_offset = 2;
+    private double  m_padding = 0;
+    private double  m_baseSize = 10;
+    private int     m_xAlign = Constants.CENTER;
+    private int     m_yAlign = Constants.CENTER;
+    private boolean m_hide = true;
+    private boolean m_incremental = true;
+
+    // the labels of the last run, with their anchors, sizes and placements
+    private VisualItem[] m_items = new VisualItem[0];
+    private int       m_count = 0;
+    private boolean   m_valid = false;
+    private boolean[] m_placed = new boolean[0]; // considered in last run
+    private boolean[] m_hidden = new boolean[0]; // hidden by this layout
+    private double[]  m_ax = new double[0], m_ay = new double[0];
+    private double[]  m_w = new double[0], m_h = new double[0];
+    private double[]  m_px = new double[0], m_py = new double[0];
+    private int[]     m_cand = new int[0];
+    private double[]  m_bx0 = new double[0], m_by0 = new double[0];
+    private double[]  m_bx1 = new double[0], m_by1 = new double[0];
+    private int[]     m_order = new int[0];
+    private int       m_orderCount = 0;
+
+    // state of the current run
+    private boolean[] m_consider = new boolean[0];
+    private boolean[] m_changed = new boolean[0];
+    private int[]     m_sorted = new int[0];
+    private double[]  m_key = new double[0];
+
+    private final BoundsGrid m_grid = new BoundsGrid();
+    private final BoundsGrid m_region = new BoundsGrid();
+    private final double[]   m_ext = new double[2];
+    private final double[]   m_box = new double[4];
+
+    /**
+     * Create a new LabelPlacementLayout.
+     * @param group the data group of the labels
+     */
+    public LabelPlacementLayout(String group) {
+        super(group);
+    }
+
+    /**
+     * Create a new LabelPlacementLayout.
+     * @param group the data group of the labels
+     * @param priorityField the data field giving the priority of labels,
+     * labels of higher priority being placed first
+     */
+    public LabelPlacementLayout(String group, String priorityField) {
+        super(group);
+        m_priorityField = priorityField;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the data field giving the priority of labels.
+     * @return the priority field, or null if labels are placed in the
+     * order of the group
+     */
+    public String getPriorityField() {
+        return m_priorityField;
+    }
+
+    /**
+     * Set the data field giving the priority of labels. Labels of higher
+     * priority are placed first, and labels of lowest priority are hidden
+     * if no free position is left for them.
+     * @param field the priority field, or null to place labels in the
+     * order of the group
+     */
+    public void setPriorityField(String field) {
+        m_priorityField = field;
+        m_valid = false;
+    }
+
+    /**
+     * Get the distance between the anchor and the labels placed around it.
+     * @return the offset from the anchor
+     */
+    public double getOffset() {
+        return m_offset;
+    }
+
+    /**
+     * Set the distance between the anchor and the labels placed around it.
+     * @param offset the offset from the anchor
+     */
+    public void setOffset(double offset) {
+        if ( offset < 0 || Double.isNaN(offset) )
+            throw new IllegalArgumentException(
+                "Offset must be a non-negative number!");
+        m_offset = offset;
+        m_valid = false;
+    }
+
+    /**
+     * Get the minimum distance between placed labels.
+     * @return the padding between labels
+     */
+    public double getPadding() {
+        return m_padding;
+    }
+
+    /**
+     * Set the minimum distance between placed labels.
+     * @param padding the padding between labels
+     */
+    public void setPadding(double padding) {
+        if ( padding < 0 || Double.isNaN(padding) )
+            throw new IllegalArgumentException(
+                "Padding must be a non-negative number!");
+        m_padding = padding;
+        m_valid = false;
+    }
+
+    /**
+     * Get the side length of the box of a label of size one, used for
+     * labels whose bounds are not set.
+     * @return the base size
+     */
+    public double getBaseSize() {
+        return m_baseSize;
+    }
+
+    /**
+     * Set the side length of the box of a label of size one, used for
+     * labels whose bounds are not set.
+     * @param size the base size
+     */
+    public void setBaseSize(double size) {
+        if ( size < 0 || Double.isNaN(size) )
+            throw new IllegalArgumentException(
+                "Base size must be a non-negative number!");
+        m_baseSize = size;
+        m_valid = false;
+    }
+
+    /**
+     * Get the horizontal alignment of labels at their natural position.
+     * @return one of {@link Constants#LEFT}, {@link Constants#RIGHT}, or
+     * {@link Constants#CENTER}
+     */
+    public int getHorizontalAlignment() {
+        return m_xAlign;
+    }
+
+    /**
+     * Set the horizontal alignment of labels at their natural position.
+     * With left alignment, the label starts at its position, as for labels
+     * drawn by a {@link prefux.render.LabelRenderer}.
+     * @param align one of {@link Constants#LEFT}, {@link Constants#RIGHT},
+     * or {@link Constants#CENTER}
+     */
+    public void setHorizontalAlignment(int align) {
+        if ( align != Constants.LEFT && align != Constants.RIGHT
+                && align != Constants.CENTER )
+            throw new IllegalArgumentException(
+                "Unrecognized horizontal alignment: " + align);
+        m_xAlign = align;
+        m_valid = false;
+    }
+
+    /**
+     * Get the vertical alignment of labels at their natural position.
+     * @return one of {@link Constants#TOP}, {@link Constants#BOTTOM}, or
+     * {@link Constants#CENTER}
+     */
+    public int getVerticalAlignment() {
+        return m_yAlign;
+    }
+
+    /**
+     * Set the vertical alignment of labels at their natural position.
+     * @param align one of {@link Constants#TOP}, {@link Constants#BOTTOM},
+     * or {@link Constants#CENTER}
+     */
+    public void setVerticalAlignment(int align) {
+        if ( align != Constants.TOP && align != Constants.BOTTOM
+                && align != Constants.CENTER )
+            throw new IllegalArgumentException(
+                "Unrecognized vertical alignment: " + align);
+        m_yAlign = align;
+        m_valid = false;
+    }
+
+    /**
+     * Indicates if labels without a free position are hidden.
+     * @return true if labels without a free position are hidden
+     */
+    public boolean isHideOverlapping() {
+        return m_hide;
+    }
+
+    /**
+     * Set if labels without a free position are hidden. Otherwise, they
+     * take the position of least overlap. Hiding is enabled by default.
+     * @param b true to hide labels without a free position
+     */
+    public void setHideOverlapping(boolean b) {
+        m_hide = b;
+        m_valid = false;
+    }
+
+    /**
+     * Indicates if runs only re-evaluate the labels affected by changes
+     * since the last run.
+     * @return true if the layout is incremental
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+
+    /**
+     * Set if runs only re-evaluate the labels affected by changes since
+     * the last run. This does not change the result. Incremental runs are
+     * enabled by default.
+     * @param b true to run incrementally, false to place all labels in
+     * each run
+     */
+    public void setIncremental(boolean b) {
+        m_incremental = b;
+    }
+
+    /**
+     * Place all labels in the next run.
+     */
+    public void invalidate() {
+        m_valid = false;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see prefux.action.Action#run(double)
+     */
+    public void run(double frac) {
+        int n = collect();
+        boolean full = !m_valid || !m_incremental;
+        double cell = 0;
+        int nc = 0;
+
+        for ( int i=0; i<n; ++i ) {
+            VisualItem item = m_items[i];
+            boolean was = !full && m_placed[i];
+            m_consider[i] = item.isVisible() || m_hidden[i];
+            m_changed[i] = false;
+            if ( !m_consider[i] ) continue;
+            double x = item.getX(), y = item.getY();
+            if ( Double.isNaN(x) || Double.isNaN(y) ) {
+                // labels without a position take no part
+                m_consider[i] = false;
+                if ( m_hidden[i] ) {
+                    item.setVisible(true);
+                    m_hidden[i] = false;
+                }
+                continue;
+            }
+            BoundsGrid.extent(item, m_baseSize, m_ext);
+            double w = m_ext[0] + m_padding, h = m_ext[1] + m_padding;
+            boolean moved = !(was && x == m_px[i] && y == m_py[i]);
+            if ( moved || w != m_w[i] || h != m_h[i] ) {
+                m_changed[i] = true;
+                if ( moved ) {
+                    m_ax[i] = x;
+                    m_ay[i] = y;
+                }
+                m_w[i] = w;
+                m_h[i] = h;
+            }
+            if ( !was ) {
+                m_changed[i] = true;
+                m_cand[i] = -1;
+            }
+            m_key[nc] = m_priorityField == null ? 0
+                      : -item.getDouble(m_priorityField);
+            m_sorted[nc++] = i;
+            cell += Math.max(w, h);
+        }
+        cell = nc > 0 ? cell/nc : 0;
+
+        // order labels by priority, keeping the group order for labels
+        // of the same priority
+        if ( m_priorityField != null ) {
+            ArrayLib.sort(m_key, m_sorted, nc);
+            for ( int s=0, e; s<nc; s=e ) {
+                for ( e=s+1; e<nc && m_key[e] == m_key[s]; ++e );
+                if ( e-s > 1 ) Arrays.sort(m_sorted, s, e);
+            }
+        }
+        if ( !full && nc != m_orderCount )
+            full = true;
+        for ( int k=0; !full && k<nc; ++k )
+            full = m_sorted[k] != m_order[k];
+
+        // the old boxes of labels no longer placed free their region
+        index(nc, cell);
+        for ( int i=0; i<n; ++i ) {
+            if ( m_consider[i] || !m_placed[i] ) continue;
+            if ( !full && m_cand[i] >= 0 )
+                m_region.add(m_bx0[i], m_by0[i], m_bx1[i], m_by1[i]);
+            m_placed[i] = false;
+            m_cand[i] = -1;
+        }
+
+        for ( int k=0; k<nc; ++k ) {
+            int i = m_sorted[k];
+            double ax = m_ax[i], ay = m_ay[i], w = m_w[i], h = m_h[i];
+            if ( full || m_changed[i] || (m_region.size() > 0
+                    && m_region.intersects(ax-w-m_offset, ay-h-m_offset,
+                                           ax+w+m_offset, ay+h+m_offset)) )
+            {
+                int c = place(i);
+                if ( !full && (c != m_cand[i] || m_changed[i]) ) {
+                    if ( m_cand[i] >= 0 )
+                        m_region.add(m_bx0[i], m_by0[i], m_bx1[i], m_by1[i]);
+                    if ( c >= 0 )
+                        m_region.add(m_box[0], m_box[1], m_box[2], m_box[3]);
+                }
+                m_cand[i] = c;
+                if ( c >= 0 ) {
+                    m_bx0[i] = m_box[0]; m_by0[i] = m_box[1];
+                    m_bx1[i] = m_box[2]; m_by1[i] = m_box[3];
+                }
+            }
+            if ( m_cand[i] >= 0 )
+                m_grid.add(m_bx0[i], m_by0[i], m_bx1[i], m_by1[i]);
+        }
+
+        // write the placements
+        double pad = m_padding/2;
+        for ( int k=0; k<nc; ++k ) {
+            int i = m_sorted[k];
+            VisualItem item = m_items[i];
+            if ( m_cand[i] < 0 ) {
+                if ( !m_hidden[i] ) {
+                    item.setVisible(false);
+                    m_hidden[i] = true;
+                }
+            } else {
+                if ( m_hidden[i] ) {
+                    item.setVisible(true);
+                    m_hidden[i] = false;
+                }
+                double w = m_w[i] - m_padding, h = m_h[i] - m_padding;
+                double x = m_bx0[i] + pad - BoundsGrid.offset(m_xAlign, w);
+                double y = m_by0[i] + pad - BoundsGrid.offset(m_yAlign, h);
+                if ( x != item.getX() ) setX(item, null, x);
+                if ( y != item.getY() ) setY(item, null, y);
+            }
+            m_px[i] = item.getX();
+            m_py[i] = item.getY();
+            m_placed[i] = true;
+        }
+
+        if ( m_order.length < nc )
+            m_order = new int[m_sorted.length];
+        System.arraycopy(m_sorted, 0, m_order, 0, nc);
+        m_orderCount = nc;
+        m_valid = true;
+    }
+
+    /**
+     * Find the position of a label among the candidates.
+     * @return the index of the chosen candidate, whose box is left in
+     * m_box, or -1 if the label is hidden
+     */
+    private int place(int i) {
+        double best = Double.POSITIVE_INFINITY;
+        int bc = -1;
+        double bx = 0, by = 0;
+        for ( int c=0; c<CANDIDATE_X.length; ++c ) {
+            box(i, c);
+            double x0 = m_box[0], y0 = m_box[1], x1 = m_box[2], y1 = m_box[3];
+            if ( !m_grid.intersects(x0, y0, x1, y1) )
+                return c;
+            if ( !m_hide ) {
+                double o = m_grid.overlap(x0, y0, x1, y1);
+                if ( o < best ) {
+                    best = o; bc = c;
+                    bx = x0;  by = y0;
+                }
+            }
+        }
+        if ( bc >= 0 ) {
+            m_box[0] = bx; m_box[1] = by;
+            m_box[2] = bx + m_w[i]; m_box[3] = by + m_h[i];
+        }
+        return bc;
+    }
+
+    /**
+     * Compute the box of a label at a candidate position into m_box.
+     */
+    private void box(int i, int c) {
+        double w = m_w[i], h = m_h[i], x0, y0;
+        if ( c == 0 ) {
+            double pad = m_padding/2;
+            x0 = m_ax[i] + BoundsGrid.offset(m_xAlign, w-m_padding) - pad;
+            y0 = m_ay[i] + BoundsGrid.offset(m_yAlign, h-m_padding) - pad;
+        } else {
+            x0 = m_ax[i] + CANDIDATE_X[c]*(w/2 + m_offset) - w/2;
+            y0 = m_ay[i] + CANDIDATE_Y[c]*(h/2 + m_offset) - h/2;
+        }
+        m_box[0] = x0;     m_box[1] = y0;
+        m_box[2] = x0 + w; m_box[3] = y0 + h;
+    }
+
+    /**
+     * Reset the grids to the region the labels can reach.
+     */
+    private void index(int nc, double cell) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+        for ( int k=0; k<nc; ++k ) {
+            int i = m_sorted[k];
+            double dx = m_w[i] + m_offset, dy = m_h[i] + m_offset;
+            minX = Math.min(minX, m_ax[i]-dx);
+            minY = Math.min(minY, m_ay[i]-dy);
+            maxX = Math.max(maxX, m_ax[i]+dx);
+            maxY = Math.max(maxY, m_ay[i]+dy);
+        }
+        m_grid.reset(minX, minY, maxX, maxY, cell, nc);
+        m_region.reset(minX, minY, maxX, maxY, 4*cell, nc);
+    }
+
+    /**
+     * Collect the labels of the group, and invalidate the last run if they
+     * differ from its labels, showing the labels it hid.
+     * @return the number of labels
+     */
+    private int collect() {
+        VisualItem[] items = new VisualItem[Math.max(16, m_count)];
+        int n = 0;
+        boolean same = true;
+        Iterator<VisualItem> iter = m_vis.items(m_group);
+        while ( iter.hasNext() ) {
+            VisualItem item = iter.next();
+            if ( n == items.length )
+                items = Arrays.copyOf(items, 2*n);
+            if ( n >= m_count || m_items[n] != item )
+                same = false;
+            items[n++] = item;
+        }
+        if ( n != m_count )
+            same = false;
+        if ( !same ) {
+            for ( int i=0; i<m_count; ++i ) {
+                if ( m_hidden[i] ) {
+                    m_items[i].setVisible(true);
+                    m_hidden[i] = false;
+                }
+            }
+            m_valid = false;
+        }
+        m_items = items;
+        m_count = n;
+
+        if ( m_placed.length < items.length ) {
+            int len = items.length;
+            m_placed = Arrays.copyOf(m_placed, len);
+            m_hidden = Arrays.copyOf(m_hidden, len);
+            m_ax  = Arrays.copyOf(m_ax, len);   m_ay  = Arrays.copyOf(m_ay, len);
+            m_w   = Arrays.copyOf(m_w, len);    m_h   = Arrays.copyOf(m_h, len);
+            m_px  = Arrays.copyOf(m_px, len);   m_py  = Arrays.copyOf(m_py, len);
+            m_cand = Arrays.copyOf(m_cand, len);
+            m_bx0 = Arrays.copyOf(m_bx0, len);  m_by0 = Arrays.copyOf(m_by0, len);
+            m_bx1 = Arrays.copyOf(m_bx1, len);  m_by1 = Arrays.copyOf(m_by1, len);
+            m_consider = new boolean[len];
+            m_changed  = new boolean[len];
+            m_sorted = new int[len];
+            m_key = new double[len];
+        }
+        return n;
+    }
+
+} // end of class LabelPlacementLayout
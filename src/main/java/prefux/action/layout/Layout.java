@@ -31,6 +31,7 @@
 package prefux.action.layout;
 
 import java.awt.Insets;
+import java.util.Arrays;
 
 import javafx.geometry.Rectangle2D;
 import prefux.Display;
@@ -168,6 +169,55 @@ public abstract class Layout extends GroupAction {
         m_anchor = a;
     }
     
+    /**
+     * Get a key describing the parameters of this layout, used by a
+     * {@link CachedLayout} to tell whether a cached result can be reused.
+     * Two keys are equal if running the layout with the same data and
+     * layout bounds yields the same positions. Caching is opt-in: the
+     * default key is a new object on each call, which never equals
+     * another key. Layouts whose parameters are all known should combine
+     * {@link #getBaseParameterKey()} with their own parameters.
+     * @return the parameter key, suitable for use as a hash key
+     */
+    public Object getParameterKey() {
+        return new Object();
+    }
+    
+    /**
+     * Get a key describing the parameters common to all layouts: the layout
+     * class, group, explicit anchor and margin.
+     * @return the key of the common layout parameters
+     * @see #getParameterKey()
+     */
+    protected Object getBaseParameterKey() {
+        return Arrays.asList(getClass(), m_group,
+            m_anchor == null ? null : m_anchor.getX(),
+            m_anchor == null ? null : m_anchor.getY(),
+            m_margin ? (Insets)m_insets.clone() : null);
+    }
+
+    /**
+     * Get the data fields that hold the result of this layout. A
+     * {@link CachedLayout} stores and restores the values of these fields.
+     * For the x and y coordinates, the end coordinates are stored as well,
+     * and the start coordinates are set to the current ones on restore.
+     * Other values must not be modified in place. By default, the
+     * visibility and the x and y coordinates are stored.
+     * @return the names of the fields set by this layout
+     */
+    protected String[] getResultFields() {
+        return new String[] { VisualItem.VISIBLE, VisualItem.X, VisualItem.Y };
+    }
+
+    /**
+     * Discard any state retained from previous runs, so that the next run
+     * lays out all items. Layouts that update only the items whose
+     * positions changed since their last run override this method. It is
+     * called by a {@link CachedLayout} after restoring a stored result.
+     */
+    public void invalidate() {
+    }
+
     /**
      * Convenience method for setting an x-coordinate. The start value of the
      * x-coordinate will be set to the current value, and the current and end
@@ -0,0 +1,421 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import prefux.Constants;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Layout Action that moves items apart until their boxes no longer
+ * overlap, keeping them as close to their positions as it can. Overlapping
+ * pairs are found with a uniform grid over the boxes, so each pass takes
+ * near-linear time, and each pair is pushed apart along the axis in which
+ * it overlaps least. The pushes of a pass are applied together, and passes
+ * are repeated until no boxes overlap, or up to a maximum number of
+ * passes. Fixed items are not moved; items overlapping them are pushed the
+ * full distance instead.</p>
+ *
+ * <p>The box of an item is given by its bounds, if a renderer set them,
+ * or else is a square of its size times a base size, and is placed at the
+ * item position according to the horizontal and vertical alignment. In
+ * incremental mode, which is enabled by default, a run over the same items
+ * as the last run only considers the items that moved or changed in size
+ * since then, and the items they push.</p>
+ */
+public class OverlapRemovalLayout extends Layout {
+
+    private double  m_padding = 0;
+    private double  m_baseSize = 10;
+    private int     m_xAlign = Constants.CENTER;
+    private int     m_yAlign = Constants.CENTER;
+    private int     m_maxIterations = 100;
+    private boolean m_incremental = true;
+
+    // the items of the last run, with the positions and sizes written
+    private VisualItem[] m_items = new VisualItem[0];
+    private int       m_count = 0;
+    private boolean   m_valid = false;
+    private double[]  m_x = new double[0], m_y = new double[0];
+    private double[]  m_w = new double[0], m_h = new double[0];
+
+    // the boxes and pushes of the current run
+    private double[]  m_x0 = new double[0], m_y0 = new double[0];
+    private double[]  m_x1 = new double[0], m_y1 = new double[0];
+    private double[]  m_dx = new double[0], m_dy = new double[0];
+    private boolean[] m_fixed = new boolean[0];
+    private boolean[] m_active = new boolean[0];
+    private boolean[] m_pushed = new boolean[0];
+    private boolean[] m_moved = new boolean[0];
+    private int[]     m_list = new int[0], m_next = new int[0];
+    private int       m_nextCount = 0;
+
+    private final BoundsGrid m_grid = new BoundsGrid();
+    private final double[]   m_ext = new double[2];
+
+    /**
+     * Create a new OverlapRemovalLayout.
+     * @param group the data group to layout
+     */
+    public OverlapRemovalLayout(String group) {
+        super(group);
+    }
+
+    /**
+     * Create a new OverlapRemovalLayout.
+     * @param group the data group to layout
+     * @param padding the minimum distance between the boxes of items
+     */
+    public OverlapRemovalLayout(String group, double padding) {
+        super(group);
+        setPadding(padding);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the minimum distance between the boxes of items.
+     * @return the padding between boxes
+     */
+    public double getPadding() {
+        return m_padding;
+    }
+
+    /**
+     * Set the minimum distance between the boxes of items.
+     * @param padding the padding between boxes
+     */
+    public void setPadding(double padding) {
+        if ( padding < 0 || Double.isNaN(padding) )
+            throw new IllegalArgumentException(
+                "Padding must be a non-negative number!");
+        m_padding = padding;
+        m_valid = false;
+    }
+
+    /**
+     * Get the side length of the box of an item of size one, used for
+     * items whose bounds are not set.
+     * @return the base size
+     */
+    public double getBaseSize() {
+        return m_baseSize;
+    }
+
+    /**
+     * Set the side length of the box of an item of size one, used for
+     * items whose bounds are not set.
+     * @param size the base size
+     */
+    public void setBaseSize(double size) {
+        if ( size < 0 || Double.isNaN(size) )
+            throw new IllegalArgumentException(
+                "Base size must be a non-negative number!");
+        m_baseSize = size;
+        m_valid = false;
+    }
+
+    /**
+     * Get the horizontal alignment of boxes at the item positions.
+     * @return one of {@link Constants#LEFT}, {@link Constants#RIGHT}, or
+     * {@link Constants#CENTER}
+     */
+    public int getHorizontalAlignment() {
+        return m_xAlign;
+    }
+
+    /**
+     * Set the horizontal alignment of boxes at the item positions. With
+     * left alignment, the box starts at the item position, as for items
+     * drawn by a {@link prefux.render.LabelRenderer}.
+     * @param align one of {@link Constants#LEFT}, {@link Constants#RIGHT},
+     * or {@link Constants#CENTER}
+     */
+    public void setHorizontalAlignment(int align) {
+        if ( align != Constants.LEFT && align != Constants.RIGHT
+                && align != Constants.CENTER )
+            throw new IllegalArgumentException(
+                "Unrecognized horizontal alignment: " + align);
+        m_xAlign = align;
+        m_valid = false;
+    }
+
+    /**
+     * Get the vertical alignment of boxes at the item positions.
+     * @return one of {@link Constants#TOP}, {@link Constants#BOTTOM}, or
+     * {@link Constants#CENTER}
+     */
+    public int getVerticalAlignment() {
+        return m_yAlign;
+    }
+
+    /**
+     * Set the vertical alignment of boxes at the item positions.
+     * @param align one of {@link Constants#TOP}, {@link Constants#BOTTOM},
+     * or {@link Constants#CENTER}
+     */
+    public void setVerticalAlignment(int align) {
+        if ( align != Constants.TOP && align != Constants.BOTTOM
+                && align != Constants.CENTER )
+            throw new IllegalArgumentException(
+                "Unrecognized vertical alignment: " + align);
+        m_yAlign = align;
+        m_valid = false;
+    }
+
+    /**
+     * Get the maximum number of passes per run.
+     * @return the maximum number of passes
+     */
+    public int getMaxIterations() {
+        return m_maxIterations;
+    }
+
+    /**
+     * Set the maximum number of passes per run. Items in dense clusters
+     * may still overlap after this many passes.
+     * @param iterations the maximum number of passes
+     */
+    public void setMaxIterations(int iterations) {
+        if ( iterations < 1 )
+            throw new IllegalArgumentException(
+                "Maximum iterations must be at least one!");
+        m_maxIterations = iterations;
+    }
+
+    /**
+     * Indicates if runs only consider the items that changed since the
+     * last run.
+     * @return true if the layout is incremental
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+
+    /**
+     * Set if runs only consider the items that moved or changed in size
+     * since the last run, and the items they push. This assumes that the
+     * other items were left without overlaps by the last run. Incremental
+     * runs are enabled by default.
+     * @param b true to run incrementally, false to consider all items in
+     * each run
+     */
+    public void setIncremental(boolean b) {
+        m_incremental = b;
+    }
+
+    /**
+     * Consider all items in the next run.
+     */
+    public void invalidate() {
+        m_valid = false;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see prefux.action.Action#run(double)
+     */
+    public void run(double frac) {
+        int n = collect();
+        double pad = m_padding/2, cell = 0;
+        int na = 0;
+
+        for ( int i=0; i<n; ++i ) {
+            VisualItem item = m_items[i];
+            double x = item.getX(), y = item.getY();
+            BoundsGrid.extent(item, m_baseSize, m_ext);
+            double w = m_ext[0], h = m_ext[1];
+            boolean changed = !m_valid || !m_incremental
+                || x != m_x[i] || y != m_y[i] || w != m_w[i] || h != m_h[i];
+            m_x[i] = x; m_y[i] = y;
+            m_w[i] = w; m_h[i] = h;
+            m_x0[i] = x + BoundsGrid.offset(m_xAlign, w) - pad;
+            m_y0[i] = y + BoundsGrid.offset(m_yAlign, h) - pad;
+            m_x1[i] = m_x0[i] + w + m_padding;
+            m_y1[i] = m_y0[i] + h + m_padding;
+            m_dx[i] = m_dy[i] = 0;
+            m_fixed[i] = item.isFixed();
+            m_active[i] = m_pushed[i] = m_moved[i] = false;
+            cell += Math.max(w, h) + m_padding;
+            // items without a position take no part
+            if ( changed && !Double.isNaN(x) && !Double.isNaN(y) )
+                m_list[na++] = i;
+        }
+        cell = n > 0 ? cell/n : 0;
+
+        for ( int iter=0; iter<m_maxIterations && na > 0; ++iter ) {
+            index(n, cell);
+            for ( int a=0; a<na; ++a )
+                m_active[m_list[a]] = true;
+
+            // push apart the overlapping pairs with an active item,
+            // visiting pairs of active items once
+            m_nextCount = 0;
+            for ( int a=0; a<na; ++a ) {
+                int i = m_list[a];
+                int f = m_grid.query(m_x0[i], m_y0[i], m_x1[i], m_y1[i]);
+                int[] found = m_grid.found();
+                for ( int k=0; k<f; ++k ) {
+                    int j = found[k];
+                    if ( j == i || (m_active[j] && j < i) ) continue;
+                    push(i, j);
+                }
+            }
+
+            // apply the pushes, and continue with the pushed items
+            for ( int a=0; a<na; ++a )
+                m_active[m_list[a]] = false;
+            for ( int b=0; b<m_nextCount; ++b ) {
+                int i = m_next[b];
+                m_x0[i] += m_dx[i]; m_x1[i] += m_dx[i];
+                m_y0[i] += m_dy[i]; m_y1[i] += m_dy[i];
+                m_dx[i] = m_dy[i] = 0;
+                m_pushed[i] = false;
+                m_moved[i] = true;
+            }
+            int[] list = m_list;
+            m_list = m_next;
+            m_next = list;
+            na = m_nextCount;
+        }
+
+        for ( int i=0; i<n; ++i ) {
+            if ( !m_moved[i] ) continue;
+            VisualItem item = m_items[i];
+            double x = m_x0[i] + pad - BoundsGrid.offset(m_xAlign, m_w[i]);
+            double y = m_y0[i] + pad - BoundsGrid.offset(m_yAlign, m_h[i]);
+            setX(item, null, x);
+            setY(item, null, y);
+            m_x[i] = item.getX();
+            m_y[i] = item.getY();
+        }
+        m_valid = true;
+    }
+
+    /**
+     * Collect the visible items, and invalidate the last run if they
+     * differ from its items.
+     * @return the number of items
+     */
+    private int collect() {
+        VisualItem[] items = m_items;
+        int n = 0;
+        boolean same = true;
+        Iterator<VisualItem> iter = m_vis.visibleItems(m_group);
+        while ( iter.hasNext() ) {
+            VisualItem item = iter.next();
+            if ( n == items.length )
+                items = Arrays.copyOf(items, Math.max(16, 2*n));
+            if ( n >= m_count || items[n] != item )
+                same = false;
+            items[n++] = item;
+        }
+        if ( n != m_count )
+            same = false;
+        if ( n < m_count )
+            Arrays.fill(items, n, m_count, null);
+        if ( !same )
+            m_valid = false;
+        m_items = items;
+        m_count = n;
+
+        if ( m_x.length < n ) {
+            int len = items.length;
+            m_x  = Arrays.copyOf(m_x, len);  m_y  = Arrays.copyOf(m_y, len);
+            m_w  = Arrays.copyOf(m_w, len);  m_h  = Arrays.copyOf(m_h, len);
+            m_x0 = new double[len];  m_y0 = new double[len];
+            m_x1 = new double[len];  m_y1 = new double[len];
+            m_dx = new double[len];  m_dy = new double[len];
+            m_fixed  = new boolean[len];
+            m_active = new boolean[len];
+            m_pushed = new boolean[len];
+            m_moved  = new boolean[len];
+            m_list = new int[len];
+            m_next = new int[len];
+        }
+        return n;
+    }
+
+    /**
+     * Enter the boxes of all items with a position into the grid.
+     */
+    private void index(int n, double cell) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+        for ( int i=0; i<n; ++i ) {
+            if ( m_x0[i] < minX ) minX = m_x0[i];
+            if ( m_y0[i] < minY ) minY = m_y0[i];
+            if ( m_x1[i] > maxX ) maxX = m_x1[i];
+            if ( m_y1[i] > maxY ) maxY = m_y1[i];
+        }
+        m_grid.reset(minX, minY, maxX, maxY, cell, n);
+        for ( int i=0; i<n; ++i )
+            m_grid.add(m_x0[i], m_y0[i], m_x1[i], m_y1[i]);
+    }
+
+    /**
+     * Push apart two overlapping items along the axis of least overlap,
+     * each by half the overlap, or the other item by all of it if one
+     * is fixed.
+     */
+    private void push(int i, int j) {
+        if ( m_fixed[i] && m_fixed[j] ) return;
+        double wi = m_fixed[i] ? 0 : m_fixed[j] ? 1 : 0.5;
+        double wj = 1 - wi;
+        double ox = Math.min(m_x1[i], m_x1[j]) - Math.max(m_x0[i], m_x0[j]);
+        double oy = Math.min(m_y1[i], m_y1[j]) - Math.max(m_y0[i], m_y0[j]);
+        if ( ox <= oy ) {
+            double ci = m_x0[i] + m_x1[i], cj = m_x0[j] + m_x1[j];
+            double s = ci < cj || (ci == cj && i < j) ? -ox : ox;
+            displace(i, s*wi, 0);
+            displace(j, -s*wj, 0);
+        } else {
+            double ci = m_y0[i] + m_y1[i], cj = m_y0[j] + m_y1[j];
+            double s = ci < cj || (ci == cj && i < j) ? -oy : oy;
+            displace(i, 0, s*wi);
+            displace(j, 0, -s*wj);
+        }
+    }
+
+    private void displace(int i, double dx, double dy) {
+        if ( dx == 0 && dy == 0 ) return;
+        if ( !m_pushed[i] ) {
+            m_pushed[i] = true;
+            m_next[m_nextCount++] = i;
+        }
+        m_dx[i] += dx;
+        m_dy[i] += dy;
+    }
+
+} // end of class OverlapRemovalLayout
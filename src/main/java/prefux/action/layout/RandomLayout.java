@@ -30,6 +30,7 @@
  */
 package prefux.action.layout;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Random;
 
@@ -38,13 +39,19 @@ import prefux.visual.VisualItem;
 
 
 /**
- * Performs a random layout of items within the layout bounds.
+ * Performs a random layout of items within the layout bounds. By default,
+ * the positions continue a single random sequence across runs, in the
+ * order the items are visited. In {@link #setDeterministic(boolean)
+ * deterministic} mode, each item is instead always placed at the same
+ * position for the same random seed and bounds.
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class RandomLayout extends Layout {
 
     private Random r = new Random(12345678L);
+    private long seed = 12345678L;
+    private boolean deterministic = false;
     
     /**
      * Create a new RandomLayout that processes all items.
@@ -67,6 +74,41 @@ public class RandomLayout extends Layout {
      */
     public void setRandomSeed(long seed) {
         r.setSeed(seed);
+        this.seed = seed;
+    }
+
+    /**
+     * Indicates if items are placed deterministically.
+     * @return true if items are placed deterministically
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Set if items are placed deterministically. A deterministic layout
+     * derives the position of each item from the random seed and the
+     * item's row only, so it places an item at the same position in every
+     * run, regardless of the order in which items are visited or of the
+     * other items present.
+     * @param d true to place items deterministically
+     */
+    public void setDeterministic(boolean d) {
+        deterministic = d;
+    }
+    
+    /**
+     * Get the parameter key of this layout. Only deterministic layouts
+     * place items at the same positions in every run, so the key of a
+     * layout continuing a random sequence never equals another key, and
+     * neither does the key of a subclass that does not override this
+     * method.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( !deterministic || getClass() != RandomLayout.class )
+            return super.getParameterKey();
+        return Arrays.asList(getBaseParameterKey(), seed);
     }
     
     /**
@@ -80,11 +122,27 @@ public class RandomLayout extends Layout {
         Iterator iter = getVisualization().visibleItems(m_group);
         while ( iter.hasNext() ) {
             VisualItem item = (VisualItem)iter.next();
-            x = (int)(b.getMinX() + r.nextDouble()*w);
-            y = (int)(b.getMinY() + r.nextDouble()*h);
+            if ( deterministic ) {
+                long hx = mix(seed + 2L*item.getRow());
+                long hy = mix(seed + 2L*item.getRow() + 1);
+                x = (int)(b.getMinX() + (hx >>> 11) / (double)(1L<<53) * w);
+                y = (int)(b.getMinY() + (hy >>> 11) / (double)(1L<<53) * h);
+            } else {
+                x = (int)(b.getMinX() + r.nextDouble()*w);
+                y = (int)(b.getMinY() + r.nextDouble()*h);
+            }
             setX(item,null,x);
             setY(item,null,y);
         }
     }
 
+    /**
+     * Scrambles a value into a well distributed 64 bit hash.
+     */
+    private static long mix(long z) {
+        z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
 } // end of class RandomLayout
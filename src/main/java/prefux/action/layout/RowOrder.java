@@ -0,0 +1,278 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout;
+
+import java.util.stream.IntStream;
+
+import prefux.data.Table;
+import prefux.data.column.Column;
+import prefux.data.column.DoubleColumn;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
+import prefux.data.util.Index;
+import prefux.util.collections.IntIterator;
+import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
+
+/**
+ * <p>Cached ordering of the rows of a visual table, for layouts that place
+ * items by their rank, such as the {@link GridLayout} and the
+ * {@link CircleLayout}. The rows are kept in table order, or sorted by a
+ * data field using an index on the field. The ordering is only rebuilt
+ * when rows are added or removed, or values of the sort field change.
+ * Changes of the target positions or the visibility of the items by others
+ * are tracked as well, so that a layout can skip runs in which nothing it
+ * depends on changed.</p>
+ *
+ * <p>Positions computed for the ranks are written in bulk, with a single
+ * update event for each of the current, start and end coordinate columns,
+ * when these are plain double columns.</p>
+ */
+final class RowOrder {
+
+    /** Number of rows from which positions are computed in parallel. */
+    static final int PARALLEL_ROW_COUNT = 50000;
+
+    private VisualTable m_table;
+    private String  m_field;
+    private boolean m_ascending = true;
+    private int     m_sortCol = -1, m_endX = -1, m_endY = -1, m_visible = -1;
+    private boolean m_valid = false;   // the ordering is current
+    private boolean m_changed = true;  // changed since the last write
+    private boolean m_writing = false; // ignore events of own writes
+
+    private int[]    m_rows = new int[0];
+    private int      m_count = 0;
+    private double[] m_cur = new double[0];
+    private double[] m_start = new double[0];
+    private double[] m_end = new double[0];
+
+    private final TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( m_writing ) return;
+            if ( col == EventConstants.ALL_COLUMNS ) {
+                if ( type != EventConstants.UPDATE )
+                    m_valid = false; // rows added or removed
+                m_changed = true;
+            } else if ( type != EventConstants.UPDATE ) {
+                m_sortCol = -1; // a column was added or removed
+                m_valid = false;
+                m_changed = true;
+            } else if ( col == m_sortCol && m_field != null ) {
+                m_valid = false;
+                m_changed = true;
+            } else if ( col == m_endX || col == m_endY || col == m_visible ) {
+                m_changed = true;
+            }
+        }
+    };
+
+    /**
+     * Bring the ordering up to date.
+     * @param t the table to order
+     * @param field the data field to sort by, or null for table order
+     * @param ascending true to sort in ascending order
+     * @return true if the ordering, or the positions or visibility of the
+     * items, changed since the last write
+     */
+    boolean update(VisualTable t, String field, boolean ascending) {
+        if ( m_table != t ) {
+            if ( m_table != null )
+                m_table.removeTableListener(m_listener);
+            m_table = t;
+            t.addTableListener(m_listener);
+            m_sortCol = -1;
+            m_valid = false;
+        }
+        if ( field == null ? m_field != null : !field.equals(m_field) ) {
+            m_field = field;
+            m_sortCol = -1;
+            m_valid = false;
+        }
+        if ( ascending != m_ascending ) {
+            m_ascending = ascending;
+            m_valid = m_valid && field == null;
+        }
+        if ( m_sortCol < 0 ) {
+            m_sortCol = field == null ? -1 : t.getColumnNumber(field);
+            m_endX = t.getColumnNumber(VisualItem.ENDX);
+            m_endY = t.getColumnNumber(VisualItem.ENDY);
+            m_visible = t.getColumnNumber(VisualItem.VISIBLE);
+        }
+        if ( !m_valid ) {
+            order();
+            m_valid = true;
+            m_changed = true;
+        }
+        return m_changed;
+    }
+
+    /**
+     * Get the number of ordered rows.
+     * @return the number of rows
+     */
+    int count() {
+        return m_count;
+    }
+
+    /**
+     * Set the positions of the rows of the first ranks. The current
+     * positions become the start positions, unless they are not set, and
+     * the new positions become the current and end positions.
+     * @param x the x-coordinates, indexed by rank
+     * @param y the y-coordinates, indexed by rank
+     * @param n the number of ranks to position
+     * @param parallel true to merge the positions in parallel for large
+     * tables
+     */
+    void setPositions(double[] x, double[] y, int n, boolean parallel) {
+        m_writing = true;
+        try {
+            write(x, n, VisualItem.X, VisualItem.STARTX, VisualItem.ENDX,
+                  parallel);
+            write(y, n, VisualItem.Y, VisualItem.STARTY, VisualItem.ENDY,
+                  parallel);
+        } finally {
+            m_writing = false;
+        }
+        m_changed = false;
+    }
+
+    /**
+     * Show the rows of the first ranks, and hide the others. Only rows
+     * whose visibility differs are set.
+     * @param n the number of ranks to show
+     */
+    void setVisible(int n) {
+        VisualTable t = m_table;
+        m_writing = true;
+        try {
+            for ( int i=0; i<m_count; ++i ) {
+                int r = m_rows[i];
+                boolean v = i < n;
+                if ( t.isVisible(r) != v )
+                    t.setVisible(r, v);
+            }
+        } finally {
+            m_writing = false;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Collect the rows, in table order or sorted by the sort field.
+     */
+    private void order() {
+        VisualTable t = m_table;
+        int n = t.getRowCount();
+        if ( m_rows.length < n )
+            m_rows = new int[n];
+        IntIterator rows;
+        if ( m_sortCol >= 0 ) {
+            Index index = t.getIndex(m_field);
+            if ( index == null )
+                index = t.index(m_field);
+            rows = index.allRows(m_ascending ? Index.TYPE_ASCENDING
+                                             : Index.TYPE_DESCENDING);
+        } else {
+            rows = t.rows();
+        }
+        int i = 0;
+        while ( rows.hasNext() && i < n )
+            m_rows[i++] = rows.nextInt();
+        m_count = i;
+    }
+
+    /**
+     * Write the coordinates of one axis.
+     */
+    private void write(double[] pos, int n, String field, String startField,
+                       String endField, boolean parallel)
+    {
+        VisualTable t = m_table;
+        Column cc = t.getColumn(field);
+        Column sc = t.getColumn(startField);
+        Column ec = t.getColumn(endField);
+        if ( !(cc instanceof DoubleColumn && sc instanceof DoubleColumn
+                && ec instanceof DoubleColumn) )
+        {
+            for ( int i=0; i<n; ++i ) {
+                int r = m_rows[i];
+                double s = t.getDouble(r, field);
+                if ( Double.isNaN(s) ) s = pos[i];
+                t.setDouble(r, startField, s);
+                t.setDouble(r, endField, pos[i]);
+                t.setDouble(r, field, pos[i]);
+            }
+            return;
+        }
+
+        DoubleColumn cur = (DoubleColumn)cc;
+        DoubleColumn start = (DoubleColumn)sc;
+        DoubleColumn end = (DoubleColumn)ec;
+        int len = Math.min(t.getMaximumRow()+1, Math.min(cur.getRowCount(),
+                  Math.min(start.getRowCount(), end.getRowCount())));
+        if ( m_cur.length < len ) {
+            m_cur = new double[len];
+            m_start = new double[len];
+            m_end = new double[len];
+        }
+        cur.getDoubles(m_cur, 0, len);
+        start.getDoubles(m_start, 0, len);
+        end.getDoubles(m_end, 0, len);
+
+        double[] c = m_cur, s = m_start, e = m_end;
+        int[] rows = m_rows;
+        if ( parallel && n >= PARALLEL_ROW_COUNT ) {
+            IntStream.range(0, n).parallel().forEach(
+                i -> merge(rows[i], pos[i], c, s, e));
+        } else {
+            for ( int i=0; i<n; ++i )
+                merge(rows[i], pos[i], c, s, e);
+        }
+
+        start.setDoubles(s, 0, len);
+        end.setDoubles(e, 0, len);
+        cur.setDoubles(c, 0, len);
+    }
+
+    private static void merge(int r, double v, double[] c, double[] s,
+                              double[] e)
+    {
+        s[r] = Double.isNaN(c[r]) ? v : c[r];
+        e[r] = v;
+        c[r] = v;
+    }
+
+} // end of class RowOrder
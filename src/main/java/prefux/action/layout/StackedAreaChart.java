@@ -31,34 +31,49 @@
 package prefux.action.layout;
 
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.Constants;
 import prefux.data.Table;
+import prefux.data.column.ExpressionColumn;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
 import prefux.data.query.NumberRangeModel;
 import prefux.util.ArrayLib;
-import prefux.util.MathLib;
 import prefux.util.PrefuseLib;
+import prefux.util.collections.IntIterator;
 import prefux.util.ui.ValuedRangeModel;
 import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
 
 /**
- * Layout Action that computes a stacked area chart, in which a series of
- * data values are consecutively stacked on top of each other.
+ * <p>Layout Action that computes a stacked area chart, in which a series of
+ * data values are consecutively stacked on top of each other.</p>
+ *
+ * <p>The cumulative sums of the stacked values are kept in a single matrix,
+ * which holds the sums of all stacked items for each data column in turn.
+ * By default, the layout is incremental: a run only computes the sums of
+ * data columns appended with {@link #setColumns(String[])}, or whose values
+ * changed, and keeps the others. Changes of the stacked items, such as
+ * added, removed or hidden rows, make the next run compute all sums, in
+ * parallel across data columns for large charts. The polygons of the items
+ * are then computed from the sums in a single pass.</p>
  * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class StackedAreaChart extends Layout {
 
+    /** The number of values from which sums are computed in parallel */
+    private static final int PARALLEL_VALUE_COUNT = 100000;
+
     private String m_field;
     private String m_start;
     private String m_end;
     
     private String[] columns;
-    private double[] baseline;
     private double[] peaks;
-    private double[] poly;
+    private double[] scale;
     private double m_padding = 0.05;
     private double m_threshold;
     private Rectangle2D bounds;
@@ -70,6 +85,39 @@ public class StackedAreaChart extends Layout {
     private boolean m_norm = false;
     private NumberRangeModel m_model;
     
+    // cumulative sums of the stacked values, m_count sums for each data
+    // column, and the stacked rows from the bottom up
+    private double[]  m_sums = new double[0];
+    private int[]     m_stack = new int[0];
+    private double[]  m_height = new double[0];
+    private int       m_count = 0;
+    private int       m_steps = 0;      // leading data columns with sums
+    private boolean[] m_dirty;          // data columns with changed values
+    private int[]     m_cols;           // table column of each data column
+    private int[]     m_colIndex = new int[0]; // data column of table columns
+    private boolean   m_valid = false;
+    private boolean   m_incremental = true;
+    private boolean   m_parallel = true;
+    private VisualTable m_table;
+    private TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( col == EventConstants.ALL_COLUMNS ) {
+                // rows added or removed, or a non-measurable update
+                m_valid = false;
+            } else if ( type != EventConstants.UPDATE ) {
+                // a column was added or removed, the sums stay valid
+                m_cols = null;
+            } else {
+                if ( m_cols == null )
+                    resolve();
+                if ( col < m_colIndex.length && m_colIndex[col] >= 0 )
+                    m_dirty[m_colIndex[col]] = true;
+            }
+        }
+    };
+    
     /**
      * Create a new StackedAreaChart.
      * @param group the data group to layout
@@ -95,9 +143,9 @@ public class StackedAreaChart extends Layout {
     {
         super(group);
         this.columns = columns;
-        baseline = new double[columns.length];
         peaks = new double[columns.length];
-        poly = new double[4*columns.length];
+        scale = new double[columns.length];
+        m_dirty = new boolean[columns.length];
         
         m_field = field;
         m_start = PrefuseLib.getStartField(field);
@@ -110,12 +158,55 @@ public class StackedAreaChart extends Layout {
     // ------------------------------------------------------------------------
 
     /**
-     * Set the data columns used to compute the stacked layout
+     * Set the data columns used to compute the stacked layout. If the new
+     * columns continue the current ones, such as when columns are appended,
+     * or leading columns are dropped from a sliding window, the sums of the
+     * columns that remain are kept.
      * @param cols the various data fields, in sorted order, that
      * should be referenced for each consecutive point of a stack layer
      */
     public void setColumns(String[] cols) {
+        int shift = ( m_valid ? shift(columns, cols) : -1 );
+        boolean[] dirty = new boolean[cols.length];
+        if ( shift < 0 ) {
+            m_valid = false;
+            m_steps = 0;
+        } else {
+            int keep = Math.min(Math.max(0, m_steps-shift), cols.length);
+            if ( shift > 0 ) {
+                System.arraycopy(m_sums, shift*m_count, m_sums, 0,
+                                 keep*m_count);
+            }
+            System.arraycopy(m_dirty, shift, dirty, 0, keep);
+            m_steps = keep;
+        }
+        m_dirty = dirty;
         columns = cols;
+        if ( peaks.length != cols.length ) {
+            peaks = new double[cols.length];
+            scale = new double[cols.length];
+        }
+        resolve();
+    }
+    
+    /**
+     * Get the number of leading columns dropped from the old columns, if
+     * the new columns continue them.
+     * @return the number of dropped columns, or -1 if the new columns do not
+     * continue the old ones
+     */
+    private static int shift(String[] old, String[] cols) {
+        if ( old.length == 0 || cols.length == 0 )
+            return 0;
+        for ( int d=0; d<old.length; ++d ) {
+            if ( !old[d].equals(cols[0]) ) continue;
+            for ( int j=1; d+j<old.length && j<cols.length; ++j ) {
+                if ( !old[d+j].equals(cols[j]) )
+                    return -1;
+            }
+            return d;
+        }
+        return -1;
     }
     
     /**
@@ -221,6 +312,53 @@ public class StackedAreaChart extends Layout {
                    m_orientation == Constants.ORIENT_LEFT_RIGHT);
     }
     
+    /**
+     * Indicates if the layout only computes the sums of appended or changed
+     * data columns.
+     * @return true if incremental layout is enabled
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+    
+    /**
+     * Set if the layout only computes the sums of appended or changed data
+     * columns. Incremental layout is enabled by default.
+     * @param b true to enable incremental layout, false to compute all sums
+     * in every run
+     */
+    public void setIncremental(boolean b) {
+        m_incremental = b;
+    }
+    
+    /**
+     * Indicates if sums and polygons are computed in parallel for large
+     * charts.
+     * @return true if parallel computation is enabled
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+    
+    /**
+     * Set if sums and polygons are computed in parallel for large charts,
+     * in the common fork/join pool. Parallel computation is enabled by
+     * default, and does not change the result.
+     * @param b true for parallel computation, false for sequential
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+    
+    /**
+     * Make the next run compute all sums. This is needed after the values
+     * of the data columns changed without a table event, such as those of
+     * an expression column.
+     */
+    public void invalidate() {
+        m_valid = false;
+    }
+    
 // TODO: support externally driven range specification (i.e. stack zooming)
 //    public void setRangeModel(NumberRangeModel model) {
 //        m_model = model;
@@ -233,7 +371,6 @@ public class StackedAreaChart extends Layout {
      */
     public void run(double frac) {
         bounds = getLayoutBounds();
-        Arrays.fill(baseline, 0);
         
         // get the orientation specifics sorted out
         double min = (double)(m_horiz?bounds.getMaxY() :bounds.getMinX());
@@ -246,60 +383,67 @@ public class StackedAreaChart extends Layout {
         inc /= columns.length-1;
         int len = columns.length;
         
-        // perform first walk to compute max values
+        // bring the sums up to date, and compute max values from them
+        VisualTable t = (VisualTable)m_vis.getGroup(m_group);
+        watch(t);
+        stack(t);
+        updateSums(t);
         double maxValue = getPeaks();
         double b = (double)(m_horiz ? (m_top?bounds.getMinX():bounds.getMaxX())
                                   : (m_top?bounds.getMinY():bounds.getMaxY()));
-        Arrays.fill(baseline, b);
         
         m_model.setValueRange(0, maxValue, 0, maxValue);
         
-        // perform second walk to compute polygon layout
-        Table t = (Table)m_vis.getGroup(m_group);
-        Iterator iter = t.tuplesReversed();
-        while ( iter.hasNext() ) {
-            VisualItem item = (VisualItem)iter.next();
-            if ( !item.isVisible() ) continue;
-            
-            double height = 0;
-            
-            for ( int i=len; --i >= 0; ) {
-                poly[2*(len-1-i)+xbias] = min + i*inc;
-                poly[2*(len-1-i)+ybias] = (double)baseline[i];
-            }
-            for ( int i=0; i<columns.length; ++i ) {
-                int base = 2*(len+i);
-                double value = item.getDouble(columns[i]);
-                baseline[i] += mult * hgt * 
-                                 MathLib.linearInterp(value,0,peaks[i]);
-                poly[base+xbias] = min + i*inc;
-                poly[base+ybias] = (double)baseline[i];
-                height = Math.max(height,
-                        Math.abs(poly[2*(len-1-i)+ybias]-poly[base+ybias]));
+        // scale from sums to coordinates, for each data column
+        for ( int i=0; i<len; ++i ) {
+            scale[i] = ( peaks[i] == 0 ? 0 : mult * hgt / peaks[i] );
+        }
+        
+        // compute the polygon layout, the current polygons become the
+        // starting polygons
+        int n = m_count;
+        VisualItem[] items = new VisualItem[n];
+        double[][] polys = new double[n][];
+        double[][] starts = new double[n][];
+        double[][] ends = new double[n][];
+        for ( int k=0; k<n; ++k ) {
+            VisualItem item = t.getItem(m_stack[k]);
+            items[k] = item;
+            polys[k] = getPolygon(item, m_field);
+            starts[k] = getPolygon(item, m_start);
+            ends[k] = getPolygon(item, m_end);
+        }
+        if ( m_height.length < n )
+            m_height = new double[n];
+        
+        if ( m_parallel && (long)n*len >= PARALLEL_VALUE_COUNT ) {
+            double dx = inc;
+            IntStream.range(0, n).parallel().forEach(k -> polygon(k,
+                polys[k], starts[k], ends[k], min, dx, b, xbias, ybias));
+        } else {
+            for ( int k=0; k<n; ++k ) {
+                polygon(k, polys[k], starts[k], ends[k],
+                        min, inc, b, xbias, ybias);
             }
-            if ( height < m_threshold ) {
+        }
+        
+        for ( int k=0; k<n; ++k ) {
+            VisualItem item = items[k];
+            if ( m_height[k] < m_threshold ) {
                 item.setVisible(false);
             }
-
             setX(item, null, 0);
             setY(item, null, 0);
-            setPolygon(item, poly);
+            item.setValidated(false);
         }
     }
     
     private double getPeaks() {
-        double sum = 0;
-        
         // first, compute max value of the current data
         Arrays.fill(peaks, 0);
-        Iterator iter = m_vis.visibleItems(m_group);
-        while ( iter.hasNext() ) {
-            VisualItem item = (VisualItem)iter.next();
-            for ( int i=0; i<columns.length; ++i ) {
-                double val = item.getDouble(columns[i]); 
-                peaks[i] += val;
-                sum += val;
-            }
+        if ( m_count > 0 ) {
+            for ( int i=0; i<columns.length; ++i )
+                peaks[i] = m_sums[(i+1)*m_count-1];
         }
         double max = ArrayLib.max(peaks);
         
@@ -326,16 +470,148 @@ public class StackedAreaChart extends Layout {
     }
     
     /**
-     * Sets the polygon values for a visual item.
+     * Compute the polygon of the k-th stacked item from the sums, and set
+     * it as the current and ending polygon, after the current polygon was
+     * saved as the starting polygon.
+     */
+    private void polygon(int k, double[] a, double[] s, double[] e,
+                         double min, double inc, double b,
+                         int xbias, int ybias)
+    {
+        int len = columns.length, n = m_count;
+        System.arraycopy(a, 0, s, 0, Math.min(a.length, s.length));
+        
+        double height = 0;
+        for ( int i=0; i<len; ++i ) {
+            double x = min + i*inc;
+            double lo = ( k == 0 ? b : b + m_sums[i*n+k-1]*scale[i] );
+            double hi = b + m_sums[i*n+k]*scale[i];
+            a[2*(len-1-i)+xbias] = x;
+            a[2*(len-1-i)+ybias] = lo;
+            a[2*(len+i)+xbias] = x;
+            a[2*(len+i)+ybias] = hi;
+            height = Math.max(height, Math.abs(lo-hi));
+        }
+        System.arraycopy(a, 0, e, 0, 4*len);
+        m_height[k] = height;
+    }
+    
+    // ------------------------------------------------------------------------
+    // Cumulative Sums
+    
+    /**
+     * Start listening to the table of the data group.
+     */
+    private void watch(VisualTable t) {
+        if ( m_table == t ) {
+            if ( m_cols == null )
+                resolve();
+            return;
+        }
+        if ( m_table != null )
+            m_table.removeTableListener(m_listener);
+        m_table = t;
+        t.addTableListener(m_listener);
+        m_valid = false;
+        resolve();
+    }
+    
+    /**
+     * Look up the table columns of the data columns.
+     */
+    private void resolve() {
+        Table t = m_table;
+        if ( t == null ) return;
+        m_cols = new int[columns.length];
+        m_colIndex = new int[t.getColumnCount()];
+        Arrays.fill(m_colIndex, -1);
+        for ( int i=0; i<columns.length; ++i ) {
+            int c = t.getColumnNumber(columns[i]);
+            m_cols[i] = c;
+            if ( c >= 0 && c < m_colIndex.length )
+                m_colIndex[c] = i;
+        }
+    }
+    
+    /**
+     * Collect the visible rows in stacking order, and make the sums
+     * invalid if they differ from the stacked rows of the last run.
      */
-    private void setPolygon(VisualItem item, double[] poly) {
-        double[] a = getPolygon(item, m_field);
-        double[] s = getPolygon(item, m_start);
-        double[] e = getPolygon(item, m_end);
-        System.arraycopy(a, 0, s, 0, a.length);
-        System.arraycopy(poly, 0, a, 0, poly.length);
-        System.arraycopy(poly, 0, e, 0, poly.length);
-        item.setValidated(false);
+    private void stack(VisualTable t) {
+        int[] stack = m_stack;
+        if ( stack.length < t.getRowCount() )
+            stack = Arrays.copyOf(stack, t.getRowCount());
+        
+        int k = 0;
+        boolean same = true;
+        for ( IntIterator rows = t.rows(true); rows.hasNext(); ) {
+            int r = rows.nextInt();
+            if ( !t.isVisible(r) ) continue;
+            if ( k >= m_count || stack[k] != r )
+                same = false;
+            stack[k++] = r;
+        }
+        if ( !same || k != m_count )
+            m_valid = false;
+        m_stack = stack;
+        m_count = k;
+    }
+    
+    /**
+     * Compute the sums of the data columns that were appended or changed,
+     * or of all data columns if the sums are invalid.
+     */
+    private void updateSums(Table t) {
+        int n = m_count, len = columns.length;
+        if ( !m_valid || !m_incremental )
+            m_steps = 0;
+        if ( m_sums.length < n*len )
+            m_sums = Arrays.copyOf(m_sums, n*len);
+        
+        int[] todo = new int[len];
+        int count = 0;
+        for ( int i=0; i<len; ++i ) {
+            if ( i >= m_steps || m_dirty[i] )
+                todo[count++] = i;
+        }
+        Arrays.fill(m_dirty, false);
+        
+        if ( m_parallel && (long)count*n >= PARALLEL_VALUE_COUNT
+             && isConcurrent(t) )
+        {
+            IntStream.range(0, count).parallel()
+                .forEach(j -> sum(t, todo[j]));
+        } else {
+            for ( int j=0; j<count; ++j )
+                sum(t, todo[j]);
+        }
+        m_steps = len;
+        m_valid = true;
+    }
+    
+    /**
+     * Compute the sums of a data column, from the bottom of the stack up.
+     */
+    private void sum(Table t, int i) {
+        int n = m_count, base = i*n, col = m_cols[i];
+        double sum = 0;
+        for ( int k=0; k<n; ++k ) {
+            sum += t.getDouble(m_stack[k], col);
+            m_sums[base+k] = sum;
+        }
+    }
+    
+    /**
+     * Indicates if the data columns can be read concurrently. Expression
+     * columns may cache their values, and are read by one thread only.
+     */
+    private boolean isConcurrent(Table t) {
+        for ( int i=0; i<m_cols.length; ++i ) {
+            if ( m_cols[i] >= 0 &&
+                 t.getColumn(m_cols[i]) instanceof ExpressionColumn )
+                return false;
+        }
+        return true;
     }
     
     /**
@@ -48,6 +48,11 @@ import prefux.visual.NodeItem;
  * <p>The algorithm used is that of G. Melan\c{c}on and I. Herman from their
  * research paper Circular Drawings of Rooted Trees, Reports of the Centre for 
  * Mathematics and Computer Sciences, Report Number INS-9817, 1998.</p>
+ * 
+ * <p>Optionally, subtrees whose circle is smaller than a threshold on
+ * screen are not laid out: their descendants are hidden, and their root is
+ * marked as {@link TreeLayout#AGGREGATED aggregated} until zooming in makes
+ * the circle large enough. See {@link #setCullThreshold(double)}.</p>
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
@@ -55,6 +60,9 @@ public class BalloonTreeLayout extends TreeLayout {
 
     private int m_minRadius = 2;
     
+    private LevelOfDetail m_lod = new LevelOfDetail(this);
+    private double m_shown, m_culled; // the smallest and largest subtree
+    
     /**
      * Create a new BalloonTreeLayout
      * @param group the data group to layout. Must resolve to a Graph
@@ -91,6 +99,28 @@ public class BalloonTreeLayout extends TreeLayout {
         m_minRadius = minRadius;
     }
     
+    /**
+     * Get the size in pixels below which subtrees are not laid out.
+     * @return the culling threshold, or zero if culling is disabled
+     */
+    public double getCullThreshold() {
+        return m_lod.getThreshold();
+    }
+    
+    /**
+     * Set the size in pixels below which subtrees are not laid out. The
+     * children of a node are only laid out if the diameter of its circle
+     * is at least this long at the zoom factor of the first display. The
+     * descendants of smaller nodes are hidden, and the nodes are marked as
+     * {@link TreeLayout#AGGREGATED aggregated}. When the zoom factor of an
+     * FxDisplay changes such that other subtrees would be culled, the
+     * layout is run again. Culling is disabled by default.
+     * @param pixels the culling threshold, or zero to disable culling
+     */
+    public void setCullThreshold(double pixels) {
+        m_lod.setThreshold(pixels);
+    }
+    
     /**
      * @see prefux.action.Action#run(double)
      */
@@ -100,7 +130,12 @@ public class BalloonTreeLayout extends TreeLayout {
         
         Point2D anchor = getLayoutAnchor();
         NodeItem n = getLayoutRoot();
+        m_lod.begin(m_vis, g.getNodes(),
+                    g.getNodeTable().getMaximumRow()+1);
+        m_shown = Double.POSITIVE_INFINITY;
+        m_culled = 0;
         layout(n,anchor.getX(),anchor.getY());
+        m_lod.range(m_shown, m_culled);
     }
     
     private void layout(NodeItem n, double x, double y) {
@@ -115,7 +150,7 @@ public class BalloonTreeLayout extends TreeLayout {
         Iterator<? extends Node> childIter = n.children();
         while ( childIter.hasNext() ) {
             NodeItem c = (NodeItem)childIter.next();
-            if ( !c.isVisible() ) continue;
+            if ( !isShown(c) ) continue;
             firstWalk(c);
             Params cp = getParams(c);
             np.d = Math.max(np.d,cp.r);
@@ -126,6 +161,14 @@ public class BalloonTreeLayout extends TreeLayout {
         setRadius(np);
     }
     
+    /**
+     * Indicates if a node is visible, or only hidden because an ancestor
+     * is culled, so that culling does not change the layout.
+     */
+    private boolean isShown(NodeItem n) {
+        return n.isVisible() || m_lod.isHidden(n);
+    }
+    
     private void adjustChildren(Params np, double s) {
         if ( s > Math.PI ) {
             np.c = Math.PI/s;
@@ -214,6 +257,7 @@ public class BalloonTreeLayout extends TreeLayout {
     private void secondWalk(NodeItem n, NodeItem r,
             double x, double y, double l, double t)
     {
+        m_lod.show(n);
         setX(n, r, x);
         setY(n, r, y);
         
@@ -222,8 +266,18 @@ public class BalloonTreeLayout extends TreeLayout {
         Iterator<? extends Node> childIter = n.children();
         while ( childIter.hasNext() ) {
             NodeItem c = (NodeItem)childIter.next();
-            if ( c.isVisible() ) ++numChildren;
+            if ( isShown(c) ) ++numChildren;
+        }
+        if ( numChildren > 0 && r != null && m_lod.isEnabled() ) {
+            double size = 2*l*np.r;
+            if ( m_lod.cull(size) ) {
+                m_culled = Math.max(m_culled, size);
+                m_lod.aggregate(n);
+                return;
+            }
+            m_shown = Math.min(m_shown, size);
         }
+        m_lod.expand(n);
         double dd = l*np.d;
         double p  = t + Math.PI;
         double fs = (numChildren==0 ? 0 : np.f/numChildren);
@@ -231,7 +285,7 @@ public class BalloonTreeLayout extends TreeLayout {
         childIter = n.children();
         while ( childIter.hasNext() ) {
             NodeItem c = (NodeItem)childIter.next();
-            if ( !c.isVisible() ) continue;
+            if ( !isShown(c) ) continue;
             Params cp = getParams(c);
             double aa = np.c * cp.a;
             double rr = np.d * Math.tan(aa)/(1-Math.tan(aa));
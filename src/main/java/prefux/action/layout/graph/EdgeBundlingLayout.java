@@ -0,0 +1,557 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import prefux.action.layout.Layout;
+import prefux.data.Table;
+import prefux.data.column.Column;
+import prefux.data.column.ObjectColumn;
+import prefux.data.tuple.TupleSet;
+import prefux.visual.EdgeItem;
+import prefux.visual.NodeItem;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Layout Action that bundles edges by kernel density estimation. Each
+ * edge is subdivided into a polyline of sample points, and in each
+ * iteration, the density of all sample points is estimated on a regular
+ * grid, by binning the points and smoothing the bins with a kernel of the
+ * current bandwidth. Every sample point then moves a step up the density
+ * gradient, towards the nearest bundle, and the polylines are smoothed.
+ * The bandwidth shrinks from one iteration to the next, so edges are
+ * first gathered into coarse bundles that are then tightened.</p>
+ *
+ * <p>Edges only interact through the density grid, so an iteration takes
+ * time linear in the number of sample points plus the number of grid
+ * cells, instead of comparing all pairs of edges. Binning, smoothing and
+ * moving the points run in parallel for large graphs.</p>
+ *
+ * <p>The resulting polylines are stored in a data field of the edges, by
+ * default {@link #POLYLINE}, which is added to the edge table if needed.
+ * Each polyline is a float array of alternating x and y coordinates,
+ * starting at the source node and ending at the target node, and can be
+ * drawn with a {@link prefux.render.PolylineEdgeRenderer}.</p>
+ */
+public class EdgeBundlingLayout extends Layout {
+
+    /** The default data field for the polylines of bundled edges. */
+    public static final String POLYLINE = "_polyline";
+
+    /** Number of sample points from which work is split across threads. */
+    private static final int PARALLEL_POINT_COUNT = 50000;
+
+    private String  m_field = POLYLINE;
+    private int     m_segments = 16;
+    private int     m_iterations = 10;
+    private int     m_gridSize = 256;
+    private double  m_bandwidth = 0.05;
+    private double  m_decay = 0.7;
+    private double  m_step = 0.5;
+    private double  m_smoothing = 0.5;
+    private boolean m_parallel = true;
+
+    // sample points, the k points of edge e starting at index e*k
+    private EdgeItem[] m_edges = new EdgeItem[0];
+    private float[] m_x = new float[0], m_y = new float[0];
+
+    // density grid
+    private double   m_minX, m_minY, m_cell;
+    private int      m_nx, m_ny;
+    private float[]  m_count = new float[0];   // points per cell
+    private float[]  m_rows = new float[0];    // counts smoothed along rows
+    private float[]  m_density = new float[0]; // counts smoothed along both
+    private float[][] m_bins = new float[0][]; // counts per chunk of edges
+
+    /**
+     * Create a new EdgeBundlingLayout.
+     * @param group the data group of the edges to bundle
+     */
+    public EdgeBundlingLayout(String group) {
+        super(group);
+    }
+
+    /**
+     * Create a new EdgeBundlingLayout.
+     * @param group the data group of the edges to bundle
+     * @param field the data field in which to store the polylines
+     */
+    public EdgeBundlingLayout(String group, String field) {
+        super(group);
+        m_field = field;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the data field in which the polylines are stored.
+     * @return the polyline field
+     */
+    public String getPolylineField() {
+        return m_field;
+    }
+
+    /**
+     * Get the number of segments into which each edge is divided.
+     * @return the number of segments per edge
+     */
+    public int getSegments() {
+        return m_segments;
+    }
+
+    /**
+     * Set the number of segments into which each edge is divided. More
+     * segments give smoother bundles, at a proportional cost in time and
+     * memory.
+     * @param segments the number of segments per edge
+     */
+    public void setSegments(int segments) {
+        if ( segments < 2 )
+            throw new IllegalArgumentException(
+                "Edges must be divided into at least two segments!");
+        m_segments = segments;
+    }
+
+    /**
+     * Get the number of iterations per run.
+     * @return the number of iterations
+     */
+    public int getIterations() {
+        return m_iterations;
+    }
+
+    /**
+     * Set the number of iterations per run.
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        if ( iterations < 0 )
+            throw new IllegalArgumentException(
+                "Iterations must be a non-negative number!");
+        m_iterations = iterations;
+    }
+
+    /**
+     * Get the number of grid cells along the longer side of the layout.
+     * @return the grid size
+     */
+    public int getGridSize() {
+        return m_gridSize;
+    }
+
+    /**
+     * Set the number of grid cells along the longer side of the layout.
+     * Finer grids resolve more separate bundles.
+     * @param size the grid size
+     */
+    public void setGridSize(int size) {
+        if ( size < 8 )
+            throw new IllegalArgumentException(
+                "Grid size must be at least eight!");
+        m_gridSize = size;
+    }
+
+    /**
+     * Get the initial kernel bandwidth.
+     * @return the bandwidth, as a fraction of the longer side of the
+     * layout
+     */
+    public double getBandwidth() {
+        return m_bandwidth;
+    }
+
+    /**
+     * Set the initial kernel bandwidth, which sets the distance over which
+     * edges are gathered into bundles.
+     * @param bandwidth the bandwidth, as a fraction of the longer side of
+     * the layout
+     */
+    public void setBandwidth(double bandwidth) {
+        if ( !(bandwidth > 0) )
+            throw new IllegalArgumentException(
+                "Bandwidth must be a positive number!");
+        m_bandwidth = bandwidth;
+    }
+
+    /**
+     * Get the factor by which the bandwidth shrinks in each iteration.
+     * @return the bandwidth decay
+     */
+    public double getDecay() {
+        return m_decay;
+    }
+
+    /**
+     * Set the factor by which the bandwidth shrinks in each iteration.
+     * @param decay the bandwidth decay, between zero and one
+     */
+    public void setDecay(double decay) {
+        if ( !(decay > 0 && decay <= 1) )
+            throw new IllegalArgumentException(
+                "Decay must be in the range (0,1]!");
+        m_decay = decay;
+    }
+
+    /**
+     * Get the distance points move in each iteration.
+     * @return the step, as a fraction of the current bandwidth
+     */
+    public double getStep() {
+        return m_step;
+    }
+
+    /**
+     * Set the distance points move in each iteration.
+     * @param step the step, as a fraction of the current bandwidth
+     */
+    public void setStep(double step) {
+        if ( !(step >= 0) )
+            throw new IllegalArgumentException(
+                "Step must be a non-negative number!");
+        m_step = step;
+    }
+
+    /**
+     * Get the weight with which points are pulled towards their neighbors
+     * on the polyline in each iteration.
+     * @return the smoothing weight
+     */
+    public double getSmoothing() {
+        return m_smoothing;
+    }
+
+    /**
+     * Set the weight with which points are pulled towards their neighbors
+     * on the polyline in each iteration.
+     * @param smoothing the smoothing weight, between zero and one
+     */
+    public void setSmoothing(double smoothing) {
+        if ( !(smoothing >= 0 && smoothing <= 1) )
+            throw new IllegalArgumentException(
+                "Smoothing must be in the range [0,1]!");
+        m_smoothing = smoothing;
+    }
+
+    /**
+     * Indicates if large graphs are bundled in parallel.
+     * @return true if the work is split across threads
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+
+    /**
+     * Set if large graphs are bundled in parallel, in the common fork/join
+     * pool. This is enabled by default, and does not change the result.
+     * @param b true to split the work across threads
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see prefux.action.Action#run(double)
+     */
+    public void run(double frac) {
+        TupleSet ts = m_vis.getGroup(m_group);
+        if ( ts == null ) return;
+        if ( !ts.hasColumn(m_field) )
+            ts.addColumn(m_field, float[].class);
+
+        int m = init();
+        if ( m == 0 ) return;
+        int k = m_segments + 1;
+        boolean parallel = m_parallel && (long)m*k >= PARALLEL_POINT_COUNT;
+
+        double h = m_bandwidth * m_cell * (m_gridSize-1);
+        for ( int iter=0; iter<m_iterations; ++iter ) {
+            density(m, k, h, parallel);
+            double step = m_step * h;
+            if ( parallel ) {
+                IntStream.range(0, m).parallel().forEach(e -> move(e, k, step));
+            } else {
+                for ( int e=0; e<m; ++e )
+                    move(e, k, step);
+            }
+            h *= m_decay;
+        }
+
+        store(m, k);
+        Arrays.fill(m_edges, 0, m, null);
+    }
+
+    /**
+     * Store the sample points of the edges in the point field. If all edges
+     * belong to one table, the points are written as one range of the point
+     * column, with a single update event.
+     */
+    private void store(int m, int k) {
+        Table t = m_edges[0].getTable();
+        int lo = Integer.MAX_VALUE, hi = -1;
+        for ( int e=0; e<m && t != null; ++e ) {
+            if ( m_edges[e].getTable() != t ) {
+                t = null;
+            } else {
+                lo = Math.min(lo, m_edges[e].getRow());
+                hi = Math.max(hi, m_edges[e].getRow());
+            }
+        }
+        Column c = ( t == null ? null : t.getColumn(m_field) );
+        if ( !(c instanceof ObjectColumn) ) {
+            for ( int e=0; e<m; ++e )
+                m_edges[e].set(m_field, points(e, k));
+            return;
+        }
+
+        Object[] values = new Object[hi+1];
+        for ( int r=lo; r<=hi; ++r )
+            values[r] = c.get(r);
+        for ( int e=0; e<m; ++e )
+            values[m_edges[e].getRow()] = points(e, k);
+        ((ObjectColumn)c).setObjects(values, lo, hi+1);
+    }
+
+    /**
+     * Copy the sample points of an edge into a new array of alternating x
+     * and y coordinates.
+     */
+    private float[] points(int e, int k) {
+        float[] a = new float[2*k];
+        for ( int i=0, p=e*k; i<k; ++i, ++p ) {
+            a[2*i]   = m_x[p];
+            a[2*i+1] = m_y[p];
+        }
+        return a;
+    }
+
+    /**
+     * Collect the edges to bundle, place the sample points on the straight
+     * lines between their nodes, and set up the grid over their bounds.
+     * @return the number of edges
+     */
+    private int init() {
+        int m = 0, k = m_segments + 1;
+        double minX = Double.POSITIVE_INFINITY, minY = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+
+        Iterator<VisualItem> iter = m_vis.visibleItems(m_group);
+        while ( iter.hasNext() ) {
+            VisualItem item = iter.next();
+            if ( !(item instanceof EdgeItem) ) continue;
+            EdgeItem edge = (EdgeItem)item;
+            NodeItem s = edge.getSourceItem(), t = edge.getTargetItem();
+            double x1 = s.getX(), y1 = s.getY(), x2 = t.getX(), y2 = t.getY();
+            // edges without positioned nodes are not bundled
+            if ( Double.isNaN(x1+y1+x2+y2) ) continue;
+
+            if ( m == m_edges.length )
+                m_edges = Arrays.copyOf(m_edges, Math.max(64, 2*m));
+            if ( (m+1)*k > m_x.length ) {
+                m_x = Arrays.copyOf(m_x, m_edges.length*k);
+                m_y = Arrays.copyOf(m_y, m_edges.length*k);
+            }
+            for ( int i=0, p=m*k; i<k; ++i, ++p ) {
+                double f = i / (double)(k-1);
+                m_x[p] = (float)(x1 + f*(x2-x1));
+                m_y[p] = (float)(y1 + f*(y2-y1));
+            }
+            m_edges[m++] = edge;
+            minX = Math.min(minX, Math.min(x1, x2));
+            minY = Math.min(minY, Math.min(y1, y2));
+            maxX = Math.max(maxX, Math.max(x1, x2));
+            maxY = Math.max(maxY, Math.max(y1, y2));
+        }
+        if ( m == 0 ) return 0;
+
+        double ext = Math.max(Math.max(maxX-minX, maxY-minY), 1);
+        m_cell = ext / (m_gridSize-1);
+        m_minX = minX;
+        m_minY = minY;
+        m_nx = (int)Math.ceil((maxX-minX)/m_cell) + 1;
+        m_ny = (int)Math.ceil((maxY-minY)/m_cell) + 1;
+        if ( m_density.length < m_nx*m_ny ) {
+            m_count = new float[m_nx*m_ny];
+            m_rows = new float[m_nx*m_ny];
+            m_density = new float[m_nx*m_ny];
+            m_bins = new float[0][];
+        }
+        return m;
+    }
+
+    /**
+     * Estimate the density of the interior sample points on the grid, using
+     * a separable quartic kernel of the given bandwidth.
+     */
+    private void density(int m, int k, double h, boolean parallel) {
+        int nx = m_nx, ny = m_ny, cells = nx*ny;
+
+        // bin the points, into one grid per chunk of edges
+        int chunks = parallel
+            ? Math.max(1, ForkJoinPool.getCommonPoolParallelism()) : 1;
+        if ( m_bins.length != chunks ) {
+            m_bins = new float[chunks][];
+            m_bins[0] = m_count;
+        }
+        for ( int c=1; c<chunks; ++c ) {
+            if ( m_bins[c] == null || m_bins[c].length < cells )
+                m_bins[c] = new float[cells];
+        }
+        if ( parallel ) {
+            IntStream.range(0, chunks).parallel().forEach(
+                c -> bin(m_bins[c], c*m/chunks, (c+1)*m/chunks, k));
+            IntStream.range(0, ny).parallel().forEach(y -> {
+                for ( int c=1; c<chunks; ++c ) {
+                    float[] b = m_bins[c];
+                    for ( int i=y*nx, end=i+nx; i<end; ++i )
+                        m_count[i] += b[i];
+                }
+            });
+        } else {
+            bin(m_count, 0, m, k);
+        }
+
+        // smooth the bins, first along rows, then along columns
+        int r = Math.max(1, (int)Math.round(h / m_cell));
+        float[] w = new float[2*r+1];
+        for ( int d=-r; d<=r; ++d ) {
+            double u = d / (r + 1.0);
+            w[d+r] = (float)((1-u*u)*(1-u*u));
+        }
+        if ( parallel ) {
+            IntStream.range(0, ny).parallel().forEach(y -> smoothRow(y, w));
+            IntStream.range(0, ny).parallel().forEach(y -> smoothColumns(y, w));
+        } else {
+            for ( int y=0; y<ny; ++y )
+                smoothRow(y, w);
+            for ( int y=0; y<ny; ++y )
+                smoothColumns(y, w);
+        }
+    }
+
+    /**
+     * Count the interior points of a range of edges into a grid.
+     */
+    private void bin(float[] b, int e0, int e1, int k) {
+        Arrays.fill(b, 0, m_nx*m_ny, 0);
+        for ( int e=e0; e<e1; ++e ) {
+            for ( int p=e*k+1, end=e*k+k-1; p<end; ++p ) {
+                int cx = cell(m_x[p], m_minX, m_nx);
+                int cy = cell(m_y[p], m_minY, m_ny);
+                b[cy*m_nx + cx] += 1;
+            }
+        }
+    }
+
+    private int cell(float v, double min, int n) {
+        int c = (int)((v - min) / m_cell + 0.5);
+        return c < 0 ? 0 : c >= n ? n-1 : c;
+    }
+
+    /**
+     * Smooth a row of the counts along the row.
+     */
+    private void smoothRow(int y, float[] w) {
+        int r = w.length/2, nx = m_nx, o = y*nx;
+        for ( int x=0; x<nx; ++x ) {
+            float s = 0;
+            for ( int d=Math.max(-r, -x), hi=Math.min(r, nx-1-x); d<=hi; ++d )
+                s += w[d+r] * m_count[o+x+d];
+            m_rows[o+x] = s;
+        }
+    }
+
+    /**
+     * Compute a row of the density by smoothing along the columns.
+     */
+    private void smoothColumns(int y, float[] w) {
+        int r = w.length/2, nx = m_nx;
+        int lo = Math.max(-r, -y), hi = Math.min(r, m_ny-1-y);
+        for ( int x=0; x<nx; ++x ) {
+            float s = 0;
+            for ( int d=lo; d<=hi; ++d )
+                s += w[d+r] * m_rows[(y+d)*nx + x];
+            m_density[y*nx + x] = s;
+        }
+    }
+
+    /**
+     * Move the interior points of an edge a step up the density gradient,
+     * then smooth the polyline.
+     */
+    private void move(int e, int k, double step) {
+        int p0 = e*k;
+        for ( int p=p0+1, end=p0+k-1; p<end; ++p ) {
+            double gx = (m_x[p] - m_minX) / m_cell;
+            double gy = (m_y[p] - m_minY) / m_cell;
+            double dx = sample(gx+1, gy) - sample(gx-1, gy);
+            double dy = sample(gx, gy+1) - sample(gx, gy-1);
+            double len = Math.sqrt(dx*dx + dy*dy);
+            if ( len > 0 ) {
+                m_x[p] += (float)(step * dx / len);
+                m_y[p] += (float)(step * dy / len);
+            }
+        }
+
+        double s = m_smoothing;
+        float px = m_x[p0], py = m_y[p0];
+        for ( int p=p0+1, end=p0+k-1; p<end; ++p ) {
+            float x = m_x[p], y = m_y[p];
+            m_x[p] = (float)((1-s)*x + s*0.5*(px + m_x[p+1]));
+            m_y[p] = (float)((1-s)*y + s*0.5*(py + m_y[p+1]));
+            px = x;
+            py = y;
+        }
+    }
+
+    /**
+     * Interpolate the density at a grid position.
+     */
+    private double sample(double gx, double gy) {
+        gx = gx < 0 ? 0 : gx > m_nx-1 ? m_nx-1 : gx;
+        gy = gy < 0 ? 0 : gy > m_ny-1 ? m_ny-1 : gy;
+        int x0 = Math.min((int)gx, m_nx-2), y0 = Math.min((int)gy, m_ny-2);
+        if ( x0 < 0 ) x0 = 0;
+        if ( y0 < 0 ) y0 = 0;
+        int x1 = Math.min(x0+1, m_nx-1), y1 = Math.min(y0+1, m_ny-1);
+        double fx = gx - x0, fy = gy - y0;
+        float[] d = m_density;
+        int nx = m_nx;
+        return (1-fy) * ((1-fx)*d[y0*nx+x0] + fx*d[y0*nx+x1])
+             +    fy  * ((1-fx)*d[y1*nx+x0] + fx*d[y1*nx+x1]);
+    }
+
+} // end of class EdgeBundlingLayout
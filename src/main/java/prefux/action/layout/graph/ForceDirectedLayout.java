@@ -30,7 +30,15 @@
  */
 package prefux.action.layout.graph;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
 
 import javafx.geometry.Rectangle2D;
 
@@ -39,14 +47,25 @@ import org.apache.logging.log4j.Logger;
 
 import prefux.action.layout.Layout;
 import prefux.data.Graph;
+import prefux.data.Node;
 import prefux.data.Schema;
+import prefux.data.Table;
+import prefux.data.column.DoubleColumn;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
+import prefux.data.stream.GraphDelta;
+import prefux.data.stream.GraphDeltaListener;
+import prefux.data.stream.GraphDeltaSink;
 import prefux.data.tuple.TupleSet;
 import prefux.data.util.Point2D;
 import prefux.util.PrefuseLib;
+import prefux.util.force.ArrayForceSimulator;
 import prefux.util.force.DragForce;
 import prefux.util.force.ForceItem;
 import prefux.util.force.ForceSimulator;
 import prefux.util.force.NBodyForce;
+import prefux.util.force.SimulationState;
+import prefux.util.force.SimulationWorker;
 import prefux.util.force.SpringForce;
 import prefux.visual.EdgeItem;
 import prefux.visual.NodeItem;
@@ -77,16 +96,133 @@ import prefux.visual.VisualItem;
  * simulation. See the {@link prefux.util.force} package for more.
  * </p>
  * 
+ * <p>
+ * By default, the layout is driven by an {@link ArrayForceSimulator} with an
+ * {@link NBodyForce}, a {@link SpringForce} and a {@link DragForce}, all
+ * computed in the thread running the simulation. To compute the repulsion
+ * between the nodes of large graphs on several processors, set the
+ * {@link NBodyForce#setParallelism(int) parallelism} of the n-body force of
+ * the {@link #getForceSimulator() simulator}. A force with a parallelism
+ * above one keeps a thread pool of that size until its parallelism is set
+ * back to one.
+ * </p>
+ * 
+ * <p>
+ * For graphs with hundreds of thousands of nodes or more, drive the layout
+ * with an {@link ArrayForceSimulator} that uses a
+ * {@link prefux.util.force.ParticleMeshForce} instead of the default
+ * {@link NBodyForce}, bringing the cost of the repulsion
+ * between nodes down to O(N) per step.
+ * </p>
+ * 
+ * <p>
+ * For graphs that change continuously, register the layout as a listener of
+ * the {@link prefux.data.stream.GraphDeltaSink} applying the changes. Newly
+ * added nodes are then placed next to their already positioned neighbors,
+ * and all other nodes keep their positions. A node counts as positioned once
+ * this layout has set its position. In run-once mode, enable
+ * {@link #setWarmStart(boolean) warm starts} so that each run refines the
+ * positions of the positioned nodes instead of starting over from the layout
+ * anchor.
+ * </p>
+ * 
+ * <p>
+ * Once the force simulation {@link ForceSimulator#isConverged() converges},
+ * a run-once layout stops early, and an animated layout stops simulating
+ * until nodes or edges are added or removed, or nodes are moved by other
+ * code, such as a drag control. An idle animated layout thus only checks
+ * the node positions on each step. The simulator is likewise only reloaded
+ * from the graph after such changes, so that a simulator keeping its own
+ * state, such as the {@link prefux.util.force.ArrayForceSimulator}, runs
+ * successive steps without copying it. Node masses and spring lengths
+ * and coefficients are read when the simulator is reloaded.
+ * </p>
+ * 
+ * <p>
+ * An animated layout can also run its simulation
+ * {@link #setBackground(boolean) in the background}, on a
+ * {@link prefux.util.force.SimulationWorker} thread that steps the simulation
+ * as fast as it can. Each run of the layout then only copies the latest
+ * positions computed by the worker to the nodes, and hands nodes moved by
+ * other code over to the worker, so the time a run takes no longer depends
+ * on the cost of a simulation step. For node and edge tables, changes of
+ * the graph and moved nodes are recorded from table events rather than
+ * found by visiting all nodes and edges on each run, and the positions are
+ * copied in bulk.
+ * </p>
+ * 
+ * <p>
+ * With a {@link ForceSimulator#setDeterministic(boolean) deterministic}
+ * simulator, the layout computes identical positions for identical graphs.
+ * The state of the simulation can be saved with
+ * {@link #writeState(OutputStream)} and restored with
+ * {@link #readState(InputStream)}, for example to precompute a layout
+ * offline and continue it interactively.
+ * </p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class ForceDirectedLayout extends Layout {
+public class ForceDirectedLayout extends Layout implements GraphDeltaListener {
 
 	private ForceSimulator	       m_fsim;
 	private long	               m_lasttime	= -1L;
 	private long	               m_maxstep	= 50L;
+	private long	               m_step	= 50L;
 	private boolean	               m_runonce;
 	private int	                   m_iterations	= 100;
 	private boolean	               m_enforceBounds;
+	private boolean	               m_warmStart;
+	private boolean	               m_converged;
+	private boolean	               m_background;
+	private Random	               m_random	= new Random(SEED);
+
+	// state of background simulations, indexed like the worker's items
+	private SimulationWorker	   m_worker;
+	private int	                   m_bgGeneration	= -1;
+	private int	                   m_bgCount;
+	private int	                   m_bgEdgeCount;
+	private VisualItem[]	       m_bgItems	= new VisualItem[0];
+	private VisualItem[]	       m_bgEdges	= new VisualItem[0];
+	private int[]	               m_bgRows	= new int[0];
+	private double[]	           m_bgX	= new double[0];
+	private double[]	           m_bgY	= new double[0];
+	private boolean[]	           m_bgFixed	= new boolean[0];
+	private boolean[]	           m_bgSkip	= new boolean[0];
+	private boolean[]	           m_bgWrite	= new boolean[0];
+	private long	               m_bgStep	= -1;
+
+	// node and edge tables of background simulations, whose events record
+	// the changes to hand over to the worker
+	private Table	               m_bgNodes;
+	private Table	               m_bgEdgeTable;
+	private boolean	               m_bgChanged;
+	private boolean	               m_bgWriting;
+	private int[]	               m_bgIndex	= new int[0];	// by row
+	private int[]	               m_bgDirty	= new int[0];
+	private boolean[]	           m_bgDirtyMark	= new boolean[0];
+	private int	                   m_bgDirtyCount;
+	private double[]	           m_bgCur	= new double[0];
+	private double[]	           m_bgStart	= new double[0];
+	private double[]	           m_bgEnd	= new double[0];
+	private final TableListener	   m_bgListener	= new TableListener() {
+		public void tableChanged(Table t, int start, int end, int col,
+		        int type) {
+			backgroundChanged(t, start, end, col, type);
+		}
+	};
+
+	// rows of the visual node table whose position was set by this layout
+	private final BitSet	       m_placed	= new BitSet();
+	private Table	               m_placedTable;
+	private final TableListener	   m_placedListener	= new TableListener() {
+		public void tableChanged(Table t, int start, int end, int col,
+		        int type) {
+			// rows of deleted nodes may be reused by new nodes
+			if (type == EventConstants.DELETE
+			        && col == EventConstants.ALL_COLUMNS)
+				clearPlaced(start, end);
+		}
+	};
 
 	protected transient VisualItem	referrer;
 
@@ -95,6 +231,17 @@ public class ForceDirectedLayout extends Layout {
 	
 	private static final Logger log = LogManager.getLogger(ForceDirectedLayout.class);
 
+	/** Initial annealing time step for warm started run-once layouts */
+	private static final long	   WARM_TIMESTEP = 200L;
+	/** Maximum offset of newly placed nodes from their seed position */
+	private static final double	   SEED_RADIUS = 5.0;
+	/** Seed of the random offsets of newly placed nodes */
+	private static final long	   SEED = 12345678L;
+	/** Coordinate columns written by background simulations */
+	private static final String[]  COORDINATES = { VisualItem.X,
+	        VisualItem.STARTX, VisualItem.ENDX, VisualItem.Y,
+	        VisualItem.STARTY, VisualItem.ENDY };
+
 
 	/**
 	 * Create a new ForceDirectedLayout. By default, this layout will not
@@ -144,7 +291,7 @@ public class ForceDirectedLayout extends Layout {
 
 		m_enforceBounds = enforceBounds;
 		m_runonce = runonce;
-		m_fsim = new ForceSimulator();
+		m_fsim = new ArrayForceSimulator();
 		m_fsim.addForce(new NBodyForce());
 		m_fsim.addForce(new SpringForce());
 		m_fsim.addForce(new DragForce());
@@ -221,6 +368,9 @@ public class ForceDirectedLayout extends Layout {
 	 */
 	public void setMaxTimeStep(long maxstep) {
 		this.m_maxstep = maxstep;
+		this.m_step = maxstep;
+		if (m_worker != null)
+			m_worker.setMaxTimeStep(maxstep);
 	}
 
 	/**
@@ -239,6 +389,7 @@ public class ForceDirectedLayout extends Layout {
 	 *            the force simulator
 	 */
 	public void setForceSimulator(ForceSimulator fsim) {
+		stopWorker();
 		m_fsim = fsim;
 	}
 
@@ -266,6 +417,61 @@ public class ForceDirectedLayout extends Layout {
 		m_iterations = iter;
 	}
 
+	/**
+	 * Indicates if run-once layouts start from the current node positions.
+	 * 
+	 * @return true if run-once layouts are warm started
+	 */
+	public boolean isWarmStart() {
+		return m_warmStart;
+	}
+
+	/**
+	 * Set if run-once layouts start from the current node positions. By
+	 * default, a run-once layout first moves all nodes to the layout anchor
+	 * and then runs a full annealing schedule. With warm starts, nodes that
+	 * already have a position keep it, and the schedule starts at a lower
+	 * temperature, so an incrementally changed graph is refined rather than
+	 * laid out anew. Animated layouts always continue from the current
+	 * positions.
+	 * 
+	 * @param warmStart
+	 *            true to warm start run-once layouts
+	 */
+	public void setWarmStart(boolean warmStart) {
+		m_warmStart = warmStart;
+	}
+
+	/**
+	 * Indicates if animated layouts run their simulation on a background
+	 * worker thread.
+	 * 
+	 * @return true if the simulation runs in the background
+	 */
+	public boolean isBackground() {
+		return m_background;
+	}
+
+	/**
+	 * Set if animated layouts run their simulation on a background worker
+	 * thread. The worker steps the simulation continuously, and each run of
+	 * the layout moves the nodes to the latest positions computed so far,
+	 * so that slow simulation steps no longer slow down the animation or
+	 * the response to user interaction. While the worker is running, it
+	 * owns the {@link #getForceSimulator() force simulator}, which must not
+	 * be used by other threads. The worker is stopped when the layout is
+	 * {@link #reset() reset} or background simulation is disabled. Run-once
+	 * layouts ignore this setting.
+	 * 
+	 * @param background
+	 *            true to run the simulation in the background
+	 */
+	public void setBackground(boolean background) {
+		m_background = background;
+		if (!background)
+			stopWorker();
+	}
+
 	/**
 	 * Explicitly sets the node and edge groups to use for this layout,
 	 * overriding the group setting passed to the constructor.
@@ -293,11 +499,13 @@ public class ForceDirectedLayout extends Layout {
 			Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
 			while (iter.hasNext()) {
 				VisualItem item = iter.next();
+				if (m_warmStart && isPlaced(item))
+					continue;
 				item.setX(anchor.getX());
 				item.setY(anchor.getY());
 			}
 			m_fsim.clear();
-			long timestep = 1000L;
+			long timestep = m_warmStart ? WARM_TIMESTEP : 1000L;
 			initSimulator(m_fsim);
 			for (int i = 0; i < m_iterations; i++) {
 				// use an annealing schedule to set time step
@@ -309,31 +517,547 @@ public class ForceDirectedLayout extends Layout {
 				// if (i % 10 == 0 ) {
 				// System.out.println("iter: "+i);
 				// }
+				if (m_fsim.isConverged())
+					break;
 			}
 			updateNodePositions();
+		} else if (m_background) {
+			runBackground();
 		} else {
 			// get timestep
 			if (m_lasttime == -1)
 				m_lasttime = System.currentTimeMillis() - 20;
 			long time = System.currentTimeMillis();
-			long timestep = Math.min(m_maxstep, time - m_lasttime);
+			long timestep = Math.min(m_step, time - m_lasttime);
 			m_lasttime = time;
 
-			// run force simulator
-			m_fsim.clear();
-			initSimulator(m_fsim);
-			long newstep=m_fsim.runSimulator(timestep);
-			if (newstep!=timestep) {
-				m_maxstep=newstep;
+			// run force simulator, unless it converged and nothing changed;
+			// the simulator keeps its state between steps, and is only
+			// reloaded when the graph or the node positions changed
+			boolean changed = isChanged();
+			if (!m_converged || changed) {
+				if (changed) {
+					m_fsim.clear();
+					initSimulator(m_fsim);
+				}
+				long newstep=m_fsim.runSimulator(timestep);
+				// follow the recommended timestep, but only grow it if it
+				// limited this step, and never beyond the maximum
+				if (newstep<timestep || timestep==m_step) {
+					m_step=Math.min(newstep, m_maxstep);
+				}
+				updateNodePositions();
+				m_converged = m_fsim.isConverged();
 			}
-			updateNodePositions();
 		}
 		if (frac == 1.0) {
 			reset();
 		}
 	}
 
+	/**
+	 * Indicates if the force simulation of this animated layout has
+	 * converged, so that the layout no longer moves any nodes until the
+	 * graph or the node positions are changed.
+	 * 
+	 * @return true if the layout has converged
+	 */
+	public boolean isConverged() {
+		return m_converged;
+	}
+
+	/**
+	 * Checks if nodes or edges were added or removed, or nodes were moved,
+	 * since the simulator was last run.
+	 */
+	private boolean isChanged() {
+		int n = 0;
+		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
+		while (iter.hasNext()) {
+			VisualItem item = iter.next();
+			ForceItem fitem = (ForceItem) item.get(FORCEITEM);
+			if (fitem == null)
+				return true;
+			// fixed items are recorded at their current position
+			boolean fixed = item.isFixed();
+			double x = fixed ? item.getX() : item.getEndX();
+			double y = fixed ? item.getY() : item.getEndY();
+			if (x != fitem.location[0] || y != fitem.location[1]
+			        || fixed != fitem.fixed)
+				return true;
+			++n;
+		}
+		if (n != m_fsim.getItemCount())
+			return true;
+		if (m_edgeGroup != null) {
+			int m = 0;
+			iter = m_vis.visibleItems(m_edgeGroup);
+			while (iter.hasNext()) {
+				iter.next();
+				++m;
+			}
+			if (m != m_fsim.getSpringCount())
+				return true;
+		}
+		return false;
+	}
+
+	// ------------------------------------------------------------------------
+	// Background Simulation
+
+	/**
+	 * Hands changes of the graph and of node positions over to the
+	 * background worker, and moves the nodes to the latest positions it
+	 * computed. When the node and edge groups are tables, changes are
+	 * tracked through table events, so that a run only visits the nodes
+	 * moved by other code, and the positions of a new step are written in
+	 * bulk.
+	 */
+	private synchronized void runBackground() {
+		if (m_worker == null) {
+			m_worker = new SimulationWorker(m_fsim);
+			m_worker.setMaxTimeStep(m_maxstep);
+			m_worker.start();
+		}
+		boolean watched = watchBackground();
+		if (m_bgGeneration == -1 || (watched ? m_bgChanged : isModelChanged()))
+			submitModel();
+
+		// hand nodes moved or pinned by other code over to the worker
+		if (watched) {
+			for (int k = 0; k < m_bgDirtyCount; ++k) {
+				int r = m_bgDirty[k];
+				m_bgDirtyMark[r] = false;
+				if (m_bgIndex[r] >= 0)
+					handOver(m_bgIndex[r]);
+			}
+			m_bgDirtyCount = 0;
+		} else {
+			for (int i = 0; i < m_bgCount; ++i)
+				handOver(i);
+		}
+
+		SimulationWorker.Snapshot snap = m_worker.getSnapshot();
+		boolean current = snap.getGeneration() == m_bgGeneration;
+		if (current && snap.getStep() != m_bgStep) {
+			m_bgStep = snap.getStep();
+			placeBackground(snap, watched);
+		}
+		m_converged = current && snap.isConverged();
+	}
+
+	/**
+	 * Hands a node over to the worker if it was pinned, released or moved
+	 * since this layout last positioned it.
+	 */
+	private void handOver(int i) {
+		VisualItem item = m_bgItems[i];
+		if (item.isFixed()) {
+			if (Double.isNaN(item.getX())) {
+				setX(item, referrer, 0.0);
+				setY(item, referrer, 0.0);
+			}
+			setPlaced(item);
+			if (!m_bgFixed[i] || isMoved(item, i)) {
+				moveWorkerItem(i, item.getEndX(), item.getEndY());
+				m_worker.setFixed(i, true);
+				m_bgFixed[i] = true;
+			}
+			return;
+		}
+		if (m_bgFixed[i]) {
+			m_worker.setFixed(i, false);
+			m_bgFixed[i] = false;
+		}
+		if (isMoved(item, i)) {
+			// moved by other code, the worker continues from there
+			moveWorkerItem(i, item.getEndX(), item.getEndY());
+			m_bgSkip[i] = true;
+		}
+	}
+
+	/**
+	 * Moves the nodes to the positions of a snapshot, except for fixed
+	 * nodes and nodes moved since the previous snapshot.
+	 */
+	private void placeBackground(SimulationWorker.Snapshot snap,
+	        boolean watched) {
+		Rectangle2D bounds = getLayoutBounds();
+		for (int i = 0; i < m_bgCount; ++i) {
+			m_bgWrite[i] = !m_bgFixed[i] && !m_bgSkip[i];
+			m_bgSkip[i] = false;
+			if (!m_bgWrite[i])
+				continue;
+
+			double x = snap.getX(i);
+			double y = snap.getY(i);
+			if (m_enforceBounds && bounds != null) {
+				Rectangle2D b = m_bgItems[i].getBounds();
+				double hw = b.getWidth() / 2;
+				double hh = b.getHeight() / 2;
+				double cx = Math.max(bounds.getMinX() + hw,
+				        Math.min(x, bounds.getMaxX() - hw));
+				double cy = Math.max(bounds.getMinY() + hh,
+				        Math.min(y, bounds.getMaxY() - hh));
+				if (cx != x || cy != y) {
+					m_worker.setPosition(i, cx, cy);
+					x = cx;
+					y = cy;
+				}
+			}
+			m_bgX[i] = x;
+			m_bgY[i] = y;
+		}
+
+		if (watched && isBulk(m_bgNodes)) {
+			m_bgWriting = true;
+			try {
+				writeAxis(VisualItem.X, VisualItem.STARTX, VisualItem.ENDX,
+				        m_bgX, referrer == null ? Double.NaN : referrer.getX());
+				writeAxis(VisualItem.Y, VisualItem.STARTY, VisualItem.ENDY,
+				        m_bgY, referrer == null ? Double.NaN : referrer.getY());
+			} finally {
+				m_bgWriting = false;
+			}
+			for (int i = 0; i < m_bgCount; ++i) {
+				if (m_bgWrite[i])
+					setPlaced(m_bgItems[i]);
+			}
+		} else {
+			for (int i = 0; i < m_bgCount; ++i) {
+				if (!m_bgWrite[i])
+					continue;
+				VisualItem item = m_bgItems[i];
+				setX(item, referrer, m_bgX[i]);
+				setY(item, referrer, m_bgY[i]);
+				setPlaced(item);
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the coordinate columns of a table can be written in bulk.
+	 */
+	private static boolean isBulk(Table t) {
+		for (String field : COORDINATES) {
+			if (!(t.getColumn(field) instanceof DoubleColumn))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the positions of the nodes placed by a snapshot along one axis
+	 * into the coordinate columns of the node table, with a single update
+	 * event for each column. The current positions become the start
+	 * positions, unless they are not set.
+	 */
+	private void writeAxis(String field, String startField, String endField,
+	        double[] pos, double ref) {
+		Table t = m_bgNodes;
+		DoubleColumn cur = (DoubleColumn) t.getColumn(field);
+		DoubleColumn start = (DoubleColumn) t.getColumn(startField);
+		DoubleColumn end = (DoubleColumn) t.getColumn(endField);
+		int len = Math.min(t.getMaximumRow() + 1,
+		        Math.min(cur.getRowCount(),
+		                Math.min(start.getRowCount(), end.getRowCount())));
+		if (m_bgCur.length < len) {
+			m_bgCur = new double[len];
+			m_bgStart = new double[len];
+			m_bgEnd = new double[len];
+		}
+		double[] c = m_bgCur, s = m_bgStart, e = m_bgEnd;
+		cur.getDoubles(c, 0, len);
+		start.getDoubles(s, 0, len);
+		end.getDoubles(e, 0, len);
+		for (int i = 0; i < m_bgCount; ++i) {
+			int r = m_bgRows[i];
+			if (!m_bgWrite[i] || r >= len)
+				continue;
+			double v = pos[i];
+			s[r] = Double.isNaN(c[r]) ? (Double.isNaN(ref) ? v : ref) : c[r];
+			e[r] = v;
+			c[r] = v;
+		}
+		start.setDoubles(s, 0, len);
+		end.setDoubles(e, 0, len);
+		cur.setDoubles(c, 0, len);
+	}
+
+	/**
+	 * Checks if a node was moved since this layout last positioned it.
+	 */
+	private boolean isMoved(VisualItem item, int i) {
+		double x = item.getEndX(), y = item.getEndY();
+		if (Double.isNaN(x) || Double.isNaN(y))
+			return false;
+		return x != m_bgX[i] || y != m_bgY[i];
+	}
+
+	/**
+	 * Moves an item of the background simulation, and records the position.
+	 */
+	private void moveWorkerItem(int i, double x, double y) {
+		m_worker.setPosition(i, x, y);
+		m_bgX[i] = x;
+		m_bgY[i] = y;
+	}
+
+	/**
+	 * Listens to the node and edge tables of a background simulation.
+	 * 
+	 * @return true if the node and edge groups are tables
+	 */
+	private boolean watchBackground() {
+		TupleSet nodes = m_vis.getGroup(m_nodeGroup);
+		TupleSet edges = (m_edgeGroup == null ? null
+		        : m_vis.getGroup(m_edgeGroup));
+		if (!(nodes instanceof Table)
+		        || (edges != null && !(edges instanceof Table))) {
+			unwatchBackground();
+			return false;
+		}
+		if (nodes != m_bgNodes || edges != m_bgEdgeTable) {
+			unwatchBackground();
+			m_bgNodes = (Table) nodes;
+			m_bgEdgeTable = (Table) edges;
+			m_bgNodes.addTableListener(m_bgListener);
+			if (m_bgEdgeTable != null)
+				m_bgEdgeTable.addTableListener(m_bgListener);
+			m_bgChanged = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops listening to the node and edge tables.
+	 */
+	private void unwatchBackground() {
+		if (m_bgNodes != null)
+			m_bgNodes.removeTableListener(m_bgListener);
+		if (m_bgEdgeTable != null)
+			m_bgEdgeTable.removeTableListener(m_bgListener);
+		m_bgNodes = null;
+		m_bgEdgeTable = null;
+		for (int k = 0; k < m_bgDirtyCount; ++k)
+			m_bgDirtyMark[m_bgDirty[k]] = false;
+		m_bgDirtyCount = 0;
+	}
+
+	/**
+	 * Records changes of the node and edge tables. Added, removed, shown or
+	 * hidden rows change the model of the worker, and nodes whose end
+	 * position or fixed state changed are handed over on the next run.
+	 * Positions written by this layout are ignored.
+	 */
+	private synchronized void backgroundChanged(Table t, int start, int end,
+	        int col, int type) {
+		if (m_bgWriting)
+			return;
+		if (type != EventConstants.UPDATE
+		        || col == EventConstants.ALL_COLUMNS) {
+			m_bgChanged = true;
+			return;
+		}
+		String field = t.getColumnName(col);
+		if (VisualItem.VISIBLE.equals(field)) {
+			m_bgChanged = true;
+		} else if (t == m_bgNodes && (VisualItem.ENDX.equals(field)
+		        || VisualItem.ENDY.equals(field)
+		        || VisualItem.FIXED.equals(field))) {
+			int last = Math.min(end, m_bgIndex.length - 1);
+			for (int r = start; r <= last; ++r) {
+				if (m_bgIndex[r] < 0 || m_bgDirtyMark[r])
+					continue;
+				m_bgDirtyMark[r] = true;
+				m_bgDirty[m_bgDirtyCount++] = r;
+			}
+		}
+	}
+
+	/**
+	 * Checks if visible nodes or edges were added or removed since the
+	 * model was last handed to the background worker. Used when the groups
+	 * are not tables, whose events tell about such changes.
+	 */
+	private boolean isModelChanged() {
+		int n = 0;
+		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
+		while (iter.hasNext()) {
+			iter.next();
+			++n;
+		}
+		if (n != m_bgCount)
+			return true;
+		for (int i = 0; i < m_bgCount; ++i) {
+			if (!m_bgItems[i].isValid() || !m_bgItems[i].isVisible())
+				return true;
+		}
+		if (m_edgeGroup != null) {
+			int m = 0;
+			iter = m_vis.visibleItems(m_edgeGroup);
+			while (iter.hasNext()) {
+				iter.next();
+				++m;
+			}
+			if (m != m_bgEdgeCount)
+				return true;
+			for (int i = 0; i < m_bgEdgeCount; ++i) {
+				if (!m_bgEdges[i].isValid() || !m_bgEdges[i].isVisible())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the visible nodes and edges to the background worker. The
+	 * worker gets its own force items, starting at the current node
+	 * positions, so that it never shares state with this thread.
+	 */
+	private void submitModel() {
+		double startX = (referrer == null ? 0f : referrer.getX());
+		double startY = (referrer == null ? 0f : referrer.getY());
+		startX = Double.isNaN(startX) ? 0f : startX;
+		startY = Double.isNaN(startY) ? 0f : startY;
+
+		int n = 0;
+		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
+		while (iter.hasNext()) {
+			VisualItem item = iter.next();
+			if (n == m_bgItems.length)
+				m_bgItems = Arrays.copyOf(m_bgItems,
+				        Math.max(16, 2 * n));
+			m_bgItems[n++] = item;
+		}
+		if (m_bgX.length < n) {
+			m_bgX = new double[m_bgItems.length];
+			m_bgY = new double[m_bgItems.length];
+			m_bgFixed = new boolean[m_bgItems.length];
+			m_bgSkip = new boolean[m_bgItems.length];
+			m_bgWrite = new boolean[m_bgItems.length];
+			m_bgRows = new int[m_bgItems.length];
+		}
+		ForceItem[] fitems = new ForceItem[n];
+		Map<VisualItem, Integer> index = new HashMap<VisualItem, Integer>();
+		for (int i = 0; i < n; ++i) {
+			VisualItem item = m_bgItems[i];
+			ForceItem fitem = new ForceItem();
+			fitem.mass = getMassValue(item);
+			fitem.fixed = item.isFixed();
+			if (fitem.fixed) {
+				if (Double.isNaN(item.getX())) {
+					setX(item, referrer, 0.0);
+					setY(item, referrer, 0.0);
+				}
+				setPlaced(item);
+			}
+			double x = item.getEndX();
+			double y = item.getEndY();
+			fitem.location[0] = (Double.isNaN(x) ? startX : x);
+			fitem.location[1] = (Double.isNaN(y) ? startY : y);
+			fitems[i] = fitem;
+			index.put(item, i);
+			m_bgX[i] = fitem.location[0];
+			m_bgY[i] = fitem.location[1];
+			m_bgFixed[i] = fitem.fixed;
+			m_bgSkip[i] = false;
+			m_bgRows[i] = item.getRow();
+		}
+		indexBackground();
+		for (int i = n; i < m_bgCount; ++i)
+			m_bgItems[i] = null;
+		m_bgCount = n;
+
+		int m = 0, ns = 0;
+		int[] s1 = new int[16], s2 = new int[16];
+		double[] coeff = new double[16], slen = new double[16];
+		if (m_edgeGroup != null) {
+			iter = m_vis.visibleItems(m_edgeGroup);
+			while (iter.hasNext()) {
+				EdgeItem e = (EdgeItem) iter.next();
+				Integer i1 = index.get(e.getSourceItem());
+				Integer i2 = index.get(e.getTargetItem());
+				if (m == m_bgEdges.length)
+					m_bgEdges = Arrays.copyOf(m_bgEdges,
+					        Math.max(16, 2 * m));
+				m_bgEdges[m] = e;
+				if (i1 != null && i2 != null) {
+					if (ns == s1.length) {
+						s1 = Arrays.copyOf(s1, 2 * ns);
+						s2 = Arrays.copyOf(s2, 2 * ns);
+						coeff = Arrays.copyOf(coeff, 2 * ns);
+						slen = Arrays.copyOf(slen, 2 * ns);
+					}
+					s1[ns] = i1;
+					s2[ns] = i2;
+					coeff[ns] = getSpringCoefficient(e);
+					slen[ns] = getSpringLength(e);
+					++ns;
+				}
+				++m;
+			}
+		}
+		for (int i = m; i < m_bgEdgeCount; ++i)
+			m_bgEdges[i] = null;
+		m_bgEdgeCount = m;
+		m_bgGeneration = m_worker.setModel(fitems, n, s1, s2, coeff, slen,
+		        ns);
+		m_bgChanged = false;
+	}
+
+	/**
+	 * Maps the rows of the node table to the nodes of the worker's model,
+	 * and forgets the nodes recorded as moved, whose positions the model
+	 * starts from.
+	 */
+	private void indexBackground() {
+		for (int k = 0; k < m_bgDirtyCount; ++k)
+			m_bgDirtyMark[m_bgDirty[k]] = false;
+		m_bgDirtyCount = 0;
+		if (m_bgNodes == null)
+			return;
+		int rows = m_bgNodes.getMaximumRow() + 1;
+		if (m_bgIndex.length < rows) {
+			m_bgIndex = new int[rows];
+			m_bgDirty = new int[rows];
+			m_bgDirtyMark = new boolean[rows];
+		}
+		Arrays.fill(m_bgIndex, -1);
+		for (int i = 0; i < m_bgCount; ++i) {
+			if (m_bgItems[i].getTable() == m_bgNodes)
+				m_bgIndex[m_bgRows[i]] = i;
+		}
+	}
+
+	/**
+	 * Stops the background worker, if running, and waits for it to finish
+	 * its current step.
+	 */
+	private synchronized void stopWorker() {
+		if (m_worker == null)
+			return;
+		m_worker.shutdown();
+		try {
+			m_worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_worker = null;
+		m_bgGeneration = -1;
+		m_bgCount = 0;
+		m_bgEdgeCount = 0;
+		Arrays.fill(m_bgItems, null);
+		Arrays.fill(m_bgEdges, null);
+		unwatchBackground();
+		Arrays.fill(m_bgIndex, -1);
+	}
+
+	// ------------------------------------------------------------------------
+
 	private synchronized void updateNodePositions() {
+		m_fsim.syncItems();
+		boolean modified = false;
 		Rectangle2D bounds = getLayoutBounds();
 		double x1 = 0, x2 = 0, y1 = 0, y2 = 0;
 		if (bounds != null) {
@@ -350,18 +1074,25 @@ public class ForceDirectedLayout extends Layout {
 			ForceItem fitem = (ForceItem) item.get(FORCEITEM);
 
 			if (item.isFixed()) {
-				// clear any force computations
-				fitem.force[0] = 0.0f;
-				fitem.force[1] = 0.0f;
-				fitem.velocity[0] = 0.0f;
-				fitem.velocity[1] = 0.0f;
-
 				if (Double.isNaN(item.getX())) {
 					setX(item, referrer, 0.0);
 					setY(item, referrer, 0.0);
 				}
-				fitem.location[0]=item.getX();
-				fitem.location[1]=item.getY();
+				// pin the item, reloading the simulator only if it moved
+				// the item or left it with a velocity
+				if (fitem.location[0] != item.getX()
+				        || fitem.location[1] != item.getY()
+				        || fitem.velocity[0] != 0 || fitem.velocity[1] != 0) {
+					fitem.location[0] = item.getX();
+					fitem.location[1] = item.getY();
+					fitem.velocity[0] = 0.0f;
+					fitem.velocity[1] = 0.0f;
+					modified = true;
+				}
+				// clear any force computations
+				fitem.force[0] = 0.0f;
+				fitem.force[1] = 0.0f;
+				setPlaced(item);
 				continue;
 			}
 
@@ -383,15 +1114,24 @@ public class ForceDirectedLayout extends Layout {
 			}
 
 			// set the actual position
+			if (x != fitem.location[0] || y != fitem.location[1]) {
+				fitem.location[0] = x;
+				fitem.location[1] = y;
+				modified = true;
+			}
 			setX(item, referrer, x);
 			setY(item, referrer, y);
+			setPlaced(item);
 		}
+		if (modified)
+			m_fsim.itemsChanged();
 	}
 
 	/**
 	 * Reset the force simulation state for all nodes processed by this layout.
 	 */
 	public void reset() {
+		m_fsim.syncItems();
 		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
 		while (iter.hasNext()) {
 			VisualItem item = iter.next();
@@ -403,7 +1143,10 @@ public class ForceDirectedLayout extends Layout {
 				fitem.velocity[0] = fitem.velocity[1] = 0;
 			}
 		}
+		m_fsim.itemsChanged();
 		m_lasttime = -1L;
+		m_converged = false;
+		stopWorker();
 	}
 
 	/**
@@ -432,6 +1175,7 @@ public class ForceDirectedLayout extends Layout {
 			VisualItem item = (VisualItem) iter.next();
 			ForceItem fitem = (ForceItem) item.get(FORCEITEM);
 			fitem.mass = getMassValue(item);
+			fitem.fixed = item.isFixed();
 			double x = item.getEndX();
 			double y = item.getEndY();
 			fitem.location[0] = (Double.isNaN(x) ? startX : x);
@@ -454,6 +1198,165 @@ public class ForceDirectedLayout extends Layout {
 		}
 	}
 
+	// ------------------------------------------------------------------------
+	// Simulation State
+
+	/**
+	 * Save the state of the force simulation of the visible nodes and edges
+	 * to a stream, in the format of {@link SimulationState}. The stream is
+	 * flushed, but not closed.
+	 * 
+	 * @param os
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if the stream can not be written
+	 */
+	public synchronized void writeState(OutputStream os) throws IOException {
+		stopWorker();
+		m_fsim.clear();
+		initSimulator(m_fsim);
+		SimulationState.write(m_fsim, os);
+	}
+
+	/**
+	 * Restore the state of the force simulation from a stream written by
+	 * {@link #writeState(OutputStream)}, and move the visible nodes to the
+	 * restored positions. The nodes are matched with the saved state in the
+	 * order they are visited, so the visible nodes and edges must be the
+	 * same as when the state was saved. Run-once layouts continue from the
+	 * restored positions if {@link #setWarmStart(boolean) warm started}.
+	 * 
+	 * @param is
+	 *            the stream to read from
+	 * @throws IOException
+	 *             if the stream can not be read or does not match the
+	 *             visible nodes or the force simulator
+	 */
+	public synchronized void readState(InputStream is) throws IOException {
+		stopWorker();
+		m_fsim.clear();
+		initSimulator(m_fsim);
+		int n = m_fsim.getItemCount();
+		SimulationState.read(m_fsim, is);
+		if (m_fsim.getItemCount() != n) {
+			int saved = m_fsim.getItemCount();
+			m_fsim.clear();
+			throw new IOException("The state holds " + saved
+			        + " nodes, the layout has " + n);
+		}
+		updateNodePositions();
+		m_converged = m_fsim.isConverged();
+		m_lasttime = -1L;
+	}
+
+	// ------------------------------------------------------------------------
+	// Incremental Updates
+
+	/**
+	 * Places the nodes added by a batch of graph changes next to their
+	 * already positioned neighbors, leaving all other nodes untouched. Nodes
+	 * without positioned neighbors are placed at the referrer item, if any,
+	 * or the layout anchor.
+	 * 
+	 * @see prefux.data.stream.GraphDeltaListener#deltaApplied(GraphDeltaSink,
+	 *      GraphDelta)
+	 */
+	public synchronized void deltaApplied(GraphDeltaSink sink,
+	        GraphDelta delta) {
+		if (m_vis == null)
+			return;
+		Graph g = sink.getGraph();
+		Table nodes = g.getNodeTable();
+		int[] added = delta.getAddedNodes();
+		int count = 0;
+		NodeItem[] pending = new NodeItem[added.length];
+		for (int i = 0; i < added.length; ++i) {
+			if (!nodes.isValidRow(added[i]))
+				continue;
+			VisualItem item = m_vis.getVisualItem(m_nodeGroup,
+			        g.getNode(added[i]));
+			if (item instanceof NodeItem && !isPlaced(item))
+				pending[count++] = (NodeItem) item;
+		}
+
+		// new nodes may only be connected to other new nodes, so repeat
+		// until no further node can be placed next to a neighbor
+		boolean progress = true;
+		while (count > 0 && progress) {
+			progress = false;
+			for (int i = 0; i < count;) {
+				if (placeNearNeighbors(pending[i])) {
+					pending[i] = pending[--count];
+					progress = true;
+				} else {
+					++i;
+				}
+			}
+		}
+		Point2D anchor = getLayoutAnchor();
+		for (int i = 0; i < count; ++i) {
+			double x = referrer != null ? referrer.getX() : anchor.getX();
+			double y = referrer != null ? referrer.getY() : anchor.getY();
+			setX(pending[i], referrer, jitter(x));
+			setY(pending[i], referrer, jitter(y));
+			setPlaced(pending[i]);
+		}
+	}
+
+	/**
+	 * Place a node at the centroid of its positioned neighbors.
+	 */
+	private boolean placeNearNeighbors(NodeItem item) {
+		double sx = 0, sy = 0;
+		int n = 0;
+		Iterator<? extends Node> iter = item.neighbors();
+		while (iter.hasNext()) {
+			VisualItem nb = (VisualItem) iter.next();
+			if (!isPlaced(nb))
+				continue;
+			sx += nb.getEndX();
+			sy += nb.getEndY();
+			++n;
+		}
+		if (n == 0)
+			return false;
+		setX(item, referrer, jitter(sx / n));
+		setY(item, referrer, jitter(sy / n));
+		setPlaced(item);
+		return true;
+	}
+
+	/**
+	 * Checks if the position of a node was set by this layout.
+	 */
+	private synchronized boolean isPlaced(VisualItem item) {
+		return item.getTable() == m_placedTable && m_placed.get(item.getRow());
+	}
+
+	/**
+	 * Records that the position of a node was set by this layout.
+	 */
+	private synchronized void setPlaced(VisualItem item) {
+		Table t = item.getTable();
+		if (t != m_placedTable) {
+			if (m_placedTable != null)
+				m_placedTable.removeTableListener(m_placedListener);
+			m_placed.clear();
+			m_placedTable = t;
+			t.addTableListener(m_placedListener);
+		}
+		m_placed.set(item.getRow());
+	}
+
+	private synchronized void clearPlaced(int start, int end) {
+		m_placed.clear(start, end + 1);
+	}
+
+	private double jitter(double v) {
+		// avoid coincident nodes, which the simulation can't separate
+		return v + (m_random.nextDouble() - 0.5) * 2 * SEED_RADIUS;
+	}
+
 	/**
 	 * Get the mass value associated with the given node. Subclasses should
 	 * override this method to perform custom mass assignment.
@@ -30,8 +30,11 @@
  */
 package prefux.action.layout.graph;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.action.layout.Layout;
@@ -41,6 +44,7 @@ import prefux.data.Node;
 import prefux.data.Schema;
 import prefux.data.tuple.TupleSet;
 import prefux.util.PrefuseLib;
+import prefux.util.force.QuadTree;
 import prefux.visual.EdgeItem;
 import prefux.visual.NodeItem;
 import prefux.visual.VisualItem;
@@ -48,10 +52,17 @@ import prefux.visual.VisualItem;
 
 /**
  * <p>Layout instance implementing the Fruchterman-Reingold algorithm for
- * force-directed placement of graph nodes. The computational complexity of
- * this algorithm is quadratic [O(n^2)] in the number of nodes, so should
- * only be applied for relatively small graphs, particularly in interactive
- * situations.</p>
+ * force-directed placement of graph nodes.</p>
+ * 
+ * <p>Computing the repulsion between all pairs of nodes is quadratic
+ * [O(n^2)] in the number of nodes. Larger graphs instead approximate the
+ * repulsion of distant groups of nodes by their center, using the
+ * Barnes-Hut algorithm on a {@link prefux.util.force.QuadTree} rebuilt in
+ * each iteration, which takes O(n log n) time. Graphs of up to a few hundred nodes always use the
+ * exact repulsion, as before. The node state is kept in
+ * primitive arrays while the layout runs, and the displacement of all
+ * nodes is computed in parallel, with identical results to a sequential
+ * run.</p>
  * 
  * <p>This implementation was ported from the implementation in the
  * <a href="http://jung.sourceforge.net/">JUNG</a> framework.</p>
@@ -61,9 +72,14 @@ import prefux.visual.VisualItem;
  */
 public class FruchtermanReingoldLayout extends Layout {
 
+    /** The default Barnes-Hut approximation threshold */
+    public static final double DEFAULT_THETA = 0.9;
+    
     private double forceConstant;
     private double temp;
     private int maxIter = 700;
+    private double theta = DEFAULT_THETA;
+    private boolean parallel = true;
     
     protected String m_nodeGroup;
     protected String m_edgeGroup;
@@ -71,6 +87,23 @@ public class FruchtermanReingoldLayout extends Layout {
     
     private static final double EPSILON = 0.000001D;
     private static final double ALPHA = 0.1;
+    /** Graphs up to this size always use the exact repulsion */
+    private static final int EXACT_NODE_COUNT = 500;
+    /** Graphs below this size are not worth splitting across threads */
+    private static final int PARALLEL_NODE_COUNT = 1000;
+    
+    // node state of the running layout, indexed by node
+    private int count;
+    private double[] x, y, nx, ny;
+    private boolean[] fixed;
+    // the incident edges of each node, as offsets into the neighbor array
+    private int[] offsets, neighbors;
+    // the quadtree of free nodes, or null for the exact repulsion, with
+    // the positions and masses of the free nodes it is built from
+    private QuadTree tree;
+    private int nfree;
+    private int[] point, node;  // tree point by node and node by point
+    private double[] treeX, treeY, treeMass;
     
     /**
      * Create a new FruchtermanReingoldLayout.
@@ -108,71 +141,273 @@ public class FruchtermanReingoldLayout extends Layout {
         this.maxIter = maxIter;
     }
     
+    /**
+     * Get the Barnes-Hut approximation threshold used for larger graphs.
+     * @return the approximation threshold, or zero if the repulsion is
+     * computed between all pairs of nodes
+     */
+    public double getTheta() {
+        return theta;
+    }
+    
+    /**
+     * Set the Barnes-Hut approximation threshold used for larger graphs.
+     * A group of nodes repels a node as a whole if the size of its quadtree
+     * cell is less than theta times the distance to the group's center.
+     * Smaller values approach the exact layout at a higher cost.
+     * @param theta the approximation threshold, or zero to compute the
+     * repulsion between all pairs of nodes, regardless of the graph size
+     */
+    public void setTheta(double theta) {
+        if ( theta < 0 || Double.isNaN(theta) )
+            throw new IllegalArgumentException(
+                "Theta must be a non-negative number!");
+        this.theta = theta;
+    }
+    
+    /**
+     * Indicates if node displacements are computed in parallel.
+     * @return true if the computation is parallel, false if sequential
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+    
+    /**
+     * Set if node displacements are computed in parallel, using the common
+     * fork/join pool. Parallel computation is enabled by default, and does
+     * not change the layout.
+     * @param parallel true for parallel computation, false for sequential
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+    
     /**
      * @see prefux.action.Action#run(double)
      */
     public void run(double frac) {
         Graph g = (Graph)m_vis.getGroup(m_group);
         Rectangle2D bounds = super.getLayoutBounds();
-        init(g, bounds);
+        NodeItem[] nodes = init(g, bounds);
+        if ( count == 0 ) return;
 
         for (int curIter=0; curIter < maxIter; curIter++ ) {
-
-            // Calculate repulsion
-            for (Iterator<? extends Node> iter = g.nodes(); iter.hasNext();) {
-                NodeItem n = (NodeItem)iter.next();
-                if (n.isFixed()) continue;
-                calcRepulsion(g, n);
-            }
-
-            // Calculate attraction
-            for (Iterator<? extends Edge> iter = g.edges(); iter.hasNext();) {
-                EdgeItem e = (EdgeItem) iter.next();
-                calcAttraction(e);
-            }
-
-            for (Iterator<? extends Node> iter = g.nodes(); iter.hasNext();) {
-                NodeItem n = (NodeItem)iter.next();
-                if (n.isFixed()) continue;
-                calcPositions(n,bounds);
-            }
-
+            step(curIter, bounds);
             cool(curIter);
         }
         
-        finish(g);
+        finish(nodes);
     }
     
-    private void init(Graph g, Rectangle2D b) {
-        initSchema(g.getNodes());
+    private NodeItem[] init(Graph g, Rectangle2D b) {
+        // index the nodes by row
+        NodeItem[] nodes = new NodeItem[g.getNodeCount()];
+        int n = 0, maxRow = -1;
+        for (Iterator<? extends Node> iter = g.nodes(); iter.hasNext();) {
+            NodeItem item = (NodeItem)iter.next();
+            if ( n == nodes.length )
+                nodes = Arrays.copyOf(nodes, 2*n+1);
+            nodes[n++] = item;
+            maxRow = Math.max(maxRow, item.getRow());
+        }
+        count = n;
+        if ( n == 0 ) return nodes;
+        int[] index = new int[maxRow+1];
+        Arrays.fill(index, -1);
+        for ( int i=0; i<n; ++i )
+            index[nodes[i].getRow()] = i;
         
         temp = b.getWidth() / 10;
-        forceConstant = 0.75 * 
-            Math.sqrt(b.getHeight()*b.getWidth()/g.getNodeCount());
+        forceConstant = 0.75 * Math.sqrt(b.getHeight()*b.getWidth()/n);
         
-        // initialize node positions
-        Iterator<? extends Node> nodeIter = g.nodes();
+        // initialize node positions, fixed nodes stay where they are
+        x = new double[n]; y = new double[n];
+        nx = new double[n]; ny = new double[n];
+        fixed = new boolean[n];
         Random rand = new Random(42); // get a deterministic layout result
         double scaleW = ALPHA*b.getWidth()/2;
         double scaleH = ALPHA*b.getHeight()/2;
-        while ( nodeIter.hasNext() ) {
-            NodeItem n = (NodeItem)nodeIter.next();
-            Params np = getParams(n);
-            np.loc[0] = b.getMinX()+b.getWidth()/2.0 + rand.nextDouble()*scaleW;
-            np.loc[1] = b.getMinY()+b.getHeight()/2.0 + rand.nextDouble()*scaleH;
+        for ( int i=0; i<n; ++i ) {
+            x[i] = b.getMinX()+b.getWidth()/2.0 + rand.nextDouble()*scaleW;
+            y[i] = b.getMinY()+b.getHeight()/2.0 + rand.nextDouble()*scaleH;
+            if ( nodes[i].isFixed() ) {
+                fixed[i] = true;
+                x[i] = nodes[i].getX();
+                y[i] = nodes[i].getY();
+            }
+        }
+        
+        // collect the incident edges of each node, in edge order, so that
+        // the attraction is summed in the same order as edge by edge
+        int[] src = new int[16], trg = new int[16];
+        int m = 0;
+        offsets = new int[n+1];
+        for (Iterator<? extends Edge> iter = g.edges(); iter.hasNext();) {
+            EdgeItem e = (EdgeItem)iter.next();
+            int s = e.getSourceItem().getRow();
+            int t = e.getTargetItem().getRow();
+            if ( s > maxRow || t > maxRow || index[s] < 0 || index[t] < 0 )
+                continue;
+            if ( m == src.length ) {
+                src = Arrays.copyOf(src, 2*m);
+                trg = Arrays.copyOf(trg, 2*m);
+            }
+            src[m] = index[s];
+            trg[m] = index[t];
+            ++offsets[src[m]+1];
+            ++offsets[trg[m]+1];
+            ++m;
         }
+        for ( int i=0; i<n; ++i )
+            offsets[i+1] += offsets[i];
+        neighbors = new int[2*m];
+        int[] next = Arrays.copyOf(offsets, n);
+        for ( int e=0; e<m; ++e ) {
+            neighbors[next[src[e]]++] = trg[e];
+            neighbors[next[trg[e]]++] = src[e];
+        }
+        
+        tree = null;
+        if ( theta > 0 && n > EXACT_NODE_COUNT ) {
+            tree = new QuadTree();
+            point = new int[n];
+            node = new int[n];
+            nfree = 0;
+            for ( int i=0; i<n; ++i ) {
+                point[i] = ( fixed[i] ? -1 : nfree );
+                if ( !fixed[i] ) node[nfree++] = i;
+            }
+            treeX = new double[nfree];
+            treeY = new double[nfree];
+            treeMass = new double[nfree];
+            Arrays.fill(treeMass, 1.0);
+        }
+        return nodes;
+    }
+    
+    private void finish(NodeItem[] nodes) {
+        for ( int i=0; i<count; ++i ) {
+            if ( fixed[i] ) continue;
+            setX(nodes[i], null, x[i]);
+            setY(nodes[i], null, y[i]);
+        }
+        // release the layout state
+        x = y = nx = ny = null;
+        fixed = null;
+        offsets = neighbors = null;
+        tree = null;
+        point = node = null;
+        treeX = treeY = treeMass = null;
+    }
+    
+    /**
+     * Run one iteration, moving all free nodes according to the forces at
+     * their current positions.
+     */
+    private void step(final int iter, final Rectangle2D b) {
+        boolean par = ( parallel && count >= PARALLEL_NODE_COUNT );
+        if ( tree != null )
+            buildTree(par ? ForkJoinPool.commonPool() : null);
+        IntStream s = IntStream.range(0, count);
+        if ( par )
+            s = s.parallel();
+        s.forEach(i -> move(i, iter, b));
+        double[] t = x; x = nx; nx = t;
+        t = y; y = ny; ny = t;
     }
     
-    private void finish(Graph g) {
-        Iterator<? extends Node> nodeIter = g.nodes();
-        while ( nodeIter.hasNext() ) {
-            NodeItem n = (NodeItem)nodeIter.next();
-            Params np = getParams(n);
-            setX(n, null, np.loc[0]);
-            setY(n, null, np.loc[1]);
+    /**
+     * Compute the new position of a node, writing it to the next position
+     * arrays. Only reads the current positions, so all nodes can be moved
+     * concurrently.
+     */
+    private void move(int i, int iter, Rectangle2D b) {
+        if ( fixed[i] ) {
+            nx[i] = x[i];
+            ny[i] = y[i];
+            return;
         }
+        double px = x[i], py = y[i];
+        double dispX = 0.0, dispY = 0.0;
+        double k2 = forceConstant*forceConstant;
+        
+        // repulsion from the other free nodes
+        if ( tree != null ) {
+            // the next position slots are free until the node is moved
+            nx[i] = ny[i] = 0.0;
+            if ( tree.getNodeCount() > 0 )
+                repulsion(0, i, tree.getRank(point[i]), px, py,
+                          theta*theta, k2);
+            dispX = nx[i];
+            dispY = ny[i];
+        } else {
+            for ( int j=0; j<count; ++j ) {
+                if ( j == i || fixed[j] ) continue;
+                double xDelta = px - x[j];
+                double yDelta = py - y[j];
+                double deltaLength = Math.max(EPSILON,
+                        Math.sqrt(xDelta*xDelta + yDelta*yDelta));
+                double force = k2 / deltaLength;
+                dispX += (xDelta/deltaLength)*force;
+                dispY += (yDelta/deltaLength)*force;
+            }
+        }
+        
+        // attraction along the incident edges
+        for ( int k=offsets[i]; k<offsets[i+1]; ++k ) {
+            int j = neighbors[k];
+            double xDelta = px - x[j];
+            double yDelta = py - y[j];
+            double deltaLength = Math.max(EPSILON,
+                    Math.sqrt(xDelta*xDelta + yDelta*yDelta));
+            double force = (deltaLength*deltaLength) / forceConstant;
+            dispX -= (xDelta/deltaLength) * force;
+            dispY -= (yDelta/deltaLength) * force;
+        }
+        
+        // move along the displacement, limited by the temperature
+        double deltaLength = Math.max(EPSILON,
+                Math.sqrt(dispX*dispX + dispY*dispY));
+        px += dispX/deltaLength * Math.min(deltaLength, temp);
+        py += dispY/deltaLength * Math.min(deltaLength, temp);
+
+        // don't let nodes leave the display
+        double borderWidth = b.getWidth() / 50.0;
+        if (px < b.getMinX() + borderWidth) {
+            px = b.getMinX() + borderWidth + jitter(iter,i,0) * borderWidth*2.0;
+        } else if (px > (b.getMaxX() - borderWidth)) {
+            px = b.getMaxX() - borderWidth - jitter(iter,i,0) * borderWidth*2.0;
+        }
+        if (py < b.getMinY() + borderWidth) {
+            py = b.getMinY() + borderWidth + jitter(iter,i,1) * borderWidth*2.0;
+        } else if (py > (b.getMaxY() - borderWidth)) {
+            py = b.getMaxY() - borderWidth - jitter(iter,i,1) * borderWidth*2.0;
+        }
+        nx[i] = px;
+        ny[i] = py;
     }
     
+    /**
+     * Get a pseudo-random number in [0,1) for a node and iteration, so
+     * that the layout does not depend on the order nodes are moved in.
+     */
+    private static double jitter(int iter, int i, int axis) {
+        long h = (((long)iter << 32) | i) * 2 + axis;
+        h += 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+    
+    /**
+     * Move a node along its displacement stored in the {@link #PARAMS}
+     * field, keeping it within the given bounds.
+     * @deprecated the layout no longer stores its state in the
+     * {@link #PARAMS} field, use {@link #run(double)}
+     */
+    @Deprecated
     public void calcPositions(NodeItem n, Rectangle2D b) {
         Params np = getParams(n);
         double deltaLength = Math.max(EPSILON,
@@ -209,6 +444,13 @@ public class FruchtermanReingoldLayout extends Layout {
         np.loc[1] = y;
     }
 
+    /**
+     * Add the attraction along an edge to the displacements stored in
+     * the {@link #PARAMS} field of its nodes.
+     * @deprecated the layout no longer stores its state in the
+     * {@link #PARAMS} field, use {@link #run(double)}
+     */
+    @Deprecated
     public void calcAttraction(EdgeItem e) {
         NodeItem n1 = e.getSourceItem();
         Params n1p = getParams(n1);
@@ -233,6 +475,13 @@ public class FruchtermanReingoldLayout extends Layout {
         n2p.disp[0] += xDisp; n2p.disp[1] += yDisp;
     }
 
+    /**
+     * Set the displacement stored in the {@link #PARAMS} field of a node
+     * to the repulsion from all other free nodes of the graph.
+     * @deprecated the layout no longer stores its state in the
+     * {@link #PARAMS} field, use {@link #run(double)}
+     */
+    @Deprecated
     public void calcRepulsion(Graph g, NodeItem n1) {
         Params np = getParams(n1);
         np.disp[0] = 0.0; np.disp[1] = 0.0;
@@ -264,11 +513,71 @@ public class FruchtermanReingoldLayout extends Layout {
         temp *= (1.0 - curIter / (double) maxIter);
     }
 
+    // ------------------------------------------------------------------------
+    // Repulsion Tree
+    
+    /**
+     * Build the quadtree over the current positions of the free nodes.
+     */
+    private void buildTree(ForkJoinPool pool) {
+        for ( int p=0; p<nfree; ++p ) {
+            treeX[p] = x[node[p]];
+            treeY[p] = y[node[p]];
+        }
+        tree.build(treeX, treeY, treeMass, nfree, pool);
+    }
+    
+    /**
+     * Add the repulsion of the free nodes in a quadtree cell to the
+     * displacement of a free node, stored at the node's index of the next
+     * position arrays.
+     * @param k the quadtree cell
+     * @param i the node index
+     * @param r the sorted position of the node in the quadtree
+     */
+    private void repulsion(int k, int i, int r, double px, double py,
+                           double theta2, double k2)
+    {
+        QuadTree t = tree;
+        double xDelta = px - t.getCenterX(k);
+        double yDelta = py - t.getCenterY(k);
+        double d2 = xDelta*xDelta + yDelta*yDelta;
+        double size = t.getSize(k);
+        boolean inside = ( r >= t.getFirst(k) && r < t.getLast(k) );
+        if ( !inside && size*size < theta2*d2 ) {
+            // the cell is far enough to repel as a whole, its mass being
+            // the number of nodes it holds
+            double deltaLength = Math.max(EPSILON, Math.sqrt(d2));
+            double force = t.getMass(k) * k2 / deltaLength;
+            nx[i] += (xDelta/deltaLength)*force;
+            ny[i] += (yDelta/deltaLength)*force;
+        } else if ( t.isLeaf(k) ) {
+            for ( int p=t.getFirst(k); p<t.getLast(k); ++p ) {
+                if ( p == r ) continue;
+                int j = node[t.getPoint(p)];
+                xDelta = px - x[j];
+                yDelta = py - y[j];
+                double deltaLength = Math.max(EPSILON,
+                        Math.sqrt(xDelta*xDelta + yDelta*yDelta));
+                double force = k2 / deltaLength;
+                nx[i] += (xDelta/deltaLength)*force;
+                ny[i] += (yDelta/deltaLength)*force;
+            }
+        } else {
+            for ( int d=0; d<4; ++d ) {
+                int c = t.getChild(k, d);
+                if ( c != 0 )
+                    repulsion(c, i, r, px, py, theta2, k2);
+            }
+        }
+    }
+    
     // ------------------------------------------------------------------------
     // Params Schema
     
     /**
-     * The data field in which the parameters used by this layout are stored.
+     * The data field in which the parameters used by the deprecated per-node
+     * methods of this layout are stored.
      */
     public static final String PARAMS = "_fruchtermanReingoldParams";
     /**
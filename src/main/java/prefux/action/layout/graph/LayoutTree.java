@@ -0,0 +1,198 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Tree;
+import prefux.visual.NodeItem;
+
+/**
+ * <p>Snapshot of the visible part of a spanning tree, used by the tree
+ * layouts. The root and the children of all expanded nodes are visible.
+ * The links between visible nodes are stored in primitive arrays indexed
+ * by node row, so that layouts can walk trees of any depth iteratively,
+ * without allocating objects for the nodes.</p>
+ *
+ * <p>The snapshot can be updated when a single node is expanded or
+ * collapsed, touching only the subtree below that node.</p>
+ */
+final class LayoutTree {
+
+    private Graph m_graph;
+    private Tree  m_tree;
+    
+    /** The row of the root node, or -1 if the snapshot is empty */
+    int root = -1;
+    /** The number of visible nodes when the snapshot was built */
+    int count;
+    
+    // the following arrays are indexed by node row, and only hold valid
+    // values for visible nodes. A value of -1 denotes a missing node.
+    NodeItem[] items   = new NodeItem[0];
+    int[]      parent  = new int[0];
+    int[]      first   = new int[0];  // first visible child
+    int[]      last    = new int[0];  // last visible child
+    int[]      next    = new int[0];  // next sibling
+    int[]      prev    = new int[0];  // previous sibling
+    int[]      number  = new int[0];  // index among the siblings
+    int[]      depth   = new int[0];
+    boolean[]  visible = new boolean[0];
+    
+    /** Visible node rows in pre-order, as filled in by {@link #collect} */
+    int[] order = new int[0];
+    
+    private int[] m_stack = new int[0];
+    
+    /**
+     * Capture the visible part of a spanning tree.
+     * @param g the graph the tree spans
+     * @param t the spanning tree
+     * @param r the row of the root node
+     */
+    void build(Graph g, Tree t, int r) {
+        m_graph = g;
+        m_tree = t;
+        ensureCapacity(g.getNodeTable().getMaximumRow()+1);
+        Arrays.fill(visible, false);
+        root = r;
+        parent[r] = next[r] = prev[r] = -1;
+        number[r] = depth[r] = 0;
+        visible[r] = true;
+        items[r] = (NodeItem)g.getNode(r);
+        attach(r);
+        count = collect(r);
+    }
+    
+    /**
+     * Get the graph the snapshot was built from.
+     * @return the graph
+     */
+    Graph getGraph() {
+        return m_graph;
+    }
+    
+    /**
+     * Get the spanning tree the snapshot was built from.
+     * @return the spanning tree
+     */
+    Tree getTree() {
+        return m_tree;
+    }
+    
+    /**
+     * Indicates if a visible node currently shows its children, i.e. if
+     * it is expanded and has any children.
+     * @param row the node row
+     * @return true if the children of the node should be visible
+     */
+    boolean isOpen(int row) {
+        return items[row].isExpanded() && m_tree.getChildCount(row) > 0;
+    }
+    
+    /**
+     * Make the children of a visible node visible, and recursively those
+     * of all its expanded descendants.
+     * @param row the node row
+     */
+    void attach(int row) {
+        int sp = 0;
+        m_stack[sp++] = row;
+        while ( sp > 0 ) {
+            int n = m_stack[--sp];
+            first[n] = last[n] = -1;
+            if ( !isOpen(n) ) continue;
+            int cc = m_tree.getChildCount(n), l = -1;
+            for ( int i=0; i<cc; ++i ) {
+                int c = m_tree.getChildRow(n, i);
+                items[c] = (NodeItem)m_graph.getNode(c);
+                visible[c] = true;
+                parent[c] = n;
+                number[c] = i;
+                depth[c] = depth[n] + 1;
+                prev[c] = l;
+                next[c] = -1;
+                if ( l < 0 ) first[n] = c; else next[l] = c;
+                l = c;
+                m_stack[sp++] = c;
+            }
+            last[n] = l;
+        }
+    }
+    
+    /**
+     * Hide all descendants of a visible node.
+     * @param row the node row
+     */
+    void detach(int row) {
+        int k = collect(row);
+        for ( int i=1; i<k; ++i )
+            visible[order[i]] = false;
+        first[row] = last[row] = -1;
+    }
+    
+    /**
+     * Collect the visible subtree below a node, including the node, in
+     * pre-order into the {@link #order} array.
+     * @param row the node row
+     * @return the number of collected nodes
+     */
+    int collect(int row) {
+        int k = 0, sp = 0;
+        m_stack[sp++] = row;
+        while ( sp > 0 ) {
+            int n = m_stack[--sp];
+            order[k++] = n;
+            // push the children in reverse, so the first is visited first
+            for ( int c=last[n]; c>=0; c=prev[c] )
+                m_stack[sp++] = c;
+        }
+        return k;
+    }
+    
+    private void ensureCapacity(int rows) {
+        if ( items.length >= rows ) return;
+        int len = Math.max(rows, 3*items.length/2);
+        items   = Arrays.copyOf(items, len);
+        parent  = Arrays.copyOf(parent, len);
+        first   = Arrays.copyOf(first, len);
+        last    = Arrays.copyOf(last, len);
+        next    = Arrays.copyOf(next, len);
+        prev    = Arrays.copyOf(prev, len);
+        number  = Arrays.copyOf(number, len);
+        depth   = Arrays.copyOf(depth, len);
+        visible = Arrays.copyOf(visible, len);
+        order   = new int[len];
+        m_stack = new int[len];
+    }
+    
+} // end of class LayoutTree
@@ -0,0 +1,242 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import prefux.Display;
+import prefux.FxDisplay;
+import prefux.Visualization;
+import prefux.activity.Activity;
+import prefux.data.tuple.TupleSet;
+import prefux.visual.NodeItem;
+
+/**
+ * <p>Pixel-threshold culling for tree layouts. A layout asks whether the
+ * footprint of a subtree, in layout units, would be smaller than the
+ * threshold on screen at the current zoom factor of the first display.
+ * It then does not lay out the descendants of such a node, but marks the
+ * node as {@link TreeLayout#AGGREGATED aggregated}, and hides the
+ * descendants that were shown. Nodes hidden this way are shown again when
+ * a later run lays them out.</p>
+ *
+ * <p>While culling, the range of zoom factors within which the culled
+ * nodes stay the same is tracked, and the layout is run again when the
+ * zoom factor of an {@link FxDisplay} leaves this range. The work per run
+ * thus depends on the screen resolution rather than the size of the
+ * tree.</p>
+ */
+final class LevelOfDetail implements InvalidationListener {
+
+    private final Activity m_layout;
+    private double m_threshold = 0;
+
+    private double m_zoom = 1;  // the zoom factor of the current run
+    private double m_low  = 0;  // the zoom factor range of the last run
+    private double m_high = Double.POSITIVE_INFINITY;
+    private FxDisplay m_display;
+
+    // indexed by node row
+    private boolean[] m_aggregated = new boolean[0];
+    private boolean[] m_hidden = new boolean[0];
+    private int[]     m_stack = new int[0];
+
+    /**
+     * Create culling support for a layout.
+     * @param layout the layout to run when the zoom factor changes
+     */
+    LevelOfDetail(Activity layout) {
+        m_layout = layout;
+    }
+
+    /**
+     * Get the culling threshold.
+     * @return the smallest size in pixels of laid out subtrees, or zero
+     * if culling is disabled
+     */
+    double getThreshold() {
+        return m_threshold;
+    }
+
+    /**
+     * Set the culling threshold.
+     * @param pixels the smallest size in pixels of laid out subtrees, or
+     * zero to disable culling
+     */
+    void setThreshold(double pixels) {
+        if ( pixels < 0 || Double.isNaN(pixels) )
+            throw new IllegalArgumentException(
+                "Threshold must be a non-negative number!");
+        m_threshold = pixels;
+    }
+
+    /**
+     * Indicates if culling is enabled.
+     * @return true if subtrees below the threshold are culled
+     */
+    boolean isEnabled() {
+        return m_threshold > 0;
+    }
+
+    /**
+     * Start a layout run, reading the current zoom factor.
+     * @param vis the visualization
+     * @param nodes the node tuples, which get the aggregated field
+     * @param rows the number of node rows
+     */
+    void begin(Visualization vis, TupleSet nodes, int rows) {
+        m_low = 0;
+        m_high = Double.POSITIVE_INFINITY;
+        m_zoom = 1;
+        Display d = vis.getDisplayCount() > 0 ? vis.getDisplay(0) : null;
+        if ( d != null && d.getScale() > 0 )
+            m_zoom = d.getScale();
+        watch(d instanceof FxDisplay ? (FxDisplay)d : null);
+        if ( !isEnabled() ) return;
+
+        nodes.addColumns(TreeLayout.AGGREGATED_SCHEMA);
+        if ( m_hidden.length < rows ) {
+            m_aggregated = Arrays.copyOf(m_aggregated, rows);
+            m_hidden = Arrays.copyOf(m_hidden, rows);
+            m_stack = new int[rows];
+        }
+    }
+
+    /**
+     * Indicates if a subtree of the given size is below the threshold.
+     * @param size the size of the subtree in layout units
+     * @return true if the subtree should be culled
+     */
+    boolean cull(double size) {
+        return size*m_zoom < m_threshold;
+    }
+
+    /**
+     * Record the sizes at which culling happened in the current run.
+     * @param shown the smallest size of a subtree that was laid out
+     * @param culled the largest size of a subtree that was culled
+     */
+    void range(double shown, double culled) {
+        if ( !isEnabled() ) return;
+        if ( shown < Double.POSITIVE_INFINITY )
+            m_low = Math.max(m_low, m_threshold/shown);
+        if ( culled > 0 )
+            m_high = Math.min(m_high, m_threshold/culled);
+    }
+
+    /**
+     * Mark a node as aggregated, and hide its shown descendants.
+     * @param n the node
+     */
+    void aggregate(NodeItem n) {
+        int row = n.getRow();
+        if ( m_aggregated[row] ) return;
+        m_aggregated[row] = true;
+        n.setBoolean(TreeLayout.AGGREGATED, true);
+
+        int sp = 0;
+        m_stack[sp++] = row;
+        while ( sp > 0 ) {
+            NodeItem p = (NodeItem)n.getGraph().getNode(m_stack[--sp]);
+            for ( int i=0, cc=p.getChildCount(); i<cc; ++i ) {
+                NodeItem c = (NodeItem)p.getChild(i);
+                if ( !c.isVisible() ) continue;
+                c.setVisible(false);
+                m_hidden[c.getRow()] = true;
+                m_stack[sp++] = c.getRow();
+            }
+        }
+    }
+
+    /**
+     * Clear the aggregated mark of a node whose children are laid out.
+     * @param n the node
+     */
+    void expand(NodeItem n) {
+        int row = n.getRow();
+        if ( row < m_aggregated.length && m_aggregated[row] ) {
+            m_aggregated[row] = false;
+            n.setBoolean(TreeLayout.AGGREGATED, false);
+        }
+    }
+
+    /**
+     * Show a node that is laid out, if it was hidden by culling.
+     * @param n the node
+     */
+    void show(NodeItem n) {
+        int row = n.getRow();
+        if ( row < m_hidden.length && m_hidden[row] ) {
+            m_hidden[row] = false;
+            n.setVisible(true);
+        }
+    }
+
+    /**
+     * Indicates if a node was hidden by culling.
+     * @param n the node
+     * @return true if the node is hidden because an ancestor is culled
+     */
+    boolean isHidden(NodeItem n) {
+        int row = n.getRow();
+        return row < m_hidden.length && m_hidden[row];
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void watch(FxDisplay d) {
+        if ( m_display == d ) return;
+        if ( m_display != null )
+            m_display.zoomFactorProperty().removeListener(this);
+        m_display = d;
+        if ( d != null )
+            d.zoomFactorProperty().addListener(this);
+    }
+
+    /**
+     * Run the layout again when the zoom factor leaves the range within
+     * which the culled nodes stay the same.
+     * @see javafx.beans.InvalidationListener#invalidated(javafx.beans.Observable)
+     */
+    public void invalidated(Observable o) {
+        if ( !isEnabled() || m_display == null ) return;
+        double z = m_display.zoomFactorProperty().get();
+        if ( z < m_low || z >= m_high ) {
+            // run once per crossing
+            m_low = 0;
+            m_high = Double.POSITIVE_INFINITY;
+            m_layout.run();
+        }
+    }
+
+} // end of class LevelOfDetail
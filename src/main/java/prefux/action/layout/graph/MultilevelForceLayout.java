@@ -0,0 +1,223 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.action.layout.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import prefux.action.layout.Layout;
+import prefux.data.Graph;
+import prefux.data.util.Point2D;
+import prefux.util.PrefuseLib;
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.MultilevelSimulation;
+import prefux.util.force.NBodyForce;
+import prefux.util.force.SpringForce;
+import prefux.visual.EdgeItem;
+import prefux.visual.VisualItem;
+
+/**
+ * <p>Run-once force-directed layout for large graphs, using the
+ * coarsen-layout-refine scheme of a
+ * {@link prefux.util.force.MultilevelSimulation}. The graph is repeatedly
+ * coarsened by collapsing matched neighbors into clusters, the coarsest
+ * graph is laid out, and each finer level then starts from the positions
+ * of its clusters and is refined with a short force simulation. A large
+ * graph is thus untangled in a small number of simulation steps per
+ * level, instead of the thousands of steps a single level simulation
+ * started from arbitrary positions can need.</p>
+ *
+ * <p>Every level is simulated with the same
+ * {@link prefux.util.force.ForceSimulator}, by default an
+ * {@link prefux.util.force.ArrayForceSimulator} with n-body, spring and
+ * drag forces. For graphs with hundreds of thousands of nodes, supply a
+ * simulator using a {@link prefux.util.force.ParticleMeshForce} for the
+ * repulsion between nodes. Fixed nodes keep their positions on every
+ * level, and the clusters containing them are held at their centroid on
+ * the coarser levels, so the other nodes are laid out around them. The
+ * layout is centered on the layout anchor.</p>
+ */
+public class MultilevelForceLayout extends Layout {
+
+    private MultilevelSimulation m_sim;
+
+    protected String m_nodeGroup;
+    protected String m_edgeGroup;
+
+    /**
+     * Create a new MultilevelForceLayout using the default forces.
+     * @param graph the data group to layout. Must resolve to a Graph
+     * instance.
+     */
+    public MultilevelForceLayout(String graph) {
+        this(graph, new ArrayForceSimulator());
+        ForceSimulator fsim = m_sim.getForceSimulator();
+        fsim.addForce(new NBodyForce());
+        fsim.addForce(new SpringForce());
+        fsim.addForce(new DragForce());
+    }
+
+    /**
+     * Create a new MultilevelForceLayout.
+     * @param graph the data group to layout. Must resolve to a Graph
+     * instance.
+     * @param fsim the force simulator used to lay out and refine each
+     * level
+     */
+    public MultilevelForceLayout(String graph, ForceSimulator fsim) {
+        super(graph);
+        m_nodeGroup = PrefuseLib.getGroupName(graph, Graph.NODES);
+        m_edgeGroup = PrefuseLib.getGroupName(graph, Graph.EDGES);
+        m_sim = new MultilevelSimulation(fsim);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the multilevel simulation computing this layout, which holds
+     * the number of steps per level and the coarsening settings.
+     * @return the multilevel simulation
+     */
+    public MultilevelSimulation getSimulation() {
+        return m_sim;
+    }
+
+    /**
+     * Get the force simulator used to lay out and refine each level.
+     * @return the force simulator
+     */
+    public ForceSimulator getForceSimulator() {
+        return m_sim.getForceSimulator();
+    }
+
+    /**
+     * Set the force simulator used to lay out and refine each level.
+     * @param fsim the force simulator
+     */
+    public void setForceSimulator(ForceSimulator fsim) {
+        m_sim.setForceSimulator(fsim);
+    }
+
+    /**
+     * Get the number of simulation steps run on each level.
+     * @return the number of steps per level
+     */
+    public int getIterations() {
+        return m_sim.getIterations();
+    }
+
+    /**
+     * Set the number of simulation steps run on each level.
+     * @param iter the number of steps per level
+     */
+    public void setIterations(int iter) {
+        m_sim.setIterations(iter);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see prefux.action.Action#run(double)
+     */
+    public void run(double frac) {
+        // index the visible nodes by row
+        ArrayList<VisualItem> nodes = new ArrayList<VisualItem>();
+        int maxRow = -1;
+        Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
+        while ( iter.hasNext() ) {
+            VisualItem item = iter.next();
+            nodes.add(item);
+            maxRow = Math.max(maxRow, item.getRow());
+        }
+        int n = nodes.size();
+        if ( n == 0 ) return;
+        int[] index = new int[maxRow+1];
+        Arrays.fill(index, -1);
+        Point2D anchor = getLayoutAnchor();
+        ForceItem[] items = new ForceItem[n];
+        for ( int i=0; i<n; ++i ) {
+            VisualItem item = nodes.get(i);
+            index[item.getRow()] = i;
+            items[i] = new ForceItem();
+            items[i].mass = getMassValue(item);
+            items[i].fixed = item.isFixed();
+            items[i].location[0] = item.isFixed() ? item.getX() : anchor.getX();
+            items[i].location[1] = item.isFixed() ? item.getY() : anchor.getY();
+        }
+
+        // collect the edges between visible nodes
+        int[] src = new int[16], trg = new int[16];
+        int ne = 0;
+        if ( m_edgeGroup != null ) {
+            iter = m_vis.visibleItems(m_edgeGroup);
+            while ( iter.hasNext() ) {
+                EdgeItem e = (EdgeItem)iter.next();
+                int s = e.getSourceItem().getRow();
+                int t = e.getTargetItem().getRow();
+                if ( s > maxRow || t > maxRow
+                     || index[s] < 0 || index[t] < 0 )
+                    continue;
+                if ( ne == src.length ) {
+                    src = Arrays.copyOf(src, 2*ne);
+                    trg = Arrays.copyOf(trg, 2*ne);
+                }
+                src[ne] = index[s];
+                trg[ne] = index[t];
+                ++ne;
+            }
+        }
+
+        m_sim.run(items, n, src, trg, ne);
+
+        for ( int i=0; i<n; ++i ) {
+            VisualItem item = nodes.get(i);
+            if ( item.isFixed() ) continue;
+            setX(item, null, items[i].location[0]);
+            setY(item, null, items[i].location[1]);
+        }
+    }
+
+    /**
+     * Get the mass value associated with the given node. Subclasses should
+     * override this method to perform custom mass assignment.
+     * @param n the node for which to compute the mass value
+     * @return the mass value for the node. By default, all items are given
+     * a mass value of 1.0.
+     */
+    protected double getMassValue(VisualItem n) {
+        return 1.0;
+    }
+
+} // end of class MultilevelForceLayout
@@ -37,10 +37,14 @@ import prefux.Constants;
 import prefux.Display;
 import prefux.data.Graph;
 import prefux.data.Schema;
+import prefux.data.Table;
+import prefux.data.Tree;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
 import prefux.data.tuple.TupleSet;
 import prefux.data.util.Point2D;
-import prefux.util.ArrayLib;
 import prefux.visual.NodeItem;
+import prefux.visual.VisualItem;
 
 /**
  * <p>TreeLayout that computes a tidy layout of a node-link tree
@@ -57,6 +61,15 @@ import prefux.visual.NodeItem;
  * generalizes Reingold and Tilford's method for tidy drawings of trees to
  * support trees with an arbitrary number of children at any given node.</p>
  * 
+ * <p>The layout state is kept in primitive arrays indexed by node row, and
+ * both passes of the algorithm walk the tree iteratively, so trees of any
+ * depth can be laid out. The state is retained between runs: if only
+ * nodes were expanded or collapsed since the previous run, the placement
+ * is recomputed for the children of these nodes and of their ancestors
+ * only, and only the positions of nodes that moved are updated. The result
+ * is the same as laying out the complete tree. Changes to the sizes of
+ * nodes are not tracked; call {@link #invalidate()} after such changes.</p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class NodeLinkTreeLayout extends TreeLayout {
@@ -72,6 +85,71 @@ public class NodeLinkTreeLayout extends TreeLayout {
     
     private double m_ax, m_ay; // for holding anchor co-ordinates
     
+    // the visible tree and the layout state of its nodes, indexed by row
+    private LayoutTree m_tree = new LayoutTree();
+    private double[] m_prelim = new double[0];
+    private double[] m_mod = new double[0];
+    private double[] m_shift = new double[0];
+    private double[] m_change = new double[0];
+    private double[] m_mid = new double[0];   // the center of the children
+    private double[] m_bsize = new double[0]; // the extent along the breadth
+    private double[] m_dsize = new double[0]; // the extent along the depth
+    private int[]    m_ancestor = new int[0];
+    private int[]    m_ancestorStamp = new int[0];
+    private int      m_stamp = 0;
+    // contour threads, each owned by the node whose first walk set it
+    private int[]    m_thread = new int[0];
+    private double[] m_threadMod = new double[0]; // the mod before threading
+    private int[]    m_owned = new int[0];        // the first owned thread
+    private int[]    m_ownedNext = new int[0];
+    
+    // the node count and largest extent of each depth level
+    private int[]    m_levelCount = new int[0];
+    private double[] m_levelMax = new double[0];
+    private int[]    m_levelMaxCount = new int[0];
+    private boolean  m_rescan = false;
+    
+    // incremental layout state
+    private boolean  m_incremental = true;
+    private boolean  m_valid = false;
+    private long     m_modCount;
+    private double   m_lastAx, m_lastAy;
+    private int      m_run = 0;
+    private int[]    m_fresh = new int[0];   // run the node became visible
+    private int[]    m_redo = new int[0];    // run the node was walked
+    private int[]    m_placed = new int[0];  // run the node was placed
+    private int[]    m_redoRows = new int[0];
+    private long[]   m_keys = new long[0];
+    private double[] m_breadthPos = new double[0];
+    private double[] m_depthPos = new double[0];
+    private double[] m_childMod = new double[0];
+    private int[]    m_moved = new int[0];
+    private int[]    m_movedNext = new int[0];
+    private int      m_movedCount = 0;
+    private int[]    m_stack = new int[0];
+    private double[] m_acc = new double[0];
+    
+    // expanded and collapsed nodes, collected from node table events
+    private Table     m_nodes;
+    private int       m_expandedCol = -1;
+    private int[]     m_dirty = new int[0];
+    private boolean[] m_dirtyMark = new boolean[0];
+    private int       m_dirtyCount = 0;
+    private TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( type != EventConstants.UPDATE
+                 || col == EventConstants.ALL_COLUMNS )
+            {
+                m_valid = false;
+            } else if ( col == m_expandedCol && m_valid ) {
+                for ( int r=start; r<=end; ++r )
+                    markDirty(r);
+            }
+        }
+    };
+    
     /**
      * Create a new NodeLinkTreeLayout. A left-to-right orientation is assumed.
      * @param group the data group to layout. Must resolve to a Graph instance.
@@ -122,6 +200,7 @@ public class NodeLinkTreeLayout extends TreeLayout {
                 "Unsupported orientation value: "+orientation);
         }
         m_orientation = orientation;
+        m_valid = false;
     }
     
     /**
@@ -142,6 +221,7 @@ public class NodeLinkTreeLayout extends TreeLayout {
      */
     public void setDepthSpacing(double d) {
         m_dspace = d;
+        m_valid = false;
     }
     
     /**
@@ -158,6 +238,7 @@ public class NodeLinkTreeLayout extends TreeLayout {
      */
     public void setBreadthSpacing(double b) {
         m_bspace = b;
+        m_valid = false;
     }
     
     /**
@@ -174,6 +255,7 @@ public class NodeLinkTreeLayout extends TreeLayout {
      */
     public void setSubtreeSpacing(double s) {
         m_tspace = s;
+        m_valid = false;
     }
     
     /**
@@ -194,6 +276,7 @@ public class NodeLinkTreeLayout extends TreeLayout {
      */
     public void setRootNodeOffset(double o) {
         m_offset = o;
+        m_valid = false;
     }
     
     /**
@@ -206,6 +289,66 @@ public class NodeLinkTreeLayout extends TreeLayout {
     
     // ------------------------------------------------------------------------
     
+    /**
+     * Indicates if the layout is updated incrementally when nodes are
+     * expanded or collapsed.
+     * @return true if incremental layout is enabled
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+    
+    /**
+     * Set if the layout is updated incrementally when nodes are expanded or
+     * collapsed. Incremental layout is enabled by default.
+     * @param b true to enable incremental layout, false to lay out the
+     * complete tree in every run
+     */
+    public void setIncremental(boolean b) {
+        m_incremental = b;
+        m_valid = false;
+    }
+    
+    /**
+     * Make the next run lay out the complete tree. Call this method after
+     * changing the sizes of nodes, which are not tracked by incremental
+     * layout.
+     * @see prefux.action.layout.Layout#invalidate()
+     */
+    public void invalidate() {
+        m_valid = false;
+    }
+    
+    /**
+     * Get a key of the parameters of this layout: the orientation, the
+     * spacing, the layout anchor and the root. As for incremental layout,
+     * the sizes of nodes are not part of the key; clear a
+     * {@link prefux.action.layout.CachedLayout} after changing them.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( getClass() != NodeLinkTreeLayout.class )
+            return super.getParameterKey();
+        Point2D a = getLayoutAnchor();
+        return Arrays.asList(getBaseParameterKey(), m_orientation,
+            m_bspace, m_tspace, m_dspace, a.getX(), a.getY(),
+            getLayoutRoot().getRow());
+    }
+    
+    /**
+     * Clears references to graph tuples and the retained layout state.
+     * The group and visualization are retained.
+     * @see prefux.action.layout.graph.TreeLayout#reset()
+     */
+    public void reset() {
+        super.reset();
+        setNodeTable(null);
+        m_tree = new LayoutTree();
+        m_valid = false;
+    }
+    
+    // ------------------------------------------------------------------------
+    
     /**
      * @see prefux.action.layout.Layout#getLayoutAnchor()
      */
@@ -236,28 +379,9 @@ public class NodeLinkTreeLayout extends TreeLayout {
         return m_tmpa;
     }
     
-    private double spacing(NodeItem l, NodeItem r, boolean siblings) {
-        boolean w = ( m_orientation == Constants.ORIENT_TOP_BOTTOM ||
-                      m_orientation == Constants.ORIENT_BOTTOM_TOP );
+    private double spacing(int l, int r, boolean siblings) {
         return (siblings ? m_bspace : m_tspace) + 0.5 *
-            ( w ? l.getBounds().getWidth() + r.getBounds().getWidth()
-                : l.getBounds().getHeight() + r.getBounds().getHeight() );
-    }
-    
-    private void updateDepths(int depth, NodeItem item) {
-        boolean v = ( m_orientation == Constants.ORIENT_TOP_BOTTOM ||
-                      m_orientation == Constants.ORIENT_BOTTOM_TOP );
-        double d = ( v ? item.getBounds().getHeight() 
-                       : item.getBounds().getWidth() );
-        if ( m_depths.length <= depth )
-            m_depths = ArrayLib.resize(m_depths, 3*depth/2);
-        m_depths[depth] = Math.max(m_depths[depth], d);
-        m_maxDepth = Math.max(m_maxDepth, depth);
-    }
-    
-    private void determineDepths() {
-        for ( int i=1; i<m_maxDepth; ++i )
-            m_depths[i] += m_depths[i-1] + m_dspace;
+            ( m_bsize[l] + m_bsize[r] );
     }
     
     // ------------------------------------------------------------------------
@@ -267,186 +391,424 @@ public class NodeLinkTreeLayout extends TreeLayout {
      */
     public void run(double frac) {
         Graph g = (Graph)m_vis.getGroup(m_group);
-        initSchema(g.getNodes());
-        
-        Arrays.fill(m_depths, 0);
-        m_maxDepth = 0;
         
         Point2D a = getLayoutAnchor();
         m_ax = a.getX();
         m_ay = a.getY();
         
         NodeItem root = getLayoutRoot();
-        Params rp = getParams(root);
-
-	g.getSpanningTree(root);
+        Tree t = g.getSpanningTree(root);
+        
+        if ( !m_incremental || !isCurrent(g, t, root.getRow()) || !update() )
+            layout(g, t, root.getRow());
+        
+        m_lastAx = m_ax;
+        m_lastAy = m_ay;
+        m_modCount = modCount(t);
+        m_valid = m_incremental;
+    }
+    
+    /**
+     * Indicates if the previous layout can be updated incrementally.
+     */
+    private boolean isCurrent(Graph g, Tree t, int root) {
+        return m_valid && m_tree.getGraph() == g && m_tree.getTree() == t
+            && m_tree.root == root && m_modCount == modCount(t)
+            && m_ax == m_lastAx && m_ay == m_lastAy;
+    }
+    
+    private static long modCount(Tree t) {
+        // the spanning tree edges change when the tree is rebuilt. The node
+        // and edge table counts also change on every value update, so
+        // structural changes of the node table are tracked by the listener,
+        // and changes of the edge structure replace the spanning tree.
+        return t.getEdgeTable().getModificationCount();
+    }
+    
+    /**
+     * Lay out the complete tree.
+     */
+    private void layout(Graph g, Tree t, int root) {
+        setNodeTable(g.getNodeTable());
+        LayoutTree lt = m_tree;
+        lt.build(g, t, root);
+        ensureCapacity(lt.items.length);
+        clearDirty();
+        ++m_run;
+        
+        Arrays.fill(m_levelCount, 0);
+        Arrays.fill(m_levelMax, 0);
+        Arrays.fill(m_levelMaxCount, 0);
+        m_rescan = false;
         
-        // do first pass - compute breadth information, collect depth info
-        firstWalk(root, 0, 1);
+        int n = lt.count;
+        int[] order = lt.order;
+        for ( int i=0; i<n; ++i )
+            capture(order[i]);
+        
+        // do first pass - compute breadth information, children first
+        for ( int i=n-1; i>=0; --i ) {
+            if ( lt.first[order[i]] >= 0 )
+                firstWalk(order[i]);
+        }
         
         // sum up the depth info
         determineDepths();
         
         // do second pass - assign layout positions
-        secondWalk(root, null, -rp.prelim, 0);
+        m_movedCount = 0;
+        secondWalk(true);
     }
-
-    private void firstWalk(NodeItem n, int num, int depth) {
-        Params np = getParams(n);
-        np.number = num;
-        updateDepths(depth, n);
+    
+    /**
+     * Update the previous layout after nodes were expanded or collapsed,
+     * recomputing the placement of the children of the changed nodes and
+     * of their ancestors only.
+     * @return false if the complete tree needs to be laid out
+     */
+    private boolean update() {
+        LayoutTree lt = m_tree;
+        ++m_run;
         
-        boolean expanded = n.isExpanded();
-        if ( n.getChildCount() == 0 || !expanded ) // is leaf
-        { 
-            NodeItem l = (NodeItem)n.getPreviousSibling();
-            if ( l == null ) {
-                np.prelim = 0;
+        // apply the changes, from the top of the tree down
+        int nk = 0;
+        for ( int i=0; i<m_dirtyCount; ++i ) {
+            int r = m_dirty[i];
+            if ( lt.visible[r] )
+                m_keys[nk++] = ((long)lt.depth[r] << 32) | r;
+        }
+        clearDirty();
+        Arrays.sort(m_keys, 0, nk);
+        int nr = 0;
+        for ( int i=0; i<nk; ++i ) {
+            // nodes may have been hidden by changes to their ancestors
+            int r = (int)m_keys[i];
+            if ( !lt.visible[r] ) continue;
+            boolean open = lt.isOpen(r), was = ( lt.first[r] >= 0 );
+            if ( open == was ) continue;
+            
+            undoThreads(r);
+            if ( was ) {
+                int n = lt.collect(r);
+                for ( int k=1; k<n; ++k ) {
+                    int c = lt.order[k];
+                    removeFromLevel(lt.depth[c]+1, m_dsize[c]);
+                }
+                lt.detach(r);
             } else {
-                np.prelim = getParams(l).prelim + spacing(l,n,true);
+                lt.attach(r);
+                int n = lt.collect(r);
+                for ( int k=1; k<n; ++k )
+                    capture(lt.order[k]);
+                for ( int k=1; k<n; ++k ) {
+                    int c = lt.order[k];
+                    if ( lt.first[c] >= 0 ) {
+                        m_redo[c] = m_run;
+                        m_redoRows[nr++] = c;
+                    }
+                }
             }
-        }
-        else if ( expanded )
-        {
-            NodeItem leftMost = (NodeItem)n.getFirstChild();
-            NodeItem rightMost = (NodeItem)n.getLastChild();
-            NodeItem defaultAncestor = leftMost;
-            NodeItem c = leftMost;
-            for ( int i=0; c != null; ++i, c = (NodeItem)c.getNextSibling() )
+            // the changed node and all its ancestors need to be redone
+            for ( int p = open ? r : lt.parent[r];
+                  p >= 0 && m_redo[p] != m_run; p = lt.parent[p] )
             {
-                firstWalk(c, i, depth+1);
-                defaultAncestor = apportion(c, defaultAncestor);
+                m_redo[p] = m_run;
+                m_redoRows[nr++] = p;
             }
-            
-            executeShifts(n);
-            
-            double midpoint = 0.5 *
-                (getParams(leftMost).prelim + getParams(rightMost).prelim);
-            
-            NodeItem left = (NodeItem)n.getPreviousSibling();
-            if ( left != null ) {
-                np.prelim = getParams(left).prelim + spacing(left, n, true);
-                np.mod = np.prelim - midpoint;
+        }
+        if ( m_rescan )
+            return false;
+        
+        // undo the previous walks of the nodes to redo, then redo them,
+        // children first
+        for ( int i=0; i<nr; ++i ) {
+            int r = m_redoRows[i];
+            undoThreads(r);
+            m_keys[i] = ((long)lt.depth[r] << 32) | r;
+        }
+        Arrays.sort(m_keys, 0, nr);
+        for ( int i=nr-1; i>=0; --i )
+            firstWalk((int)m_keys[i]);
+        
+        boolean all = determineDepths();
+        secondWalk(all);
+        return true;
+    }
+    
+    /**
+     * Initialize the layout state of a newly visible node.
+     */
+    private void capture(int r) {
+        boolean v = ( m_orientation == Constants.ORIENT_TOP_BOTTOM ||
+                      m_orientation == Constants.ORIENT_BOTTOM_TOP );
+        Rectangle2D b = m_tree.items[r].getBounds();
+        m_bsize[r] = ( v ? b.getWidth()  : b.getHeight() );
+        m_dsize[r] = ( v ? b.getHeight() : b.getWidth()  );
+        m_thread[r] = m_owned[r] = -1;
+        m_fresh[r] = m_run;
+        addToLevel(m_tree.depth[r]+1, m_dsize[r]);
+    }
+    
+    // ------------------------------------------------------------------------
+    // Depth Levels
+    
+    private void addToLevel(int level, double d) {
+        if ( level >= m_levelCount.length ) {
+            int len = 3*level/2 + 2;
+            m_levelCount = Arrays.copyOf(m_levelCount, len);
+            m_levelMax = Arrays.copyOf(m_levelMax, len);
+            m_levelMaxCount = Arrays.copyOf(m_levelMaxCount, len);
+        }
+        ++m_levelCount[level];
+        if ( d > m_levelMax[level] ) {
+            m_levelMax[level] = d;
+            m_levelMaxCount[level] = 1;
+        } else if ( d == m_levelMax[level] ) {
+            ++m_levelMaxCount[level];
+        }
+    }
+    
+    private void removeFromLevel(int level, double d) {
+        --m_levelCount[level];
+        if ( d == m_levelMax[level] && --m_levelMaxCount[level] == 0 ) {
+            if ( m_levelCount[level] == 0 )
+                m_levelMax[level] = 0;
+            else
+                m_rescan = true; // the largest node of the level is gone
+        }
+    }
+    
+    /**
+     * Compute the position of each depth level.
+     * @return true if any position changed
+     */
+    private boolean determineDepths() {
+        int maxDepth = 0;
+        for ( int i=m_levelCount.length-1; i>0; --i ) {
+            if ( m_levelCount[i] > 0 ) {
+                maxDepth = i;
+                break;
+            }
+        }
+        if ( m_depths.length <= maxDepth )
+            m_depths = new double[3*maxDepth/2 + 1];
+        boolean changed = ( maxDepth != m_maxDepth );
+        m_maxDepth = maxDepth;
+        double d = 0;
+        for ( int i=1; i<maxDepth; ++i ) {
+            d += m_levelMax[i] + m_dspace;
+            changed |= ( d != m_depths[i] );
+            m_depths[i] = d;
+        }
+        m_depths[0] = 0;
+        return changed;
+    }
+    
+    // ------------------------------------------------------------------------
+    // First Walk
+    
+    /**
+     * Place the children of a node relative to each other, given the
+     * placement of their own children.
+     */
+    private void firstWalk(int n) {
+        LayoutTree lt = m_tree;
+        int stamp = ++m_stamp;
+        for ( int c=lt.first[n]; c>=0; c=lt.next[c] ) {
+            m_shift[c] = m_change[c] = 0;
+            m_ancestor[c] = c;
+            m_ancestorStamp[c] = stamp;
+        }
+        
+        int defaultAncestor = lt.first[n];
+        for ( int c=lt.first[n]; c>=0; c=lt.next[c] ) {
+            int l = lt.prev[c];
+            boolean leaf = ( lt.first[c] < 0 );
+            if ( l < 0 ) {
+                m_prelim[c] = ( leaf ? 0 : m_mid[c] );
+                m_mod[c] = 0;
             } else {
-                np.prelim = midpoint;
+                m_prelim[c] = m_prelim[l] + spacing(l, c, true);
+                m_mod[c] = ( leaf ? 0 : m_prelim[c] - m_mid[c] );
             }
+            defaultAncestor = apportion(c, defaultAncestor, n, stamp);
         }
+        
+        executeShifts(n);
+        m_mid[n] = 0.5 * (m_prelim[lt.first[n]] + m_prelim[lt.last[n]]);
     }
     
-    private NodeItem apportion(NodeItem v, NodeItem a) {        
-        NodeItem w = (NodeItem)v.getPreviousSibling();
-        if ( w != null ) {
-            NodeItem vip, vim, vop, vom;
-            double   sip, sim, sop, som;
+    private int apportion(int v, int a, int p, int stamp) {
+        LayoutTree lt = m_tree;
+        int w = lt.prev[v];
+        if ( w >= 0 ) {
+            int    vip, vim, vop, vom;
+            double sip, sim, sop, som;
             
             vip = vop = v;
             vim = w;
-            vom = (NodeItem)vip.getParent().getFirstChild();
+            vom = lt.first[p];
             
-            sip = getParams(vip).mod;
-            sop = getParams(vop).mod;
-            sim = getParams(vim).mod;
-            som = getParams(vom).mod;
+            sip = m_mod[vip];
+            sop = m_mod[vop];
+            sim = m_mod[vim];
+            som = m_mod[vom];
             
-            NodeItem nr = nextRight(vim);
-            NodeItem nl = nextLeft(vip);
-            while ( nr != null && nl != null ) {
+            int nr = nextRight(vim);
+            int nl = nextLeft(vip);
+            while ( nr >= 0 && nl >= 0 ) {
                 vim = nr;
                 vip = nl;
                 vom = nextLeft(vom);
                 vop = nextRight(vop);
-                getParams(vop).ancestor = v;
-                double shift = (getParams(vim).prelim + sim) - 
-                    (getParams(vip).prelim + sip) + spacing(vim,vip,false);
+                m_ancestor[vop] = v;
+                m_ancestorStamp[vop] = stamp;
+                double shift = (m_prelim[vim] + sim) - 
+                    (m_prelim[vip] + sip) + spacing(vim,vip,false);
                 if ( shift > 0 ) {
-                    moveSubtree(ancestor(vim,v,a), v, shift);
+                    moveSubtree(ancestor(vim,v,a,p,stamp), v, shift);
                     sip += shift;
                     sop += shift;
                 }
-                sim += getParams(vim).mod;
-                sip += getParams(vip).mod;
-                som += getParams(vom).mod;
-                sop += getParams(vop).mod;
+                sim += m_mod[vim];
+                sip += m_mod[vip];
+                som += m_mod[vom];
+                sop += m_mod[vop];
                 
                 nr = nextRight(vim);
                 nl = nextLeft(vip);
             }
-            if ( nr != null && nextRight(vop) == null ) {
-                Params vopp = getParams(vop);
-                vopp.thread = nr;
-                vopp.mod += sim - sop;
+            if ( nr >= 0 && nextRight(vop) < 0 ) {
+                setThread(vop, nr, m_mod[vop] + sim - sop, p);
             }
-            if ( nl != null && nextLeft(vom) == null ) {
-                Params vomp = getParams(vom);
-                vomp.thread = nl;
-                vomp.mod += sip - som;
+            if ( nl >= 0 && nextLeft(vom) < 0 ) {
+                setThread(vom, nl, m_mod[vom] + sip - som, p);
                 a = v;
             }
         }
         return a;
     }
     
-    private NodeItem nextLeft(NodeItem n) {
-        NodeItem c = null;
-        if ( n.isExpanded() ) c = (NodeItem)n.getFirstChild();
-        return ( c != null ? c : getParams(n).thread );
+    private int nextLeft(int n) {
+        int c = m_tree.first[n];
+        return ( c >= 0 ? c : m_thread[n] );
     }
     
-    private NodeItem nextRight(NodeItem n) {
-        NodeItem c = null;
-        if ( n.isExpanded() ) c = (NodeItem)n.getLastChild();
-        return ( c != null ? c : getParams(n).thread );
+    private int nextRight(int n) {
+        int c = m_tree.last[n];
+        return ( c >= 0 ? c : m_thread[n] );
     }
     
-    private void moveSubtree(NodeItem wm, NodeItem wp, double shift) {
-        Params wmp = getParams(wm);
-        Params wpp = getParams(wp);
-        double subtrees = wpp.number - wmp.number;
-        wpp.change -= shift/subtrees;
-        wpp.shift += shift;
-        wmp.change += shift/subtrees;
-        wpp.prelim += shift;
-        wpp.mod += shift;
+    private void moveSubtree(int wm, int wp, double shift) {
+        double subtrees = m_tree.number[wp] - m_tree.number[wm];
+        m_change[wp] -= shift/subtrees;
+        m_shift[wp] += shift;
+        m_change[wm] += shift/subtrees;
+        m_prelim[wp] += shift;
+        m_mod[wp] += shift;
     }
     
-    private void executeShifts(NodeItem n) {
+    private void executeShifts(int n) {
         double shift = 0, change = 0;
-        for ( NodeItem c = (NodeItem)n.getLastChild();
-              c != null; c = (NodeItem)c.getPreviousSibling() )
-        {
-            Params cp = getParams(c);
-            cp.prelim += shift;
-            cp.mod += shift;
-            change += cp.change;
-            shift += cp.shift + change;
+        for ( int c=m_tree.last[n]; c>=0; c=m_tree.prev[c] ) {
+            m_prelim[c] += shift;
+            m_mod[c] += shift;
+            change += m_change[c];
+            shift += m_shift[c] + change;
         }
     }
     
-    private NodeItem ancestor(NodeItem vim, NodeItem v, NodeItem a) {
-        NodeItem p = (NodeItem)v.getParent();
-        Params vimp = getParams(vim);
-        if ( vimp.ancestor.getParent() == p ) {
-            return vimp.ancestor;
-        } else {
-            return a;
+    private int ancestor(int vim, int v, int a, int p, int stamp) {
+        // ancestors set by earlier walks are stale
+        int anc = ( m_ancestorStamp[vim] == stamp ? m_ancestor[vim] : vim );
+        return ( m_tree.parent[anc] == p ? anc : a );
+    }
+    
+    /**
+     * Thread a contour node, recording the change so that it can be undone
+     * when the walk of the owning node is redone.
+     */
+    private void setThread(int n, int thread, double mod, int owner) {
+        m_thread[n] = thread;
+        m_threadMod[n] = m_mod[n];
+        m_mod[n] = mod;
+        m_ownedNext[n] = m_owned[owner];
+        m_owned[owner] = n;
+    }
+    
+    private void undoThreads(int owner) {
+        for ( int n=m_owned[owner]; n>=0; n=m_ownedNext[n] ) {
+            m_thread[n] = -1;
+            m_mod[n] = m_threadMod[n];
         }
+        m_owned[owner] = -1;
     }
     
-    private void secondWalk(NodeItem n, NodeItem p, double m, int depth) {
-        Params np = getParams(n);
-        setBreadth(n, p, np.prelim + m);
-        setDepth(n, p, m_depths[depth]);
+    // ------------------------------------------------------------------------
+    // Second Walk
+    
+    /**
+     * Assign the layout positions, visiting only the subtrees whose
+     * position may have changed unless all nodes are to be updated.
+     */
+    private void secondWalk(boolean all) {
+        LayoutTree lt = m_tree;
+        int r = lt.root;
+        m_prelim[r] = ( lt.first[r] < 0 ? 0 : m_mid[r] );
+        m_mod[r] = 0;
+        
+        int prevMoved = m_movedCount;
+        int[] prev = m_moved;
+        m_moved = m_movedNext;
+        m_movedNext = prev;
+        m_movedCount = 0;
         
-        if ( n.isExpanded() ) {
-            depth += 1;
-            for ( NodeItem c = (NodeItem)n.getFirstChild();
-                  c != null; c = (NodeItem)c.getNextSibling() )
+        int sp = 0;
+        m_stack[sp] = r;
+        m_acc[sp++] = -m_prelim[r];
+        while ( sp > 0 ) {
+            int n = m_stack[--sp];
+            double m = m_acc[sp];
+            double b = m_prelim[n] + m, d = m_depths[lt.depth[n]];
+            if ( all || m_fresh[n] == m_run
+                 || b != m_breadthPos[n] || d != m_depthPos[n] )
+            {
+                place(n, b, d);
+            }
+            
+            double cm = m + m_mod[n];
+            if ( lt.first[n] >= 0 && ( all || m_redo[n] == m_run
+                                       || cm != m_childMod[n] ) )
             {
-                secondWalk(c, n, m + np.mod, depth);
+                for ( int c=lt.last[n]; c>=0; c=lt.prev[c] ) {
+                    m_stack[sp] = c;
+                    m_acc[sp++] = cm;
+                }
             }
+            m_childMod[n] = cm;
         }
         
-        np.clear();
+        // nodes moved by the previous run are set again, so that they
+        // are no longer animated
+        for ( int i=0; i<prevMoved; ++i ) {
+            int n = prev[i];
+            if ( lt.visible[n] && m_placed[n] != m_run )
+                place(n, m_breadthPos[n], m_depthPos[n]);
+        }
+    }
+    
+    private void place(int n, double b, double d) {
+        LayoutTree lt = m_tree;
+        NodeItem item = lt.items[n];
+        NodeItem p = ( lt.parent[n] >= 0 ? lt.items[lt.parent[n]] : null );
+        setBreadth(item, p, b);
+        setDepth(item, p, d);
+        if ( m_fresh[n] == m_run
+             || b != m_breadthPos[n] || d != m_depthPos[n] )
+            m_moved[m_movedCount++] = n;
+        m_breadthPos[n] = b;
+        m_depthPos[n] = d;
+        m_placed[n] = m_run;
     }
     
     private void setBreadth(NodeItem n, NodeItem p, double b) {
@@ -483,11 +845,74 @@ public class NodeLinkTreeLayout extends TreeLayout {
         }
     }
     
+    // ------------------------------------------------------------------------
+    // Layout State
+    
+    private void ensureCapacity(int rows) {
+        if ( m_prelim.length >= rows ) return;
+        m_prelim = Arrays.copyOf(m_prelim, rows);
+        m_mod = Arrays.copyOf(m_mod, rows);
+        m_shift = Arrays.copyOf(m_shift, rows);
+        m_change = Arrays.copyOf(m_change, rows);
+        m_mid = Arrays.copyOf(m_mid, rows);
+        m_bsize = Arrays.copyOf(m_bsize, rows);
+        m_dsize = Arrays.copyOf(m_dsize, rows);
+        m_ancestor = Arrays.copyOf(m_ancestor, rows);
+        m_ancestorStamp = Arrays.copyOf(m_ancestorStamp, rows);
+        m_thread = Arrays.copyOf(m_thread, rows);
+        m_threadMod = Arrays.copyOf(m_threadMod, rows);
+        m_owned = Arrays.copyOf(m_owned, rows);
+        m_ownedNext = Arrays.copyOf(m_ownedNext, rows);
+        m_fresh = Arrays.copyOf(m_fresh, rows);
+        m_redo = Arrays.copyOf(m_redo, rows);
+        m_placed = Arrays.copyOf(m_placed, rows);
+        m_breadthPos = Arrays.copyOf(m_breadthPos, rows);
+        m_depthPos = Arrays.copyOf(m_depthPos, rows);
+        m_childMod = Arrays.copyOf(m_childMod, rows);
+        m_dirtyMark = Arrays.copyOf(m_dirtyMark, rows);
+        m_redoRows = new int[rows];
+        m_keys = new long[rows];
+        m_moved = new int[rows];
+        m_movedNext = new int[rows];
+        m_movedCount = 0;
+        m_stack = new int[rows];
+        m_acc = new double[rows];
+        m_dirty = new int[rows];
+    }
+    
+    private void setNodeTable(Table t) {
+        if ( m_nodes == t ) return;
+        if ( m_nodes != null )
+            m_nodes.removeTableListener(m_listener);
+        m_nodes = t;
+        m_expandedCol = -1;
+        if ( t != null ) {
+            t.addTableListener(m_listener);
+            m_expandedCol = t.getColumnNumber(VisualItem.EXPANDED);
+        }
+    }
+    
+    private void markDirty(int r) {
+        if ( r < 0 || r >= m_dirtyMark.length ) {
+            m_valid = false;
+        } else if ( !m_dirtyMark[r] ) {
+            m_dirtyMark[r] = true;
+            m_dirty[m_dirtyCount++] = r;
+        }
+    }
+    
+    private void clearDirty() {
+        for ( int i=0; i<m_dirtyCount; ++i )
+            m_dirtyMark[m_dirty[i]] = false;
+        m_dirtyCount = 0;
+    }
+    
     // ------------------------------------------------------------------------
     // Params Schema
     
     /**
-     * The data field in which the parameters used by this layout are stored.
+     * The data field in which the parameters used by earlier versions of
+     * this layout were stored. The layout no longer uses this field.
      */
     public static final String PARAMS = "_reingoldTilfordParams";
     /**
@@ -502,21 +927,12 @@ public class NodeLinkTreeLayout extends TreeLayout {
         ts.addColumns(PARAMS_SCHEMA);
     }
     
-    private Params getParams(NodeItem item) {
-        Params rp = (Params)item.get(PARAMS);
-        if ( rp == null ) {
-            rp = new Params();
-            item.set(PARAMS, rp);
-        }
-        if ( rp.number == -2 ) {
-            rp.init(item);
-        }
-        return rp;
-    }
-    
     /**
-     * Wrapper class holding parameters used for each node in this layout.
+     * Wrapper class holding parameters used for each node in earlier
+     * versions of this layout.
+     * @deprecated the layout state is now kept in arrays indexed by row
      */
+    @Deprecated
     public static class Params implements Cloneable {
         double prelim;
         double mod;
@@ -30,12 +30,12 @@
  */
 package prefux.action.layout.graph;
 
-import java.util.Iterator;
+import java.util.Arrays;
 
 import javafx.geometry.Rectangle2D;
 import prefux.data.Graph;
-import prefux.data.Node;
 import prefux.data.Schema;
+import prefux.data.Tree;
 import prefux.data.tuple.TupleSet;
 import prefux.data.util.Point2D;
 import prefux.util.ArrayLib;
@@ -57,6 +57,17 @@ import prefux.visual.NodeItem;
  * understandable transitions between layout configurations.
  * </p>
  * 
+ * <p>The angular widths and positions are computed in primitive arrays
+ * indexed by node row, walking the tree iteratively, so trees of any depth
+ * can be laid out without allocating objects for the nodes. As the angles
+ * of all nodes depend on the total width of the tree, the complete visible
+ * tree is laid out on every run.</p>
+ * 
+ * <p>Optionally, subtrees whose sector is smaller than a threshold on
+ * screen are not laid out: their descendants are hidden, and their root is
+ * marked as {@link TreeLayout#AGGREGATED aggregated} until zooming in makes
+ * the sector large enough. See {@link #setCullThreshold(double)}.</p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class RadialTreeLayout extends TreeLayout {
@@ -73,6 +84,22 @@ public class RadialTreeLayout extends TreeLayout {
     protected Point2D m_origin;
     protected NodeItem m_prevRoot;
     
+    // layout state, indexed by node row
+    private LayoutTree m_tree = new LayoutTree();
+    private double[] m_width  = new double[0];  // relative angular width
+    private double[] m_start  = new double[0];  // start of the sector
+    private double[] m_end    = new double[0];  // end of the sector
+    private double[] m_radius = new double[0];  // radius of the children
+    private double[] m_theta  = new double[0];  // angle of the node
+    private int[]    m_visit  = new int[0];     // laid out nodes
+    private boolean[] m_cut   = new boolean[0]; // culled subtrees
+    private LevelOfDetail m_lod = new LevelOfDetail(this);
+    
+    // buffers for ordering the children of a node
+    private int[]    m_sorted = new int[0];
+    private int[]    m_index  = new int[0];
+    private double[] m_angles = new double[0];
+    
     /**
      * Creates a new RadialTreeLayout. Automatic scaling of the radius
      * values to fit the layout bounds is enabled by default.
@@ -139,6 +166,29 @@ public class RadialTreeLayout extends TreeLayout {
         m_autoScale = s;
     }
 
+    /**
+     * Get the size in pixels below which subtrees are not laid out.
+     * @return the culling threshold, or zero if culling is disabled
+     */
+    public double getCullThreshold() {
+        return m_lod.getThreshold();
+    }
+    
+    /**
+     * Set the size in pixels below which subtrees are not laid out. The
+     * descendants of a node are only laid out if the arc of its sector on
+     * the circle of its children is at least this long at the zoom factor
+     * of the first display. The descendants of other nodes are hidden, and
+     * the nodes are marked as {@link TreeLayout#AGGREGATED aggregated}.
+     * When the zoom factor of an FxDisplay changes such that other subtrees
+     * would be culled, the layout is run again. Culling is disabled by
+     * default.
+     * @param pixels the culling threshold, or zero to disable culling
+     */
+    public void setCullThreshold(double pixels) {
+        m_lod.setThreshold(pixels);
+    }
+    
     /**
      * Constrains this layout to the specified angular sector
      * @param theta the starting angle, in radians
@@ -150,35 +200,54 @@ public class RadialTreeLayout extends TreeLayout {
         m_setTheta = true;
     }
 
+    /**
+     * Get a key of the parameters of this layout: the angular bounds, the
+     * radius increment unless the layout is auto-scaled, the layout anchor
+     * and the root. When the root changed, the angular bounds are computed
+     * from the current node positions, unless they were set explicitly, and
+     * the layout is not cached. Layouts that cull small subtrees depend on
+     * the zoom factor, and are not cached either.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        NodeItem root = getLayoutRoot();
+        if ( getClass() != RadialTreeLayout.class || m_lod.isEnabled()
+                || (!m_setTheta && m_prevRoot != null
+                    && m_prevRoot.isValid() && m_prevRoot != root) )
+            return super.getParameterKey();
+        Point2D a = getLayoutAnchor();
+        return Arrays.asList(getBaseParameterKey(), m_theta1, m_theta2,
+            m_autoScale ? null : m_radiusInc, a.getX(), a.getY(),
+            root.getRow());
+    }
+
     /**
      * @see prefux.action.Action#run(double)
      */
     public void run(double frac) {
         Graph g = (Graph)m_vis.getGroup(m_group);
-        initSchema(g.getNodes());
         
         m_origin = getLayoutAnchor();
         NodeItem n = getLayoutRoot();
-        Params np = (Params)n.get(PARAMS);
-
-	g.getSpanningTree(n);
+        Tree t = g.getSpanningTree(n);
+        m_tree.build(g, t, n.getRow());
+        ensureCapacity(m_tree.items.length);
         
         // calc relative widths and maximum tree depth
         // performs one pass over the tree
-        m_maxDepth = 0;
-        calcAngularWidth(n, 0);
+        calcAngularWidth();
         
         if ( m_autoScale ) setScale(getLayoutBounds());
         if ( !m_setTheta ) calcAngularBounds(n);
                 
         // perform the layout
+        m_lod.begin(m_vis, g.getNodes(), m_tree.items.length);
         if ( m_maxDepth > 0 )
             layout(n, m_radiusInc, m_theta1, m_theta2);
         
         // update properties of the root node
         setX(n, null, m_origin.getX());
         setY(n, null, m_origin.getY());
-        np.angle = m_theta2-m_theta1;
     }
     
     /**
@@ -188,6 +257,7 @@ public class RadialTreeLayout extends TreeLayout {
     public void reset() {
     	super.reset();
     	m_prevRoot = null;
+    	m_tree = new LayoutTree();
     }
     
     protected void setScale(Rectangle2D bounds) {
@@ -221,15 +291,20 @@ public class RadialTreeLayout extends TreeLayout {
         }
 
         // compute offset due to children's angular width
+        int pr = p.getRow();
+        if ( !m_tree.visible[pr] ) {
+            m_prevRoot = r;
+            return;
+        }
         double dt = 0;
-        Iterator<? extends Node> iter = sortedChildren(r);
-        while ( iter.hasNext() ) {
-            Node n = (Node)iter.next();
-            if ( n == p ) break;
-            dt += ((Params)n.get(PARAMS)).width;
+        int cc = sortChildren(r.getRow());
+        for ( int i=0; i<cc; ++i ) {
+            int c = m_sorted[i];
+            if ( c == pr ) break;
+            dt += m_width[c];
         }
-        double rw = ((Params)r.get(PARAMS)).width;
-        double pw = ((Params)p.get(PARAMS)).width;
+        double rw = m_width[r.getRow()];
+        double pw = m_width[pr];
         dt = -MathLib.TWO_PI * (dt+pw/2)/rw;
 
         // set angular bounds
@@ -242,30 +317,31 @@ public class RadialTreeLayout extends TreeLayout {
      * Computes relative measures of the angular widths of each
      * expanded subtree. Node diameters are taken into account
      * to improve space allocation for variable-sized nodes.
-     * 
-     * This method also updates the base angle value for nodes 
-     * to ensure proper ordering of nodes.
+     * The nodes are visited in reverse pre-order, so the widths of
+     * all children are known when a node is visited.
      */
-    private double calcAngularWidth(NodeItem n, int d) {
-        if ( d > m_maxDepth ) m_maxDepth = d;       
-        double aw = 0;
-        
-        Rectangle2D bounds = n.getBounds();
-        double w = bounds.getWidth(), h = bounds.getHeight();
-        double diameter = d==0 ? 0 : Math.sqrt(w*w+h*h) / d;
-        
-        if ( n.isExpanded() && n.getChildCount() > 0 ) {
-            Iterator<? extends Node> childIter = n.children();
-            while ( childIter.hasNext() ) {
-                NodeItem c = (NodeItem)childIter.next();
-                aw += calcAngularWidth(c,d+1);
+    private void calcAngularWidth() {
+        LayoutTree lt = m_tree;
+        m_maxDepth = 0;
+        for ( int i=lt.count; --i>=0; ) {
+            int n = lt.order[i];
+            int d = lt.depth[n];
+            if ( d > m_maxDepth ) m_maxDepth = d;
+            
+            Rectangle2D bounds = lt.items[n].getBounds();
+            double w = bounds.getWidth(), h = bounds.getHeight();
+            double diameter = d==0 ? 0 : Math.sqrt(w*w+h*h) / d;
+            
+            double aw = 0;
+            if ( lt.first[n] >= 0 ) {
+                for ( int c=lt.first[n]; c>=0; c=lt.next[c] )
+                    aw += m_width[c];
+                aw = Math.max(diameter, aw);
+            } else {
+                aw = diameter;
             }
-            aw = Math.max(diameter, aw);
-        } else {
-            aw = diameter;
+            m_width[n] = aw;
         }
-        ((Params)n.get(PARAMS)).width = aw;
-        return aw;
     }
     
     private static final double normalize(double angle) {
@@ -278,77 +354,124 @@ public class RadialTreeLayout extends TreeLayout {
         return angle;
     }
     
-    private Iterator<? extends Node> sortedChildren(final NodeItem n) {
-        double base = 0;
-        // update base angle for node ordering
-        NodeItem p = (NodeItem)n.getParent();
-        if ( p != null ) {
-            base = normalize(Math.atan2(p.getY()-n.getY(), p.getX()-n.getX()));
-        }
-        int cc = n.getChildCount();
-        if ( cc == 0 ) return null;
-
-        NodeItem c = (NodeItem)n.getFirstChild();
+    /**
+     * Order the visible children of a node by their current angle around
+     * the node, starting at the direction of its parent, into the
+     * {@link #m_sorted} array. Previously invisible children keep their
+     * natural order.
+     * @param n the node row
+     * @return the number of children
+     */
+    private int sortChildren(int n) {
+        LayoutTree lt = m_tree;
+        int cc = 0;
+        for ( int c=lt.first[n]; c>=0; c=lt.next[c] )
+            m_sorted[cc++] = c;
+        if ( cc == 0 ) return 0;
         
         // TODO: this is hacky and will break when filtering
         // how to know that a branch is newly expanded?
         // is there an alternative property we should check?
-        if ( !c.isStartVisible() ) {
+        if ( !lt.items[m_sorted[0]].isStartVisible() ) {
             // use natural ordering for previously invisible nodes
-            return n.children();
+            return cc;
         }
         
-        double angle[] = new double[cc];
-        final int idx[] = new int[cc];
-        for ( int i=0; i<cc; ++i, c=(NodeItem)c.getNextSibling() ) {
-            idx[i] = i;
-            angle[i] = normalize(-base +
-                Math.atan2(c.getY()-n.getY(), c.getX()-n.getX()));
+        // update base angle for node ordering
+        NodeItem item = lt.items[n];
+        double x = item.getX(), y = item.getY();
+        double base = 0;
+        int p = lt.parent[n];
+        if ( p >= 0 ) {
+            NodeItem pi = lt.items[p];
+            base = normalize(Math.atan2(pi.getY()-y, pi.getX()-x));
+        }
+        for ( int i=0; i<cc; ++i ) {
+            NodeItem c = lt.items[m_sorted[i]];
+            m_index[i] = i;
+            m_angles[i] = normalize(-base +
+                Math.atan2(c.getY()-y, c.getX()-x));
         }
-        ArrayLib.sort(angle, idx);
+        ArrayLib.sort(m_angles, m_index, cc);
         
-        // return iterator over sorted children
-        return new Iterator<Node>() {
-            int cur = 0;
-            public Node next() {
-                return n.getChild(idx[cur++]);
-            }
-            public boolean hasNext() {
-                return cur < idx.length;
-            }
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        // m_index now holds the natural positions in angular order
+        for ( int i=0; i<cc; ++i )
+            m_index[i] = m_sorted[m_index[i]];
+        System.arraycopy(m_index, 0, m_sorted, 0, cc);
+        return cc;
     }
     
     /**
-     * Compute the layout.
+     * Compute the layout. The positions of all nodes in the subtree are
+     * computed before any of them is set, so the ordering of the children
+     * is based on the previous positions throughout. The nodes are then
+     * set in reverse order, so each node is set before its parent, which
+     * serves as the referrer.
      * @param n the root of the current subtree under consideration
      * @param r the radius, current distance from the center
      * @param theta1 the start (in radians) of this subtree's angular region
      * @param theta2 the end (in radians) of this subtree's angular region
      */
     protected void layout(NodeItem n, double r, double theta1, double theta2) {
-        double dtheta  = (theta2-theta1);
-        double dtheta2 = dtheta / 2.0;
-        double width = ((Params)n.get(PARAMS)).width;
-        double cfrac, nfrac = 0.0;
+        LayoutTree lt = m_tree;
+        int root = n.getRow();
+        m_start[root] = theta1;
+        m_end[root] = theta2;
+        m_radius[root] = r;
+        m_cut[root] = false;
         
-        Iterator<? extends Node> childIter = sortedChildren(n);
-        while ( childIter != null && childIter.hasNext() ) {
-            NodeItem c = (NodeItem)childIter.next();
-            Params cp = (Params)c.get(PARAMS);
-            cfrac = cp.width / width;
-            if ( c.isExpanded() && c.getChildCount()>0 ) {
-                layout(c, r+m_radiusInc, theta1 + nfrac*dtheta, 
-                                         theta1 + (nfrac+cfrac)*dtheta);
+        // visit the nodes breadth-first, children after their parents
+        int[] visit = m_visit;
+        double shown = Double.POSITIVE_INFINITY, culled = 0;
+        int k = 0;
+        visit[k++] = root;
+        for ( int i=0; i<k; ++i ) {
+            int p = visit[i];
+            if ( lt.first[p] < 0 || m_cut[p] ) continue;
+            double t1 = m_start[p];
+            double dtheta  = (m_end[p]-t1);
+            double dtheta2 = dtheta / 2.0;
+            double width = m_width[p];
+            double rc = m_radius[p];
+            double cfrac, nfrac = 0.0;
+            
+            int cc = sortChildren(p);
+            for ( int j=0; j<cc; ++j ) {
+                int c = m_sorted[j];
+                cfrac = m_width[c] / width;
+                m_cut[c] = false;
+                if ( lt.first[c] >= 0 ) {
+                    m_start[c] = t1 + nfrac*dtheta;
+                    m_end[c] = t1 + (nfrac+cfrac)*dtheta;
+                    m_radius[c] = rc + m_radiusInc;
+                    if ( m_lod.isEnabled() ) {
+                        double size = m_radius[c]*(m_end[c]-m_start[c]);
+                        m_cut[c] = m_lod.cull(size);
+                        if ( m_cut[c] )
+                            culled = Math.max(culled, size);
+                        else
+                            shown = Math.min(shown, size);
+                    }
+                }
+                m_theta[c] = t1 + nfrac*dtheta + cfrac*dtheta2;
+                nfrac += cfrac;
+                visit[k++] = c;
             }
-            setPolarLocation(c, n, r, theta1 + nfrac*dtheta + cfrac*dtheta2);
-            cp.angle = cfrac*dtheta;
-            nfrac += cfrac;
         }
+        m_lod.range(shown, culled);
         
+        for ( int i=k; --i>0; ) {
+            int c = visit[i];
+            int p = lt.parent[c];
+            NodeItem item = lt.items[c];
+            m_lod.show(item);
+            setPolarLocation(item, lt.items[p], m_radius[p], m_theta[c]);
+            if ( m_cut[c] )
+                m_lod.aggregate(item);
+            else if ( lt.first[c] >= 0 )
+                m_lod.expand(item);
+        }
+        m_lod.expand(n);
     }
 
     /**
@@ -363,11 +486,28 @@ public class RadialTreeLayout extends TreeLayout {
         setY(n, p, m_origin.getY() + r*Math.sin(t));
     }
     
+    private void ensureCapacity(int rows) {
+        if ( m_width.length < rows ) {
+            int len = m_tree.items.length;
+            m_width  = new double[len];
+            m_start  = new double[len];
+            m_end    = new double[len];
+            m_radius = new double[len];
+            m_theta  = new double[len];
+            m_visit  = new int[len];
+            m_cut    = new boolean[len];
+            m_sorted = new int[len];
+            m_index  = new int[len];
+            m_angles = new double[len];
+        }
+    }
+    
     // ------------------------------------------------------------------------
     // Params
     
     /**
-     * The data field in which the parameters used by this layout are stored.
+     * The data field in which the parameters used by earlier versions of
+     * this layout were stored. The layout no longer uses this field.
      */
     public static final String PARAMS = "_radialTreeLayoutParams";
     /**
@@ -383,8 +523,11 @@ public class RadialTreeLayout extends TreeLayout {
     }
     
     /**
-     * Wrapper class holding parameters used for each node in this layout.
+     * Wrapper class holding parameters used for each node in earlier
+     * versions of this layout.
+     * @deprecated the layout state is now kept in arrays indexed by row
      */
+    @Deprecated
     public static class Params implements Cloneable {
         double width;
         double angle;
@@ -30,17 +30,16 @@
  */
 package prefux.action.layout.graph;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import javafx.geometry.Rectangle2D;
 import prefux.data.Graph;
 import prefux.data.Schema;
-import prefux.data.tuple.TupleSet;
-import prefux.data.util.TreeNodeIterator;
+import prefux.data.Table;
+import prefux.data.Tree;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
 import prefux.visual.NodeItem;
 import prefux.visual.VisualItem;
 
@@ -65,6 +64,22 @@ import prefux.visual.VisualItem;
  * <a href="http://www.cs.umd.edu/hcil/treemap-history/">
  * http://www.cs.umd.edu/hcil/treemap-history/</a>.
  * </p>
+ * <p>
+ * The subtree sizes and node bounds are kept in primitive arrays indexed
+ * by node row between runs. When the sizes of nodes change, or nodes are
+ * expanded or collapsed, only the sizes of these nodes and their ancestors
+ * are recomputed, and the children of a node are only laid out again if
+ * its bounds, the areas of its children or any of its descendants changed.
+ * As all areas are scaled to fill the layout bounds, changing the total
+ * size still lays out all nodes. Large trees are laid out in parallel,
+ * with identical results.
+ * </p>
+ * <p>
+ * Optionally, nodes smaller than a threshold on screen are not subdivided:
+ * their descendants are hidden, and the node is marked as
+ * {@link TreeLayout#AGGREGATED aggregated} until zooming in makes it large
+ * enough. See {@link #setCullThreshold(double)}.
+ * </p>
  *
  * @version 1.0
  * @author <a href="http://jheer.org">jeffrey heer</a>
@@ -78,19 +93,62 @@ public class SquarifiedTreeMapLayout extends TreeLayout {
         AREA_SCHEMA.addColumn(AREA, double.class);
     }
     
-    private static Comparator s_cmp = new Comparator() {
-        public int compare(Object o1, Object o2) {
-            double s1 = ((VisualItem)o1).getDouble(AREA);
-            double s2 = ((VisualItem)o2).getDouble(AREA);
-            return ( s1>s2 ? 1 : (s1<s2 ? -1 : 0));
-        }
-    };
-    private ArrayList m_kids = new ArrayList();
-    private ArrayList m_row  = new ArrayList();
+    /** The number of visible nodes from which the layout runs in parallel */
+    private static final int PARALLEL_NODE_COUNT = 10000;
+    /** The number of subtrees to split the parallel layout into */
+    private static final int PARALLEL_SUBTREES = 256;
+    
     private Rectangle2D m_r  = Rectangle2D.EMPTY;
     
     private double m_frame; // space between parents border and children
     
+    // layout state, indexed by node row
+    private LayoutTree m_tree = new LayoutTree();
+    private double[]  m_sum  = new double[0];  // the size of the subtree
+    private double[]  m_area = new double[0];  // the pixel area
+    private double[]  m_x = new double[0], m_y = new double[0];
+    private double[]  m_w = new double[0], m_h = new double[0];
+    // the space the children were laid out in, if m_laidOut is set
+    private double[]  m_ix = new double[0], m_iy = new double[0];
+    private double[]  m_iw = new double[0], m_ih = new double[0];
+    private boolean[] m_laidOut = new boolean[0];
+    private int[]     m_path = new int[0];  // run a descendant changed in
+    private long[]    m_keys = new long[0];
+    private double    m_scale;
+    private Squarifier m_squarifier = new Squarifier();
+    private LevelOfDetail m_lod = new LevelOfDetail(this);
+    
+    // incremental layout state
+    private boolean  m_incremental = true;
+    private boolean  m_parallel = true;
+    private boolean  m_valid = false;
+    private long     m_modCount;
+    private int      m_run = 0;
+    
+    // resized, expanded and collapsed nodes, collected from table events
+    private Table     m_nodes;
+    private int       m_sizeCol = -1;
+    private int       m_expandedCol = -1;
+    private int[]     m_dirty = new int[0];
+    private boolean[] m_dirtyMark = new boolean[0];
+    private int       m_dirtyCount = 0;
+    private TableListener m_listener = new TableListener() {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( type != EventConstants.UPDATE
+                 || col == EventConstants.ALL_COLUMNS )
+            {
+                m_valid = false;
+            } else if ( (col == m_sizeCol || col == m_expandedCol)
+                        && m_valid )
+            {
+                for ( int r=start; r<=end; ++r )
+                    markDirty(r);
+            }
+        }
+    };
+    
     /**
      * Creates a new SquarifiedTreeMapLayout with no spacing between
      * parent areas and their enclosed children.
@@ -125,6 +183,7 @@ public class SquarifiedTreeMapLayout extends TreeLayout {
             throw new IllegalArgumentException(
                     "Frame value must be greater than or equal to 0.");
         m_frame = frame;
+        m_valid = false;
     }
 
     /**
@@ -136,219 +195,638 @@ public class SquarifiedTreeMapLayout extends TreeLayout {
         return m_frame;
     }
     
+    /**
+     * Indicates if the layout is updated incrementally when the sizes of
+     * nodes change, or nodes are expanded or collapsed.
+     * @return true if incremental layout is enabled
+     */
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+    
+    /**
+     * Set if the layout is updated incrementally when the sizes of nodes
+     * change, or nodes are expanded or collapsed. Incremental layout is
+     * enabled by default.
+     * @param b true to enable incremental layout, false to lay out the
+     * complete tree in every run
+     */
+    public void setIncremental(boolean b) {
+        m_incremental = b;
+        m_valid = false;
+    }
+    
+    /**
+     * Indicates if large trees are laid out in parallel.
+     * @return true if the layout is computed in parallel
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+    
+    /**
+     * Set if large trees are laid out in parallel, computing independent
+     * subtrees in the common fork/join pool. Parallel layout is enabled by
+     * default, and does not change the result.
+     * @param b true for parallel layout, false for sequential
+     */
+    public void setParallel(boolean b) {
+        m_parallel = b;
+    }
+    
+    /**
+     * Get the size in pixels below which nodes are not subdivided.
+     * @return the culling threshold, or zero if culling is disabled
+     */
+    public double getCullThreshold() {
+        return m_lod.getThreshold();
+    }
+    
+    /**
+     * Set the size in pixels below which nodes are not subdivided. The
+     * children of a node are only laid out if its larger side is at least
+     * this long at the zoom factor of the first display. The descendants of
+     * smaller nodes are hidden, and the nodes are marked as
+     * {@link TreeLayout#AGGREGATED aggregated}. When the zoom factor of an
+     * FxDisplay changes such that other nodes would be culled, the layout
+     * is run again. Culling is disabled by default.
+     * @param pixels the culling threshold, or zero to disable culling
+     */
+    public void setCullThreshold(double pixels) {
+        m_lod.setThreshold(pixels);
+        m_valid = false;
+    }
+    
+    /**
+     * Make the next run lay out the complete tree.
+     * @see prefux.action.layout.Layout#invalidate()
+     */
+    public void invalidate() {
+        m_valid = false;
+    }
+    
+    /**
+     * Get a key of the parameters of this layout: the frame width and the
+     * root. Layouts that cull small nodes depend on the zoom factor, and
+     * are not cached.
+     * @see prefux.action.layout.Layout#getParameterKey()
+     */
+    public Object getParameterKey() {
+        if ( getClass() != SquarifiedTreeMapLayout.class
+                || m_lod.isEnabled() )
+            return super.getParameterKey();
+        return Arrays.asList(getBaseParameterKey(), m_frame,
+            getLayoutRoot().getRow());
+    }
+    
+    /**
+     * The result of this layout are the positions, bounds, areas and
+     * visibility of the nodes.
+     * @see prefux.action.layout.Layout#getResultFields()
+     */
+    protected String[] getResultFields() {
+        return new String[] { VisualItem.VISIBLE, VisualItem.X,
+            VisualItem.Y, VisualItem.BOUNDS, AREA };
+    }
+    
+    /**
+     * Clears references to graph tuples and the retained layout state.
+     * The group and visualization are retained.
+     * @see prefux.action.layout.graph.TreeLayout#reset()
+     */
+    public void reset() {
+        super.reset();
+        setNodeTable(null);
+        m_tree = new LayoutTree();
+        m_valid = false;
+    }
+    
     /**
      * @see prefux.action.Action#run(double)
      */
     public void run(double frac) {
         // setup
+        Graph g = (Graph)m_vis.getGroup(m_group);
+        g.getNodes().addColumns(AREA_SCHEMA);
         NodeItem root = getLayoutRoot();
+        Tree t = g.getSpanningTree();
         Rectangle2D b = getLayoutBounds();
-        m_r = new Rectangle2D(b.getMinX(), b.getMinY(), b.getWidth()-1, b.getHeight()-1);
+        Rectangle2D r = new Rectangle2D(b.getMinX(), b.getMinY(),
+                                        b.getWidth()-1, b.getHeight()-1);
+        
+        boolean current = m_incremental && m_valid
+            && m_tree.getGraph() == g && m_tree.getTree() == t
+            && m_tree.root == root.getRow() && r.equals(m_r)
+            && m_modCount == t.getEdgeTable().getModificationCount();
+        m_r = r;
+        ++m_run;
         
         // process size values
-        computeAreas(root);
+        if ( current ) {
+            updateAreas();
+        } else {
+            computeAreas(g, t, root.getRow());
+        }
         
         // layout root node
         setX(root, null, 0);
         setY(root, null, 0);        
         root.setBounds(0, 0, m_r.getWidth(), m_r.getHeight());
+        root.setDouble(AREA, m_area[root.getRow()]);
 
         // layout the tree
-        updateArea(root, m_r);
-        layout(root, m_r);
+        m_lod.begin(m_vis, g.getNodes(), m_tree.items.length);
+        layout(current && !m_lod.isEnabled());
+        
+        clearDirty();
+        m_modCount = t.getEdgeTable().getModificationCount();
+        m_valid = m_incremental;
     }
     
     /**
      * Compute the pixel areas of nodes based on their size values.
      */
-    private void computeAreas(NodeItem root) {
-        int leafCount = 0;
+    private void computeAreas(Graph g, Tree t, int root) {
+        setNodeTable(g.getNodeTable());
+        LayoutTree lt = m_tree;
+        lt.build(g, t, root);
+        ensureCapacity(lt.items.length);
+        Arrays.fill(m_laidOut, false);
         
-        // ensure area data column exists
-        Graph g = (Graph)m_vis.getGroup(m_group);
-        TupleSet nodes = g.getNodes();
-        nodes.addColumns(AREA_SCHEMA);
+        // set raw sizes, children before their parents
+        for ( int i=lt.count; --i>=0; )
+            sum(lt.order[i]);
+        scale();
+    }
+    
+    /**
+     * Update the sizes of the changed nodes and their ancestors only.
+     */
+    private void updateAreas() {
+        LayoutTree lt = m_tree;
         
-        // reset all sizes to zero
-        Iterator iter = new TreeNodeIterator(root);
-        while ( iter.hasNext() ) {
-            NodeItem n = (NodeItem)iter.next();
-            n.setDouble(AREA, 0);
+        // show or hide the children of expanded and collapsed nodes
+        for ( int i=0; i<m_dirtyCount; ++i ) {
+            int r = m_dirty[i];
+            if ( !lt.visible[r] || (lt.first[r] >= 0) == lt.isOpen(r) )
+                continue;
+            if ( lt.first[r] >= 0 ) {
+                lt.detach(r);
+            } else {
+                lt.attach(r);
+                int k = lt.collect(r);
+                for ( int j=k; --j>0; ) {
+                    int n = lt.order[j];
+                    m_laidOut[n] = false;
+                    sum(n);
+                }
+            }
         }
         
-        // set raw sizes, compute leaf count
-        iter = new TreeNodeIterator(root, false);
-        while ( iter.hasNext() ) {
-            NodeItem n = (NodeItem)iter.next();
-            double area = 0;
-            if ( n.getChildCount() == 0 ) {
-            	area = n.getSize();
-            	++leafCount;
-            } else if ( n.isExpanded() ) {
-            	NodeItem c = (NodeItem)n.getFirstChild();
-            	for (; c!=null; c = (NodeItem)c.getNextSibling()) {
-            		area += c.getDouble(AREA);
-            		++leafCount;
-            	}
+        // collect the changed nodes and their ancestors
+        int count = 0;
+        for ( int i=0; i<m_dirtyCount; ++i ) {
+            for ( int n=m_dirty[i]; n>=0 && lt.visible[n]
+                  && m_path[n] != m_run; n=lt.parent[n] )
+            {
+                m_path[n] = m_run;
+                m_keys[count++] = ((long)lt.depth[n] << 32) | n;
             }
-            n.setDouble(AREA, area);
-            
         }
-        
-        // scale sizes by display area factor
-        Rectangle2D b = getLayoutBounds();
-        double area = (b.getWidth()-1)*(b.getHeight()-1);
-        double scale = area/root.getDouble(AREA);
-        iter = new TreeNodeIterator(root);
-        while ( iter.hasNext() ) {
-            NodeItem n = (NodeItem)iter.next();
-            n.setDouble(AREA, n.getDouble(AREA)*scale);
+        // recompute the sizes, children before their parents
+        Arrays.sort(m_keys, 0, count);
+        for ( int i=count; --i>=0; )
+            sum((int)m_keys[i]);
+        scale();
+    }
+    
+    /**
+     * Compute the raw size of a node from those of its visible children,
+     * or from its size value, if it is a leaf.
+     */
+    private void sum(int n) {
+        LayoutTree lt = m_tree;
+        double area = 0;
+        if ( lt.first[n] >= 0 ) {
+            for ( int c=lt.first[n]; c>=0; c=lt.next[c] )
+                area += m_sum[c];
+        } else if ( lt.getTree().getChildCount(n) == 0 ) {
+            area = lt.items[n].getSize();
         }
+        m_sum[n] = area;
     }
     
     /**
-     * Compute the tree map layout.
+     * Scale sizes by display area factor.
      */
-    private void layout(NodeItem p, Rectangle2D r) {
-        // create sorted list of children
-        Iterator childIter = p.children();
-        while ( childIter.hasNext() )
-            m_kids.add(childIter.next());
-        Collections.sort(m_kids, s_cmp);
+    private void scale() {
+        int root = m_tree.root;
+        double area = m_r.getWidth()*m_r.getHeight();
+        m_scale = area/m_sum[root];
+        m_area[root] = m_sum[root]*m_scale;
+        m_x[root] = m_y[root] = 0;
+        m_w[root] = m_r.getWidth();
+        m_h[root] = m_r.getHeight();
+    }
+    
+    /**
+     * Compute the tree map layout, and set the bounds of all nodes with a
+     * new layout. Large trees are split into independent subtrees, which
+     * are laid out in parallel, and set in the order of a sequential run.
+     * @param incremental true to keep the layouts of unchanged subtrees
+     */
+    private void layout(boolean incremental) {
+        Squarifier sq = m_squarifier;
+        sq.clear();
+        sq.incremental = incremental;
+        sq.pending(m_tree.root);
         
-        // do squarified layout of siblings
-        double w = Math.min(r.getWidth(),r.getHeight());
-        squarify(m_kids, m_row, w, r); 
-        m_kids.clear(); // clear m_kids
+        Squarifier[] parts = null;
+        if ( m_parallel && m_tree.count >= PARALLEL_NODE_COUNT ) {
+            // split breadth-first until there are enough subtrees
+            while ( sq.pendingCount() > 0 &&
+                    sq.pendingCount() < PARALLEL_SUBTREES )
+            {
+                sq.layoutChildren(sq.next());
+            }
+            int n = sq.pendingCount();
+            final int[] tops = new int[n];
+            for ( int i=0; i<n; ++i )
+                tops[i] = sq.next();
+            final Squarifier[] sqs = parts = new Squarifier[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                Squarifier s = new Squarifier();
+                s.incremental = incremental;
+                s.layoutBelow(tops[i]);
+                sqs[i] = s;
+            });
+        } else {
+            while ( sq.pendingCount() > 0 )
+                sq.layoutChildren(sq.next());
+        }
         
-        // recurse
-        childIter = p.children();
-        while ( childIter.hasNext() ) {
-            NodeItem c = (NodeItem)childIter.next();
-            if ( c.getChildCount() > 0 && c.getDouble(AREA) > 0 ) {
-                updateArea(c,r);
-                layout(c, r);
+        double shown = sq.m_shown, culled = sq.m_culled;
+        sq.flush();
+        if ( parts != null ) {
+            for ( int i=0; i<parts.length; ++i ) {
+                shown = Math.min(shown, parts[i].m_shown);
+                culled = Math.max(culled, parts[i].m_culled);
+                parts[i].flush();
             }
         }
+        m_lod.range(shown, culled);
+    }
+    
+    /**
+     * Set the bounds and area of a node, as computed by the last layout.
+     */
+    private void setNodeBounds(int n) {
+        LayoutTree lt = m_tree;
+        NodeItem item = lt.items[n];
+        NodeItem p = lt.items[lt.parent[n]];
+        m_lod.show(item);
+        setX(item, p, m_x[n]);
+        setY(item, p, m_y[n]);
+        item.setBounds(m_x[n], m_y[n], m_w[n], m_h[n]);
+        item.setDouble(AREA, m_area[n]);
     }
     
-    private void updateArea(NodeItem n, Rectangle2D r) {
-        Rectangle2D b = n.getBounds();
-        if ( m_frame == 0.0 ) {
-            // if no framing, simply update bounding rectangle
-            r= b;
-            return;
+    // ------------------------------------------------------------------------
+    // Layout State
+    
+    private void ensureCapacity(int rows) {
+        if ( m_sum.length >= rows ) return;
+        m_sum = new double[rows];
+        m_area = new double[rows];
+        m_x = new double[rows];
+        m_y = new double[rows];
+        m_w = new double[rows];
+        m_h = new double[rows];
+        m_ix = new double[rows];
+        m_iy = new double[rows];
+        m_iw = new double[rows];
+        m_ih = new double[rows];
+        m_laidOut = new boolean[rows];
+        m_path = new int[rows];
+        m_keys = new long[rows];
+        m_dirty = new int[rows];
+        m_dirtyMark = new boolean[rows];
+        m_dirtyCount = 0;
+    }
+    
+    private void setNodeTable(Table t) {
+        if ( m_nodes == t ) return;
+        if ( m_nodes != null )
+            m_nodes.removeTableListener(m_listener);
+        m_nodes = t;
+        m_sizeCol = m_expandedCol = -1;
+        if ( t != null ) {
+            t.addTableListener(m_listener);
+            m_sizeCol = t.getColumnNumber(VisualItem.SIZE);
+            m_expandedCol = t.getColumnNumber(VisualItem.EXPANDED);
         }
+    }
+    
+    private void markDirty(int r) {
+        if ( r < 0 || r >= m_dirtyMark.length ) {
+            m_valid = false;
+        } else if ( !m_dirtyMark[r] ) {
+            m_dirtyMark[r] = true;
+            m_dirty[m_dirtyCount++] = r;
+        }
+    }
+    
+    private void clearDirty() {
+        for ( int i=0; i<m_dirtyCount; ++i )
+            m_dirtyMark[m_dirty[i]] = false;
+        m_dirtyCount = 0;
+    }
+    
+    // ------------------------------------------------------------------------
+    // Squarified Layout
+    
+    /**
+     * Lays out the children of nodes, keeping its own buffers, so that
+     * independent subtrees can be laid out concurrently. The computed
+     * bounds are stored in the layout state arrays, and the nodes are
+     * recorded in order, to be set by {@link #flush()}, as are the nodes
+     * culled or expanded by the level of detail.
+     */
+    private final class Squarifier {
         
-        // compute area loss due to frame
-        double dA = 2*m_frame*(b.getWidth()+b.getHeight()-2*m_frame);
-        double A = n.getDouble(AREA) - dA;
+        boolean incremental;
         
-        // compute renormalization factor
-        double s = 0;
-        Iterator childIter = n.children();
-        while ( childIter.hasNext() )
-            s += ((NodeItem)childIter.next()).getDouble(AREA);
-        double t = A/s;
+        // nodes whose children are still to be laid out
+        private int[]    m_pending = new int[16];
+        private int      m_head, m_tail;
+        // nodes with new bounds
+        private int[]    m_placed = new int[16];
+        private int      m_placedCount;
+        // nodes whose children were culled or laid out
+        private int[]    m_culledNodes = new int[16];
+        private int      m_culledCount;
+        private int[]    m_opened = new int[16];
+        private int      m_openedCount;
+        // the smallest laid out and largest culled node size
+        double m_shown, m_culled;
+        // children sorted by area, and the current row
+        private int[]    m_kids = new int[16];
+        private double[] m_areas = new double[16];
+        private int[]    m_tmpKids = new int[16];
+        private double[] m_tmpAreas = new double[16];
+        private int[]    m_row = new int[16];
+        // the space remaining for the children
+        private double   m_rx, m_ry, m_rw, m_rh;
         
-        // re-normalize children areas
-        childIter = n.children();
-        while ( childIter.hasNext() ) {
-            NodeItem c = (NodeItem)childIter.next();
-            c.setDouble(AREA, c.getDouble(AREA)*t);
+        void clear() {
+            m_head = m_tail = m_placedCount = 0;
+            m_culledCount = m_openedCount = 0;
+            m_shown = Double.POSITIVE_INFINITY;
+            m_culled = 0;
         }
         
-        // set bounding rectangle and return
-        r = new Rectangle2D(b.getMinX()+m_frame,       b.getMinY()+m_frame, 
-                  b.getWidth()-2*m_frame, b.getHeight()-2*m_frame);
-        return;
-    }
-    
-    private void squarify(List c, List row, double w, Rectangle2D r) {
-        double worst = Double.MAX_VALUE, nworst;
-        int len;
+        int pendingCount() {
+            return m_tail - m_head;
+        }
         
-        while ( (len=c.size()) > 0 ) {
-            // add item to the row list, ignore if negative area
-            VisualItem item = (VisualItem) c.get(len-1);
-            double a = item.getDouble(AREA);
-            if (a <= 0.0) {
-                c.remove(len-1);
-                continue;
+        int next() {
+            return m_pending[m_head++];
+        }
+        
+        void pending(int n) {
+            if ( m_tail == m_pending.length )
+                m_pending = Arrays.copyOf(m_pending, 2*m_tail);
+            m_pending[m_tail++] = n;
+        }
+        
+        /**
+         * Lay out the subtree below a node, depth first.
+         */
+        void layoutBelow(int n) {
+            clear();
+            pending(n);
+            while ( m_tail > 0 )
+                layoutChildren(m_pending[--m_tail]);
+        }
+        
+        /**
+         * Lay out the children of a node within its bounds, unless the
+         * node, its children and its descendants are unchanged since the
+         * previous layout. Children that have children of their own are
+         * added to the pending nodes.
+         */
+        void layoutChildren(int p) {
+            LayoutTree lt = m_tree;
+            if ( lt.first[p] < 0 ) return;
+            if ( m_lod.isEnabled() && p != lt.root ) {
+                double size = Math.max(m_w[p], m_h[p]);
+                if ( m_lod.cull(size) ) {
+                    m_culled = Math.max(m_culled, size);
+                    m_laidOut[p] = false;
+                    m_culledNodes = add(m_culledNodes, m_culledCount++, p);
+                    return;
+                }
+                m_shown = Math.min(m_shown, size);
             }
-            row.add(item);
             
-            nworst = worst(row, w);
-            if ( nworst <= worst ) {
-                c.remove(len-1);
-                worst = nworst;
-            } else {
-                row.remove(row.size()-1); // remove the latest addition
-                r = layoutRow(row, w, r); // layout the current row
-                w = Math.min(r.getWidth(),r.getHeight()); // recompute w
-                row.clear(); // clear the row
-                worst = Double.MAX_VALUE;
+            // gather the children and their areas
+            int cc = 0;
+            for ( int c=lt.first[p]; c>=0; c=lt.next[c] ) {
+                if ( cc == m_kids.length ) grow();
+                m_kids[cc] = c;
+                m_areas[cc++] = m_sum[c]*m_scale;
+            }
+            
+            double x = m_x[p], y = m_y[p], w = m_w[p], h = m_h[p];
+            if ( m_frame != 0.0 ) {
+                // compute area loss due to frame
+                double dA = 2*m_frame*(w+h-2*m_frame);
+                double A = m_area[p] - dA;
+                
+                // compute renormalization factor
+                double s = 0;
+                for ( int i=0; i<cc; ++i )
+                    s += m_areas[i];
+                double t = A/s;
+                
+                // re-normalize children areas
+                for ( int i=0; i<cc; ++i )
+                    m_areas[i] *= t;
+                
+                x += m_frame;
+                y += m_frame;
+                w -= 2*m_frame;
+                h -= 2*m_frame;
+            }
+            
+            if ( incremental && m_laidOut[p] && m_path[p] != m_run
+                 && m_ix[p] == x && m_iy[p] == y
+                 && m_iw[p] == w && m_ih[p] == h && sameAreas(cc) )
+            {
+                // the children and their subtrees keep their layout
+                return;
+            }
+            m_ix[p] = x; m_iy[p] = y;
+            m_iw[p] = w; m_ih[p] = h;
+            m_laidOut[p] = true;
+            m_opened = add(m_opened, m_openedCount++, p);
+            for ( int i=0; i<cc; ++i ) {
+                int c = m_kids[i];
+                m_area[c] = m_areas[i];
+                // children without area are not placed
+                if ( !(m_areas[i] > 0) ) m_laidOut[c] = false;
+            }
+            
+            // create sorted list of children
+            sort(cc);
+            
+            // do squarified layout of siblings
+            m_rx = x; m_ry = y; m_rw = w; m_rh = h;
+            squarify(cc, Math.min(w, h));
+            
+            // recurse
+            for ( int c=lt.first[p]; c>=0; c=lt.next[c] ) {
+                if ( lt.first[c] >= 0 && m_area[c] > 0 )
+                    pending(c);
             }
         }
-        if ( row.size() > 0 ) {
-            r = layoutRow(row, w, r); // layout the current row
-            row.clear(); // clear the row
+        
+        private boolean sameAreas(int cc) {
+            for ( int i=0; i<cc; ++i ) {
+                if ( m_area[m_kids[i]] != m_areas[i] )
+                    return false;
+            }
+            return true;
         }
-    }
-
-    private double worst(List rlist, double w) {
-        double rmax = Double.MIN_VALUE, rmin = Double.MAX_VALUE, s = 0.0;
-        Iterator iter = rlist.iterator();
-        while ( iter.hasNext() ) {
-            double r = ((VisualItem)iter.next()).getDouble(AREA);
-            rmin = Math.min(rmin, r);
-            rmax = Math.max(rmax, r);
-            s += r;
+        
+        private void squarify(int len, double w) {
+            double worst = Double.MAX_VALUE, nworst;
+            double rmin = Double.MAX_VALUE, rmax = Double.MIN_VALUE, s = 0;
+            int rc = 0;
+            
+            while ( len > 0 ) {
+                // add item to the row, ignore if negative area
+                double a = m_areas[len-1];
+                if ( a <= 0.0 ) {
+                    --len;
+                    continue;
+                }
+                double nmin = Math.min(rmin, a), nmax = Math.max(rmax, a);
+                double ns = s + a;
+                nworst = worst(nmin, nmax, ns, w);
+                if ( nworst <= worst || rc == 0 ) {
+                    m_row[rc++] = m_kids[--len];
+                    worst = nworst;
+                    rmin = nmin; rmax = nmax; s = ns;
+                } else {
+                    layoutRow(rc, s, w); // layout the current row
+                    w = Math.min(m_rw, m_rh); // recompute w
+                    rc = 0; // clear the row
+                    worst = Double.MAX_VALUE;
+                    rmin = Double.MAX_VALUE; rmax = Double.MIN_VALUE; s = 0;
+                }
+            }
+            if ( rc > 0 )
+                layoutRow(rc, s, w); // layout the current row
         }
-        s = s*s; w = w*w;
-        return Math.max(w*rmax/s, s/(w*rmin));
-    }
-    
-    private Rectangle2D layoutRow(List row, double w, Rectangle2D r) {        
-        double s = 0; // sum of row areas
-        Iterator rowIter = row.iterator();
-        while ( rowIter.hasNext() )
-            s += ((VisualItem)rowIter.next()).getDouble(AREA);
-        double x = r.getMinX(), y = r.getMinY(), d = 0;
-        double h = w==0 ? 0 : s/w;
-        boolean horiz = (w == r.getWidth());
         
-        // set node positions and dimensions
-        rowIter = row.iterator();
-        while ( rowIter.hasNext() ) {
-            NodeItem n = (NodeItem)rowIter.next();
-            NodeItem p = (NodeItem)n.getParent();
-            if ( horiz ) {
-                setX(n, p, x+d);
-                setY(n, p, y);
-            } else {
-                setX(n, p, x);
-                setY(n, p, y+d);
+        private double worst(double rmin, double rmax, double s, double w) {
+            s = s*s; w = w*w;
+            return Math.max(w*rmax/s, s/(w*rmin));
+        }
+        
+        private void layoutRow(int rc, double s, double w) {
+            double x = m_rx, y = m_ry, d = 0;
+            double h = w==0 ? 0 : s/w;
+            boolean horiz = (w == m_rw);
+            
+            // set node positions and dimensions
+            for ( int i=0; i<rc; ++i ) {
+                int n = m_row[i];
+                double nw = m_area[n]/h;
+                if ( horiz ) {
+                    m_x[n] = x+d;
+                    m_y[n] = y;
+                    m_w[n] = nw;
+                    m_h[n] = h;
+                } else {
+                    m_x[n] = x;
+                    m_y[n] = y+d;
+                    m_w[n] = h;
+                    m_h[n] = nw;
+                }
+                d += nw;
+                place(n);
             }
-            double nw = n.getDouble(AREA)/h;
+            // update space available in rectangle r
             if ( horiz ) {
-                setNodeDimensions(n,nw,h);
-                d += nw;
+                m_ry = y+h;
+                m_rh -= h;
             } else {
-                setNodeDimensions(n,h,nw);
-                d += nw;
+                m_rx = x+h;
+                m_rw -= h;
             }
         }
-        // update space available in rectangle r
-        if ( horiz )
-            r = new Rectangle2D(x,y+h,r.getWidth(),r.getHeight()-h);
-        else
-            r = new Rectangle2D(x+h,y,r.getWidth()-h,r.getHeight());
-        return r;
-    }
-    
-    private void setNodeDimensions(NodeItem n, double w, double h) {
-        n.setBounds(n.getX(), n.getY(), w, h);
-    }
+        
+        private void place(int n) {
+            m_placed = add(m_placed, m_placedCount++, n);
+        }
+        
+        private int[] add(int[] a, int i, int n) {
+            if ( i == a.length )
+                a = Arrays.copyOf(a, 2*i);
+            a[i] = n;
+            return a;
+        }
+        
+        /**
+         * Set the bounds of the placed nodes, and update the culled and
+         * expanded nodes.
+         */
+        void flush() {
+            for ( int i=0; i<m_openedCount; ++i )
+                m_lod.expand(m_tree.items[m_opened[i]]);
+            for ( int i=0; i<m_placedCount; ++i )
+                setNodeBounds(m_placed[i]);
+            for ( int i=0; i<m_culledCount; ++i )
+                m_lod.aggregate(m_tree.items[m_culledNodes[i]]);
+            m_placedCount = m_culledCount = m_openedCount = 0;
+        }
+        
+        /**
+         * Stable merge sort of the children by ascending area, keeping the
+         * natural order of children with equal areas.
+         */
+        private void sort(int len) {
+            int[] k = m_kids, tk = m_tmpKids;
+            double[] a = m_areas, ta = m_tmpAreas;
+            for ( int w=1; w<len; w*=2 ) {
+                for ( int lo=0; lo<len; lo+=2*w ) {
+                    int mid = Math.min(lo+w, len), hi = Math.min(lo+2*w, len);
+                    int i = lo, j = mid, o = lo;
+                    while ( i < mid && j < hi ) {
+                        if ( a[j] < a[i] ) { ta[o] = a[j]; tk[o++] = k[j++]; }
+                        else               { ta[o] = a[i]; tk[o++] = k[i++]; }
+                    }
+                    while ( i < mid ) { ta[o] = a[i]; tk[o++] = k[i++]; }
+                    while ( j < hi )  { ta[o] = a[j]; tk[o++] = k[j++]; }
+                }
+                int[] t = k; k = tk; tk = t;
+                double[] u = a; a = ta; ta = u;
+            }
+            m_kids = k; m_tmpKids = tk;
+            m_areas = a; m_tmpAreas = ta;
+        }
+        
+        private void grow() {
+            int len = 2*m_kids.length;
+            m_kids = Arrays.copyOf(m_kids, len);
+            m_areas = Arrays.copyOf(m_areas, len);
+            m_tmpKids = new int[len];
+            m_tmpAreas = new double[len];
+            m_row = new int[len];
+        }
+        
+    } // end of inner class Squarifier
     
 } // end of class SquarifiedTreeMapLayout
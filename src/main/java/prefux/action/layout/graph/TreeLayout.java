@@ -32,6 +32,7 @@ package prefux.action.layout.graph;
 
 import prefux.action.layout.Layout;
 import prefux.data.Graph;
+import prefux.data.Schema;
 import prefux.data.Tree;
 import prefux.data.tuple.TupleSet;
 import prefux.visual.NodeItem;
@@ -44,6 +45,19 @@ import prefux.visual.NodeItem;
  */
 public abstract class TreeLayout extends Layout {
 
+    /**
+     * The data field in which tree layouts that cull small subtrees mark
+     * the nodes whose descendants are not laid out.
+     */
+    public static final String AGGREGATED = "_aggregated";
+    /**
+     * The schema for the aggregated field.
+     */
+    public static final Schema AGGREGATED_SCHEMA = new Schema();
+    static {
+        AGGREGATED_SCHEMA.addColumn(AGGREGATED, boolean.class, false);
+    }
+    
     protected NodeItem m_root;
 
     /**
@@ -41,6 +41,7 @@ import prefux.data.expression.Predicate;
 import prefux.data.tuple.CompositeTupleSet;
 import prefux.data.tuple.TableEdge;
 import prefux.data.tuple.TableNode;
+import prefux.data.tuple.TupleFactory;
 import prefux.data.tuple.TupleManager;
 import prefux.data.tuple.TupleSet;
 import prefux.data.util.Index;
@@ -312,8 +313,10 @@ public class Graph extends CompositeTupleSet {
         
         // set up tuple manager
         if ( m_nodeTuples == null )
-            m_nodeTuples = new TupleManager(nodes, this, TableNode.class);
-        m_edgeTuples = new TupleManager(edges, this, TableEdge.class);
+            m_nodeTuples = new TupleManager(nodes, this, TableNode.class,
+                                            TableNode::new);
+        m_edgeTuples = new TupleManager(edges, this, TableEdge.class,
+                                        TableEdge::new);
         
         // set up node attribute optimization
         initLinkTable();
@@ -345,6 +348,21 @@ public class Graph extends CompositeTupleSet {
         m_edgeTuples = etm;
     }
     
+    /**
+     * Set the factories used to create the Node and Edge tuples of this
+     * Graph. The factories must create instances of the tuple types of the
+     * current node and edge TupleManagers. All existing Node and Edge
+     * instances are invalidated.
+     * @param nodeFactory the factory to use for nodes
+     * @param edgeFactory the factory to use for edges
+     */
+    public void setTupleFactories(TupleFactory nodeFactory,
+                                  TupleFactory edgeFactory)
+    {
+        m_nodeTuples.setTupleFactory(nodeFactory);
+        m_edgeTuples.setTupleFactory(edgeFactory);
+    }
+    
     /**
      * Dispose of this graph. Unregisters this graph as a listener to its
      * included tables.
@@ -1071,6 +1089,20 @@ public class Graph extends CompositeTupleSet {
         return (Iterator<? extends Node>) m_nodeTuples.iterator(nodeRows());
     }
 
+    /**
+     * Get a cursor over all nodes in the graph. The cursor returns a single
+     * reusable Node instance bound to each node row in turn, so iterating
+     * over a large graph does not create or retain a Node object per row.
+     * The returned Node is only valid until the next call to
+     * <code>next()</code>. For visual graphs, the cursor returns the
+     * distinct node items, just as {@link #nodes()} does.
+     * @return a cursor over the graph nodes
+     * @see prefux.data.tuple.TupleManager#cursor(IntIterator)
+     */
+    public Iterator<? extends Node> nodeCursor() {
+        return m_nodeTuples.cursor(nodeRows(), Node.class);
+    }
+
     /**
      * Get an iterator over all neighbor nodes for the given Node in the graph.
      * @param n a Node in the graph
@@ -1106,6 +1138,19 @@ public class Graph extends CompositeTupleSet {
         return (Iterator<? extends Edge>) m_edgeTuples.iterator(edgeRows());
     }
     
+    /**
+     * Get a cursor over all edges in the graph. The cursor returns a single
+     * reusable Edge instance bound to each edge row in turn. The returned
+     * Edge is only valid until the next call to <code>next()</code>. For
+     * visual graphs, the cursor returns the distinct edge items, just as
+     * {@link #edges()} does.
+     * @return a cursor over the graph edges
+     * @see prefux.data.tuple.TupleManager#cursor(IntIterator)
+     */
+    public Iterator<? extends Edge> edgeCursor() {
+        return m_edgeTuples.cursor(edgeRows(), Edge.class);
+    }
+    
     /**
      * Get an iterator over all Edges connected to the given Node in the graph.
      * @param node a Node in the graph
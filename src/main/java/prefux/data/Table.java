@@ -48,6 +48,7 @@ import prefux.data.expression.Predicate;
 import prefux.data.expression.parser.ExpressionParser;
 import prefux.data.tuple.AbstractTupleSet;
 import prefux.data.tuple.TableTuple;
+import prefux.data.tuple.TupleFactory;
 import prefux.data.tuple.TupleManager;
 import prefux.data.util.FilterIteratorFactory;
 import prefux.data.util.Index;
@@ -273,6 +274,37 @@ public class Table extends AbstractTupleSet implements ColumnListener {
         m_tuples = tm;
     }
     
+    /**
+     * Get the factory used to create the Tuples of this Table.
+     * @return the tuple factory
+     */
+    public TupleFactory getTupleFactory() {
+        return m_tuples.getTupleFactory();
+    }
+    
+    /**
+     * Sets the factory used to create the Tuples of this Table, for
+     * example a constructor reference such as <code>TableTuple::new</code>.
+     * The factory must create instances of the tuple type this Table was
+     * created with. All existing Tuples retrieved from this Table are
+     * invalidated.
+     * @param factory the tuple factory to use
+     */
+    public void setTupleFactory(TupleFactory factory) {
+        m_tuples.setTupleFactory(factory);
+    }
+    
+    /**
+     * Create the Tuples for a range of rows ahead of use. This is
+     * faster than creating them one at a time as they are requested,
+     * for example when an action is about to visit every row.
+     * @param start the first row index, inclusive
+     * @param end the last row index, exclusive
+     */
+    public void instantiateTuples(int start, int end) {
+        m_tuples.instantiate(start, end);
+    }
+    
     /**
      * Returns this Table's schema. The returned schema will be
      * locked, which means that any attempts to edit the returned schema
@@ -1647,6 +1679,34 @@ public class Table extends AbstractTupleSet implements ColumnListener {
         return m_tuples.iterator(rows);
     }
     
+    /**
+     * Get a cursor over the tuples in this table. The cursor returns a
+     * single reusable Tuple instance bound to each row in turn, so no
+     * per-row Tuple objects are created or retained. The returned Tuple is
+     * only valid until the next call to <code>next()</code>. For visual
+     * tables, the cursor returns the distinct items, just as
+     * {@link #tuples()} does.
+     * @return a cursor over the table tuples
+     * @see prefux.data.tuple.TupleManager#cursor(IntIterator)
+     */
+    public Iterator<? extends Tuple> tupleCursor() {
+        return m_tuples.cursor(rows());
+    }
+    
+    /**
+     * Get a cursor over the tuples for the given rows in this table. The
+     * cursor returns a single reusable Tuple instance bound to each row in
+     * turn. The returned Tuple is only valid until the next call to
+     * <code>next()</code>. For visual tables, the cursor returns the
+     * distinct items, just as {@link #tuples(IntIterator)} does.
+     * @param rows an iterator over the table rows to visit
+     * @return a cursor over the selected table tuples
+     * @see prefux.data.tuple.TupleManager#cursor(IntIterator)
+     */
+    public Iterator<? extends Tuple> tupleCursor(IntIterator rows) {
+        return m_tuples.cursor(rows);
+    }
+    
     /**
      * Get an interator over the row numbers of this table.
      * @return an iterator over the rows of this table
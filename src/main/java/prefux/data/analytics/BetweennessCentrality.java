@@ -0,0 +1,249 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import prefux.data.Table;
+
+/**
+ * <p>Graph analytic computing the betweenness centrality of every node
+ * using Brandes' algorithm for unweighted graphs. The single-source
+ * shortest path computations are independent, so they are distributed over
+ * worker threads, each accumulating into its own dependency array; the
+ * partial results are summed once all sources have been processed.
+ * Progress is reported from the calling thread only, as it takes part in
+ * processing the sources.</p>
+ *
+ * <p>For large graphs the exact computation, which is O(N E), can be
+ * replaced by an estimate from a random sample of source nodes using
+ * {@link #setSampleCount(int)}. Sampling is seeded, so results are
+ * reproducible.</p>
+ *
+ * <p>The algorithm is that of U. Brandes, <i>A Faster Algorithm for
+ * Betweenness Centrality</i>, Journal of Mathematical Sociology 25(2),
+ * 2001.</p>
+ */
+public class BetweennessCentrality extends GraphAnalytic {
+
+    private boolean m_normalize;
+    private int     m_samples = -1;
+    private long    m_seed = 12345678L;
+
+    /**
+     * Create a new BetweennessCentrality analytic without normalization.
+     */
+    public BetweennessCentrality() {
+        this(false);
+    }
+
+    /**
+     * Create a new BetweennessCentrality analytic.
+     * @param normalize true to scale values by the number of node pairs
+     * not including the node itself
+     */
+    public BetweennessCentrality(boolean normalize) {
+        m_normalize = normalize;
+    }
+
+    /**
+     * Get the number of sampled source nodes.
+     * @return the number of sampled sources, or -1 if all nodes are used
+     */
+    public int getSampleCount() {
+        return m_samples;
+    }
+
+    /**
+     * Set the number of source nodes to sample for an approximate result.
+     * @param samples the number of sampled sources, or -1 to compute the
+     * exact values from all nodes
+     */
+    public void setSampleCount(int samples) {
+        m_samples = samples;
+    }
+
+    /**
+     * Set the seed of the random generator used for sampling source nodes.
+     * @param seed the random seed
+     */
+    public void setSeed(long seed) {
+        m_seed = seed;
+    }
+
+    /**
+     * Compute the betweenness centrality values.
+     * @param adj the adjacency snapshot to analyze
+     * @return the centrality values, indexed by node row
+     */
+    public double[] compute(GraphAdjacency adj) {
+        final int size = adj.size();
+        int[] sources = getSources(adj);
+        final int nsrc = sources.length;
+        final AtomicInteger done = new AtomicInteger();
+        final int step = Math.max(1, nsrc/100);
+        final Thread caller = Thread.currentThread();
+        final int[] next = { step }; // only touched by the calling thread
+
+        IntStream s = Arrays.stream(sources);
+        if ( m_parallel ) s = s.parallel();
+        Brandes total = s.collect(
+            () -> new Brandes(adj),
+            (b, src) -> {
+                if ( isCancelled() ) return;
+                b.accumulate(src);
+                int k = done.incrementAndGet();
+                if ( Thread.currentThread() == caller && k >= next[0] ) {
+                    next[0] = k + step;
+                    fireProgress(k / (double)nsrc);
+                }
+            },
+            Brandes::combine);
+
+        double[] cb = total.m_cb;
+        int n = adj.getNodeCount();
+        double scale = 1.0;
+        if ( nsrc > 0 && nsrc < n )
+            scale *= n / (double)nsrc;
+        if ( !adj.isDirected() )
+            scale /= 2;
+        if ( m_normalize && n > 2 )
+            scale /= adj.isDirected() ? (n-1.0)*(n-2) : (n-1.0)*(n-2)/2;
+        for ( int i=0; i<size; ++i )
+            cb[i] *= scale;
+        m_iterations = 1;
+        fireProgress(1.0);
+        return cb;
+    }
+
+    private int[] getSources(GraphAdjacency adj) {
+        int[] valid = new int[adj.getNodeCount()];
+        int n = 0;
+        for ( int i=0; i<adj.size(); ++i ) {
+            if ( adj.isValid(i) ) valid[n++] = i;
+        }
+        if ( m_samples < 0 || m_samples >= n )
+            return valid;
+        // partial Fisher-Yates shuffle for a uniform sample
+        Random rand = new Random(m_seed);
+        for ( int i=0; i<m_samples; ++i ) {
+            int j = i + rand.nextInt(n-i);
+            int t = valid[i]; valid[i] = valid[j]; valid[j] = t;
+        }
+        return Arrays.copyOf(valid, m_samples);
+    }
+
+    /**
+     * @see prefux.data.analytics.GraphAnalytic#store(prefux.data.analytics.GraphAdjacency, prefux.data.Table, java.lang.String)
+     */
+    protected void store(GraphAdjacency adj, Table nodes, String field) {
+        double[] cb = compute(adj);
+        if ( !isCancelled() )
+            storeDoubles(adj, nodes, field, cb);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Per-thread scratch space and partial result for Brandes' algorithm.
+     */
+    private static final class Brandes {
+        final GraphAdjacency m_adj;
+        final double[] m_cb, m_sigma, m_delta;
+        final int[] m_dist, m_order;
+
+        Brandes(GraphAdjacency adj) {
+            int n = adj.size();
+            m_adj = adj;
+            m_cb = new double[n];
+            m_sigma = new double[n];
+            m_delta = new double[n];
+            m_dist = new int[n];
+            m_order = new int[n];
+            Arrays.fill(m_dist, -1);
+        }
+
+        void accumulate(int s) {
+            int[] ooff = m_adj.getOutOffsets(), onbr = m_adj.getOutNeighbors();
+            int[] ioff = m_adj.getInOffsets(),  inbr = m_adj.getInNeighbors();
+            int[] dist = m_dist, order = m_order;
+            double[] sigma = m_sigma, delta = m_delta;
+
+            // breadth-first search, the visit order doubles as the queue
+            int head = 0, tail = 0;
+            order[tail++] = s;
+            dist[s] = 0;
+            sigma[s] = 1;
+            while ( head < tail ) {
+                int v = order[head++];
+                for ( int i=ooff[v]; i<ooff[v+1]; ++i ) {
+                    int w = onbr[i];
+                    if ( dist[w] < 0 ) {
+                        dist[w] = dist[v] + 1;
+                        order[tail++] = w;
+                    }
+                    if ( dist[w] == dist[v] + 1 )
+                        sigma[w] += sigma[v];
+                }
+            }
+
+            // back-propagate dependencies in reverse visit order;
+            // predecessors are the in-neighbors one level closer
+            for ( int k=tail; --k>0; ) {
+                int w = order[k];
+                double coeff = (1 + delta[w]) / sigma[w];
+                for ( int i=ioff[w]; i<ioff[w+1]; ++i ) {
+                    int v = inbr[i];
+                    if ( dist[v] == dist[w] - 1 )
+                        delta[v] += sigma[v] * coeff;
+                }
+                m_cb[w] += delta[w];
+            }
+
+            // reset only what was touched
+            for ( int k=0; k<tail; ++k ) {
+                int v = order[k];
+                dist[v] = -1;
+                sigma[v] = 0;
+                delta[v] = 0;
+            }
+        }
+
+        void combine(Brandes other) {
+            for ( int i=0; i<m_cb.length; ++i )
+                m_cb[i] += other.m_cb[i];
+        }
+    } // end of inner class Brandes
+
+} // end of class BetweennessCentrality
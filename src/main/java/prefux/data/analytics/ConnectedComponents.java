@@ -0,0 +1,119 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import java.util.Arrays;
+
+import prefux.data.Table;
+
+/**
+ * <p>Graph analytic labeling every node with the index of its (weakly)
+ * connected component. Components are numbered from zero in the order of
+ * their lowest node row; edge directions are ignored.</p>
+ *
+ * <p>Components are found with a union-find pass over the adjacency lists,
+ * which is linear in the number of edges and so is run sequentially; only
+ * the final labeling pass is evaluated in parallel.</p>
+ */
+public class ConnectedComponents extends GraphAnalytic {
+
+    private int m_count = 0;
+
+    /**
+     * Get the number of components found by the last computation.
+     * @return the number of connected components
+     */
+    public int getComponentCount() {
+        return m_count;
+    }
+
+    /**
+     * Compute the component labels.
+     * @param adj the adjacency snapshot to analyze
+     * @return the component index of each node, indexed by node row.
+     * Invalid node rows are labeled -1.
+     */
+    public int[] compute(GraphAdjacency adj) {
+        final int size = adj.size();
+        final int[] parent = new int[size];
+        for ( int i=0; i<size; ++i ) parent[i] = i;
+
+        int[] off = adj.getOutOffsets();
+        int[] nbr = adj.getOutNeighbors();
+        for ( int u=0; u<size && !isCancelled(); ++u ) {
+            for ( int i=off[u]; i<off[u+1]; ++i ) {
+                int a = find(parent, u), b = find(parent, nbr[i]);
+                // the smaller row becomes the root, which keeps the
+                // component numbering independent of edge order
+                if ( a < b ) parent[b] = a;
+                else if ( b < a ) parent[a] = b;
+            }
+            if ( (u & 0xFFFF) == 0 )
+                fireProgress(u / (double)size);
+        }
+
+        // flatten, then number the roots in row order
+        for ( int u=0; u<size; ++u )
+            parent[u] = parent[parent[u]];
+        int[] label = new int[size];
+        Arrays.fill(label, -1);
+        int count = 0;
+        for ( int u=0; u<size; ++u ) {
+            if ( adj.isValid(u) && parent[u] == u )
+                label[u] = count++;
+        }
+        nodeStream(adj).forEach(u -> {
+            if ( adj.isValid(u) ) label[u] = label[parent[u]];
+        });
+        m_count = count;
+        m_iterations = 1;
+        fireProgress(1.0);
+        return label;
+    }
+
+    private static int find(int[] parent, int u) {
+        while ( parent[u] != u ) {
+            parent[u] = parent[parent[u]]; // path halving
+            u = parent[u];
+        }
+        return u;
+    }
+
+    /**
+     * @see prefux.data.analytics.GraphAnalytic#store(prefux.data.analytics.GraphAdjacency, prefux.data.Table, java.lang.String)
+     */
+    protected void store(GraphAdjacency adj, Table nodes, String field) {
+        int[] label = compute(adj);
+        if ( !isCancelled() )
+            storeInts(adj, nodes, field, label);
+    }
+
+} // end of class ConnectedComponents
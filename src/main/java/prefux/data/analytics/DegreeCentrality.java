@@ -0,0 +1,106 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+
+/**
+ * Graph analytic computing the degree of every node, optionally normalized
+ * by the maximum possible degree (the number of nodes minus one).
+ */
+public class DegreeCentrality extends GraphAnalytic {
+
+    private int     m_direction;
+    private boolean m_normalize;
+
+    /**
+     * Create a new DegreeCentrality analytic counting all incident edges,
+     * without normalization.
+     */
+    public DegreeCentrality() {
+        this(Graph.UNDIRECTED, false);
+    }
+
+    /**
+     * Create a new DegreeCentrality analytic.
+     * @param direction the edges to count. One of
+     * {@link prefux.data.Graph#INEDGES}, {@link prefux.data.Graph#OUTEDGES},
+     * or {@link prefux.data.Graph#UNDIRECTED} (for all edges). For
+     * undirected graphs the direction is ignored.
+     * @param normalize true to divide degrees by the number of nodes
+     * minus one
+     */
+    public DegreeCentrality(int direction, boolean normalize) {
+        if ( direction != Graph.INEDGES && direction != Graph.OUTEDGES
+             && direction != Graph.UNDIRECTED )
+        {
+            throw new IllegalArgumentException(
+                "Unrecognized edge type: " + direction);
+        }
+        m_direction = direction;
+        m_normalize = normalize;
+    }
+
+    /**
+     * Compute the node degrees.
+     * @param adj the adjacency snapshot to analyze
+     * @return the degree values, indexed by node row
+     */
+    public double[] compute(GraphAdjacency adj) {
+        final boolean in = !adj.isDirected() ? false
+            : m_direction != Graph.OUTEDGES;
+        final boolean out = !adj.isDirected() ? true
+            : m_direction != Graph.INEDGES;
+        final double norm = m_normalize && adj.getNodeCount() > 1
+            ? 1.0 / (adj.getNodeCount()-1) : 1.0;
+        double[] deg = new double[adj.size()];
+        nodeStream(adj).forEach(n -> {
+            if ( !adj.isValid(n) ) return;
+            int d = (in ? adj.getInDegree(n) : 0)
+                  + (out ? adj.getOutDegree(n) : 0);
+            deg[n] = d * norm;
+        });
+        m_iterations = 1;
+        fireProgress(1.0);
+        return deg;
+    }
+
+    /**
+     * @see prefux.data.analytics.GraphAnalytic#store(prefux.data.analytics.GraphAdjacency, prefux.data.Table, java.lang.String)
+     */
+    protected void store(GraphAdjacency adj, Table nodes, String field) {
+        double[] deg = compute(adj);
+        if ( !isCancelled() )
+            storeDoubles(adj, nodes, field, deg);
+    }
+
+} // end of class DegreeCentrality
@@ -0,0 +1,257 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.util.collections.IntIterator;
+
+/**
+ * <p>Compact, read-only snapshot of the link structure of a
+ * {@link prefux.data.Graph}, stored in compressed sparse row form. The
+ * neighbors of a node are held in one contiguous slice of a single int
+ * array, so analytics that sweep the whole graph many times (e.g., PageRank)
+ * touch only primitive arrays and can safely be evaluated from multiple
+ * threads.</p>
+ *
+ * <p>Nodes are indexed by their node table row. Rows that are not valid
+ * in the node table have no neighbors and are reported as invalid by
+ * {@link #isValid(int)}. For undirected graphs every edge is recorded in
+ * both directions, so the out- and in-neighbor lists are identical.</p>
+ */
+public class GraphAdjacency {
+
+    private int       m_size;
+    private int       m_nodeCount;
+    private boolean   m_directed;
+    private boolean[] m_valid;
+    private int[]     m_outOffsets;
+    private int[]     m_outNeighbors;
+    private int[]     m_inOffsets;
+    private int[]     m_inNeighbors;
+
+    /**
+     * Create a new adjacency snapshot of the given graph.
+     * @param g the Graph to snapshot
+     */
+    public GraphAdjacency(Graph g) {
+        Table nodes = g.getNodeTable();
+        Table edges = g.getEdgeTable();
+        int size = nodes.getMaximumRow() + 1;
+        boolean[] valid = new boolean[size];
+        for ( IntIterator rows = nodes.rows(); rows.hasNext(); )
+            valid[rows.nextInt()] = true;
+
+        // resolve edge endpoints once
+        int nedges = edges.getRowCount();
+        int[] src = new int[nedges];
+        int[] trg = new int[nedges];
+        int ne = 0;
+        for ( IntIterator rows = edges.rows(); rows.hasNext(); ) {
+            int e = rows.nextInt();
+            src[ne] = g.getSourceNode(e);
+            trg[ne] = g.getTargetNode(e);
+            ++ne;
+        }
+        init(valid, nodes.getRowCount(), src, trg, ne, g.isDirected());
+    }
+
+    /**
+     * Create a new adjacency snapshot from an edge list. All nodes in the
+     * range <code>[0, size)</code> are considered valid. Multiple edges
+     * between the same pair of nodes are retained.
+     * @param size the number of nodes
+     * @param sources the source node of each edge
+     * @param targets the target node of each edge
+     * @param nedges the number of edges, the length of the used prefix of
+     * the source and target arrays
+     * @param directed true for directed edges, false for undirected
+     */
+    public GraphAdjacency(int size, int[] sources, int[] targets,
+                          int nedges, boolean directed)
+    {
+        boolean[] valid = new boolean[size];
+        Arrays.fill(valid, true);
+        init(valid, size, Arrays.copyOf(sources, nedges),
+             Arrays.copyOf(targets, nedges), nedges, directed);
+    }
+
+    private void init(boolean[] valid, int nodeCount, int[] src, int[] trg,
+                      int nedges, boolean directed)
+    {
+        m_directed = directed;
+        m_size = valid.length;
+        m_nodeCount = nodeCount;
+        m_valid = valid;
+
+        // count degrees, skipping edges with unknown endpoints
+        int[] odeg = new int[m_size];
+        int[] ideg = new int[m_size];
+        int ne = 0;
+        for ( int i=0; i<nedges; ++i ) {
+            int s = src[i], t = trg[i];
+            if ( s < 0 || t < 0 || s >= m_size || t >= m_size )
+                continue;
+            src[ne] = s; trg[ne] = t; ++ne;
+            odeg[s]++; ideg[t]++;
+            if ( !m_directed && s != t ) {
+                odeg[t]++; ideg[s]++;
+            }
+        }
+
+        m_outOffsets = offsets(odeg);
+        m_inOffsets  = offsets(ideg);
+        m_outNeighbors = new int[m_outOffsets[m_size]];
+        m_inNeighbors  = new int[m_inOffsets[m_size]];
+
+        // fill the neighbor lists, reusing the degree arrays as cursors
+        System.arraycopy(m_outOffsets, 0, odeg, 0, m_size);
+        System.arraycopy(m_inOffsets,  0, ideg, 0, m_size);
+        for ( int i=0; i<ne; ++i ) {
+            int s = src[i], t = trg[i];
+            m_outNeighbors[odeg[s]++] = t;
+            m_inNeighbors[ideg[t]++] = s;
+            if ( !m_directed && s != t ) {
+                m_outNeighbors[odeg[t]++] = s;
+                m_inNeighbors[ideg[s]++] = t;
+            }
+        }
+    }
+
+    private static int[] offsets(int[] degree) {
+        int[] off = new int[degree.length+1];
+        for ( int i=0; i<degree.length; ++i )
+            off[i+1] = off[i] + degree[i];
+        return off;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the size of the node index space, one greater than the maximum
+     * node row. Arrays of per-node results should have this length.
+     * @return the size of the node index space
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Get the number of valid nodes in the snapshot.
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return m_nodeCount;
+    }
+
+    /**
+     * Indicates if the snapshot was taken from a directed graph.
+     * @return true if directed, false if undirected
+     */
+    public boolean isDirected() {
+        return m_directed;
+    }
+
+    /**
+     * Indicates if the given node row was a valid node when the snapshot
+     * was taken.
+     * @param node the node row
+     * @return true if the node is valid
+     */
+    public boolean isValid(int node) {
+        return m_valid[node];
+    }
+
+    /**
+     * Get the out-degree of a node. For undirected graphs this is the
+     * total degree.
+     * @param node the node row
+     * @return the out-degree
+     */
+    public int getOutDegree(int node) {
+        return m_outOffsets[node+1] - m_outOffsets[node];
+    }
+
+    /**
+     * Get the in-degree of a node. For undirected graphs this is the
+     * total degree.
+     * @param node the node row
+     * @return the in-degree
+     */
+    public int getInDegree(int node) {
+        return m_inOffsets[node+1] - m_inOffsets[node];
+    }
+
+    /**
+     * Get the offsets into the {@link #getOutNeighbors()} array. The out
+     * neighbors of node <code>n</code> occupy the range
+     * <code>[offsets[n], offsets[n+1])</code>. The backing array is
+     * returned directly and must not be modified.
+     * @return the out-neighbor offsets
+     */
+    public int[] getOutOffsets() {
+        return m_outOffsets;
+    }
+
+    /**
+     * Get the concatenated out-neighbor lists of all nodes. The backing
+     * array is returned directly and must not be modified.
+     * @return the out-neighbor array
+     * @see #getOutOffsets()
+     */
+    public int[] getOutNeighbors() {
+        return m_outNeighbors;
+    }
+
+    /**
+     * Get the offsets into the {@link #getInNeighbors()} array. The in
+     * neighbors of node <code>n</code> occupy the range
+     * <code>[offsets[n], offsets[n+1])</code>. The backing array is
+     * returned directly and must not be modified.
+     * @return the in-neighbor offsets
+     */
+    public int[] getInOffsets() {
+        return m_inOffsets;
+    }
+
+    /**
+     * Get the concatenated in-neighbor lists of all nodes. The backing
+     * array is returned directly and must not be modified.
+     * @return the in-neighbor array
+     * @see #getInOffsets()
+     */
+    public int[] getInNeighbors() {
+        return m_inNeighbors;
+    }
+
+} // end of class GraphAdjacency
@@ -0,0 +1,291 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import java.util.stream.IntStream;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.column.Column;
+import prefux.data.column.DoubleColumn;
+import prefux.data.column.IntColumn;
+import prefux.util.collections.CopyOnWriteArrayList;
+
+/**
+ * <p>Abstract base class for graph analytics that compute a value for every
+ * node of a {@link prefux.data.Graph}. Analytics operate on a
+ * {@link GraphAdjacency} snapshot of the graph, evaluate node values in
+ * parallel over the node rows (unless parallel evaluation is disabled), and
+ * write the results into a primitive column of the node table using a single
+ * bulk update, so listeners see one event rather than one per node.</p>
+ *
+ * <p>Iterative analytics honor the maximum iteration count and convergence
+ * tolerance settings. Registered {@link ProgressListener ProgressListeners}
+ * are notified as the computation advances, and a running computation can be
+ * stopped using {@link #cancel()}. To run an analytic through the
+ * {@link prefux.activity.ActivityManager}, wrap it in a
+ * {@link GraphAnalyticActivity}.</p>
+ */
+public abstract class GraphAnalytic {
+
+    /** The default maximum number of iterations for iterative analytics */
+    public static final int    DEFAULT_MAX_ITERATIONS = 100;
+    /** The default convergence tolerance for iterative analytics */
+    public static final double DEFAULT_TOLERANCE = 1E-6;
+
+    protected int     m_maxIterations = DEFAULT_MAX_ITERATIONS;
+    protected double  m_tolerance = DEFAULT_TOLERANCE;
+    protected boolean m_parallel = true;
+    protected int     m_iterations = 0;
+
+    private volatile boolean m_cancelled = false;
+    private CopyOnWriteArrayList m_listeners = new CopyOnWriteArrayList();
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the maximum number of iterations run by iterative analytics.
+     * @return the maximum number of iterations
+     */
+    public int getMaxIterations() {
+        return m_maxIterations;
+    }
+
+    /**
+     * Set the maximum number of iterations run by iterative analytics.
+     * @param iter the maximum number of iterations
+     */
+    public void setMaxIterations(int iter) {
+        if ( iter < 1 )
+            throw new IllegalArgumentException(
+                "Iterations must be a positive number!");
+        m_maxIterations = iter;
+    }
+
+    /**
+     * Get the convergence tolerance. Iterative analytics stop as soon as
+     * the change between two iterations drops below this value.
+     * @return the convergence tolerance
+     */
+    public double getTolerance() {
+        return m_tolerance;
+    }
+
+    /**
+     * Set the convergence tolerance. Iterative analytics stop as soon as
+     * the change between two iterations drops below this value.
+     * @param tolerance the convergence tolerance
+     */
+    public void setTolerance(double tolerance) {
+        if ( tolerance < 0 || Double.isNaN(tolerance) )
+            throw new IllegalArgumentException(
+                "Tolerance must be a non-negative number!");
+        m_tolerance = tolerance;
+    }
+
+    /**
+     * Indicates if node values are evaluated in parallel.
+     * @return true if evaluation is parallel, false if sequential
+     */
+    public boolean isParallel() {
+        return m_parallel;
+    }
+
+    /**
+     * Set if node values are evaluated in parallel, using the common
+     * fork/join pool. Parallel evaluation is enabled by default.
+     * @param parallel true for parallel evaluation, false for sequential
+     */
+    public void setParallel(boolean parallel) {
+        m_parallel = parallel;
+    }
+
+    /**
+     * Get the number of iterations performed by the last computation.
+     * @return the number of iterations performed
+     */
+    public int getIterationCount() {
+        return m_iterations;
+    }
+
+    /**
+     * Request that a running computation stops at the next opportunity.
+     * A cancelled computation does not write any results. A request made
+     * before {@link #apply(Graph, String)} is called cancels that run; the
+     * request is cleared once the run returns.
+     */
+    public void cancel() {
+        m_cancelled = true;
+    }
+
+    /**
+     * Indicates if the current computation has been cancelled.
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Compute this analytic over the given graph and store the results
+     * in the given field of the graph's node table. The column is created
+     * if it does not yet exist.
+     * @param g the Graph to analyze
+     * @param field the node data field in which to store the results
+     */
+    public void apply(Graph g, String field) {
+        try {
+            GraphAdjacency adj = new GraphAdjacency(g);
+            store(adj, g.getNodeTable(), field);
+        } finally {
+            m_cancelled = false;
+        }
+    }
+
+    /**
+     * Compute this analytic over the given adjacency snapshot and store the
+     * results in the given node table field. Implementations should
+     * return without writing anything if the computation is cancelled.
+     * @param adj the adjacency snapshot to analyze
+     * @param nodes the node table to write to
+     * @param field the data field in which to store the results
+     */
+    protected abstract void store(GraphAdjacency adj, Table nodes,
+                                  String field);
+
+    /**
+     * Get a stream over the node index space of the given adjacency,
+     * parallel or sequential depending on the {@link #isParallel()} setting.
+     * @param adj the adjacency snapshot
+     * @return a stream of node rows, including invalid rows
+     */
+    protected IntStream nodeStream(GraphAdjacency adj) {
+        IntStream s = IntStream.range(0, adj.size());
+        return m_parallel ? s.parallel() : s;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Write per-node double values into a node table column using a single
+     * bulk update. Values at invalid node rows are ignored.
+     * @param adj the adjacency snapshot the values were computed from
+     * @param nodes the node table
+     * @param field the data field to write, created as a double column if
+     * it does not exist
+     * @param values the values, indexed by node row
+     */
+    protected static void storeDoubles(GraphAdjacency adj, Table nodes,
+                                       String field, double[] values)
+    {
+        if ( !nodes.hasColumn(field) )
+            nodes.addColumn(field, double.class);
+        Column c = nodes.getColumn(field);
+        int end = Math.min(values.length, c.getRowCount());
+        if ( c instanceof DoubleColumn ) {
+            // don't disturb the contents of unused rows
+            for ( int r=0; r<end; ++r ) {
+                if ( !adj.isValid(r) ) values[r] = c.getDouble(r);
+            }
+            ((DoubleColumn)c).setDoubles(values, 0, end);
+        } else {
+            for ( int r=0; r<end; ++r ) {
+                if ( adj.isValid(r) && nodes.isValidRow(r) )
+                    nodes.setDouble(r, field, values[r]);
+            }
+        }
+    }
+
+    /**
+     * Write per-node int values into a node table column using a single
+     * bulk update. Values at invalid node rows are ignored.
+     * @param adj the adjacency snapshot the values were computed from
+     * @param nodes the node table
+     * @param field the data field to write, created as an int column if
+     * it does not exist
+     * @param values the values, indexed by node row
+     */
+    protected static void storeInts(GraphAdjacency adj, Table nodes,
+                                    String field, int[] values)
+    {
+        if ( !nodes.hasColumn(field) )
+            nodes.addColumn(field, int.class);
+        Column c = nodes.getColumn(field);
+        int end = Math.min(values.length, c.getRowCount());
+        if ( c instanceof IntColumn ) {
+            // don't disturb the contents of unused rows
+            for ( int r=0; r<end; ++r ) {
+                if ( !adj.isValid(r) ) values[r] = c.getInt(r);
+            }
+            ((IntColumn)c).setInts(values, 0, end);
+        } else {
+            for ( int r=0; r<end; ++r ) {
+                if ( adj.isValid(r) && nodes.isValidRow(r) )
+                    nodes.setInt(r, field, values[r]);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Listener Methods
+
+    /**
+     * Add a listener to be notified of the progress of computations.
+     * @param l the listener to add
+     */
+    public void addProgressListener(ProgressListener l) {
+        if ( !m_listeners.contains(l) )
+            m_listeners.add(l);
+    }
+
+    /**
+     * Remove a progress listener.
+     * @param l the listener to remove
+     */
+    public void removeProgressListener(ProgressListener l) {
+        m_listeners.remove(l);
+    }
+
+    /**
+     * Notify all registered listeners of computation progress. Must be
+     * called from the thread running the computation, not from the worker
+     * threads of a parallel evaluation.
+     * @param fraction the completed fraction of work, between 0 and 1
+     */
+    protected void fireProgress(double fraction) {
+        Object[] lstnrs = m_listeners.getArray();
+        for ( int i=0; i<lstnrs.length; ++i )
+            ((ProgressListener)lstnrs[i]).progressed(this, fraction);
+    }
+
+} // end of abstract class GraphAnalytic
@@ -0,0 +1,97 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import prefux.activity.Activity;
+import prefux.data.Graph;
+
+/**
+ * Activity that computes a {@link GraphAnalytic} over a graph and stores
+ * the results in a node data field. The activity runs a single step, so
+ * scheduling it with {@link #run()} performs the computation on the
+ * {@link prefux.activity.ActivityManager} thread, keeping long running
+ * analytics off the user interface thread. Cancelling the activity also
+ * cancels a computation in progress.
+ */
+public class GraphAnalyticActivity extends Activity {
+
+    private Graph         m_graph;
+    private GraphAnalytic m_analytic;
+    private String        m_field;
+
+    /**
+     * Create a new GraphAnalyticActivity.
+     * @param g the Graph to analyze
+     * @param analytic the analytic to compute
+     * @param field the node data field in which to store the results
+     */
+    public GraphAnalyticActivity(Graph g, GraphAnalytic analytic,
+                                 String field)
+    {
+        super(0);
+        m_graph = g;
+        m_analytic = analytic;
+        m_field = field;
+    }
+
+    /**
+     * Get the analytic computed by this activity.
+     * @return the graph analytic
+     */
+    public GraphAnalytic getAnalytic() {
+        return m_analytic;
+    }
+
+    /**
+     * Get the node data field in which results are stored.
+     * @return the result data field
+     */
+    public String getField() {
+        return m_field;
+    }
+
+    /**
+     * @see prefux.activity.Activity#run(long)
+     */
+    protected void run(long elapsedTime) {
+        m_analytic.apply(m_graph, m_field);
+    }
+
+    /**
+     * Cancels this activity along with any computation in progress.
+     * @see prefux.activity.Activity#cancel()
+     */
+    public void cancel() {
+        m_analytic.cancel();
+        super.cancel();
+    }
+
+} // end of class GraphAnalyticActivity
@@ -0,0 +1,184 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import java.util.Arrays;
+
+import prefux.data.Table;
+
+/**
+ * <p>Graph analytic detecting communities by label propagation. Every node
+ * starts with its own label and repeatedly adopts the label carried by most
+ * of its neighbors, ties being broken in favor of the node's current label
+ * and then the smallest label. Edge directions are ignored. The result is
+ * a community index for every node, numbered from zero in the order of the
+ * lowest node row in each community.</p>
+ *
+ * <p>In parallel mode labels are updated synchronously from the labels of
+ * the previous iteration; in sequential mode they are updated in place in
+ * row order, which usually converges in fewer iterations. The iteration
+ * stops once the fraction of nodes changing their label drops to the
+ * tolerance or below, or the maximum number of iterations is reached.</p>
+ *
+ * <p>The algorithm is that of U. N. Raghavan, R. Albert and S. Kumara,
+ * <i>Near linear time algorithm to detect community structures in
+ * large-scale networks</i>, Physical Review E 76, 2007.</p>
+ */
+public class LabelPropagation extends GraphAnalytic {
+
+    private int m_count = 0;
+
+    /**
+     * Create a new LabelPropagation analytic. The default tolerance stops
+     * once no node changes its label.
+     */
+    public LabelPropagation() {
+        m_tolerance = 0;
+    }
+
+    /**
+     * Get the number of communities found by the last computation.
+     * @return the number of communities
+     */
+    public int getCommunityCount() {
+        return m_count;
+    }
+
+    /**
+     * Compute the community labels.
+     * @param adj the adjacency snapshot to analyze
+     * @return the community index of each node, indexed by node row.
+     * Invalid node rows are labeled -1.
+     */
+    public int[] compute(GraphAdjacency adj) {
+        final int size = adj.size();
+        int[] label = new int[size];
+        int[] next = m_parallel ? new int[size] : label;
+        for ( int i=0; i<size; ++i ) label[i] = i;
+        final ThreadLocal<Counter> counters =
+            ThreadLocal.withInitial(() -> new Counter(size));
+        final double n = Math.max(1, adj.getNodeCount());
+
+        m_iterations = 0;
+        for ( int iter=0; iter<m_maxIterations && !isCancelled(); ++iter ) {
+            final int[] cur = label, nxt = next;
+            long changed = nodeStream(adj).filter(v -> {
+                if ( !adj.isValid(v) ) return false;
+                int l = counters.get().vote(adj, cur, v);
+                boolean change = l != cur[v];
+                nxt[v] = l;
+                return change;
+            }).count();
+            if ( m_parallel ) {
+                label = nxt; next = cur;
+            }
+            m_iterations = iter+1;
+            fireProgress(m_iterations / (double)m_maxIterations);
+            if ( changed / n <= m_tolerance ) break;
+        }
+
+        // renumber the labels in row order
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        int[] result = new int[size];
+        int count = 0;
+        for ( int v=0; v<size; ++v ) {
+            if ( !adj.isValid(v) ) {
+                result[v] = -1;
+                continue;
+            }
+            int l = label[v];
+            if ( index[l] < 0 ) index[l] = count++;
+            result[v] = index[l];
+        }
+        m_count = count;
+        return result;
+    }
+
+    /**
+     * @see prefux.data.analytics.GraphAnalytic#store(prefux.data.analytics.GraphAdjacency, prefux.data.Table, java.lang.String)
+     */
+    protected void store(GraphAdjacency adj, Table nodes, String field) {
+        int[] label = compute(adj);
+        if ( !isCancelled() )
+            storeInts(adj, nodes, field, label);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Per-thread label histogram, cleared after every vote by visiting only
+     * the touched entries.
+     */
+    private static final class Counter {
+        final int[] m_counts;
+        final int[] m_touched;
+
+        Counter(int size) {
+            m_counts = new int[size];
+            m_touched = new int[size];
+        }
+
+        int vote(GraphAdjacency adj, int[] label, int v) {
+            int best = label[v], bestCount = 0;
+            int ntouched = tally(adj.getOutOffsets(), adj.getOutNeighbors(),
+                             label, v, 0);
+            if ( adj.isDirected() )
+                ntouched = tally(adj.getInOffsets(), adj.getInNeighbors(),
+                                 label, v, ntouched);
+            if ( ntouched > 0 ) bestCount = m_counts[best];
+            for ( int i=0; i<ntouched; ++i ) {
+                int l = m_touched[i];
+                int c = m_counts[l];
+                if ( c > bestCount || (c == bestCount && l < best
+                                       && best != label[v]) )
+                {
+                    best = l;
+                    bestCount = c;
+                }
+            }
+            for ( int i=0; i<ntouched; ++i )
+                m_counts[m_touched[i]] = 0;
+            return best;
+        }
+
+        private int tally(int[] off, int[] nbr, int[] label, int v, int nt) {
+            for ( int i=off[v]; i<off[v+1]; ++i ) {
+                int u = nbr[i];
+                if ( u == v ) continue;
+                int l = label[u];
+                if ( m_counts[l]++ == 0 ) m_touched[nt++] = l;
+            }
+            return nt;
+        }
+    } // end of inner class Counter
+
+} // end of class LabelPropagation
@@ -0,0 +1,153 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.analytics;
+
+import prefux.data.Table;
+
+/**
+ * <p>Graph analytic computing the PageRank of every node by power
+ * iteration. Each iteration pulls rank along the in-links of a node, so
+ * node values can be updated independently and in parallel without
+ * synchronization. The rank of nodes without out-links is spread uniformly
+ * over all nodes. For undirected graphs each edge links both ways.</p>
+ *
+ * <p>The iteration stops once the L1 norm of the change in rank values
+ * drops below the tolerance, or the maximum number of iterations is
+ * reached.</p>
+ */
+public class PageRank extends GraphAnalytic {
+
+    /** The default damping factor */
+    public static final double DEFAULT_DAMPING = 0.85;
+
+    private double m_damping;
+
+    /**
+     * Create a new PageRank analytic with the default damping factor.
+     */
+    public PageRank() {
+        this(DEFAULT_DAMPING);
+    }
+
+    /**
+     * Create a new PageRank analytic.
+     * @param damping the damping factor, the probability of following a
+     * link rather than jumping to a random node
+     */
+    public PageRank(double damping) {
+        setDampingFactor(damping);
+    }
+
+    /**
+     * Get the damping factor.
+     * @return the damping factor
+     */
+    public double getDampingFactor() {
+        return m_damping;
+    }
+
+    /**
+     * Set the damping factor, the probability of following a link rather
+     * than jumping to a random node.
+     * @param damping the damping factor, between 0 and 1
+     */
+    public void setDampingFactor(double damping) {
+        if ( damping < 0 || damping > 1 || Double.isNaN(damping) )
+            throw new IllegalArgumentException(
+                "Damping factor must be between 0 and 1");
+        m_damping = damping;
+    }
+
+    /**
+     * Compute the PageRank values. The values of all valid nodes sum to one.
+     * @param adj the adjacency snapshot to analyze
+     * @return the rank values, indexed by node row
+     */
+    public double[] compute(GraphAdjacency adj) {
+        final int n = adj.getNodeCount();
+        final double d = m_damping;
+        final int[] ioff = adj.getInOffsets();
+        final int[] inbr = adj.getInNeighbors();
+
+        double[] rank = new double[adj.size()];
+        double[] next = new double[adj.size()];
+        final double[] contrib = new double[adj.size()];
+        m_iterations = 0;
+        if ( n == 0 ) return rank;
+
+        final double init = 1.0 / n;
+        final double[] start = rank;
+        nodeStream(adj).forEach(v -> {
+            if ( adj.isValid(v) ) start[v] = init;
+        });
+
+        for ( int iter=0; iter<m_maxIterations && !isCancelled(); ++iter ) {
+            final double[] cur = rank, nxt = next;
+            // spread rank over out-links, collecting rank of dangling nodes
+            double dangling = nodeStream(adj).mapToDouble(u -> {
+                if ( !adj.isValid(u) ) return 0;
+                int od = adj.getOutDegree(u);
+                if ( od == 0 ) {
+                    contrib[u] = 0;
+                    return cur[u];
+                }
+                contrib[u] = cur[u] / od;
+                return 0;
+            }).sum();
+
+            final double base = (1-d)/n + d*dangling/n;
+            double delta = nodeStream(adj).mapToDouble(v -> {
+                if ( !adj.isValid(v) ) return 0;
+                double sum = 0;
+                for ( int i=ioff[v]; i<ioff[v+1]; ++i )
+                    sum += contrib[inbr[i]];
+                nxt[v] = base + d*sum;
+                return Math.abs(nxt[v] - cur[v]);
+            }).sum();
+
+            rank = nxt; next = cur;
+            m_iterations = iter+1;
+            fireProgress(m_iterations / (double)m_maxIterations);
+            if ( delta < m_tolerance ) break;
+        }
+        return rank;
+    }
+
+    /**
+     * @see prefux.data.analytics.GraphAnalytic#store(prefux.data.analytics.GraphAdjacency, prefux.data.Table, java.lang.String)
+     */
+    protected void store(GraphAdjacency adj, Table nodes, String field) {
+        double[] rank = compute(adj);
+        if ( !isCancelled() )
+            storeDoubles(adj, nodes, field, rank);
+    }
+
+} // end of class PageRank
@@ -0,0 +1,462 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.cluster;
+
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.analytics.GraphAdjacency;
+import prefux.data.analytics.LabelPropagation;
+import prefux.util.collections.IntIntTreeMap;
+
+/**
+ * <p>Precomputed multilevel clustering of the nodes of a
+ * {@link prefux.data.Graph}. Level zero contains one leaf cluster per node,
+ * identified by the node's row. Each higher level partitions the clusters
+ * of the level below into larger clusters (supernodes), up to a top level
+ * of clusters without a parent.</p>
+ *
+ * <p>Clusters are identified by an int id. Leaf cluster ids are the node
+ * table rows, followed by the clusters of level one, level two, and so on.
+ * The leaves of every cluster occupy one contiguous range of a shared leaf
+ * ordering, so membership tests take constant time and iterating over the
+ * members of a cluster takes time proportional to its size.</p>
+ *
+ * <p>A hierarchy can be built either from node columns holding nested
+ * cluster labels, such as those stored by a
+ * {@link prefux.data.analytics.LabelPropagation} or
+ * {@link prefux.data.analytics.ConnectedComponents} analytic, or by
+ * repeated community detection over successively coarsened graphs using
+ * {@link #detectCommunities(Graph, int)}. The hierarchy is a snapshot and
+ * does not track later changes to the graph. Use a {@link ClusteredGraph}
+ * to materialize a level of the hierarchy as a graph of supernodes and
+ * superedges.</p>
+ */
+public class ClusterHierarchy {
+
+    private final Graph          m_graph;
+    private final GraphAdjacency m_adj;
+
+    private int   m_leafCount;
+    private int[] m_levelStart;
+    private int[] m_parent;
+    private int[] m_childOffsets;
+    private int[] m_children;
+    private int[] m_leafStart;
+    private int[] m_leafSize;
+    private int[] m_leafOrder;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+
+    /**
+     * Create a new ClusterHierarchy from node columns holding cluster
+     * labels. The first field gives the clusters of level one, the second
+     * those of level two, and so on. Labels are ints, and equal labels
+     * within a field denote the same cluster. Labels should be nested, that
+     * is, all members of a cluster should carry the same label at the next
+     * level; otherwise the label of the member with the lowest row is used.
+     * Nodes with a negative label are treated as clusters of their own.
+     * @param g the Graph to cluster
+     * @param fields the node data fields holding the cluster labels, from
+     * the finest to the coarsest level
+     */
+    public ClusterHierarchy(Graph g, String... fields) {
+        m_graph = g;
+        m_adj = new GraphAdjacency(g);
+        Table nodes = g.getNodeTable();
+        int[][] maps = new int[fields.length][];
+
+        // the lowest node row contained in each cluster of the current level
+        int[] rep = new int[m_adj.size()];
+        for ( int i=0; i<rep.length; ++i )
+            rep[i] = m_adj.isValid(i) ? i : -1;
+        for ( int k=0; k<fields.length; ++k ) {
+            int[] label = new int[rep.length];
+            for ( int i=0; i<rep.length; ++i ) {
+                label[i] = rep[i] < 0 ? -1
+                    : nodes.getInt(rep[i], fields[k]);
+            }
+            maps[k] = compact(label, rep);
+            rep = representatives(maps[k], rep);
+        }
+        build(maps);
+    }
+
+    /**
+     * Create a new ClusterHierarchy.
+     * @param g the clustered Graph
+     * @param adj the adjacency snapshot of the graph
+     * @param maps for each level, the cluster of the next level each
+     * cluster of this level belongs to. Level zero is indexed by node row
+     * and maps invalid rows to -1.
+     */
+    protected ClusterHierarchy(Graph g, GraphAdjacency adj, int[][] maps) {
+        m_graph = g;
+        m_adj = adj;
+        build(maps);
+    }
+
+    /**
+     * Build a ClusterHierarchy by community detection. Communities of the
+     * graph are found by label propagation, then the graph is coarsened by
+     * merging each community into a single node, and the process is
+     * repeated on the coarsened graph until the requested number of levels
+     * is reached or no further communities are found.
+     * @param g the Graph to cluster
+     * @param maxLevels the maximum number of levels above the leaves
+     * @return the cluster hierarchy
+     */
+    public static ClusterHierarchy detectCommunities(Graph g, int maxLevels) {
+        LabelPropagation lp = new LabelPropagation();
+        GraphAdjacency adj = new GraphAdjacency(g), cur = adj;
+        int[][] maps = new int[maxLevels][];
+        int levels = 0;
+        while ( levels < maxLevels ) {
+            int[] label = lp.compute(cur);
+            int count = lp.getCommunityCount();
+            if ( count == 0 || count >= cur.getNodeCount() )
+                break;
+            maps[levels++] = label;
+            cur = coarsen(cur, label, count);
+        }
+        int[][] used = new int[levels][];
+        System.arraycopy(maps, 0, used, 0, levels);
+        return new ClusterHierarchy(g, adj, used);
+    }
+
+    /**
+     * Merge every cluster of the given adjacency into a single node. Edges
+     * within a cluster are dropped, and parallel edges are retained so
+     * that later levels still see the strength of a connection.
+     */
+    private static GraphAdjacency coarsen(GraphAdjacency adj, int[] label,
+                                          int count)
+    {
+        int[] off = adj.getOutOffsets();
+        int[] nbr = adj.getOutNeighbors();
+        int[] src = new int[nbr.length];
+        int[] trg = new int[nbr.length];
+        int ne = 0;
+        for ( int u=0; u<adj.size(); ++u ) {
+            for ( int i=off[u]; i<off[u+1]; ++i ) {
+                int v = nbr[i];
+                // undirected adjacency lists every edge twice
+                if ( !adj.isDirected() && v < u ) continue;
+                int a = label[u], b = label[v];
+                if ( a < 0 || b < 0 || a == b ) continue;
+                src[ne] = a; trg[ne] = b; ++ne;
+            }
+        }
+        return new GraphAdjacency(count, src, trg, ne, adj.isDirected());
+    }
+
+    /**
+     * Renumber the labels of the clusters with a representative to the
+     * range [0, count), in the order of the lowest representative row.
+     * Clusters with a negative label are given a label of their own.
+     */
+    private static int[] compact(int[] label, int[] rep) {
+        int n = label.length;
+        // visit clusters in order of their lowest member row
+        int maxRow = -1;
+        for ( int i=0; i<n; ++i ) maxRow = Math.max(maxRow, rep[i]);
+        int[] byRow = new int[maxRow+1];
+        Arrays.fill(byRow, -1);
+        for ( int i=0; i<n; ++i )
+            if ( rep[i] >= 0 ) byRow[rep[i]] = i;
+
+        IntIntTreeMap ids = new IntIntTreeMap();
+        int[] map = new int[n];
+        Arrays.fill(map, -1);
+        int count = 0;
+        for ( int r=0; r<byRow.length; ++r ) {
+            int i = byRow[r];
+            if ( i < 0 ) continue;
+            if ( label[i] < 0 ) {
+                map[i] = count++;
+            } else {
+                int id = ids.get(label[i]);
+                if ( id == Integer.MIN_VALUE ) ids.put(label[i], id = count++);
+                map[i] = id;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Compute the lowest member row of each cluster of the next level.
+     */
+    private static int[] representatives(int[] map, int[] rep) {
+        int count = 0;
+        for ( int i=0; i<map.length; ++i ) count = Math.max(count, map[i]+1);
+        int[] next = new int[count];
+        Arrays.fill(next, -1);
+        for ( int i=0; i<map.length; ++i ) {
+            int c = map[i];
+            if ( c >= 0 && (next[c] < 0 || rep[i] < next[c]) )
+                next[c] = rep[i];
+        }
+        return next;
+    }
+
+    // ------------------------------------------------------------------------
+    // Hierarchy Construction
+
+    private void build(int[][] maps) {
+        int nlevels = maps.length + 1;
+        m_leafCount = m_adj.size();
+
+        // cluster ids are assigned level by level
+        m_levelStart = new int[nlevels+1];
+        m_levelStart[1] = m_leafCount;
+        for ( int k=0; k<maps.length; ++k ) {
+            int count = 0;
+            for ( int i=0; i<maps[k].length; ++i )
+                count = Math.max(count, maps[k][i]+1);
+            m_levelStart[k+2] = m_levelStart[k+1] + count;
+        }
+        int total = m_levelStart[nlevels];
+
+        m_parent = new int[total];
+        Arrays.fill(m_parent, -1);
+        int[] nchildren = new int[total];
+        for ( int k=0; k<maps.length; ++k ) {
+            int base = m_levelStart[k], next = m_levelStart[k+1];
+            for ( int i=0; i<maps[k].length; ++i ) {
+                if ( maps[k][i] < 0 ) continue;
+                int p = next + maps[k][i];
+                m_parent[base+i] = p;
+                nchildren[p]++;
+            }
+        }
+
+        // children lists, in ascending id order
+        m_childOffsets = new int[total+1];
+        for ( int c=0; c<total; ++c )
+            m_childOffsets[c+1] = m_childOffsets[c] + nchildren[c];
+        m_children = new int[m_childOffsets[total]];
+        int[] fill = new int[total];
+        for ( int c=0; c<total; ++c ) {
+            int p = m_parent[c];
+            if ( p >= 0 )
+                m_children[m_childOffsets[p] + fill[p]++] = c;
+        }
+
+        // leaf counts bottom up, then leaf ranges top down
+        m_leafSize = new int[total];
+        for ( int i=0; i<m_leafCount; ++i )
+            if ( m_adj.isValid(i) ) m_leafSize[i] = 1;
+        for ( int c=0; c<total; ++c )
+            if ( m_parent[c] >= 0 ) m_leafSize[m_parent[c]] += m_leafSize[c];
+        m_leafStart = new int[total];
+        int pos = 0;
+        for ( int c=m_levelStart[nlevels-1]; c<total; ++c ) {
+            m_leafStart[c] = pos;
+            pos += m_leafSize[c];
+        }
+        for ( int c=total; --c>=0; ) {
+            int start = m_leafStart[c];
+            for ( int i=m_childOffsets[c]; i<m_childOffsets[c+1]; ++i ) {
+                int child = m_children[i];
+                m_leafStart[child] = start;
+                start += m_leafSize[child];
+            }
+        }
+        m_leafOrder = new int[pos];
+        for ( int i=0; i<m_leafCount; ++i )
+            if ( m_leafSize[i] > 0 ) m_leafOrder[m_leafStart[i]] = i;
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors
+
+    /**
+     * Get the clustered Graph.
+     * @return the clustered Graph
+     */
+    public Graph getGraph() {
+        return m_graph;
+    }
+
+    /**
+     * Get the adjacency snapshot of the clustered graph.
+     * @return the adjacency snapshot
+     */
+    public GraphAdjacency getAdjacency() {
+        return m_adj;
+    }
+
+    /**
+     * Get the number of levels, including the leaf level.
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return m_levelStart.length - 1;
+    }
+
+    /**
+     * Get the total number of cluster ids, including leaf clusters.
+     * @return the number of clusters
+     */
+    public int getClusterCount() {
+        return m_parent.length;
+    }
+
+    /**
+     * Get the first cluster id of a level. The clusters of a level have
+     * consecutive ids.
+     * @param level the level
+     * @return the first cluster id of the level
+     */
+    public int getFirstCluster(int level) {
+        return m_levelStart[level];
+    }
+
+    /**
+     * Get the number of cluster ids of a level. At level zero this includes
+     * the ids of invalid node rows, which have no members.
+     * @param level the level
+     * @return the number of clusters of the level
+     */
+    public int getClusterCount(int level) {
+        return m_levelStart[level+1] - m_levelStart[level];
+    }
+
+    /**
+     * Get the level of a cluster.
+     * @param cluster the cluster id
+     * @return the level of the cluster
+     */
+    public int getLevel(int cluster) {
+        int level = 0;
+        while ( cluster >= m_levelStart[level+1] ) ++level;
+        return level;
+    }
+
+    /**
+     * Indicates if a cluster is a leaf, that is, a single node.
+     * @param cluster the cluster id
+     * @return true if the cluster is a leaf, in which case its id is the
+     * node row
+     */
+    public boolean isLeaf(int cluster) {
+        return cluster < m_leafCount;
+    }
+
+    /**
+     * Get the parent of a cluster.
+     * @param cluster the cluster id
+     * @return the parent cluster id, or -1 for top level clusters
+     */
+    public int getParent(int cluster) {
+        return m_parent[cluster];
+    }
+
+    /**
+     * Get the cluster containing a node at a given level.
+     * @param node the node row
+     * @param level the level
+     * @return the cluster id, or -1 if the node has no cluster at that
+     * level
+     */
+    public int getCluster(int node, int level) {
+        int c = node;
+        while ( c >= 0 && c < m_levelStart[level] )
+            c = m_parent[c];
+        return c;
+    }
+
+    /**
+     * Get the number of child clusters of a cluster.
+     * @param cluster the cluster id
+     * @return the number of children
+     */
+    public int getChildCount(int cluster) {
+        return m_childOffsets[cluster+1] - m_childOffsets[cluster];
+    }
+
+    /**
+     * Get a child cluster of a cluster.
+     * @param cluster the cluster id
+     * @param idx the index of the child
+     * @return the child cluster id
+     */
+    public int getChild(int cluster, int idx) {
+        return m_children[m_childOffsets[cluster] + idx];
+    }
+
+    /**
+     * Get the number of nodes contained in a cluster.
+     * @param cluster the cluster id
+     * @return the number of member nodes
+     */
+    public int getSize(int cluster) {
+        return m_leafSize[cluster];
+    }
+
+    /**
+     * Get a member node of a cluster.
+     * @param cluster the cluster id
+     * @param idx the index of the member, between zero and the cluster
+     * size
+     * @return the node row
+     */
+    public int getMember(int cluster, int idx) {
+        return m_leafOrder[m_leafStart[cluster] + idx];
+    }
+
+    /**
+     * Indicates if a node is a member of a cluster.
+     * @param cluster the cluster id
+     * @param node the node row
+     * @return true if the node belongs to the cluster
+     */
+    public boolean contains(int cluster, int node) {
+        if ( node < 0 || node >= m_leafCount || m_leafSize[node] == 0 )
+            return false;
+        int p = m_leafStart[node] - m_leafStart[cluster];
+        return p >= 0 && p < m_leafSize[cluster];
+    }
+
+    /**
+     * Get the position of a node in the leaf ordering, in which the members
+     * of every cluster are contiguous, starting at the position of the
+     * cluster itself.
+     * @param cluster a cluster id, or a node row
+     * @return the position of the first member of the cluster
+     */
+    int getLeafStart(int cluster) {
+        return m_leafStart[cluster];
+    }
+
+} // end of class ClusterHierarchy
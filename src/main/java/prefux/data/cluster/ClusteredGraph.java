@@ -0,0 +1,323 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.cluster;
+
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.analytics.GraphAdjacency;
+
+/**
+ * <p>Graph of the currently expanded clusters of a {@link ClusterHierarchy}.
+ * Every node of this graph stands for one visible cluster, either a
+ * supernode aggregating many nodes of the underlying graph or a single
+ * underlying node, and every edge is a superedge aggregating all
+ * underlying edges between the members of two visible clusters. The visible
+ * clusters always form a cut through the hierarchy: every underlying node
+ * belongs to exactly one of them.</p>
+ *
+ * <p>Clusters are expanded and collapsed incrementally. Expanding a cluster
+ * replaces its node with nodes for its children, and collapsing a cluster
+ * replaces the nodes of all its visible descendants with a single node.
+ * Both only touch the edges incident to members of the cluster, taking time
+ * proportional to the size of the cluster rather than of the whole graph.
+ * As this class is a regular Graph, it can be added to a
+ * {@link prefux.Visualization}, which then reflects every expansion and
+ * collapse through the usual table events, materializing visual items only
+ * for the visible clusters.</p>
+ *
+ * <p>Nodes carry the {@link #CLUSTER} id, the {@link #LEVEL} and the
+ * {@link #SIZE} of their cluster. For leaf clusters the cluster id is the
+ * row of the underlying node. Edges carry the number of underlying edges
+ * they aggregate in the {@link #WEIGHT} field.</p>
+ */
+public class ClusteredGraph extends Graph {
+
+    /** Node data field for the cluster id */
+    public static final String CLUSTER = "cluster";
+    /** Node data field for the hierarchy level of the cluster */
+    public static final String LEVEL = "level";
+    /** Node data field for the number of nodes in the cluster */
+    public static final String SIZE = "size";
+    /** Edge data field for the number of aggregated edges */
+    public static final String WEIGHT = "weight";
+
+    private ClusterHierarchy m_hierarchy;
+    private int[] m_nodeRow;
+
+    // scratch buffer of superedge keys, reused between updates
+    private long[] m_keys = new long[64];
+    private int m_nkeys;
+
+    /**
+     * Create a new ClusteredGraph showing the top level of the given
+     * cluster hierarchy.
+     * @param hierarchy the cluster hierarchy
+     */
+    public ClusteredGraph(ClusterHierarchy hierarchy) {
+        super(new Table(), hierarchy.getGraph().isDirected());
+        m_hierarchy = hierarchy;
+        getNodeTable().addColumn(CLUSTER, int.class, new Integer(-1));
+        getNodeTable().addColumn(LEVEL, int.class);
+        getNodeTable().addColumn(SIZE, int.class);
+        getEdgeTable().addColumn(WEIGHT, int.class);
+        m_nodeRow = new int[hierarchy.getClusterCount()];
+        setLevel(hierarchy.getLevelCount()-1);
+    }
+
+    /**
+     * Get the cluster hierarchy shown by this graph.
+     * @return the cluster hierarchy
+     */
+    public ClusterHierarchy getHierarchy() {
+        return m_hierarchy;
+    }
+
+    /**
+     * Get the node row of a cluster.
+     * @param cluster the cluster id
+     * @return the node row of the cluster, or -1 if the cluster is not
+     * visible
+     */
+    public int getClusterNode(int cluster) {
+        return m_nodeRow[cluster];
+    }
+
+    /**
+     * Get the cluster shown by a node.
+     * @param node the node row
+     * @return the cluster id
+     */
+    public int getCluster(int node) {
+        return getNodeTable().getInt(node, CLUSTER);
+    }
+
+    /**
+     * Indicates if a cluster is currently shown as a node.
+     * @param cluster the cluster id
+     * @return true if the cluster is visible
+     */
+    public boolean isVisible(int cluster) {
+        return m_nodeRow[cluster] >= 0;
+    }
+
+    /**
+     * Get the visible cluster containing an underlying node.
+     * @param node the row of the node in the underlying graph
+     * @return the visible cluster id, or -1 if the node is not clustered
+     */
+    public int getVisibleCluster(int node) {
+        int c = node;
+        while ( c >= 0 && m_nodeRow[c] < 0 )
+            c = m_hierarchy.getParent(c);
+        return c;
+    }
+
+    // ------------------------------------------------------------------------
+    // Expand / Collapse
+
+    /**
+     * Show all clusters of the given hierarchy level. This rebuilds the
+     * whole graph.
+     * @param level the level to show, between zero (all underlying nodes)
+     * and the top level
+     */
+    public void setLevel(int level) {
+        if ( level < 0 || level >= m_hierarchy.getLevelCount() )
+            throw new IllegalArgumentException("Invalid level: " + level);
+        clear();
+        Arrays.fill(m_nodeRow, -1);
+        int first = m_hierarchy.getFirstCluster(level);
+        int last = first + m_hierarchy.getClusterCount(level);
+        for ( int c=first; c<last; ++c ) {
+            if ( m_hierarchy.getSize(c) > 0 )
+                addCluster(c);
+        }
+        m_nkeys = 0;
+        for ( int c=first; c<last; ++c ) {
+            if ( m_hierarchy.getSize(c) > 0 )
+                collectEdges(c, true);
+        }
+        addEdges();
+    }
+
+    /**
+     * Expand a visible cluster, replacing it with its child clusters.
+     * @param cluster the cluster id
+     * @return true if the cluster was expanded, false if it is not visible
+     * or is a leaf
+     */
+    public boolean expand(int cluster) {
+        if ( !isVisible(cluster) || m_hierarchy.isLeaf(cluster) )
+            return false;
+        removeCluster(cluster);
+        int nchildren = m_hierarchy.getChildCount(cluster);
+        for ( int i=0; i<nchildren; ++i )
+            addCluster(m_hierarchy.getChild(cluster, i));
+        m_nkeys = 0;
+        collectEdges(cluster, false);
+        addEdges();
+        return true;
+    }
+
+    /**
+     * Collapse a cluster, replacing all its visible descendants with a
+     * single node.
+     * @param cluster the cluster id
+     * @return true if the cluster was collapsed, false if it is already
+     * visible or contained in a collapsed cluster
+     */
+    public boolean collapse(int cluster) {
+        if ( isVisible(cluster) || m_hierarchy.getSize(cluster) == 0 )
+            return false;
+        // a visible ancestor hides the whole cluster
+        int vis = getVisibleCluster(m_hierarchy.getMember(cluster, 0));
+        if ( !isDescendant(vis, cluster) )
+            return false;
+
+        // remove the visible descendants, stopping at visible clusters
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = cluster;
+        while ( top > 0 ) {
+            int c = stack[--top];
+            if ( isVisible(c) ) {
+                removeCluster(c);
+                continue;
+            }
+            int nchildren = m_hierarchy.getChildCount(c);
+            if ( top + nchildren > stack.length )
+                stack = Arrays.copyOf(stack,
+                                      Math.max(2*stack.length, top+nchildren));
+            for ( int i=0; i<nchildren; ++i )
+                stack[top++] = m_hierarchy.getChild(c, i);
+        }
+        addCluster(cluster);
+        m_nkeys = 0;
+        collectEdges(cluster, false);
+        addEdges();
+        return true;
+    }
+
+    /**
+     * Indicates if one cluster is a descendant of another.
+     */
+    private boolean isDescendant(int c, int ancestor) {
+        while ( c >= 0 && c != ancestor )
+            c = m_hierarchy.getParent(c);
+        return c == ancestor;
+    }
+
+    private void addCluster(int cluster) {
+        int row = addNodeRow();
+        Table nodes = getNodeTable();
+        nodes.setInt(row, CLUSTER, cluster);
+        nodes.setInt(row, LEVEL, m_hierarchy.getLevel(cluster));
+        nodes.setInt(row, SIZE, m_hierarchy.getSize(cluster));
+        m_nodeRow[cluster] = row;
+    }
+
+    private void removeCluster(int cluster) {
+        // removing the node removes its superedges as well
+        removeNode(m_nodeRow[cluster]);
+        m_nodeRow[cluster] = -1;
+    }
+
+    // ------------------------------------------------------------------------
+    // Superedges
+
+    /**
+     * Collect the superedges between the visible clusters for all
+     * underlying edges incident to members of a cluster, each edge once.
+     * If <code>global</code> is true, the edges of all visible clusters
+     * are being collected, so edges leaving the cluster are left to be
+     * collected from their other end where that avoids duplicates.
+     */
+    private void collectEdges(int cluster, boolean global) {
+        GraphAdjacency adj = m_hierarchy.getAdjacency();
+        boolean directed = adj.isDirected();
+        int[] ooff = adj.getOutOffsets(), onbr = adj.getOutNeighbors();
+        int[] ioff = adj.getInOffsets(),  inbr = adj.getInNeighbors();
+        int size = m_hierarchy.getSize(cluster);
+
+        for ( int m=0; m<size; ++m ) {
+            int u = m_hierarchy.getMember(cluster, m);
+            int cu = getVisibleCluster(u);
+            for ( int i=ooff[u]; i<ooff[u+1]; ++i ) {
+                int v = onbr[i];
+                // undirected lists hold every edge at both ends
+                if ( !directed && v < u
+                     && (global || m_hierarchy.contains(cluster, v)) )
+                    continue;
+                collect(cu, getVisibleCluster(v), directed);
+            }
+            if ( directed && !global ) {
+                // incoming edges from outside the cluster
+                for ( int i=ioff[u]; i<ioff[u+1]; ++i ) {
+                    int v = inbr[i];
+                    if ( !m_hierarchy.contains(cluster, v) )
+                        collect(getVisibleCluster(v), cu, directed);
+                }
+            }
+        }
+    }
+
+    private void collect(int a, int b, boolean directed) {
+        if ( a == b || a < 0 || b < 0 ) return;
+        if ( !directed && b < a ) {
+            int t = a; a = b; b = t;
+        }
+        if ( m_nkeys == m_keys.length )
+            m_keys = Arrays.copyOf(m_keys, 2*m_keys.length);
+        m_keys[m_nkeys++] = ((long)a << 32) | b;
+    }
+
+    /**
+     * Add one edge per distinct collected cluster pair, weighted by the
+     * number of times the pair was collected.
+     */
+    private void addEdges() {
+        Arrays.sort(m_keys, 0, m_nkeys);
+        Table edges = getEdgeTable();
+        for ( int i=0; i<m_nkeys; ) {
+            long key = m_keys[i];
+            int j = i;
+            while ( j < m_nkeys && m_keys[j] == key ) ++j;
+            int a = (int)(key >>> 32), b = (int)key;
+            int e = addEdge(m_nodeRow[a], m_nodeRow[b]);
+            edges.setInt(e, WEIGHT, j-i);
+            i = j;
+        }
+        m_nkeys = 0;
+    }
+
+} // end of class ClusteredGraph
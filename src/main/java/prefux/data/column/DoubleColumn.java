@@ -34,6 +34,7 @@ import java.util.Arrays;
 
 import prefux.data.DataReadOnlyException;
 import prefux.data.DataTypeException;
+import prefux.data.event.EventConstants;
 
 /**
  * Column implementation for storing double values.
@@ -165,6 +166,44 @@ public class DoubleColumn extends AbstractColumn {
         // fire a change event
         fireColumnEvent(row, prev);
     }
+
+    /**
+     * Get a contiguous range of values in a single operation.
+     * @param values the target array, indexed by row. Entries from
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive) are
+     * copied from this column.
+     * @param start the first row to get
+     * @param end one past the last row to get
+     */
+    public void getDoubles(double[] values, int start, int end) {
+        if ( start < 0 || end > m_size || start > end ) {
+            throw new IllegalArgumentException(
+                "Row range out of bounds: "+start+"-"+end);
+        }
+        System.arraycopy(m_values, start, values, start, end-start);
+    }
+    
+    /**
+     * Set a contiguous range of values in a single operation. Unlike repeated
+     * calls to {@link #setDouble(double, int)}, only a single update event is
+     * fired for the whole range.
+     * @param values the source values, indexed by row. Entries from
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive) are
+     * copied into this column.
+     * @param start the first row to set
+     * @param end one past the last row to set
+     */
+    public void setDoubles(double[] values, int start, int end) {
+        if ( m_readOnly ) {
+            throw new DataReadOnlyException();
+        } else if ( start < 0 || end > m_size || start > end ) {
+            throw new IllegalArgumentException(
+                "Row range out of bounds: "+start+"-"+end);
+        }
+        if ( start == end ) return;
+        System.arraycopy(values, start, m_values, start, end-start);
+        fireColumnEvent(EventConstants.UPDATE, start, end-1);
+    }
     
 //    /**
 //     * @see prefux.data.column.AbstractColumn#getString(int)
@@ -34,6 +34,7 @@ import java.util.Arrays;
 
 import prefux.data.DataReadOnlyException;
 import prefux.data.DataTypeException;
+import prefux.data.event.EventConstants;
 
 /**
  * Column implementation for storing int values.
@@ -165,6 +166,28 @@ public class IntColumn extends AbstractColumn {
         // fire a change event
         fireColumnEvent(row, prev);
     }
+
+    /**
+     * Set a contiguous range of values in a single operation. Unlike repeated
+     * calls to {@link #setInt(int, int)}, only a single update event is
+     * fired for the whole range.
+     * @param values the source values, indexed by row. Entries from
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive) are
+     * copied into this column.
+     * @param start the first row to set
+     * @param end one past the last row to set
+     */
+    public void setInts(int[] values, int start, int end) {
+        if ( m_readOnly ) {
+            throw new DataReadOnlyException();
+        } else if ( start < 0 || end > m_size || start > end ) {
+            throw new IllegalArgumentException(
+                "Row range out of bounds: "+start+"-"+end);
+        }
+        if ( start == end ) return;
+        System.arraycopy(values, start, m_values, start, end-start);
+        fireColumnEvent(EventConstants.UPDATE, start, end-1);
+    }
     
 //    /**
 //     * @see prefux.data.column.AbstractColumn#getString(int)
@@ -36,6 +36,7 @@ import java.util.logging.Logger;
 
 import prefux.data.DataReadOnlyException;
 import prefux.data.DataTypeException;
+import prefux.data.event.EventConstants;
 
 /**
  * Column implementation for storing arbitrary Object values.
@@ -206,4 +207,31 @@ public class ObjectColumn extends AbstractColumn {
         }
     }
     
+    /**
+     * Set a contiguous range of values in a single operation. Unlike repeated
+     * calls to {@link #set(Object, int)}, only a single update event is
+     * fired for the whole range.
+     * @param values the source values, indexed by row. Entries from
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive) are
+     * copied into this column.
+     * @param start the first row to set
+     * @param end one past the last row to set
+     */
+    public void setObjects(Object[] values, int start, int end) {
+        if ( m_readOnly ) {
+            throw new DataReadOnlyException();
+        } else if ( start < 0 || end > m_size || start > end ) {
+            throw new IllegalArgumentException(
+                "Row range out of bounds: "+start+"-"+end);
+        }
+        for ( int i=start; i<end; ++i ) {
+            Object val = values[i];
+            if ( val != null && !canSet(val.getClass()) )
+                throw new DataTypeException(val.getClass());
+        }
+        if ( start == end ) return;
+        System.arraycopy(values, start, m_values, start, end-start);
+        fireColumnEvent(EventConstants.UPDATE, start, end-1);
+    }
+    
 } // end of class ObjectColumn
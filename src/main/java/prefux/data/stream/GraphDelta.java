@@ -0,0 +1,229 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.stream;
+
+import java.util.Arrays;
+
+/**
+ * <p>A batch of node and edge additions and removals to be applied to a
+ * graph by a {@link GraphDeltaSink}. Nodes are identified by the value of
+ * the graph's node key field, or by their node row if the graph has no node
+ * key field. Operations are applied in the order they were added to the
+ * batch.</p>
+ *
+ * <p>Once applied, a delta reports the node and edge rows that were added
+ * and removed, including edges removed along with their nodes and edges
+ * evicted by the sink's sliding window. As table rows are reused, a row may
+ * appear both as removed and as added if it was freed and reoccupied within
+ * the same batch.</p>
+ */
+public class GraphDelta {
+
+    static final byte ADD_NODE    = 0;
+    static final byte REMOVE_NODE = 1;
+    static final byte ADD_EDGE    = 2;
+    static final byte REMOVE_EDGE = 3;
+
+    private byte[] m_ops  = new byte[16];
+    private long[] m_arg1 = new long[16];
+    private long[] m_arg2 = new long[16];
+    private long[] m_time = new long[16];
+    private int    m_size = 0;
+    private boolean m_applied = false;
+
+    private Rows m_addedNodes   = new Rows();
+    private Rows m_removedNodes = new Rows();
+    private Rows m_addedEdges   = new Rows();
+    private Rows m_removedEdges = new Rows();
+
+    // ------------------------------------------------------------------------
+    // Operations
+
+    /**
+     * Add a node with the given key.
+     * @param key the node key
+     * @return this delta
+     */
+    public GraphDelta addNode(long key) {
+        return op(ADD_NODE, key, 0, -1L);
+    }
+
+    /**
+     * Remove the node with the given key, along with all its edges.
+     * @param key the node key
+     * @return this delta
+     */
+    public GraphDelta removeNode(long key) {
+        return op(REMOVE_NODE, key, 0, -1L);
+    }
+
+    /**
+     * Add an edge between the nodes with the given keys, timestamped with
+     * the time the delta is applied.
+     * @param source the source node key
+     * @param target the target node key
+     * @return this delta
+     */
+    public GraphDelta addEdge(long source, long target) {
+        return op(ADD_EDGE, source, target, -1L);
+    }
+
+    /**
+     * Add an edge between the nodes with the given keys.
+     * @param source the source node key
+     * @param target the target node key
+     * @param time the timestamp of the edge, in milliseconds, used by time
+     * based sliding windows
+     * @return this delta
+     */
+    public GraphDelta addEdge(long source, long target, long time) {
+        if ( time < 0 )
+            throw new IllegalArgumentException("Negative timestamp: "+time);
+        return op(ADD_EDGE, source, target, time);
+    }
+
+    /**
+     * Remove an edge between the nodes with the given keys. If there are
+     * multiple such edges, one of them is removed.
+     * @param source the source node key
+     * @param target the target node key
+     * @return this delta
+     */
+    public GraphDelta removeEdge(long source, long target) {
+        return op(REMOVE_EDGE, source, target, -1L);
+    }
+
+    private GraphDelta op(byte op, long arg1, long arg2, long time) {
+        if ( m_applied )
+            throw new IllegalStateException(
+                "This delta has already been applied");
+        if ( m_size == m_ops.length ) {
+            int capacity = 2*m_size;
+            m_ops  = Arrays.copyOf(m_ops, capacity);
+            m_arg1 = Arrays.copyOf(m_arg1, capacity);
+            m_arg2 = Arrays.copyOf(m_arg2, capacity);
+            m_time = Arrays.copyOf(m_time, capacity);
+        }
+        m_ops[m_size]  = op;
+        m_arg1[m_size] = arg1;
+        m_arg2[m_size] = arg2;
+        m_time[m_size] = time;
+        ++m_size;
+        return this;
+    }
+
+    /**
+     * Get the number of operations in this delta.
+     * @return the number of operations
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Indicates if this delta has been applied to a graph.
+     * @return true if the delta has been applied
+     */
+    public boolean isApplied() {
+        return m_applied;
+    }
+
+    // -- package-private operation access, used by the sink --
+
+    byte getOp(int i)      { return m_ops[i];  }
+    long getArg1(int i)    { return m_arg1[i]; }
+    long getArg2(int i)    { return m_arg2[i]; }
+    long getTime(int i)    { return m_time[i]; }
+    void setApplied()      { m_applied = true; }
+
+    Rows addedNodes()   { return m_addedNodes;   }
+    Rows removedNodes() { return m_removedNodes; }
+    Rows addedEdges()   { return m_addedEdges;   }
+    Rows removedEdges() { return m_removedEdges; }
+
+    // ------------------------------------------------------------------------
+    // Results
+
+    /**
+     * Get the rows of the nodes added when this delta was applied.
+     * @return the added node rows
+     */
+    public int[] getAddedNodes() {
+        return m_addedNodes.toArray();
+    }
+
+    /**
+     * Get the rows of the nodes removed when this delta was applied.
+     * @return the removed node rows
+     */
+    public int[] getRemovedNodes() {
+        return m_removedNodes.toArray();
+    }
+
+    /**
+     * Get the rows of the edges added when this delta was applied.
+     * @return the added edge rows
+     */
+    public int[] getAddedEdges() {
+        return m_addedEdges.toArray();
+    }
+
+    /**
+     * Get the rows of the edges removed when this delta was applied,
+     * including edges removed along with their nodes and edges evicted from
+     * the sliding window.
+     * @return the removed edge rows
+     */
+    public int[] getRemovedEdges() {
+        return m_removedEdges.toArray();
+    }
+
+    /**
+     * Growable list of table rows.
+     */
+    static class Rows {
+        private int[] m_rows = new int[16];
+        private int m_count = 0;
+
+        void add(int start, int end) {
+            int n = m_count + end - start + 1;
+            if ( n > m_rows.length )
+                m_rows = Arrays.copyOf(m_rows, Math.max(n, 2*m_rows.length));
+            for ( int r=start; r<=end; ++r )
+                m_rows[m_count++] = r;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(m_rows, m_count);
+        }
+    } // end of inner class Rows
+
+} // end of class GraphDelta
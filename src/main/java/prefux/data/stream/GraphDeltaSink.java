@@ -0,0 +1,447 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.stream;
+
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
+import prefux.util.collections.CopyOnWriteArrayList;
+
+/**
+ * <p>Applies a continuous stream of changes to a {@link prefux.data.Graph}
+ * in batches. Each {@link GraphDelta} is applied while holding a lock,
+ * which should be the {@link prefux.Visualization} showing the graph (the
+ * lock held by running actions), so that layouts and renderers never see a
+ * partially applied batch. Visual graphs derived from the graph are updated
+ * through the usual table events as the batch is applied.</p>
+ *
+ * <p>The sink can maintain a sliding window over the edges it adds, evicting
+ * the oldest edges once the window exceeds a maximum edge count, or once
+ * edges are older than a time span relative to the newest edge timestamp.
+ * Eviction happens as part of the batch that causes it, or when time is
+ * advanced using {@link #advanceTime(long)}. Edges are evicted in the order
+ * they were added, so timestamps should not decrease. Edges added while no
+ * window is set are never evicted.</p>
+ *
+ * <p>After each batch, registered {@link GraphDeltaListener
+ * GraphDeltaListeners} are notified with the delta, which reports only the
+ * node and edge rows that changed. Layouts can use this to update only the
+ * affected items, keeping the positions of all others.</p>
+ */
+public class GraphDeltaSink {
+
+    private Graph   m_graph;
+    private Object  m_lock;
+    private boolean m_createNodes = true;
+    private boolean m_removeIsolated = false;
+    private int     m_maxEdges = 0;
+    private long    m_timeWindow = 0;
+
+    // window queue, holding edge rows with their insertion sequence number
+    private int[]   m_qrow  = new int[64];
+    private long[]  m_qseq  = new long[64];
+    private long[]  m_qtime = new long[64];
+    private int     m_qhead = 0;
+    private int     m_qsize = 0;
+    // sequence number of the windowed edge at each edge row, or zero
+    private long[]  m_edgeSeq = new long[64];
+    private long    m_nextSeq = 1;
+    private int     m_live = 0;
+    private long    m_latest = Long.MIN_VALUE;
+
+    private GraphDelta m_current;
+    private CopyOnWriteArrayList m_listeners = new CopyOnWriteArrayList();
+
+    /**
+     * Create a new GraphDeltaSink that synchronizes on itself.
+     * @param g the Graph to apply changes to
+     */
+    public GraphDeltaSink(Graph g) {
+        this(g, null);
+    }
+
+    /**
+     * Create a new GraphDeltaSink.
+     * @param g the Graph to apply changes to
+     * @param lock the object to synchronize on while applying a batch,
+     * typically the Visualization showing the graph. If null, the sink
+     * synchronizes on itself.
+     */
+    public GraphDeltaSink(Graph g, Object lock) {
+        m_graph = g;
+        m_lock = ( lock == null ? this : lock );
+        g.getNodeTable().addTableListener(new NodeListener());
+        g.getEdgeTable().addTableListener(new EdgeListener());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the Graph this sink applies changes to.
+     * @return the graph
+     */
+    public Graph getGraph() {
+        return m_graph;
+    }
+
+    /**
+     * Indicates if edges referring to unknown node keys create the missing
+     * nodes. This requires the graph to have a node key field.
+     * @return true if missing nodes are created, false if such edges are
+     * ignored
+     */
+    public boolean isCreateMissingNodes() {
+        return m_createNodes;
+    }
+
+    /**
+     * Set if edges referring to unknown node keys create the missing
+     * nodes. This requires the graph to have a node key field. By default,
+     * missing nodes are created.
+     * @param create true to create missing nodes, false to ignore such
+     * edges
+     */
+    public void setCreateMissingNodes(boolean create) {
+        m_createNodes = create;
+    }
+
+    /**
+     * Indicates if nodes left without edges by a window eviction are
+     * removed as well.
+     * @return true if isolated nodes are removed
+     */
+    public boolean isRemoveIsolatedNodes() {
+        return m_removeIsolated;
+    }
+
+    /**
+     * Set if nodes left without edges by a window eviction are removed as
+     * well. By default, they are kept.
+     * @param remove true to remove isolated nodes
+     */
+    public void setRemoveIsolatedNodes(boolean remove) {
+        m_removeIsolated = remove;
+    }
+
+    /**
+     * Get the maximum number of windowed edges.
+     * @return the maximum edge count, or zero if unbounded
+     */
+    public int getMaxEdgeCount() {
+        return m_maxEdges;
+    }
+
+    /**
+     * Set the maximum number of windowed edges. Once exceeded, the oldest
+     * edges are evicted.
+     * @param count the maximum edge count, or zero for no limit
+     */
+    public void setMaxEdgeCount(int count) {
+        if ( count < 0 )
+            throw new IllegalArgumentException("Negative count: " + count);
+        m_maxEdges = count;
+    }
+
+    /**
+     * Get the time span of the sliding window.
+     * @return the time span in milliseconds, or zero if unbounded
+     */
+    public long getTimeWindow() {
+        return m_timeWindow;
+    }
+
+    /**
+     * Set the time span of the sliding window. Edges with a timestamp
+     * older than the newest timestamp minus this span are evicted.
+     * @param millis the time span in milliseconds, or zero for no limit
+     */
+    public void setTimeWindow(long millis) {
+        if ( millis < 0 )
+            throw new IllegalArgumentException("Negative span: " + millis);
+        m_timeWindow = millis;
+    }
+
+    /**
+     * Get the number of edges currently in the sliding window.
+     * @return the number of windowed edges
+     */
+    public int getWindowedEdgeCount() {
+        return m_live;
+    }
+
+    // ------------------------------------------------------------------------
+    // Batch Application
+
+    /**
+     * Apply a batch of changes to the graph, followed by any window
+     * evictions, and notify the registered listeners.
+     * @param delta the delta to apply
+     */
+    public void apply(GraphDelta delta) {
+        if ( delta.isApplied() )
+            throw new IllegalStateException(
+                "This delta has already been applied");
+        synchronized ( m_lock ) {
+            m_current = delta;
+            try {
+                long now = System.currentTimeMillis();
+                for ( int i=0; i<delta.size(); ++i )
+                    apply(delta, i, now);
+                evict();
+                delta.setApplied();
+            } finally {
+                m_current = null;
+            }
+            fireDeltaApplied(delta);
+        }
+    }
+
+    /**
+     * Advance the time of the sliding window without adding edges, evicting
+     * edges that fall out of the window. Listeners are notified if any edges
+     * were evicted.
+     * @param time the current time in milliseconds
+     */
+    public void advanceTime(long time) {
+        GraphDelta delta = new GraphDelta();
+        synchronized ( m_lock ) {
+            m_current = delta;
+            try {
+                m_latest = Math.max(m_latest, time);
+                evict();
+                delta.setApplied();
+            } finally {
+                m_current = null;
+            }
+            if ( delta.getRemovedEdges().length > 0 )
+                fireDeltaApplied(delta);
+        }
+    }
+
+    private void apply(GraphDelta delta, int i, long now) {
+        long a = delta.getArg1(i), b = delta.getArg2(i);
+        switch ( delta.getOp(i) ) {
+        case GraphDelta.ADD_NODE:
+            node(a, true);
+            break;
+        case GraphDelta.REMOVE_NODE: {
+            int n = node(a, false);
+            if ( n >= 0 ) m_graph.removeNode(n);
+            break;
+        }
+        case GraphDelta.ADD_EDGE: {
+            int s = node(a, m_createNodes), t = node(b, m_createNodes);
+            if ( s < 0 || t < 0 ) break;
+            int e = m_graph.addEdge(s, t);
+            if ( m_maxEdges > 0 || m_timeWindow > 0 ) {
+                long time = delta.getTime(i);
+                enqueue(e, time < 0 ? now : time);
+            }
+            break;
+        }
+        case GraphDelta.REMOVE_EDGE: {
+            int s = node(a, false), t = node(b, false);
+            if ( s < 0 || t < 0 ) break;
+            int e = m_graph.getEdge(s, t);
+            if ( e < 0 && !m_graph.isDirected() )
+                e = m_graph.getEdge(t, s);
+            if ( e >= 0 ) m_graph.removeEdge(e);
+            break;
+        }
+        }
+    }
+
+    /**
+     * Look up the node row for a key, optionally creating the node.
+     */
+    private int node(long key, boolean create) {
+        Table nodes = m_graph.getNodeTable();
+        int n = m_graph.getNodeIndex(key);
+        if ( n >= 0 && nodes.isValidRow(n) )
+            return n;
+        if ( !create )
+            return -1;
+
+        String field = m_graph.getNodeKeyField();
+        if ( field == null )
+            throw new IllegalStateException(
+                "Adding nodes by key requires a node key field");
+        n = m_graph.addNodeRow();
+        if ( nodes.getColumnType(field) == long.class )
+            nodes.setLong(n, field, key);
+        else
+            nodes.setInt(n, field, (int)key);
+        return n;
+    }
+
+    // ------------------------------------------------------------------------
+    // Sliding Window
+
+    private void enqueue(int edge, long time) {
+        if ( m_qsize == m_qrow.length ) {
+            // unwrap the ring buffer into larger arrays
+            int n = m_qrow.length;
+            m_qrow  = unwrap(m_qrow, 2*n);
+            m_qseq  = unwrap(m_qseq, 2*n);
+            m_qtime = unwrap(m_qtime, 2*n);
+            m_qhead = 0;
+        }
+        if ( edge >= m_edgeSeq.length )
+            m_edgeSeq = Arrays.copyOf(m_edgeSeq,
+                                      Math.max(edge+1, 2*m_edgeSeq.length));
+        long seq = m_nextSeq++;
+        m_edgeSeq[edge] = seq;
+        ++m_live;
+
+        int idx = (m_qhead + m_qsize++) % m_qrow.length;
+        m_qrow[idx]  = edge;
+        m_qseq[idx]  = seq;
+        m_qtime[idx] = time;
+        m_latest = Math.max(m_latest, time);
+    }
+
+    private int[] unwrap(int[] a, int capacity) {
+        int[] b = new int[capacity];
+        for ( int i=0; i<m_qsize; ++i )
+            b[i] = a[(m_qhead+i) % a.length];
+        return b;
+    }
+
+    private long[] unwrap(long[] a, int capacity) {
+        long[] b = new long[capacity];
+        for ( int i=0; i<m_qsize; ++i )
+            b[i] = a[(m_qhead+i) % a.length];
+        return b;
+    }
+
+    /**
+     * Evict the oldest windowed edges until the window constraints hold.
+     */
+    private void evict() {
+        while ( m_qsize > 0 ) {
+            int e = m_qrow[m_qhead];
+            boolean live = e < m_edgeSeq.length
+                && m_edgeSeq[e] == m_qseq[m_qhead];
+            boolean over = (m_maxEdges > 0 && m_live > m_maxEdges)
+                || (m_timeWindow > 0
+                    && m_qtime[m_qhead] < m_latest - m_timeWindow);
+            if ( live && !over )
+                break;
+
+            m_qhead = (m_qhead + 1) % m_qrow.length;
+            --m_qsize;
+            if ( !live ) continue; // already removed
+
+            int s = m_graph.getSourceNode(e), t = m_graph.getTargetNode(e);
+            m_graph.removeEdge(e);
+            if ( m_removeIsolated ) {
+                if ( m_graph.getDegree(s) == 0 ) m_graph.removeNode(s);
+                if ( t != s && m_graph.getDegree(t) == 0 )
+                    m_graph.removeNode(t);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Listener Methods
+
+    /**
+     * Add a listener to be notified of applied batches.
+     * @param l the listener to add
+     */
+    public void addDeltaListener(GraphDeltaListener l) {
+        if ( !m_listeners.contains(l) )
+            m_listeners.add(l);
+    }
+
+    /**
+     * Remove a batch listener.
+     * @param l the listener to remove
+     */
+    public void removeDeltaListener(GraphDeltaListener l) {
+        m_listeners.remove(l);
+    }
+
+    /**
+     * Notify all registered listeners of an applied batch.
+     * @param delta the applied delta
+     */
+    protected void fireDeltaApplied(GraphDelta delta) {
+        Object[] lstnrs = m_listeners.getArray();
+        for ( int i=0; i<lstnrs.length; ++i )
+            ((GraphDeltaListener)lstnrs[i]).deltaApplied(this, delta);
+    }
+
+    /**
+     * Records node table changes made while a batch is applied.
+     */
+    private class NodeListener implements TableListener {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( m_current == null || col != EventConstants.ALL_COLUMNS )
+                return;
+            if ( type == EventConstants.INSERT )
+                m_current.addedNodes().add(start, end);
+            else if ( type == EventConstants.DELETE )
+                m_current.removedNodes().add(start, end);
+        }
+    } // end of inner class NodeListener
+
+    /**
+     * Records edge table changes made while a batch is applied, and keeps
+     * the window bookkeeping in sync with edges removed by other means.
+     */
+    private class EdgeListener implements TableListener {
+        public void tableChanged(Table t, int start, int end, int col,
+                                 int type)
+        {
+            if ( col != EventConstants.ALL_COLUMNS )
+                return;
+            if ( type == EventConstants.DELETE ) {
+                for ( int r=start; r<=end && r<m_edgeSeq.length; ++r ) {
+                    if ( m_edgeSeq[r] != 0 ) {
+                        m_edgeSeq[r] = 0;
+                        --m_live;
+                    }
+                }
+                if ( m_current != null )
+                    m_current.removedEdges().add(start, end);
+            } else if ( type == EventConstants.INSERT && m_current != null ) {
+                m_current.addedEdges().add(start, end);
+            }
+        }
+    } // end of inner class EdgeListener
+
+} // end of class GraphDeltaSink
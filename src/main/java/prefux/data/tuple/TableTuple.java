@@ -99,6 +99,16 @@ public class TableTuple <T extends Table> implements Tuple {
         m_row = -1;
     }
     
+    /**
+     * Re-binds this tuple to another row of the same table. Used by
+     * {@link TupleManager} cursors to reuse a single tuple instance when
+     * iterating over many rows.
+     * @param row the table row index
+     */
+    void rebind(int row) {
+        m_row = m_table.isValidRow(row) ? row : -1;
+    }
+    
     /**
      * Internal validity check. Throw an exception if the tuple is not valid.
      */
@@ -0,0 +1,94 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.tuple;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import prefux.data.Tuple;
+
+/**
+ * <p>Factory for the Tuple instances generated by a {@link TupleManager}.
+ * A factory only allocates new, uninitialized Tuples; the TupleManager
+ * binds them to their table and row. Factories are typically given as
+ * constructor references, for example <code>TableNode::new</code>, which
+ * avoids the cost of reflective instantiation when many Tuples are
+ * created.</p>
+ *
+ * <p>The Tuples created must be instances of {@link TableTuple} and of the
+ * tuple type reported by the TupleManager using the factory.</p>
+ */
+@FunctionalInterface
+public interface TupleFactory {
+
+    /**
+     * Create a new, uninitialized Tuple instance.
+     * @return the new Tuple
+     */
+    public Tuple newTuple();
+
+    /**
+     * Get a factory creating instances of the given tuple type using its
+     * public no-argument constructor. The constructor is looked up once,
+     * and invoked through a method handle for every Tuple created. If no
+     * such constructor is accessible, the returned factory falls back to
+     * reflective instantiation, failing only when a Tuple is requested.
+     * @param tupleType the type of Tuple instances to create
+     * @return a factory for the given tuple type
+     */
+    public static TupleFactory forType(Class<? extends Tuple> tupleType) {
+        final MethodHandle ctor;
+        try {
+            ctor = MethodHandles.publicLookup()
+                .findConstructor(tupleType, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Tuple.class));
+        } catch ( NoSuchMethodException | IllegalAccessException e ) {
+            return () -> {
+                try {
+                    return tupleType.getDeclaredConstructor().newInstance();
+                } catch ( ReflectiveOperationException x ) {
+                    throw new IllegalStateException(x);
+                }
+            };
+        }
+        return () -> {
+            try {
+                return (Tuple)ctor.invokeExact();
+            } catch ( RuntimeException | Error e ) {
+                throw e;
+            } catch ( Throwable t ) {
+                throw new IllegalStateException(t);
+            }
+        };
+    }
+
+} // end of interface TupleFactory
@@ -36,6 +36,7 @@ import java.util.logging.Logger;
 import prefux.data.Graph;
 import prefux.data.Table;
 import prefux.data.Tuple;
+import prefux.data.event.TableListener;
 import prefux.util.StringLib;
 import prefux.util.collections.IntIterator;
 
@@ -53,6 +54,7 @@ public class TupleManager {
     protected Graph        m_graph;
     protected Table        m_table;
     protected Class<? extends Tuple>        m_tupleType;
+    protected TupleFactory m_factory;
     
     private   TableTuple[] m_tuples;
     
@@ -64,11 +66,40 @@ public class TupleManager {
         init(t, g, tupleType);
     }
     
+    /**
+     * Create a new TupleManager for the given Table.
+     * @param t the data Table to generate Tuples for
+     * @param g the Graph the Tuples belong to, or null
+     * @param tupleType the type of Tuple instances to generate
+     * @param factory the factory used to create Tuple instances, which
+     * must create instances of the given tuple type
+     */
+    public TupleManager(Table t, Graph g, Class<? extends Tuple> tupleType,
+                        TupleFactory factory)
+    {
+        init(t, g, tupleType, factory);
+    }
+    
     /**
      * Initialize this TupleManager for use with a given Table.
      * @param t the data Table to generate Tuples for
      */
     public void init(Table t, Graph g, Class<? extends Tuple> tupleType) {
+        init(t, g, tupleType, null);
+    }
+    
+    /**
+     * Initialize this TupleManager for use with a given Table.
+     * @param t the data Table to generate Tuples for
+     * @param g the Graph the Tuples belong to, or null
+     * @param tupleType the type of Tuple instances to generate
+     * @param factory the factory used to create Tuple instances. If null,
+     * a factory invoking the public no-argument constructor of the tuple
+     * type is used.
+     */
+    public void init(Table t, Graph g, Class<? extends Tuple> tupleType,
+                     TupleFactory factory)
+    {
         if ( m_table != null ) {
             throw new IllegalStateException(
                 "This TupleManager has already been initialized");
@@ -76,6 +107,8 @@ public class TupleManager {
         m_table = t;
         m_graph = g;
         m_tupleType = tupleType;
+        m_factory = ( factory != null ? factory
+                      : TupleFactory.forType(tupleType) );
         m_tuples = null;
     }
     
@@ -87,6 +120,27 @@ public class TupleManager {
         return m_tupleType;
     }
     
+    /**
+     * Get the factory used to create Tuple instances.
+     * @return the tuple factory
+     */
+    public TupleFactory getTupleFactory() {
+        return m_factory;
+    }
+    
+    /**
+     * Set the factory used to create Tuple instances. The factory must
+     * create instances of this manager's tuple type. All existing Tuples
+     * are invalidated.
+     * @param factory the tuple factory to use
+     */
+    public void setTupleFactory(TupleFactory factory) {
+        if ( factory == null )
+            throw new IllegalArgumentException("Factory must not be null");
+        invalidateAll();
+        m_factory = factory;
+    }
+    
     /**
      * Ensure the tuple array exists.
      */
@@ -128,7 +182,7 @@ public class TupleManager {
      */
     protected TableTuple newTuple(int row) {
         try {
-            TableTuple t = (TableTuple)m_tupleType.newInstance();
+            TableTuple t = (TableTuple)m_factory.newTuple();
             t.init(m_table, m_graph, row);
             return t;
         } catch ( Exception e ) {
@@ -138,6 +192,24 @@ public class TupleManager {
         }
     }
     
+    /**
+     * Create the Tuples for a range of rows in one pass, so that later
+     * lookups of these rows do not need to allocate. Invalid rows in the
+     * range are skipped.
+     * @param start the first row index, inclusive
+     * @param end the last row index, exclusive
+     */
+    public void instantiate(int start, int end) {
+        end = Math.min(end, m_table.getMaximumRow()+1);
+        start = Math.max(start, 0);
+        if ( start >= end ) return;
+        ensureTupleArray(end-1);
+        for ( int row=start; row<end; ++row ) {
+            if ( m_tuples[row] == null && m_table.isValidRow(row) )
+                m_tuples[row] = newTuple(row);
+        }
+    }
+    
     /**
      * Invalidate the tuple at the given row.
      * @param row the row index to invalidate
@@ -168,7 +240,46 @@ public class TupleManager {
     public Iterator<? extends Tuple> iterator(IntIterator rows) {
         return new TupleManagerIterator(this, rows);
     }
-    
+
+    /**
+     * Return a cursor over the tuples in this manager. Unlike
+     * {@link #iterator(IntIterator)}, a cursor does not create or retain a
+     * Tuple for every row visited. Instead, every call to
+     * <code>next()</code> returns the same flyweight Tuple instance, re-bound
+     * to the next row. This keeps memory usage independent of the number of
+     * rows visited, but the returned Tuple is only valid until the
+     * following call to <code>next()</code> and must not be stored, used
+     * as a map key, or compared by identity.
+     *
+     * <p>Cursors are intended for data tuples such as plain table rows,
+     * nodes and edges. Visual items register themselves as listeners of
+     * their table and keep per-item state beyond their row index, so for
+     * tuple types that listen to their table, such as visual items, this
+     * method returns the same iterator as {@link #iterator(IntIterator)}.
+     * </p>
+     * @param rows an iterator over table rows
+     * @return a cursor over the tuples indicated by the input row iterator
+     */
+    public Iterator<? extends Tuple> cursor(IntIterator rows) {
+        return cursor(rows, Tuple.class);
+    }
+
+    /**
+     * Return a cursor over the tuples in this manager, typed to a super
+     * type of the managed tuple type. Otherwise the same as
+     * {@link #cursor(IntIterator)}.
+     * @param rows an iterator over table rows
+     * @param type the type of the returned tuples
+     * @return a cursor over the tuples indicated by the input row iterator
+     * @throws ClassCastException if a tuple is not of the given type
+     */
+    public <T extends Tuple> Iterator<T> cursor(IntIterator rows,
+                                                 Class<T> type)
+    {
+        boolean flyweight = !TableListener.class.isAssignableFrom(m_tupleType);
+        return new TupleCursor<T>(rows, type, flyweight);
+    }
+
     // ------------------------------------------------------------------------
     // TupleManagerIterator
     
@@ -213,5 +324,57 @@ public class TupleManager {
         }
 
     } // end of inner class TupleManagerIterator
-    
+
+    // ------------------------------------------------------------------------
+    // TupleCursor
+
+    /**
+     * Iterator that hands out a single flyweight Tuple, re-bound to each
+     * visited row in turn, or the managed Tuple of each row if flyweights
+     * are not allowed for the tuple type.
+     */
+    private class TupleCursor<T extends Tuple> implements Iterator<T> {
+
+        private IntIterator   m_rows;
+        private Class<T>      m_type;
+        private boolean       m_flyweight;
+        private TableTuple<?> m_cursor;
+
+        TupleCursor(IntIterator rows, Class<T> type, boolean flyweight) {
+            m_rows = rows;
+            m_type = type;
+            m_flyweight = flyweight;
+        }
+
+        /**
+         * @see java.util.Iterator#hasNext()
+         */
+        public boolean hasNext() {
+            return m_rows.hasNext();
+        }
+
+        /**
+         * @see java.util.Iterator#next()
+         */
+        public T next() {
+            int row = m_rows.nextInt();
+            if ( !m_flyweight ) {
+                return m_type.cast(getTuple(row));
+            } else if ( m_cursor == null ) {
+                m_cursor = newTuple(row);
+            } else {
+                m_cursor.rebind(row);
+            }
+            return m_type.cast(m_cursor);
+        }
+
+        /**
+         * @see java.util.Iterator#remove()
+         */
+        public void remove() {
+            m_rows.remove();
+        }
+
+    } // end of inner class TupleCursor
+
 } // end of class TupleManager
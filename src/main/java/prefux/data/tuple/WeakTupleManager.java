@@ -0,0 +1,232 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.data.tuple;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.Tuple;
+
+/**
+ * <p>TupleManager that holds on to its Tuples using weak references, so
+ * Tuples that are no longer referenced by the application can be garbage
+ * collected and later recreated on demand. This keeps the memory used by a
+ * table with many rows proportional to its data columns rather than to the
+ * number of rows that have ever been accessed.</p>
+ *
+ * <p>While a Tuple is reachable, it is returned for every lookup of its row,
+ * so identity comparisons still work and deleted rows still invalidate
+ * live Tuples. To avoid re-creating Tuples that are accessed repeatedly, a
+ * bounded number of recently accessed Tuples is additionally kept strongly
+ * reachable, in a ring that holds each Tuple at most once.</p>
+ *
+ * <p>To use, install an instance with {@link Table#setTupleManager} or
+ * {@link Graph#setTupleManagers}. This manager is intended for data tuples;
+ * visual items register themselves as listeners of their table and so are
+ * never released.</p>
+ */
+public class WeakTupleManager extends TupleManager {
+
+    /** The default number of recently accessed Tuples kept reachable */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private TupleReference[] m_refs;
+    private ReferenceQueue<TableTuple<?>> m_queue = new ReferenceQueue<>();
+    private TableTuple<?>[] m_recent;
+    private int m_next = 0;
+
+    /**
+     * Create a new WeakTupleManager for the given Table, keeping the
+     * {@link #DEFAULT_CACHE_SIZE default number} of recently accessed
+     * Tuples reachable.
+     * @param t the data Table to generate Tuples for
+     * @param g the Graph the Tuples belong to, or null
+     * @param tupleType the type of Tuple instances to generate
+     */
+    public WeakTupleManager(Table t, Graph g, Class<? extends Tuple> tupleType)
+    {
+        this(t, g, tupleType, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create a new WeakTupleManager for the given Table.
+     * @param t the data Table to generate Tuples for
+     * @param g the Graph the Tuples belong to, or null
+     * @param tupleType the type of Tuple instances to generate
+     * @param cacheSize the number of recently accessed Tuples to keep
+     * reachable. Zero keeps Tuples only as long as the application
+     * references them.
+     */
+    public WeakTupleManager(Table t, Graph g, Class<? extends Tuple> tupleType,
+                            int cacheSize)
+    {
+        this(t, g, tupleType, null, cacheSize);
+    }
+
+    /**
+     * Create a new WeakTupleManager for the given Table.
+     * @param t the data Table to generate Tuples for
+     * @param g the Graph the Tuples belong to, or null
+     * @param tupleType the type of Tuple instances to generate
+     * @param factory the factory used to create Tuple instances, or null
+     * to use the public no-argument constructor of the tuple type
+     * @param cacheSize the number of recently accessed Tuples to keep
+     * reachable. Zero keeps Tuples only as long as the application
+     * references them.
+     */
+    public WeakTupleManager(Table t, Graph g, Class<? extends Tuple> tupleType,
+                            TupleFactory factory, int cacheSize)
+    {
+        super(t, g, tupleType, factory);
+        if ( cacheSize < 0 )
+            throw new IllegalArgumentException(
+                "Cache size must be non-negative: " + cacheSize);
+        m_recent = new TableTuple<?>[cacheSize];
+    }
+
+    /**
+     * Get the number of recently accessed Tuples kept reachable.
+     * @return the cache size
+     */
+    public int getCacheSize() {
+        return m_recent.length;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Ensure the reference array can hold the given row.
+     */
+    private void ensureReferenceArray(int row) {
+        int nrows = Math.max(m_table.getRowCount(), row+1);
+        if ( m_refs == null ) {
+            m_refs = new TupleReference[nrows];
+        } else if ( m_refs.length < nrows ) {
+            int capacity = Math.max((3*m_refs.length)/2 + 1, nrows);
+            m_refs = Arrays.copyOf(m_refs, capacity);
+        }
+    }
+
+    /**
+     * Clear the slots of Tuples that have been garbage collected.
+     */
+    private void expunge() {
+        Reference<? extends TableTuple<?>> r;
+        while ( (r = m_queue.poll()) != null ) {
+            int row = ((TupleReference)r).row;
+            if ( m_refs != null && row < m_refs.length && m_refs[row] == r )
+                m_refs[row] = null;
+        }
+    }
+
+    /**
+     * @see prefux.data.tuple.TupleManager#getTuple(int)
+     */
+    public Tuple getTuple(int row) {
+        if ( !m_table.isValidRow(row) )
+            throw new IllegalArgumentException("Invalid row index: "+row);
+
+        expunge();
+        ensureReferenceArray(row);
+        TupleReference ref = m_refs[row];
+        TableTuple<?> t = ( ref == null ? null : ref.get() );
+        if ( t == null ) {
+            t = newTuple(row);
+            if ( t == null ) return null;
+            m_refs[row] = new TupleReference(t, row, m_queue);
+        }
+        ref = m_refs[row];
+        if ( m_recent.length > 0 && m_recent[ref.slot] != t ) {
+            // not in the ring yet, so a hot tuple takes a single slot
+            m_recent[m_next] = t;
+            ref.slot = m_next;
+            m_next = (m_next + 1) % m_recent.length;
+        }
+        return t;
+    }
+
+    /**
+     * Does nothing, as Tuples created ahead of use would immediately be
+     * eligible for garbage collection.
+     * @see prefux.data.tuple.TupleManager#instantiate(int, int)
+     */
+    public void instantiate(int start, int end) {
+        // nothing to do
+    }
+
+    /**
+     * @see prefux.data.tuple.TupleManager#invalidate(int)
+     */
+    public void invalidate(int row) {
+        if ( m_refs == null || row < 0 || row >= m_refs.length )
+            return;
+        TupleReference ref = m_refs[row];
+        if ( ref != null ) {
+            TableTuple<?> t = ref.get();
+            if ( t != null ) t.invalidate();
+            m_refs[row] = null;
+        }
+    }
+
+    /**
+     * @see prefux.data.tuple.TupleManager#invalidateAll()
+     */
+    public void invalidateAll() {
+        if ( m_refs == null ) return;
+        for ( int i=0; i<m_refs.length; ++i )
+            invalidate(i);
+        Arrays.fill(m_recent, null);
+        m_next = 0;
+        expunge();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Weak reference that remembers the row of its Tuple, so the slot can be
+     * cleared once the Tuple has been collected.
+     */
+    private static class TupleReference extends WeakReference<TableTuple<?>> {
+        final int row;
+        int slot = 0; // slot in the recently accessed ring, if still there
+        TupleReference(TableTuple<?> t, int row,
+                       ReferenceQueue<TableTuple<?>> q)
+        {
+            super(t, q);
+            this.row = row;
+        }
+    } // end of inner class TupleReference
+
+} // end of class WeakTupleManager
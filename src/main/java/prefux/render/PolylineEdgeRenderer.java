@@ -0,0 +1,240 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.render;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.WeakInvalidationListener;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.shape.Polyline;
+import prefux.action.layout.graph.EdgeBundlingLayout;
+import prefux.data.Table;
+import prefux.data.event.EventConstants;
+import prefux.data.event.TableListener;
+import prefux.visual.EdgeItem;
+import prefux.visual.NodeItem;
+import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
+
+/**
+ * <p>
+ * Renderer that draws edges as polylines through the points stored in a data
+ * field of the edges, such as the bundled edges computed by an
+ * {@link EdgeBundlingLayout}. The field holds a float or double array of
+ * alternating x and y coordinates. Edges without points are drawn as straight
+ * lines, and the ends of all polylines follow the positions of their nodes.
+ * </p>
+ *
+ * <p>
+ * The renderer listens for changes of the point field on the edge tables it
+ * draws, and updates the polylines of all changed edges in a single pass on
+ * the JavaFX application thread, so that a layout can replace the points of
+ * many edges at once. The ends of a polyline follow its nodes through weak
+ * listeners, so that nodes do not keep the polylines of removed edges
+ * alive.
+ * </p>
+ */
+public class PolylineEdgeRenderer extends EdgeRenderer {
+
+	/** Key of the node listeners in the properties of a polyline */
+	private static final String ENDS = "PolylineEdgeRenderer.ends";
+
+	private final String m_field;
+
+	// rows whose points changed, per edge table, guarded by this renderer
+	private final Map<Table, BitSet> m_dirty = new IdentityHashMap<>();
+	private final Map<Table, Boolean> m_tables = new IdentityHashMap<>();
+	private boolean m_scheduled = false;
+
+	private final TableListener m_listener = new TableListener() {
+		public void tableChanged(Table t, int start, int end, int col, int type) {
+			if (type != EventConstants.UPDATE)
+				return;
+			if (col != EventConstants.ALL_COLUMNS
+					&& col != t.getColumnNumber(m_field))
+				return;
+			invalidate(t, start, end);
+		}
+	};
+
+	/**
+	 * Create a new PolylineEdgeRenderer drawing the points in the
+	 * {@link EdgeBundlingLayout#POLYLINE} field.
+	 */
+	public PolylineEdgeRenderer() {
+		this(EdgeBundlingLayout.POLYLINE);
+	}
+
+	/**
+	 * Create a new PolylineEdgeRenderer.
+	 *
+	 * @param field
+	 *            the data field holding the points of the edges
+	 */
+	public PolylineEdgeRenderer(String field) {
+		m_field = field;
+	}
+
+	/**
+	 * Get the data field holding the points of the edges.
+	 *
+	 * @return the point field
+	 */
+	public String getPolylineField() {
+		return m_field;
+	}
+
+	@Override
+	protected Node getRawShape(VisualItem item, boolean bind) {
+		EdgeItem edge = (EdgeItem) item;
+		Polyline line = new Polyline();
+		if (bind) {
+			watch(item.getTable());
+			Platform.runLater(() -> {
+				update(line, edge);
+				NodeItem s = edge.getSourceItem(), t = edge.getTargetItem();
+				InvalidationListener sl = o -> updateEnd(line, edge, true);
+				InvalidationListener tl = o -> updateEnd(line, edge, false);
+				// the polyline holds the listeners, the nodes only refer to
+				// them weakly
+				line.getProperties().put(ENDS,
+						new InvalidationListener[] { sl, tl });
+				s.xProperty().addListener(new WeakInvalidationListener(sl));
+				s.yProperty().addListener(new WeakInvalidationListener(sl));
+				t.xProperty().addListener(new WeakInvalidationListener(tl));
+				t.yProperty().addListener(new WeakInvalidationListener(tl));
+			});
+		}
+		return line;
+	}
+
+	// ------------------------------------------------------------------------
+
+	private synchronized void watch(Table t) {
+		if (t != null && m_tables.put(t, Boolean.TRUE) == null)
+			t.addTableListener(m_listener);
+	}
+
+	/**
+	 * Mark rows of an edge table as changed, and schedule an update of their
+	 * polylines unless one is pending.
+	 */
+	private synchronized void invalidate(Table t, int start, int end) {
+		BitSet rows = m_dirty.get(t);
+		if (rows == null) {
+			rows = new BitSet();
+			m_dirty.put(t, rows);
+		}
+		rows.set(start, end + 1);
+		if (!m_scheduled) {
+			m_scheduled = true;
+			Platform.runLater(this::flush);
+		}
+	}
+
+	/**
+	 * Update the polylines of all changed edges.
+	 */
+	private void flush() {
+		Map<Table, BitSet> dirty;
+		synchronized (this) {
+			dirty = new IdentityHashMap<>(m_dirty);
+			m_dirty.clear();
+			m_scheduled = false;
+		}
+		for (Map.Entry<Table, BitSet> e : dirty.entrySet()) {
+			if (!(e.getKey() instanceof VisualTable))
+				continue;
+			VisualTable t = (VisualTable) e.getKey();
+			BitSet rows = e.getValue();
+			for (int r = rows.nextSetBit(0); r >= 0; r = rows.nextSetBit(r + 1)) {
+				if (!t.isValidRow(r))
+					continue;
+				VisualItem item = t.getItem(r);
+				Node node = item.getNode();
+				if (node instanceof Polyline && item instanceof EdgeItem)
+					update((Polyline) node, (EdgeItem) item);
+			}
+		}
+	}
+
+	/**
+	 * Set the points of a polyline from the point field of its edge.
+	 */
+	private void update(Polyline line, EdgeItem edge) {
+		Object o = edge.canGet(m_field, Object.class) ? edge.get(m_field)
+				: null;
+		int n = o instanceof float[] ? ((float[]) o).length
+				: o instanceof double[] ? ((double[]) o).length : 0;
+		n -= n % 2;
+		if (n < 4) {
+			NodeItem s = edge.getSourceItem(), t = edge.getTargetItem();
+			line.getPoints().setAll(s.getX(), s.getY(), t.getX(), t.getY());
+			return;
+		}
+		Double[] pts = new Double[n];
+		if (o instanceof float[]) {
+			float[] a = (float[]) o;
+			for (int i = 0; i < n; ++i)
+				pts[i] = (double) a[i];
+		} else {
+			double[] a = (double[]) o;
+			for (int i = 0; i < n; ++i)
+				pts[i] = a[i];
+		}
+		// the ends follow the nodes, even if they moved after the layout
+		NodeItem s = edge.getSourceItem(), t = edge.getTargetItem();
+		pts[0] = s.getX();
+		pts[1] = s.getY();
+		pts[n - 2] = t.getX();
+		pts[n - 1] = t.getY();
+		line.getPoints().setAll(pts);
+	}
+
+	/**
+	 * Move an end of a polyline to the position of its node.
+	 */
+	private void updateEnd(Polyline line, EdgeItem edge, boolean source) {
+		ObservableList<Double> pts = line.getPoints();
+		if (pts.size() < 4)
+			return;
+		NodeItem n = source ? edge.getSourceItem() : edge.getTargetItem();
+		int i = source ? 0 : pts.size() - 2;
+		pts.set(i, n.getX());
+		pts.set(i + 1, n.getY());
+	}
+
+} // end of class PolylineEdgeRenderer
@@ -35,7 +35,7 @@ import java.util.Comparator;
 /**
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public interface LiteralComparator extends Comparator {
+public interface LiteralComparator extends Comparator<Object> {
 
     int compare(byte x1, byte x2);
     int compare(int x1, int x2);
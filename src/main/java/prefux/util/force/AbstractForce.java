@@ -173,5 +173,59 @@ public abstract class AbstractForce implements Force {
         throw new UnsupportedOperationException(
             "This class does not support this operation");
     }
+
+    // ------------------------------------------------------------------------
+    // Random Noise
+
+    /**
+     * Set if the random noise drawn by this force is derived
+     * deterministically from the simulation state. Called by a
+     * {@link ForceSimulator} in deterministic mode. This default
+     * implementation does nothing, for forces without random noise.
+     * @param d true for deterministic noise
+     */
+    void setDeterministicNoise(boolean d) {
+    }
+
+    /**
+     * Get the number of evaluations seeding the deterministic noise of this
+     * force, saved with the {@link SimulationState} of a simulator. This
+     * default implementation returns 0, for forces without random noise.
+     * @return the evaluation counter
+     */
+    long getNoiseRound() {
+        return 0;
+    }
+
+    /**
+     * Set the number of evaluations seeding the deterministic noise of this
+     * force, when restoring the {@link SimulationState} of a simulator.
+     * This default implementation does nothing.
+     * @param round the evaluation counter
+     */
+    void setNoiseRound(long round) {
+    }
+
+    // ------------------------------------------------------------------------
+    // Parallelism
+
+    /**
+     * Get the number of threads used to compute this force, saved with the
+     * {@link SimulationState} of a simulator. This default implementation
+     * returns 1, for forces that are always computed sequentially.
+     * @return the parallelism level
+     */
+    int getParallelism() {
+        return 1;
+    }
+
+    /**
+     * Set the number of threads used to compute this force, when restoring
+     * the {@link SimulationState} of a simulator. This default
+     * implementation does nothing.
+     * @param threads the parallelism level
+     */
+    void setParallelism(int threads) {
+    }
     
 } // end of abstract class AbstractForce
@@ -0,0 +1,321 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * <p>ForceSimulator backend that keeps all particle state in flat primitive
+ * arrays. Registered {@link ForceItem} and {@link Spring} instances are
+ * loaded into a {@link ParticleArrays} instance before the first timestep,
+ * and the integrator and all force functions then work on contiguous
+ * arrays indexed by particle, which is considerably more cache friendly
+ * for large simulations than following each item's value arrays.</p>
+ *
+ * <p>The arrays hold the state of the simulation across timesteps. The
+ * ForceItems are only written when {@link #syncItems()} is called, or
+ * before items or springs are added or removed, and the arrays are only
+ * reloaded after such a change or after {@link #itemsChanged()}. Code
+ * that reads the items after running the simulator thus calls
+ * syncItems() first, as the
+ * {@link prefux.action.layout.graph.ForceDirectedLayout} does, and code
+ * that modifies them calls itemsChanged() afterwards.</p>
+ *
+ * <p>Force functions implementing {@link ArrayForce} and integrators
+ * implementing {@link ArrayIntegrator} run directly on the arrays. This is
+ * the case for all force functions and integrators of this package. Other
+ * force functions are adapted by copying the particle state to the
+ * ForceItems before they run and adding their forces back afterwards. If
+ * the integrator does not support arrays, the simulator behaves exactly
+ * like a regular ForceSimulator.</p>
+ */
+public class ArrayForceSimulator extends ForceSimulator {
+
+    private ParticleArrays particles = new ParticleArrays();
+    private ForceItem[] itemArray = new ForceItem[0];
+    private Spring[] springArray = new Spring[0];
+    private Force[] legacy = new Force[0];
+    private boolean loaded = false; // the arrays hold the simulation state
+    private boolean stored = true;  // the items hold the simulation state
+
+    /**
+     * Create a new, empty ArrayForceSimulator. A RungeKuttaIntegrator is
+     * used by default.
+     */
+    public ArrayForceSimulator() {
+        this(new RungeKuttaIntegrator());
+    }
+
+    /**
+     * Create a new, empty ArrayForceSimulator.
+     * @param integr the Integrator to use
+     */
+    public ArrayForceSimulator(Integrator integr) {
+        super(integr);
+    }
+
+    /**
+     * Get the particle arrays of this simulator. Once the simulator ran,
+     * the arrays hold the state of the registered items as of the last
+     * timestep.
+     * @return the particle arrays
+     */
+    public ParticleArrays getParticles() {
+        return particles;
+    }
+
+    /**
+     * Run the simulator for one timestep.
+     * @see prefux.util.force.ForceSimulator#runSimulator(long)
+     */
+    public long runSimulator(long timestep) {
+        Integrator integr = getIntegrator();
+        if ( !(integr instanceof ArrayIntegrator) ) {
+            // the integrator works on the items
+            syncItems();
+            loaded = false;
+            return super.runSimulator(timestep);
+        }
+        if ( !loaded )
+            load();
+        stored = false;
+        accumulate(particles);
+        long next = ((ArrayIntegrator)integr)
+                        .integrate(this, particles, timestep);
+        hold(particles, timestep);
+        return next;
+    }
+
+    /**
+     * Write the state of the simulation back to the registered items, if
+     * they are not up to date.
+     * @see prefux.util.force.ForceSimulator#syncItems()
+     */
+    public void syncItems() {
+        if ( loaded && !stored ) {
+            store();
+            stored = true;
+        }
+    }
+
+    /**
+     * Reload the particle arrays from the registered items before the next
+     * timestep.
+     * @see prefux.util.force.ForceSimulator#itemsChanged()
+     */
+    public void itemsChanged() {
+        loaded = false;
+    }
+
+    /**
+     * @see prefux.util.force.ForceSimulator#clear()
+     */
+    public void clear() {
+        syncItems();
+        loaded = false;
+        Arrays.fill(itemArray, null);
+        Arrays.fill(springArray, null);
+        super.clear();
+    }
+
+    /**
+     * @see prefux.util.force.ForceSimulator#addItem(prefux.util.force.ForceItem)
+     */
+    public void addItem(ForceItem item) {
+        syncItems();
+        loaded = false;
+        super.addItem(item);
+    }
+
+    /**
+     * @see prefux.util.force.ForceSimulator#removeItem(prefux.util.force.ForceItem)
+     */
+    public boolean removeItem(ForceItem item) {
+        syncItems();
+        loaded = false;
+        return super.removeItem(item);
+    }
+
+    /**
+     * @see prefux.util.force.ForceSimulator#addSpring(prefux.util.force.ForceItem, prefux.util.force.ForceItem, double, double)
+     */
+    public Spring addSpring(ForceItem item1, ForceItem item2, double d,
+                            double e)
+    {
+        syncItems();
+        loaded = false;
+        return super.addSpring(item1, item2, d, e);
+    }
+
+    /**
+     * Move the fixed particles back to where they were before the last
+     * timestep, and record the kinetic energy and the largest displacement
+     * of the other particles.
+     */
+    private void hold(ParticleArrays p, long timestep) {
+        int n = p.getSize();
+        double ke = 0, dmax = 0, vmax = 0;
+        for ( int i=0; i<n; ++i ) {
+            if ( itemArray[i].fixed ) {
+                p.x[i] = p.px[i];
+                p.y[i] = p.py[i];
+                p.vx[i] = p.vy[i] = 0;
+                continue;
+            }
+            double dx = p.x[i] - p.px[i], dy = p.y[i] - p.py[i];
+            double v2 = p.vx[i]*p.vx[i] + p.vy[i]*p.vy[i];
+            ke += 0.5 * p.mass[i] * v2;
+            dmax = Math.max(dmax, dx*dx + dy*dy);
+            vmax = Math.max(vmax, v2);
+        }
+        setMotion(ke, Math.sqrt(dmax), Math.sqrt(vmax), timestep);
+    }
+
+    /**
+     * Accumulate all forces acting on the given particles, replacing their
+     * current force values.
+     * @param p the particle arrays
+     */
+    public void accumulate(ParticleArrays p) {
+        p.clearForces();
+        Force[] forces = getForces();
+        if ( legacy.length < forces.length )
+            legacy = new Force[forces.length];
+        int nlegacy = 0;
+        for ( int i=0; i<forces.length; ++i ) {
+            if ( forces[i] instanceof ArrayForce )
+                ((ArrayForce)forces[i]).accumulate(p);
+            else
+                legacy[nlegacy++] = forces[i];
+        }
+        if ( nlegacy > 0 )
+            accumulateLegacy(p, nlegacy);
+    }
+
+    /**
+     * Run force functions without array support on the ForceItems and
+     * Springs, and add the resulting forces to the particle arrays.
+     */
+    private void accumulateLegacy(ParticleArrays p, int nlegacy) {
+        int n = p.getSize();
+        for ( int i=0; i<n; ++i ) {
+            ForceItem item = itemArray[i];
+            item.location[0] = p.x[i];  item.location[1] = p.y[i];
+            item.velocity[0] = p.vx[i]; item.velocity[1] = p.vy[i];
+            item.force[0] = 0; item.force[1] = 0;
+        }
+        for ( int f=0; f<nlegacy; ++f )
+            legacy[f].init(this);
+        for ( int f=0; f<nlegacy; ++f ) {
+            Force force = legacy[f];
+            if ( force.isItemForce() ) {
+                for ( int i=0; i<n; ++i )
+                    force.getForce(itemArray[i]);
+            }
+            if ( force.isSpringForce() ) {
+                int ns = p.getSpringCount();
+                for ( int s=0; s<ns; ++s )
+                    force.getForce(springArray[s]);
+            }
+            legacy[f] = null;
+        }
+        for ( int i=0; i<n; ++i ) {
+            p.fx[i] += itemArray[i].force[0];
+            p.fy[i] += itemArray[i].force[1];
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Load the state of the registered items and springs into the
+     * particle arrays, which then hold the simulation state.
+     */
+    private void load() {
+        ParticleArrays p = particles;
+        int n = getItemCount();
+        p.setSize(n);
+        if ( itemArray.length < n )
+            itemArray = new ForceItem[p.x.length];
+        Iterator<ForceItem> iter = getItems();
+        for ( int i=0; i<n; ++i ) {
+            ForceItem item = iter.next();
+            itemArray[i] = item;
+            item.index = i;
+            p.x[i]  = item.location[0];  p.y[i]  = item.location[1];
+            p.px[i] = item.plocation[0]; p.py[i] = item.plocation[1];
+            p.vx[i] = item.velocity[0];  p.vy[i] = item.velocity[1];
+            p.mass[i] = item.mass;
+        }
+
+        int ns = getSpringCount();
+        if ( springArray.length < ns )
+            springArray = new Spring[ns];
+        p.setSpringCount(ns);
+        Iterator<Spring> siter = getSprings();
+        int m = 0;
+        for ( int s=0; s<ns; ++s ) {
+            Spring spring = siter.next();
+            int i1 = spring.item1.index, i2 = spring.item2.index;
+            // springs attached to items outside the simulation are ignored,
+            // as their forces would never be integrated
+            if ( i1 < 0 || i1 >= n || itemArray[i1] != spring.item1 ||
+                 i2 < 0 || i2 >= n || itemArray[i2] != spring.item2 )
+                continue;
+            springArray[m] = spring;
+            p.spring1[m] = i1;
+            p.spring2[m] = i2;
+            p.springCoeff[m] = spring.coeff;
+            p.springLength[m] = spring.length;
+            ++m;
+        }
+        p.setSpringCount(m);
+        loaded = true;
+        stored = true;
+    }
+
+    /**
+     * Write the particle arrays back to the registered items.
+     */
+    private void store() {
+        ParticleArrays p = particles;
+        int n = p.getSize();
+        for ( int i=0; i<n; ++i ) {
+            ForceItem item = itemArray[i];
+            item.location[0]  = p.x[i];  item.location[1]  = p.y[i];
+            item.plocation[0] = p.px[i]; item.plocation[1] = p.py[i];
+            item.velocity[0]  = p.vx[i]; item.velocity[1]  = p.vy[i];
+            item.force[0]     = p.fx[i]; item.force[1]     = p.fy[i];
+        }
+    }
+
+} // end of class ArrayForceSimulator
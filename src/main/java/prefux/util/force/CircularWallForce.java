@@ -36,7 +36,7 @@ package prefux.util.force;
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class CircularWallForce extends AbstractForce {
+public class CircularWallForce extends AbstractForce implements ArrayForce {
 
     private static String[] pnames = new String[] { "GravitationalConstant" };
     
@@ -47,6 +47,10 @@ public class CircularWallForce extends AbstractForce {
     
     private double x, y, r;
 
+    private boolean deterministic = false;
+    private long round = 0; // evaluation counter, seeds deterministic noise
+    private int next = 0;   // items evaluated item-wise
+
     /**
      * Create a new CircularWallForce.
      * @param gravConst the gravitational constant to use
@@ -89,6 +93,55 @@ public class CircularWallForce extends AbstractForce {
         return pnames;
     }
     
+    /**
+     * Indicates if forces are computed deterministically.
+     * @return true if results are deterministic
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Set if forces are computed deterministically. The random noise that
+     * pushes items away from the exact center of the circle is normally
+     * drawn from a random generator. In deterministic mode, it is instead
+     * derived from the item and the number of previous evaluations.
+     * @param d true for deterministic computation
+     */
+    public void setDeterministic(boolean d) {
+        deterministic = d;
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#setDeterministicNoise(boolean)
+     */
+    void setDeterministicNoise(boolean d) {
+        setDeterministic(d);
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#getNoiseRound()
+     */
+    long getNoiseRound() {
+        return round;
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#setNoiseRound(long)
+     */
+    void setNoiseRound(long round) {
+        this.round = round;
+    }
+
+    /**
+     * Counts the evaluations of the wall force.
+     * @see prefux.util.force.Force#init(prefux.util.force.ForceSimulator)
+     */
+    public void init(ForceSimulator fsim) {
+        ++round;
+        next = 0;
+    }
+
     /**
      * @see prefux.util.force.Force#getForce(prefux.util.force.ForceItem)
      */
@@ -101,13 +154,54 @@ public class CircularWallForce extends AbstractForce {
         double c = dr > 0 ? -1 : 1;
         double v = c*params[GRAVITATIONAL_CONST]*item.mass / (dr*dr);
         if ( d == 0.0 ) {
-            dx = ((double)Math.random()-0.5) / 50.0;
-            dy = ((double)Math.random()-0.5) / 50.0;
+            if ( deterministic ) {
+                // items are evaluated in order, so count them
+                long h = NBodyForce.hash(round, next, -1);
+                dx = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                h = NBodyForce.hash(h, next, -1);
+                dy = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+            } else {
+                dx = ((double)Math.random()-0.5) / 50.0;
+                dy = ((double)Math.random()-0.5) / 50.0;
+            }
             d  = (double)Math.sqrt(dx*dx+dy*dy);
         }
+        ++next;
         item.force[0] += v*dx/d;
         item.force[1] += v*dy/d;
         //System.out.println(dx/d+","+dy/d+","+dr+","+v);
     }
 
+    /**
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(ParticleArrays p) {
+        ++round;
+        double g = params[GRAVITATIONAL_CONST];
+        int n = p.getSize();
+        double[] px = p.x, py = p.y, fx = p.fx, fy = p.fy, mass = p.mass;
+        for ( int i=0; i<n; ++i ) {
+            double dx = x-px[i];
+            double dy = y-py[i];
+            double d = Math.sqrt(dx*dx+dy*dy);
+            double dr = r-d;
+            double c = dr > 0 ? -1 : 1;
+            double v = c*g*mass[i] / (dr*dr);
+            if ( d == 0.0 ) {
+                if ( deterministic ) {
+                    long h = NBodyForce.hash(round, i, -1);
+                    dx = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                    h = NBodyForce.hash(h, i, -1);
+                    dy = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                } else {
+                    dx = (Math.random()-0.5) / 50.0;
+                    dy = (Math.random()-0.5) / 50.0;
+                }
+                d  = Math.sqrt(dx*dx+dy*dy);
+            }
+            fx[i] += v*dx/d;
+            fy[i] += v*dy/d;
+        }
+    }
+
 } // end of class CircularWallForce
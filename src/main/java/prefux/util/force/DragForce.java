@@ -35,7 +35,7 @@ package prefux.util.force;
  * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class DragForce extends AbstractForce {
+public class DragForce extends AbstractForce implements ArrayForce {
 
     private static String[] pnames = new String[] { "DragCoefficient" };
     
@@ -84,4 +84,17 @@ public class DragForce extends AbstractForce {
         item.force[1] -= params[DRAG_COEFF]*item.velocity[1];
     }
 
+    /**
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(ParticleArrays p) {
+        double c = params[DRAG_COEFF];
+        int n = p.getSize();
+        double[] fx = p.fx, fy = p.fy, vx = p.vx, vy = p.vy;
+        for ( int i=0; i<n; ++i ) {
+            fx[i] -= c*vx[i];
+            fy[i] -= c*vy[i];
+        }
+    }
+
 } // end of class DragForce
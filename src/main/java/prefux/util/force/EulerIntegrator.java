@@ -35,24 +35,30 @@ import java.util.Iterator;
 /**
  * Updates velocity and position data using Euler's Method. This is the
  * simplest and fastest method, but is somewhat inaccurate and less smooth
- * than more costly approaches.
+ * than more costly approaches. The recommended next timestep shrinks while
+ * any item oscillates, as the method gains energy from every oscillation
+ * once the timestep is too long for the stiffness of the forces.
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  * @see RungeKuttaIntegrator
  */
-public class EulerIntegrator implements Integrator {
+public class EulerIntegrator implements ArrayIntegrator {
     
     /**
      * @see prefux.util.force.Integrator#integrate(prefux.util.force.ForceSimulator, long)
      */
     public long integrate(ForceSimulator sim, long timestep) {
         double speedLimit = sim.getSpeedLimit();
+        int oscillating = 0;
         Iterator iter = sim.getItems();
         while ( iter.hasNext() ) {
             ForceItem item = (ForceItem)iter.next();
+            item.plocation[0] = item.location[0];
+            item.plocation[1] = item.location[1];
             item.location[0] += timestep * item.velocity[0];
             item.location[1] += timestep * item.velocity[1];
             double coeff = timestep / item.mass;
+            double vx0 = item.velocity[0], vy0 = item.velocity[1];
             item.velocity[0] += coeff * item.force[0];
             item.velocity[1] += coeff * item.force[1];
             double vx = item.velocity[0];
@@ -62,8 +68,44 @@ public class EulerIntegrator implements Integrator {
                 item.velocity[0] = speedLimit * vx / v;
                 item.velocity[1] = speedLimit * vy / v;
             }
+            if ( sim.isOscillating(vx0, vy0,
+                                   item.velocity[0], item.velocity[1]) )
+                ++oscillating;
         }
-        return timestep;
+        return ( timestep > 0 ? sim.adaptTimestep(oscillating, 0, timestep)
+                              : timestep );
+    }
+
+    /**
+     * @see prefux.util.force.ArrayIntegrator#integrate(prefux.util.force.ArrayForceSimulator, prefux.util.force.ParticleArrays, long)
+     */
+    public long integrate(ArrayForceSimulator sim, ParticleArrays p,
+                          long timestep)
+    {
+        double speedLimit = sim.getSpeedLimit();
+        int n = p.getSize();
+        double[] x = p.x, y = p.y, vx = p.vx, vy = p.vy;
+        double[] fx = p.fx, fy = p.fy, mass = p.mass;
+        int oscillating = 0;
+        for ( int i=0; i<n; ++i ) {
+            p.px[i] = x[i];
+            p.py[i] = y[i];
+            x[i] += timestep * vx[i];
+            y[i] += timestep * vy[i];
+            double coeff = timestep / mass[i];
+            double vx0 = vx[i], vy0 = vy[i];
+            vx[i] += coeff * fx[i];
+            vy[i] += coeff * fy[i];
+            double v = Math.sqrt(vx[i]*vx[i]+vy[i]*vy[i]);
+            if ( v > speedLimit ) {
+                vx[i] = speedLimit * vx[i] / v;
+                vy[i] = speedLimit * vy[i] / v;
+            }
+            if ( sim.isOscillating(vx0, vy0, vx[i], vy[i]) )
+                ++oscillating;
+        }
+        return ( timestep > 0 ? sim.adaptTimestep(oscillating, 0, timestep)
+                              : timestep );
     }
 
 } // end of class EulerIntegrator
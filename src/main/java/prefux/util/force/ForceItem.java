@@ -58,6 +58,7 @@ public class ForceItem implements Cloneable {
     public Object clone() {
         ForceItem item = new ForceItem();
         item.mass = this.mass;
+        item.fixed = this.fixed;
         System.arraycopy(force,0,item.force,0,2);
         System.arraycopy(velocity,0,item.velocity,0,2);
         System.arraycopy(location,0,item.location,0,2);
@@ -71,6 +72,10 @@ public class ForceItem implements Cloneable {
     
     /** The mass value of this ForceItem. */
     public double   mass;
+    /** Indicates if this ForceItem is held in place. Forces still act on
+     *  fixed items, but the simulator moves them back after each timestep
+     *  and leaves them out of its convergence measures. */
+    public boolean  fixed;
     /** The values of the forces acting on this ForceItem. */
     public double[] force;
     /** The velocity values of this ForceItem. */
@@ -83,6 +88,10 @@ public class ForceItem implements Cloneable {
     public double[][] k;
     /** Temporary variables for Runge-Kutta integration */
     public double[][] l;
+    /** Index of this item in the particle arrays of an
+     *  {@link ArrayForceSimulator} or in the quadtree of an
+     *  {@link NBodyForce}, valid while the simulation runs */
+    int index = -1;
     
     /**
      * Checks a ForceItem to make sure its values are all valid numbers
@@ -39,6 +39,26 @@ import java.util.Iterator;
  * custom ForceSimulator, add the desired {@link Force} functions and choose an
  * appropriate {@link Integrator}.
  *
+ * <p>{@link ForceItem#fixed Fixed} items are held in place: forces act on
+ * them, but after each timestep they are moved back to where they were,
+ * and their velocity is cleared. The flag is read on every timestep, so
+ * items can be fixed and released between timesteps without any further
+ * notice to the simulator.</p>
+ *
+ * <p>After each timestep, the simulator records the kinetic energy of the
+ * items, the largest distance an item moved and the largest item speed.
+ * Fixed items are left out of these measures.
+ * Once that speed falls below the
+ * {@link #setConvergenceThreshold(double) convergence threshold}, the
+ * simulation is {@link #isConverged() converged}, and callers can stop
+ * running it until the items or springs change.</p>
+ *
+ * <p>In {@link #setDeterministic(boolean) deterministic} mode, a simulation
+ * produces bit-for-bit identical results whenever it is run on the same
+ * items and springs, added in the same order. Its full state can be saved
+ * and restored using {@link SimulationState}, to resume a simulation
+ * later or elsewhere.</p>
+ *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
 public class ForceSimulator {
@@ -50,6 +70,27 @@ public class ForceSimulator {
     private int iflen, sflen;
     private Integrator integrator;
     private float speedLimit = 1.0f;
+    private boolean deterministic = false;
+
+    /** Default maximum speed of any item in a converged simulation, in
+     *  distance per millisecond of simulated time */
+    public static final double DEFAULT_CONVERGENCE_THRESHOLD = 0.01;
+
+    private double convergence = DEFAULT_CONVERGENCE_THRESHOLD;
+    private double kineticEnergy;
+    private double maxDisplacement = Double.POSITIVE_INFINITY;
+    private double maxSpeed = Double.POSITIVE_INFINITY;
+
+    // state of the adaptive timestep control
+    private int progress;
+
+    /** Number of successive steps without oscillation before the
+     *  timestep is increased. */
+    private static final int ADAPT_STEPS = 5;
+    /** Factor by which the timestep grows. */
+    private static final double ADAPT_GROWTH = 1.1;
+    /** Factor by which the timestep shrinks. */
+    private static final double ADAPT_SHRINK = 0.5;
     
     /**
      * Create a new, empty ForceSimulator. A RungeKuttaIntegrator is used
@@ -106,6 +147,101 @@ public class ForceSimulator {
     public void setIntegrator(Integrator intgr) {
         integrator = intgr;
     }
+
+    /**
+     * Indicates if the simulation runs deterministically.
+     * @return true if the simulation is deterministic
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Set if the simulation runs deterministically. Forces of this package
+     * that add random noise, such as to separate coincident items, then
+     * derive it from the items involved and the number of previous
+     * evaluations instead of drawing it from a random generator, so that
+     * the results only depend on the initial state, and not on earlier
+     * simulations, threading or timing. The setting is passed on to all
+     * current forces, and to forces added later while it is enabled.
+     * @param d true for a deterministic simulation
+     */
+    public void setDeterministic(boolean d) {
+        deterministic = d;
+        for ( int i = 0; i < iflen; i++ )
+            setDeterministic(iforces[i], d);
+        for ( int i = 0; i < sflen; i++ )
+            setDeterministic(sforces[i], d);
+    }
+
+    private static void setDeterministic(Force f, boolean d) {
+        if ( f instanceof AbstractForce )
+            ((AbstractForce)f).setDeterministicNoise(d);
+    }
+
+    /**
+     * Get the convergence threshold, the speed below which the fastest
+     * item indicates a converged simulation. Speeds are measured in
+     * distance per millisecond of simulated time.
+     * @return the convergence threshold
+     */
+    public double getConvergenceThreshold() {
+        return convergence;
+    }
+
+    /**
+     * Set the convergence threshold, the speed below which the fastest
+     * item indicates a converged simulation. Speeds are measured in
+     * distance per millisecond of simulated time, so that the threshold
+     * does not depend on the length of the timesteps. A value of zero
+     * only considers simulations in which no item moves at all to be
+     * converged.
+     * @param threshold the convergence threshold
+     */
+    public void setConvergenceThreshold(double threshold) {
+        if ( threshold < 0 )
+            throw new IllegalArgumentException(
+                "Convergence threshold must not be negative: " + threshold);
+        convergence = threshold;
+    }
+
+    /**
+     * Get the total kinetic energy of all items after the last timestep.
+     * @return the kinetic energy
+     */
+    public double getKineticEnergy() {
+        return kineticEnergy;
+    }
+
+    /**
+     * Get the largest distance moved by any item during the last timestep.
+     * Positive infinity is returned if the simulator has not been run yet.
+     * @return the largest item displacement
+     */
+    public double getMaxDisplacement() {
+        return maxDisplacement;
+    }
+
+    /**
+     * Get the largest speed of any item, in distance per millisecond of
+     * simulated time. This is the larger of the average speed during the
+     * last timestep and the velocity at its end, so that an item that has
+     * only started to accelerate counts as moving. Positive infinity is
+     * returned if the simulator has not been run yet.
+     * @return the largest item speed
+     */
+    public double getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Indicates if the simulation has converged, that is, if no item moves
+     * faster than the convergence threshold.
+     * @return true if the simulation has converged
+     */
+    public boolean isConverged() {
+        return maxSpeed <= convergence;
+    }
     
     /**
      * Clear this simulator, removing all ForceItem and Spring instances
@@ -125,6 +261,8 @@ public class ForceSimulator {
      * @param f the Force function to add
      */
     public void addForce(Force f) {
+        if ( deterministic )
+            setDeterministic(f, true);
         if ( f.isItemForce() ) {
             if ( iforces.length == iflen ) {
                 // resize necessary
@@ -179,6 +317,14 @@ public class ForceSimulator {
     public Iterator<ForceItem> getItems() {
         return items.iterator();
     }
+
+    /**
+     * Get the number of registered ForceItems.
+     * @return the number of ForceItems
+     */
+    public int getItemCount() {
+        return items.size();
+    }
     
     /**
      * Add a Spring to the simulation.
@@ -224,14 +370,133 @@ public class ForceSimulator {
     public Iterator<Spring> getSprings() {
         return springs.iterator();
     }
-    
+
+    /**
+     * Get the number of registered Springs.
+     * @return the number of Springs
+     */
+    public int getSpringCount() {
+        return springs.size();
+    }
+
+    /**
+     * Bring the registered ForceItems up to date with the state of the
+     * simulation. Call this before reading the items after running the
+     * simulator. This simulator works on the items directly, so this does
+     * nothing; simulators that keep the state elsewhere, such as the
+     * {@link ArrayForceSimulator}, write it back to the items.
+     */
+    public void syncItems() {
+    }
+
+    /**
+     * Notify this simulator that registered ForceItems or Springs were
+     * modified by other code, for example moved, since the last timestep.
+     * Call {@link #syncItems()} before modifying them. Adding or removing
+     * items or springs needs no notification. This simulator works on the
+     * items directly, so this does nothing.
+     */
+    public void itemsChanged() {
+    }
+
     /**
      * Run the simulator for one timestep.
      * @param timestep the span of the timestep for which to run the simulator
      */
     public long runSimulator(long timestep) {
         accumulate();
-        return integrator.integrate(this, timestep);
+        long next = integrator.integrate(this, timestep);
+        double ke = 0, dmax = 0, vmax = 0;
+        for ( ForceItem item : items ) {
+            if ( item.fixed ) {
+                item.location[0] = item.plocation[0];
+                item.location[1] = item.plocation[1];
+                item.velocity[0] = item.velocity[1] = 0;
+                continue;
+            }
+            double vx = item.velocity[0], vy = item.velocity[1];
+            double dx = item.location[0] - item.plocation[0];
+            double dy = item.location[1] - item.plocation[1];
+            ke += 0.5 * item.mass * (vx*vx + vy*vy);
+            dmax = Math.max(dmax, dx*dx + dy*dy);
+            vmax = Math.max(vmax, vx*vx + vy*vy);
+        }
+        setMotion(ke, Math.sqrt(dmax), Math.sqrt(vmax), timestep);
+        return next;
+    }
+
+    /**
+     * Record the kinetic energy, the largest item displacement and the
+     * largest item velocity of the last timestep.
+     */
+    void setMotion(double kinetic, double displacement, double velocity,
+                   long timestep)
+    {
+        kineticEnergy = kinetic;
+        maxDisplacement = displacement;
+        maxSpeed = timestep > 0 ? Math.max(velocity, displacement/timestep)
+                                : velocity;
+    }
+
+    /**
+     * Get the number of successive steps without excess oscillation,
+     * which is saved with the {@link SimulationState}.
+     */
+    int getProgress() {
+        return progress;
+    }
+
+    /**
+     * Restore the motion measured after the last timestep and the state of
+     * the adaptive timestep control from a {@link SimulationState}.
+     */
+    void setState(double kinetic, double displacement, double speed,
+                  int progress)
+    {
+        this.kineticEnergy = kinetic;
+        this.maxDisplacement = displacement;
+        this.maxSpeed = speed;
+        this.progress = progress;
+    }
+
+    /**
+     * Indicates if an item is oscillating, that is, if it moves faster
+     * than the convergence threshold and its velocity reversed direction
+     * during the last timestep. Integrators count oscillating items to
+     * adapt their timesteps.
+     * @param vx0 the horizontal velocity before the timestep
+     * @param vy0 the vertical velocity before the timestep
+     * @param vx1 the horizontal velocity after the timestep
+     * @param vy1 the vertical velocity after the timestep
+     * @return true if the item is oscillating
+     */
+    boolean isOscillating(double vx0, double vy0, double vx1, double vy1) {
+        return vx0*vx1 + vy0*vy1 < 0
+            && vx1*vx1 + vy1*vy1 > convergence*convergence;
+    }
+
+    /**
+     * Computes the next timestep from the number of oscillating items.
+     * A timestep that is too long for the stiffness of the forces makes
+     * items overshoot and reverse direction in every step, so the
+     * timestep is halved whenever more items oscillate than tolerated, and
+     * grows again slowly after several successive steps without excess
+     * oscillation. Integrators use this to adapt their steps.
+     * @param oscillating the number of items that oscillated
+     * @param tolerated the number of oscillating items tolerated
+     * @param timestep the current timestep
+     * @return the recommended next timestep
+     */
+    long adaptTimestep(int oscillating, int tolerated, long timestep) {
+        long next = timestep;
+        if ( oscillating > tolerated ) {
+            progress = 0;
+            next = Math.max(1, (long)(timestep * ADAPT_SHRINK));
+        } else if ( ++progress >= ADAPT_STEPS ) {
+            progress = 0;
+            next = Math.max(timestep+1, (long)(timestep * ADAPT_GROWTH));
+        }
+        return next;
     }
     
     /**
@@ -38,7 +38,7 @@ package prefux.util.force;
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class GravitationalForce extends AbstractForce {
+public class GravitationalForce extends AbstractForce implements ArrayForce {
 
     private static final String[] pnames
         = { "GravitationalConstant", "Direction" };
@@ -102,4 +102,19 @@ public class GravitationalForce extends AbstractForce {
         item.force[1] += Math.sin(theta)*coeff;
     }
 
+    /**
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(ParticleArrays p) {
+        double theta = params[DIRECTION];
+        double gx = Math.cos(theta)*params[GRAVITATIONAL_CONST];
+        double gy = Math.sin(theta)*params[GRAVITATIONAL_CONST];
+        int n = p.getSize();
+        double[] fx = p.fx, fy = p.fy, mass = p.mass;
+        for ( int i=0; i<n; ++i ) {
+            fx[i] += gx*mass[i];
+            fy[i] += gy*mass[i];
+        }
+    }
+
 } // end of class GravitationalForce
@@ -0,0 +1,465 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>Runs a force simulation over a hierarchy of successively coarsened
+ * versions of a graph, placing a large graph in a fraction of the time a
+ * single simulation needs to untangle it. The graph is coarsened by
+ * matching each node with an unmatched neighbor of least mass and
+ * collapsing the remaining nodes into an adjacent cluster, until it is
+ * small enough or stops shrinking. The coarsest graph is laid out from
+ * scratch, then every finer level starts from the positions of the
+ * clusters its nodes belong to and only needs a short refinement. All
+ * levels are simulated with the same {@link ForceSimulator}, so the
+ * forces and integrator it is configured with apply throughout, and the
+ * refinement of a level ends early once the simulator has converged.</p>
+ *
+ * <p>The mass of a cluster is the sum of the masses of its members, so
+ * coarse nodes repel each other in proportion to their size. Spring
+ * lengths grow with the square root of the coarsening ratio from one
+ * level to the next, starting from the length configured on the
+ * simulator's {@link SpringForce}. The initial placement is pseudo-random
+ * with a fixed seed, so a graph is always laid out the same way.</p>
+ *
+ * <p>Items marked {@link ForceItem#fixed fixed} keep their locations. A
+ * cluster containing fixed nodes is fixed as well, at the centroid of
+ * those nodes, so the coarse levels are already laid out around them.</p>
+ */
+public class MultilevelSimulation {
+
+    private static final long SEED = 42L;
+    /** Coarsening stops when a level keeps more than this fraction of
+     *  the nodes of the previous level. */
+    private static final double MIN_REDUCTION = 0.9;
+    /** Upper bound of the spring length growth between two levels. */
+    private static final double MAX_LENGTH_SCALE = 2.0;
+    /** Initial time step when laying out the coarsest level. */
+    private static final long COLD_TIMESTEP = 1000L;
+    /** Initial time step when refining an interpolated level. */
+    private static final long WARM_TIMESTEP = 200L;
+
+    private ForceSimulator fsim;
+    private int iterations = 50;
+    private int coarsestSize = 50;
+    private int maxLevels = 30;
+    private int levelCount;
+
+    /**
+     * Create a new MultilevelSimulation.
+     * @param fsim the force simulator used to lay out every level
+     */
+    public MultilevelSimulation(ForceSimulator fsim) {
+        this.fsim = fsim;
+    }
+
+    /**
+     * Get the force simulator used to lay out every level.
+     * @return the force simulator
+     */
+    public ForceSimulator getForceSimulator() {
+        return fsim;
+    }
+
+    /**
+     * Set the force simulator used to lay out every level.
+     * @param fsim the force simulator
+     */
+    public void setForceSimulator(ForceSimulator fsim) {
+        this.fsim = fsim;
+    }
+
+    /**
+     * Get the number of simulation steps run on each level.
+     * @return the number of steps per level
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Set the number of simulation steps run on each level.
+     * @param iter the number of steps per level
+     */
+    public void setIterations(int iter) {
+        if ( iter < 1 )
+            throw new IllegalArgumentException(
+                "Iterations must be a positive number!");
+        iterations = iter;
+    }
+
+    /**
+     * Get the node count below which the graph is not coarsened further.
+     * @return the node count of the coarsest level
+     */
+    public int getCoarsestSize() {
+        return coarsestSize;
+    }
+
+    /**
+     * Set the node count below which the graph is not coarsened further.
+     * @param size the node count of the coarsest level
+     */
+    public void setCoarsestSize(int size) {
+        if ( size < 1 )
+            throw new IllegalArgumentException(
+                "Coarsest size must be a positive number!");
+        coarsestSize = size;
+    }
+
+    /**
+     * Get the maximum number of levels, including the original graph.
+     * @return the maximum number of levels
+     */
+    public int getMaxLevels() {
+        return maxLevels;
+    }
+
+    /**
+     * Set the maximum number of levels, including the original graph. A
+     * value of one disables coarsening.
+     * @param levels the maximum number of levels
+     */
+    public void setMaxLevels(int levels) {
+        if ( levels < 1 )
+            throw new IllegalArgumentException(
+                "Levels must be a positive number!");
+        maxLevels = levels;
+    }
+
+    /**
+     * Get the number of levels used by the last run, including the
+     * original graph.
+     * @return the number of levels of the last run
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Lay out a graph. The layout is centered on the centroid of the
+     * current locations of the items that are not fixed, which are then
+     * overwritten. Fixed items are not moved.
+     * @param items the nodes of the graph, with their masses set
+     * @param n the number of nodes, the length of the used prefix of the
+     * item array
+     * @param sources the source node index of each edge
+     * @param targets the target node index of each edge
+     * @param nedges the number of edges
+     */
+    public void run(ForceItem[] items, int n, int[] sources, int[] targets,
+                    int nedges)
+    {
+        if ( n == 0 ) return;
+        Random rand = new Random(SEED);
+        double cx = 0, cy = 0;
+        int nfree = 0;
+        for ( int i=0; i<n; ++i ) {
+            if ( items[i].fixed ) continue;
+            cx += items[i].location[0];
+            cy += items[i].location[1];
+            ++nfree;
+        }
+        if ( nfree == 0 ) return;
+        cx /= nfree;
+        cy /= nfree;
+
+        // coarsen the graph, keeping the node masses, edges and the map
+        // to the next coarser level of each level
+        ArrayList<Level> levels = new ArrayList<Level>();
+        Level fine = new Level(n, new double[n],
+                               Arrays.copyOf(sources, nedges),
+                               Arrays.copyOf(targets, nedges), nedges);
+        for ( int i=0; i<n; ++i ) {
+            fine.mass[i] = items[i].mass;
+            if ( items[i].fixed )
+                fine.pin(i, items[i].location[0], items[i].location[1]);
+        }
+        fine.items = items;
+        fine.length = -1;
+        levels.add(fine);
+        double length = baseSpringLength();
+        while ( fine.size > coarsestSize && levels.size() < maxLevels ) {
+            Level coarse = coarsen(fine, rand);
+            if ( coarse.size > MIN_REDUCTION * fine.size ) break;
+            length *= Math.min(MAX_LENGTH_SCALE,
+                               Math.sqrt(fine.size / (double)coarse.size));
+            coarse.length = length;
+            levels.add(coarse);
+            fine = coarse;
+        }
+        levelCount = levels.size();
+
+        // lay out the coarsest level from scratch
+        Level top = levels.get(levelCount-1);
+        if ( top.items == null )
+            top.items = newItems(top);
+        double side = Math.abs(top.length > 0 ? top.length
+                               : baseSpringLength()) * Math.sqrt(top.size);
+        for ( int i=0; i<top.size; ++i ) {
+            double x = cx + side*(rand.nextDouble()-0.5);
+            double y = cy + side*(rand.nextDouble()-0.5);
+            top.place(i, x, y);
+        }
+        simulate(top, COLD_TIMESTEP);
+
+        // interpolate and refine the finer levels
+        for ( int l=levelCount-2; l>=0; --l ) {
+            Level lv = levels.get(l), parent = levels.get(l+1);
+            if ( lv.items == null )
+                lv.items = newItems(lv);
+            double r = 0.25 * Math.abs(lv.length > 0 ? lv.length
+                                       : baseSpringLength());
+            for ( int i=0; i<lv.size; ++i ) {
+                double[] p = parent.items[lv.map[i]].location;
+                double x = p[0] + r*(rand.nextDouble()-0.5);
+                double y = p[1] + r*(rand.nextDouble()-0.5);
+                lv.place(i, x, y);
+            }
+            simulate(lv, WARM_TIMESTEP);
+            parent.items = null; // release the coarser level
+        }
+        fsim.clear();
+    }
+
+    /**
+     * Runs the simulator on one level, using an annealing schedule.
+     */
+    private void simulate(Level lv, long timestep) {
+        fsim.clear();
+        for ( int i=0; i<lv.size; ++i ) {
+            ForceItem item = lv.items[i];
+            item.force[0] = item.force[1] = 0;
+            item.velocity[0] = item.velocity[1] = 0;
+            fsim.addItem(item);
+        }
+        for ( int e=0; e<lv.nedges; ++e ) {
+            fsim.addSpring(lv.items[lv.src[e]], lv.items[lv.trg[e]],
+                           -1., lv.length);
+        }
+        for ( int i=0; i<iterations; ++i ) {
+            timestep *= (1.0 - i/(double)iterations);
+            fsim.runSimulator(timestep + 50);
+            if ( fsim.isConverged() ) break;
+        }
+        fsim.syncItems();
+    }
+
+    private static ForceItem[] newItems(Level lv) {
+        ForceItem[] items = new ForceItem[lv.size];
+        for ( int i=0; i<lv.size; ++i ) {
+            items[i] = new ForceItem();
+            items[i].mass = lv.mass[i];
+        }
+        return items;
+    }
+
+    /**
+     * Get the spring length of the simulator's spring force, if any.
+     */
+    private double baseSpringLength() {
+        Force[] forces = fsim.getForces();
+        for ( int i=0; i<forces.length; ++i ) {
+            if ( forces[i] instanceof SpringForce )
+                return forces[i].getParameter(SpringForce.SPRING_LENGTH);
+        }
+        return SpringForce.DEFAULT_SPRING_LENGTH;
+    }
+
+    // ------------------------------------------------------------------------
+    // Coarsening
+
+    /**
+     * Computes the next coarser level, setting the map of the given level.
+     */
+    private static Level coarsen(Level lv, Random rand) {
+        int n = lv.size;
+
+        // neighbor lists in compressed sparse row form
+        int[] off = new int[n+1];
+        for ( int e=0; e<lv.nedges; ++e ) {
+            ++off[lv.src[e]+1];
+            ++off[lv.trg[e]+1];
+        }
+        for ( int i=0; i<n; ++i )
+            off[i+1] += off[i];
+        int[] nb = new int[off[n]];
+        int[] cur = Arrays.copyOf(off, n);
+        for ( int e=0; e<lv.nedges; ++e ) {
+            nb[cur[lv.src[e]]++] = lv.trg[e];
+            nb[cur[lv.trg[e]]++] = lv.src[e];
+        }
+
+        int[] map = new int[n];
+        Arrays.fill(map, -1);
+
+        // visit the nodes in random order, matching each one with its
+        // lightest unmatched neighbor
+        int[] perm = new int[n];
+        for ( int i=0; i<n; ++i ) {
+            int j = rand.nextInt(i+1);
+            perm[i] = perm[j];
+            perm[j] = i;
+        }
+        int count = 0;
+        for ( int k=0; k<n; ++k ) {
+            int u = perm[k];
+            if ( map[u] >= 0 ) continue;
+            int best = -1;
+            for ( int a=off[u]; a<off[u+1]; ++a ) {
+                int v = nb[a];
+                if ( v != u && map[v] < 0
+                     && (best < 0 || lv.mass[v] < lv.mass[best]) )
+                    best = v;
+            }
+            if ( best >= 0 )
+                map[u] = map[best] = count++;
+        }
+        double[] mass = new double[n];
+        for ( int u=0; u<n; ++u )
+            if ( map[u] >= 0 ) mass[map[u]] += lv.mass[u];
+
+        // all neighbors of a node left unmatched are matched, so collapse
+        // it into the lightest adjacent cluster, which keeps stars and
+        // other hubs from stalling the coarsening
+        for ( int k=0; k<n; ++k ) {
+            int u = perm[k];
+            if ( map[u] >= 0 ) continue;
+            int best = -1;
+            for ( int a=off[u]; a<off[u+1]; ++a ) {
+                int c = map[nb[a]];
+                if ( c >= 0 && nb[a] != u
+                     && (best < 0 || mass[c] < mass[best]) )
+                    best = c;
+            }
+            if ( best < 0 ) best = count++; // isolated node
+            map[u] = best;
+            mass[best] += lv.mass[u];
+        }
+        lv.map = map;
+
+        // collect the distinct edges between clusters
+        long[] keys = new long[lv.nedges];
+        int ne = 0;
+        for ( int e=0; e<lv.nedges; ++e ) {
+            int a = map[lv.src[e]], b = map[lv.trg[e]];
+            if ( a == b ) continue;
+            keys[ne++] = ( a < b ? ((long)a << 32) | b : ((long)b << 32) | a );
+        }
+        Arrays.sort(keys, 0, ne);
+        int[] src = new int[ne], trg = new int[ne];
+        int m = 0;
+        for ( int e=0; e<ne; ++e ) {
+            if ( e > 0 && keys[e] == keys[e-1] ) continue;
+            src[m] = (int)(keys[e] >>> 32);
+            trg[m] = (int)keys[e];
+            ++m;
+        }
+        Level coarse = new Level(count, Arrays.copyOf(mass, count),
+                                 src, trg, m);
+
+        // pin the clusters containing fixed nodes at their centroid
+        if ( lv.fixed != null ) {
+            int[] nfixed = new int[count];
+            double[] sx = new double[count], sy = new double[count];
+            for ( int u=0; u<n; ++u ) {
+                if ( !lv.fixed[u] ) continue;
+                int c = map[u];
+                ++nfixed[c];
+                sx[c] += lv.pinX[u];
+                sy[c] += lv.pinY[u];
+            }
+            for ( int c=0; c<count; ++c ) {
+                if ( nfixed[c] > 0 )
+                    coarse.pin(c, sx[c]/nfixed[c], sy[c]/nfixed[c]);
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * One level of the hierarchy.
+     */
+    private static final class Level {
+        final int size;
+        final double[] mass;
+        final int[] src, trg;
+        final int nedges;
+        int[] map;           // cluster of each node at the next level
+        double length;       // spring length, or -1 for the default
+        ForceItem[] items;
+        boolean[] fixed;     // fixed nodes, or null if there are none
+        double[] pinX, pinY; // locations of the fixed nodes
+
+        Level(int size, double[] mass, int[] src, int[] trg, int nedges) {
+            this.size = size;
+            this.mass = mass;
+            this.src = src;
+            this.trg = trg;
+            this.nedges = nedges;
+        }
+
+        /**
+         * Fix a node at the given location.
+         */
+        void pin(int i, double x, double y) {
+            if ( fixed == null ) {
+                fixed = new boolean[size];
+                pinX = new double[size];
+                pinY = new double[size];
+            }
+            fixed[i] = true;
+            pinX[i] = x;
+            pinY[i] = y;
+        }
+
+        /**
+         * Set the initial location of a node, unless it is fixed.
+         */
+        void place(int i, double x, double y) {
+            ForceItem item = items[i];
+            if ( fixed != null && fixed[i] ) {
+                item.fixed = true;
+                x = pinX[i];
+                y = pinY[i];
+            }
+            item.location[0] = x;
+            item.location[1] = y;
+        }
+    } // end of inner class Level
+
+} // end of class MultilevelSimulation
@@ -30,10 +30,11 @@
  */
 package prefux.util.force;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * <p>Force function which computes an n-body force such as gravity,
@@ -52,9 +53,23 @@ import java.util.Random;
  *   <li><a href="http://www.ifa.hawaii.edu/~barnes/treecode/treeguide.html">Joshua Barnes' recent implementation</a>
  * </ul></p>
  * 
+ * <p>Particles closer together than the near distance parameter interact
+ * as if they were that far apart, which bounds the forces between close
+ * particles. The default near distance of zero disables this.</p>
+ * 
+ * <p>The quadtree is a linear quadtree held in primitive arrays, with nodes
+ * in Morton order, built and traversed without recursion. Particles closer
+ * together than the finest quadtree cell, such as coincident particles,
+ * share a leaf and interact with each other through the center of mass of
+ * the other particles in the leaf. When run on the particle arrays of an
+ * {@link ArrayForceSimulator}, the quadtree building and force evaluation
+ * can be spread over several threads using {@link #setParallelism(int)},
+ * and made reproducible bit-for-bit using
+ * {@link #setDeterministic(boolean)}.</p>
+ * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class NBodyForce extends AbstractForce {
+public class NBodyForce extends AbstractForce implements ArrayForce {
 
     /* 
      * The indexing scheme for quadtree child nodes goes row by row.
@@ -64,7 +79,7 @@ public class NBodyForce extends AbstractForce {
      */
 
     private static String[] pnames = new String[] { "GravitationalConstant", 
-            "Distance", "BarnesHutTheta"  };
+            "Distance", "BarnesHutTheta", "NearDistance"  };
     
     public static final double DEFAULT_GRAV_CONSTANT = -1.0f;
     public static final double DEFAULT_MIN_GRAV_CONSTANT = -10f;
@@ -78,23 +93,44 @@ public class NBodyForce extends AbstractForce {
     public static final double DEFAULT_MIN_THETA = 0.0f;
     public static final double DEFAULT_MAX_THETA = 1.0f;
     
+    public static final double DEFAULT_NEAR_DISTANCE = 0f;
+    public static final double DEFAULT_MIN_NEAR_DISTANCE = 0f;
+    public static final double DEFAULT_MAX_NEAR_DISTANCE = 10f;
+    
     public static final int GRAVITATIONAL_CONST = 0;
     public static final int MIN_DISTANCE = 1;
     public static final int BARNES_HUT_THETA = 2;
-    
-    private double xMin, xMax, yMin, yMax;
-    private QuadTreeNodeFactory factory = new QuadTreeNodeFactory();
-    private QuadTreeNode root;
+    public static final int NEAR_DISTANCE = 3;
     
     private Random rand = new Random(12345678L); // deterministic randomness
 
+    // quadtree over the particle arrays being evaluated
+    private QuadTree tree = new QuadTree();
+
+    // ForceItems inserted for item-wise evaluation, their positions and
+    // masses at insertion, and the quadtree over them
+    private QuadTree itemTree = new QuadTree();
+    private ForceItem[] items = new ForceItem[64];
+    private double[] itemX = new double[64];
+    private double[] itemY = new double[64];
+    private double[] itemMass = new double[64];
+    private int nitems = 0;
+    private boolean dirty = false;
+    private int[] itemStack = new int[64];
+    private double[] itemForce = new double[2];
+
+    private int parallelism = 1;
+    private boolean deterministic = false;
+    private ForkJoinPool pool;
+    private long round = 0; // evaluation counter, seeds deterministic noise
+
     /**
      * Create a new NBodyForce with default parameters.
      */
     public NBodyForce() {
         this(DEFAULT_GRAV_CONSTANT, DEFAULT_DISTANCE, DEFAULT_THETA);
     }
-    
+
     /**
      * Create a new NBodyForce.
      * @param gravConstant the gravitational constant to use. Nodes will
@@ -107,12 +143,14 @@ public class NBodyForce extends AbstractForce {
      * item mass values.
      */
     public NBodyForce(double gravConstant, double minDistance, double theta) {
-        params = new double[] { gravConstant, minDistance, theta };
+        params = new double[] { gravConstant, minDistance, theta,
+            DEFAULT_NEAR_DISTANCE };
         minValues = new double[] { DEFAULT_MIN_GRAV_CONSTANT,
-            DEFAULT_MIN_DISTANCE, DEFAULT_MIN_THETA };
+            DEFAULT_MIN_DISTANCE, DEFAULT_MIN_THETA,
+            DEFAULT_MIN_NEAR_DISTANCE };
         maxValues = new double[] { DEFAULT_MAX_GRAV_CONSTANT,
-            DEFAULT_MAX_DISTANCE, DEFAULT_MAX_THETA };
-        root = factory.getQuadTreeNode();
+            DEFAULT_MAX_DISTANCE, DEFAULT_MAX_THETA,
+            DEFAULT_MAX_NEAR_DISTANCE };
     }
 
     /**
@@ -122,269 +160,291 @@ public class NBodyForce extends AbstractForce {
     public boolean isItemForce() {
         return true;
     }
-    
+
     /**
      * @see prefux.util.force.AbstractForce#getParameterNames()
      */
     protected String[] getParameterNames() {
         return pnames;
-    } 
-    
-    /**
-     * Set the bounds of the region for which to compute the n-body simulation
-     * @param xMin the minimum x-coordinate
-     * @param yMin the minimum y-coordinate
-     * @param xMax the maximum x-coordinate
-     * @param yMax the maximum y-coordinate
-     */
-    private void setBounds(double xMin, double yMin, double xMax, double yMax) {
-        this.xMin = xMin;
-        this.yMin = yMin;
-        this.xMax = xMax;
-        this.yMax = yMax;
     }
 
     /**
      * Clears the quadtree of all entries.
      */
     public void clear() {
-        clearHelper(root);
-        root = factory.getQuadTreeNode();
-    }
-    
-    private void clearHelper(QuadTreeNode n) {
-        for ( int i = 0; i < n.children.length; i++ ) {
-            if ( n.children[i] != null )
-                clearHelper(n.children[i]);
-        }
-        factory.reclaim(n);
+        Arrays.fill(items, 0, nitems, null);
+        nitems = 0;
+        dirty = true;
     }
 
     /**
      * Initialize the simulation with the provided enclosing simulation. After
-     * this call has been made, the simulation can be queried for the 
+     * this call has been made, the simulation can be queried for the
      * n-body force acting on a given item.
      * @param fsim the enclosing ForceSimulator
      */
     public void init(ForceSimulator fsim) {
         clear(); // clear internal state
-        
-        // compute and squarify bounds of quadtree
-        double x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE;
-        double x2 = Float.MIN_VALUE, y2 = Float.MIN_VALUE;
-        Iterator itemIter = fsim.getItems();
-        while ( itemIter.hasNext() ) {
-            ForceItem item = (ForceItem)itemIter.next();
-            double x = item.location[0];
-            double y = item.location[1];
-            if ( x < x1 ) x1 = x;
-            if ( y < y1 ) y1 = y;
-            if ( x > x2 ) x2 = x;
-            if ( y > y2 ) y2 = y;
-        }
-        double dx = x2-x1, dy = y2-y1;
-        if ( dx > dy ) { y2 = y1 + dx; } else { x2 = x1 + dy; }
-        setBounds(x1,y1,x2,y2);
-        
-        // insert items into quadtree
-        itemIter = fsim.getItems();
-        while ( itemIter.hasNext() ) {
-            ForceItem item = (ForceItem)itemIter.next();
-            insert(item);
-        }
-        
-        // calculate magnitudes and centers of mass
-        calcMass(root);
+        Iterator<ForceItem> itemIter = fsim.getItems();
+        while ( itemIter.hasNext() )
+            insert(itemIter.next());
+        ++round;
+        buildItemTree();
     }
 
     /**
-     * Inserts an item into the quadtree.
+     * Inserts an item into the quadtree. The quadtree is rebuilt with the
+     * item's current location the next time a force is calculated.
      * @param item the ForceItem to add.
-     * @throws IllegalStateException if the current location of the item is
-     *  outside the bounds of the quadtree
      */
     public void insert(ForceItem item) {
-        // insert item into the quadtrees
-        try {
-            insert(item, root, xMin, yMin, xMax, yMax);
-        } catch ( StackOverflowError e ) {
-            // TODO: safe to remove?
-            e.printStackTrace();
+        if ( nitems == items.length ) {
+            int cap = 2*nitems;
+            items = Arrays.copyOf(items, cap);
+            itemX = Arrays.copyOf(itemX, cap);
+            itemY = Arrays.copyOf(itemY, cap);
+            itemMass = Arrays.copyOf(itemMass, cap);
         }
+        items[nitems] = item;
+        itemX[nitems] = item.location[0];
+        itemY[nitems] = item.location[1];
+        itemMass[nitems] = item.mass;
+        item.index = nitems++;
+        dirty = true;
     }
 
-    private void insert(ForceItem p, QuadTreeNode n, 
-                        double x1, double y1, double x2, double y2)
-    {
-        // try to insert particle p at node n in the quadtree
-        // by construction, each leaf will contain either 1 or 0 particles
-        if ( n.hasChildren ) {
-            // n contains more than 1 particle
-            insertHelper(p,n,x1,y1,x2,y2);
-        } else if ( n.value != null ) {
-            // n contains 1 particle
-            if ( isSameLocation(n.value, p) ) {
-                insertHelper(p,n,x1,y1,x2,y2);
-            } else {
-                ForceItem v = n.value; n.value = null;
-                insertHelper(v,n,x1,y1,x2,y2);
-                insertHelper(p,n,x1,y1,x2,y2);
-            }
-        } else { 
-            // n is empty, so is a leaf
-            n.value = p;
-        }
+    private void buildItemTree() {
+        itemTree.build(itemX, itemY, itemMass, nitems,
+                       parallelism > 1 ? getPool() : null);
+        dirty = false;
     }
-    
-    private static boolean isSameLocation(ForceItem f1, ForceItem f2) {
-        double dx = Math.abs(f1.location[0]-f2.location[0]);
-        double dy = Math.abs(f1.location[1]-f2.location[1]);
-        return ( dx < 0.01 && dy < 0.01 );
+
+    /**
+     * Calculates the force vector acting on the given item.
+     * @param item the ForceItem for which to compute the force
+     */
+    public void getForce(ForceItem item) {
+        if ( dirty )
+            buildItemTree();
+        int i = item.index;
+        if ( i < 0 || i >= nitems || items[i] != item )
+            i = -1; // not in the tree
+        itemStack = force(itemTree, i, item.location[0], item.location[1],
+                          item.mass, itemStack, itemForce);
+        item.force[0] += itemForce[0];
+        item.force[1] += itemForce[1];
     }
-    
-    private void insertHelper(ForceItem p, QuadTreeNode n, 
-                              double x1, double y1, double x2, double y2)
-    {   
-        double x = p.location[0], y = p.location[1];
-        double splitx = (x1+x2)/2;
-        double splity = (y1+y2)/2;
-        int i = (x>=splitx ? 1 : 0) + (y>=splity ? 2 : 0);
-        // create new child node, if necessary
-        if ( n.children[i] == null ) {
-            n.children[i] = factory.getQuadTreeNode();
-            n.hasChildren = true;
-        }
-        // update bounds
-        if ( i==1 || i==3 ) x1 = splitx; else x2 = splitx;
-        if ( i > 1 )        y1 = splity; else y2 = splity;
-        // recurse 
-        insert(p,n.children[i],x1,y1,x2,y2);        
+
+    // ------------------------------------------------------------------------
+    // Parallelism
+
+    /**
+     * Get the number of threads used to compute forces on particle arrays.
+     * @return the parallelism level, 1 for sequential computation
+     */
+    public int getParallelism() {
+        return parallelism;
     }
 
-    private void calcMass(QuadTreeNode n) {
-        double xcom = 0, ycom = 0;
-        n.mass = 0;
-        if ( n.hasChildren ) {
-            for ( int i=0; i < n.children.length; i++ ) {
-                if ( n.children[i] != null ) {
-                    calcMass(n.children[i]);
-                    n.mass += n.children[i].mass;
-                    xcom += n.children[i].mass * n.children[i].com[0];
-                    ycom += n.children[i].mass * n.children[i].com[1];
-                }
-            }
-        }
-        if ( n.value != null ) {
-            n.mass += n.value.mass;
-            xcom += n.value.mass * n.value.location[0];
-            ycom += n.value.mass * n.value.location[1];
+    /**
+     * Set the number of threads used to compute forces on particle arrays.
+     * With more than one thread, the subtrees of the quadtree are built in
+     * parallel, and the forces of different particles are evaluated
+     * concurrently on the read-only tree. This applies to simulations run
+     * by an {@link ArrayForceSimulator}; forces computed on individual
+     * ForceItems are always computed sequentially. The force creates its
+     * own pool of that many threads when first run in parallel, and shuts
+     * it down when the parallelism is changed.
+     * @param threads the parallelism level, 1 for sequential computation
+     */
+    public synchronized void setParallelism(int threads) {
+        if ( threads < 1 )
+            throw new IllegalArgumentException(
+                "Parallelism must be at least 1: " + threads);
+        if ( threads != parallelism && pool != null ) {
+            pool.shutdown();
+            pool = null;
         }
-        n.com[0] = xcom / n.mass;
-        n.com[1] = ycom / n.mass;
+        parallelism = threads;
     }
 
     /**
-     * Calculates the force vector acting on the given item.
-     * @param item the ForceItem for which to compute the force
+     * Indicates if forces are computed deterministically.
+     * @return true if results are deterministic
      */
-    public void getForce(ForceItem item) {
-        try {
-            forceHelper(item,root,xMin,yMin,xMax,yMax);
-        } catch ( StackOverflowError e ) {
-            // TODO: safe to remove?
-            e.printStackTrace();
-        }
+    public boolean isDeterministic() {
+        return deterministic;
     }
-    
-    private void forceHelper(ForceItem item, QuadTreeNode n, 
-                             double x1, double y1, double x2, double y2)
-    {
-        double dx = n.com[0] - item.location[0];
-        double dy = n.com[1] - item.location[1];
-        double r  = (double)Math.sqrt(dx*dx+dy*dy);
-        boolean same = false;
-        if ( r == 0.0f ) {
-            // if items are in the exact same place, add some noise
-            dx = (rand.nextFloat()-0.5f) / 50.0f;
-            dy = (rand.nextFloat()-0.5f) / 50.0f;
-            r  = (double)Math.sqrt(dx*dx+dy*dy);
-            same = true;
-        }
-        boolean minDist = params[MIN_DISTANCE]>0f && r>params[MIN_DISTANCE];
-        
-        // the Barnes-Hut approximation criteria is if the ratio of the
-        // size of the quadtree box to the distance between the point and
-        // the box's center of mass is beneath some threshold theta.
-        if ( (!n.hasChildren && n.value != item) || 
-             (!same && (x2-x1)/r < params[BARNES_HUT_THETA]) ) 
-        {
-            if ( minDist ) return;
-            // either only 1 particle or we meet criteria
-            // for Barnes-Hut approximation, so calc force
-            double v = params[GRAVITATIONAL_CONST]*item.mass*n.mass 
-                        / (r*r*r);
-            item.force[0] += v*dx;
-            item.force[1] += v*dy;
-        } else if ( n.hasChildren ) {
-            // recurse for more accurate calculation
-            double splitx = (x1+x2)/2;
-            double splity = (y1+y2)/2;
-            for ( int i=0; i<n.children.length; i++ ) {
-                if ( n.children[i] != null ) {
-                    forceHelper(item, n.children[i],
-                        (i==1||i==3?splitx:x1), (i>1?splity:y1),
-                        (i==1||i==3?x2:splitx), (i>1?y2:splity));
-                }
-            }
-            if ( minDist ) return;
-            if ( n.value != null && n.value != item ) {
-                double v = params[GRAVITATIONAL_CONST]*item.mass*n.value.mass
-                            / (r*r*r);
-                item.force[0] += v*dx;
-                item.force[1] += v*dy;
-            }
-        }
+
+    /**
+     * Set if forces are computed deterministically. The quadtree only
+     * depends on the particle positions, but the random noise that
+     * separates coincident particles is normally drawn from a random
+     * generator shared by all threads. In deterministic mode, it is instead
+     * derived from the particles involved and the number of previous
+     * evaluations, so the computed forces are bit-for-bit identical across
+     * runs and independent of the parallelism level.
+     * @param d true for deterministic computation
+     */
+    public void setDeterministic(boolean d) {
+        deterministic = d;
     }
 
     /**
-     * Represents a node in the quadtree.
+     * @see prefux.util.force.AbstractForce#setDeterministicNoise(boolean)
      */
-    public static final class QuadTreeNode {
-        public QuadTreeNode() {
-            com = new double[] {0.0f, 0.0f};
-            children = new QuadTreeNode[4];
-        } //
-        boolean hasChildren = false;
-        double mass; // total mass held by this node
-        double[] com; // center of mass of this node 
-        ForceItem value; // ForceItem in this node, null if node has children
-        QuadTreeNode[] children; // children nodes
-    } // end of inner class QuadTreeNode
+    void setDeterministicNoise(boolean d) {
+        setDeterministic(d);
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#getNoiseRound()
+     */
+    long getNoiseRound() {
+        return round;
+    }
 
     /**
-     * Helper class to minimize number of object creations across multiple
-     * uses of the quadtree.
+     * @see prefux.util.force.AbstractForce#setNoiseRound(long)
      */
-    public static final class QuadTreeNodeFactory {
-        private int maxNodes = 50000;
-        private ArrayList nodes = new ArrayList();
-        
-        public QuadTreeNode getQuadTreeNode() {
-            if ( nodes.size() > 0 ) {
-                return (QuadTreeNode)nodes.remove(nodes.size()-1);
-            } else {
-                return new QuadTreeNode();
+    void setNoiseRound(long round) {
+        this.round = round;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if ( pool == null )
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    // ------------------------------------------------------------------------
+    // Particle Arrays
+
+    /**
+     * Computes the n-body force on all particles.
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(final ParticleArrays p) {
+        int n = p.getSize();
+        if ( n == 0 ) return;
+        ++round;
+        ForkJoinPool fjp = ( parallelism > 1 ? getPool() : null );
+        tree.build(p.x, p.y, p.mass, n, fjp);
+
+        int grain = Math.max(256, n / (8*parallelism));
+        ParallelRange.forEach(fjp, n, grain, (lo, hi) -> {
+            int[] stack = new int[64];
+            double[] f = new double[2];
+            for ( int i=lo; i<hi; ++i ) {
+                stack = force(tree, i, p.x[i], p.y[i], p.mass[i], stack, f);
+                p.fx[i] += f[0];
+                p.fy[i] += f[1];
             }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    // Force Calculation
+
+    /**
+     * Calculates the force acting on a particle, traversing the quadtree
+     * with an explicit stack.
+     * @param t the quadtree
+     * @param i the index of the particle in the tree, or -1 if it is not
+     * part of the tree
+     * @param px the x-coordinate of the particle
+     * @param py the y-coordinate of the particle
+     * @param pm the mass of the particle
+     * @param stack the traversal stack
+     * @param f array receiving the force vector
+     * @return the stack, which may have been grown
+     */
+    private int[] force(QuadTree t, int i, double px, double py, double pm,
+                        int[] stack, double[] f)
+    {
+        double g = params[GRAVITATIONAL_CONST];
+        double minDistance = params[MIN_DISTANCE];
+        double theta = params[BARNES_HUT_THETA];
+        double near = params[NEAR_DISTANCE];
+        // compare squared distances, taking roots only for interactions
+        double theta2 = theta*theta, near2 = near*near;
+        double max2 = minDistance*minDistance;
+        int ri = ( i < 0 ? -1 : t.rank[i] );
+        double gm = g*pm, fx = 0, fy = 0;
+
+        int top = 0;
+        if ( t.count > 0 )
+            stack[top++] = 0;
+        while ( top > 0 ) {
+            int k = stack[--top];
+            double m = t.mass[k];
+            double dx = t.comx[k] - px;
+            double dy = t.comy[k] - py;
+            double r2 = dx*dx+dy*dy;
+
+            if ( !t.leaf[k] ) {
+                // the Barnes-Hut approximation criteria is if the ratio of
+                // the size of the quadtree box to the distance between the
+                // point and the box's center of mass is beneath some
+                // threshold theta, otherwise drill down to the children
+                double size = t.size[k];
+                if ( r2 == 0.0 || size*size >= theta2*r2 ) {
+                    if ( top + 4 > stack.length )
+                        stack = Arrays.copyOf(stack, 2*stack.length);
+                    for ( int d=3; d>=0; --d ) {
+                        int c = t.child[4*k+d];
+                        if ( c != 0 ) stack[top++] = c;
+                    }
+                    continue;
+                }
+            } else if ( ri >= t.first[k] && ri < t.last[k] ) {
+                // interact with the center of mass of the other particles
+                // sharing the leaf
+                if ( t.last[k]-t.first[k] == 1 ) continue;
+                double mo = m - pm;
+                if ( mo <= 0 ) continue;
+                dx = (m*t.comx[k] - pm*px) / mo - px;
+                dy = (m*t.comy[k] - pm*py) / mo - py;
+                m = mo;
+                r2 = dx*dx+dy*dy;
+            }
+
+            if ( r2 == 0.0 ) {
+                // if items are in the exact same place, add some noise
+                if ( deterministic ) {
+                    long h = hash(round, i, t.first[k]);
+                    dx = ((h >>> 40) / (float)(1<<24) - 0.5f) / 50.0f;
+                    dy = (((h >>> 16) & 0xFFFFFF) / (float)(1<<24) - 0.5f)
+                            / 50.0f;
+                } else {
+                    Random rnd = ( parallelism > 1
+                            ? ThreadLocalRandom.current() : rand );
+                    dx = (rnd.nextFloat()-0.5f) / 50.0f;
+                    dy = (rnd.nextFloat()-0.5f) / 50.0f;
+                }
+                r2 = dx*dx+dy*dy;
+            }
+            if ( minDistance > 0f && r2 > max2 ) continue;
+            // closer particles interact as if at the near distance,
+            // which bounds the forces between them
+            if ( r2 < near2 ) r2 = near2;
+            double v = gm*m / (r2*Math.sqrt(r2));
+            fx += v*dx;
+            fy += v*dy;
         }
-        public void reclaim(QuadTreeNode n) {
-            n.mass = 0;
-            n.com[0] = 0.0f; n.com[1] = 0.0f;
-            n.value = null;
-            n.hasChildren = false;
-            Arrays.fill(n.children, null);          
-            if ( nodes.size() < maxNodes )
-                nodes.add(n);
-        }
-    } // end of inner class QuadTreeNodeFactory
+        f[0] = fx;
+        f[1] = fy;
+        return stack;
+    }
+
+    /**
+     * Mixes three values into a well distributed 64 bit hash.
+     */
+    static long hash(long a, long b, long c) {
+        long h = (a * 0x9E3779B97F4A7C15L + b) * 0xBF58476D1CE4E5B9L + c;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
 
 } // end of class NBodyForce
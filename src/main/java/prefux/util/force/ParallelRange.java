@@ -0,0 +1,95 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Helper for running loops over a range of indices on a fork/join pool,
+ * used by force functions evaluating particle arrays in parallel.
+ */
+final class ParallelRange {
+
+    /**
+     * Body of a parallel loop, processing a range of indices.
+     */
+    interface Body {
+        void run(int lo, int hi);
+    }
+
+    private ParallelRange() {
+        // prevent instantiation
+    }
+
+    /**
+     * Run a body over the range [0,n), splitting it into chunks of at most
+     * <code>grain</code> indices that are processed in parallel.
+     * @param pool the pool to run on, or null to run sequentially in the
+     * calling thread
+     * @param n the size of the range
+     * @param grain the maximum number of indices processed by one task
+     * @param body the loop body
+     */
+    static void forEach(ForkJoinPool pool, int n, int grain, Body body) {
+        if ( pool == null || n <= grain )
+            body.run(0, n);
+        else
+            pool.invoke(new Task(body, 0, n, Math.max(1, grain)));
+    }
+
+    /**
+     * Fork/join task splitting a range of indices in halves.
+     */
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Body body;
+        private final int lo, hi, grain;
+
+        Task(Body body, int lo, int hi, int grain) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            if ( hi-lo <= grain ) {
+                body.run(lo, hi);
+            } else {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new Task(body, lo, mid, grain),
+                          new Task(body, mid, hi, grain));
+            }
+        }
+    } // end of inner class Task
+
+} // end of class ParallelRange
@@ -0,0 +1,177 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.Arrays;
+
+/**
+ * <p>Flat, structure-of-arrays storage for the state of a force simulation.
+ * Each particle is identified by an index between zero and
+ * {@link #getSize()}, and all of its values are stored at that index in
+ * primitive arrays, so that integrators and force functions sweep over
+ * contiguous memory instead of following references from one
+ * {@link ForceItem} to its value arrays. Springs are stored the same way,
+ * referring to their endpoints by particle index.</p>
+ *
+ * <p>The arrays are exposed as public fields for use in inner loops. They
+ * may be longer than the number of particles or springs, and may be
+ * replaced when the capacity grows, so they should not be cached across
+ * calls to {@link #setSize(int)} or {@link #setSpringCount(int)}.</p>
+ */
+public class ParticleArrays {
+
+    /** The number of Runge-Kutta stages held in the scratch arrays. */
+    public static final int STAGES = 4;
+
+    private int size = 0;
+    private int nsprings = 0;
+
+    /** The x-coordinates of the particle locations. */
+    public double[] x = new double[0];
+    /** The y-coordinates of the particle locations. */
+    public double[] y = new double[0];
+    /** The x-coordinates of the previous particle locations. */
+    public double[] px = new double[0];
+    /** The y-coordinates of the previous particle locations. */
+    public double[] py = new double[0];
+    /** The x-components of the particle velocities. */
+    public double[] vx = new double[0];
+    /** The y-components of the particle velocities. */
+    public double[] vy = new double[0];
+    /** The x-components of the forces acting on the particles. */
+    public double[] fx = new double[0];
+    /** The y-components of the forces acting on the particles. */
+    public double[] fy = new double[0];
+    /** The particle masses. */
+    public double[] mass = new double[0];
+    /** Runge-Kutta position increments, x-components, one array per stage. */
+    public double[][] kx = new double[STAGES][0];
+    /** Runge-Kutta position increments, y-components, one array per stage. */
+    public double[][] ky = new double[STAGES][0];
+    /** Runge-Kutta velocity increments, x-components, one array per stage. */
+    public double[][] lx = new double[STAGES][0];
+    /** Runge-Kutta velocity increments, y-components, one array per stage. */
+    public double[][] ly = new double[STAGES][0];
+
+    /** The particle index of the first endpoint of each spring. */
+    public int[] spring1 = new int[0];
+    /** The particle index of the second endpoint of each spring. */
+    public int[] spring2 = new int[0];
+    /** The spring coefficients, negative to use the force default. */
+    public double[] springCoeff = new double[0];
+    /** The spring resting lengths, negative to use the force default. */
+    public double[] springLength = new double[0];
+
+    /**
+     * Get the number of particles.
+     * @return the number of particles
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Set the number of particles, growing the particle arrays if needed.
+     * Values of retained particles are kept, values of new particles are
+     * undefined.
+     * @param n the number of particles
+     */
+    public void setSize(int n) {
+        if ( n > x.length ) {
+            int cap = Math.max(n, x.length + (x.length >> 1));
+            x = Arrays.copyOf(x, cap);
+            y = Arrays.copyOf(y, cap);
+            px = Arrays.copyOf(px, cap);
+            py = Arrays.copyOf(py, cap);
+            vx = Arrays.copyOf(vx, cap);
+            vy = Arrays.copyOf(vy, cap);
+            fx = Arrays.copyOf(fx, cap);
+            fy = Arrays.copyOf(fy, cap);
+            mass = Arrays.copyOf(mass, cap);
+            for ( int s=0; s<STAGES; ++s ) {
+                kx[s] = new double[cap];
+                ky[s] = new double[cap];
+                lx[s] = new double[cap];
+                ly[s] = new double[cap];
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Get the number of springs.
+     * @return the number of springs
+     */
+    public int getSpringCount() {
+        return nsprings;
+    }
+
+    /**
+     * Set the number of springs, growing the spring arrays if needed.
+     * Values of retained springs are kept, values of new springs are
+     * undefined.
+     * @param n the number of springs
+     */
+    public void setSpringCount(int n) {
+        if ( n > spring1.length ) {
+            int cap = Math.max(n, spring1.length + (spring1.length >> 1));
+            spring1 = Arrays.copyOf(spring1, cap);
+            spring2 = Arrays.copyOf(spring2, cap);
+            springCoeff = Arrays.copyOf(springCoeff, cap);
+            springLength = Arrays.copyOf(springLength, cap);
+        }
+        nsprings = n;
+    }
+
+    /**
+     * Reset the forces of all particles to zero.
+     */
+    public void clearForces() {
+        Arrays.fill(fx, 0, size, 0.0);
+        Arrays.fill(fy, 0, size, 0.0);
+    }
+
+    /**
+     * Checks the values of a particle to make sure they are all valid
+     * numbers (i.e., not NaNs).
+     * @param i the particle index
+     * @return true if all the values are valid, false otherwise
+     * @see ForceItem#isValid(ForceItem)
+     */
+    public boolean isValid(int i) {
+        return
+          !( Double.isNaN(x[i])  || Double.isNaN(y[i])  ||
+             Double.isNaN(px[i]) || Double.isNaN(py[i]) ||
+             Double.isNaN(vx[i]) || Double.isNaN(vy[i]) ||
+             Double.isNaN(fx[i]) || Double.isNaN(fy[i]) );
+    }
+
+} // end of class ParticleArrays
@@ -0,0 +1,519 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>Force function computing the same attraction or repulsion between all
+ * particles as the {@link NBodyForce}, using a particle-mesh approximation
+ * suited to very large simulations. The masses of all particles are
+ * spread onto a regular grid spanning their bounds, the field they create
+ * is computed on the grid by convolving it with a softened force kernel
+ * using fast Fourier transforms, and it is then interpolated back at each
+ * particle. The cost of an evaluation is linear in the number of particles
+ * plus O(g<sup>2</sup> log g) for a grid of g by g cells, independent of
+ * how the particles are distributed.</p>
+ *
+ * <p>The trade-off between speed and accuracy is controlled by three
+ * parameters. The grid size sets the resolution of the field, and is
+ * rounded up to a power of two. The softening, in grid cells, smooths the
+ * force kernel at short range, trading short range precision for less
+ * aliasing. Finally, the near field radius, in grid cells, enables the
+ * direct computation of the short range forces between particles closer
+ * than this radius, correcting the softened mesh force towards the exact
+ * force at a cost proportional to the number of such neighbors. With a
+ * near field radius of zero, particles closer than a cell apart barely
+ * repel each other, which usually suffices for layout purposes as
+ * springs keep connected particles apart.</p>
+ *
+ * <p>Unlike the n-body force, this force does not support a maximum
+ * interaction distance, and coincident particles are not separated by
+ * random noise. When run on the particle arrays of an
+ * {@link ArrayForceSimulator}, the transforms and per particle work can
+ * be spread over several threads using {@link #setParallelism(int)}; the
+ * results do not depend on the parallelism level.</p>
+ */
+public class ParticleMeshForce extends AbstractForce implements ArrayForce {
+
+    private static String[] pnames = new String[] { "GravitationalConstant",
+            "GridSize", "Softening", "NearField" };
+
+    public static final double DEFAULT_GRAV_CONSTANT = -1.0;
+    public static final double DEFAULT_MIN_GRAV_CONSTANT = -10;
+    public static final double DEFAULT_MAX_GRAV_CONSTANT = 10;
+
+    public static final double DEFAULT_GRID_SIZE = 128;
+    public static final double DEFAULT_MIN_GRID_SIZE = 16;
+    public static final double DEFAULT_MAX_GRID_SIZE = 512;
+
+    public static final double DEFAULT_SOFTENING = 1.0;
+    public static final double DEFAULT_MIN_SOFTENING = 0.25;
+    public static final double DEFAULT_MAX_SOFTENING = 4.0;
+
+    public static final double DEFAULT_NEAR_FIELD = 0;
+    public static final double DEFAULT_MIN_NEAR_FIELD = 0;
+    public static final double DEFAULT_MAX_NEAR_FIELD = 3;
+
+    public static final int GRAVITATIONAL_CONST = 0;
+    public static final int GRID_SIZE = 1;
+    public static final int SOFTENING = 2;
+    public static final int NEAR_FIELD = 3;
+
+    // grid geometry, with the transforms done on a grid padded to twice
+    // the size to avoid wrap-around
+    private int gsize, fsize;
+    private double ksoft = -1;        // softening of the transformed kernel
+    private double[] kre, kim;        // transformed kernel
+    private double[] re, im;          // density, then field on the grid
+    private double[] cos, sin;        // twiddle factors
+    private int[] bitrev;
+    private double x0, y0, h;         // grid origin and cell size
+
+    // particles the field was computed for, binned by grid cell
+    private double[] px, py, pm;
+    private int np;
+    private int[] cellStart = new int[0];
+    private int[] cellPoints = new int[0];
+
+    // ForceItems of the enclosing simulation for item-wise evaluation
+    private ForceItem[] items = new ForceItem[64];
+    private double[] itemX = new double[64];
+    private double[] itemY = new double[64];
+    private double[] itemMass = new double[64];
+    private int nitems = 0;
+    private double[] itemForce = new double[2];
+
+    private int parallelism = 1;
+    private ForkJoinPool pool;
+
+    /**
+     * Create a new ParticleMeshForce with default parameters.
+     */
+    public ParticleMeshForce() {
+        this(DEFAULT_GRAV_CONSTANT, DEFAULT_GRID_SIZE, DEFAULT_SOFTENING,
+             DEFAULT_NEAR_FIELD);
+    }
+
+    /**
+     * Create a new ParticleMeshForce.
+     * @param gravConstant the gravitational constant to use. Nodes will
+     * attract each other if this value is positive, and will repel each
+     * other if it is negative.
+     * @param gridSize the number of grid cells along each side of the
+     * grid, rounded up to a power of two
+     * @param softening the softening length of the force kernel, in grid
+     * cells
+     * @param nearField the radius within which forces are computed
+     * directly between particles, in grid cells, or zero to only use the
+     * grid
+     */
+    public ParticleMeshForce(double gravConstant, double gridSize,
+                             double softening, double nearField)
+    {
+        params = new double[] { gravConstant, gridSize, softening,
+            nearField };
+        minValues = new double[] { DEFAULT_MIN_GRAV_CONSTANT,
+            DEFAULT_MIN_GRID_SIZE, DEFAULT_MIN_SOFTENING,
+            DEFAULT_MIN_NEAR_FIELD };
+        maxValues = new double[] { DEFAULT_MAX_GRAV_CONSTANT,
+            DEFAULT_MAX_GRID_SIZE, DEFAULT_MAX_SOFTENING,
+            DEFAULT_MAX_NEAR_FIELD };
+    }
+
+    /**
+     * Returns true.
+     * @see prefux.util.force.Force#isItemForce()
+     */
+    public boolean isItemForce() {
+        return true;
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#getParameterNames()
+     */
+    protected String[] getParameterNames() {
+        return pnames;
+    }
+
+    // ------------------------------------------------------------------------
+    // Parallelism
+
+    /**
+     * Get the number of threads used to compute forces on particle arrays.
+     * @return the parallelism level, 1 for sequential computation
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used to compute forces on particle arrays.
+     * This applies to simulations run by an {@link ArrayForceSimulator};
+     * forces computed on individual ForceItems are always computed
+     * sequentially.
+     * @param threads the parallelism level, 1 for sequential computation
+     */
+    public synchronized void setParallelism(int threads) {
+        if ( threads < 1 )
+            throw new IllegalArgumentException(
+                "Parallelism must be at least 1: " + threads);
+        if ( threads != parallelism && pool != null ) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = threads;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if ( pool == null )
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    // ------------------------------------------------------------------------
+    // Force Calculation
+
+    /**
+     * Computes the field created by the items of the enclosing simulation.
+     * @see prefux.util.force.Force#init(prefux.util.force.ForceSimulator)
+     */
+    public void init(ForceSimulator fsim) {
+        Arrays.fill(items, 0, nitems, null);
+        nitems = 0;
+        Iterator<ForceItem> itemIter = fsim.getItems();
+        while ( itemIter.hasNext() ) {
+            ForceItem item = itemIter.next();
+            if ( nitems == items.length ) {
+                int cap = 2*nitems;
+                items = Arrays.copyOf(items, cap);
+                itemX = Arrays.copyOf(itemX, cap);
+                itemY = Arrays.copyOf(itemY, cap);
+                itemMass = Arrays.copyOf(itemMass, cap);
+            }
+            items[nitems] = item;
+            itemX[nitems] = item.location[0];
+            itemY[nitems] = item.location[1];
+            itemMass[nitems] = item.mass;
+            item.index = nitems++;
+        }
+        compute(itemX, itemY, itemMass, nitems, null);
+    }
+
+    /**
+     * Calculates the force vector acting on the given item.
+     * @see prefux.util.force.Force#getForce(prefux.util.force.ForceItem)
+     */
+    public void getForce(ForceItem item) {
+        if ( np == 0 ) return;
+        int i = item.index;
+        if ( i < 0 || i >= nitems || items[i] != item )
+            i = -1; // not part of the field
+        force(i, item.location[0], item.location[1], item.mass, itemForce);
+        item.force[0] += itemForce[0];
+        item.force[1] += itemForce[1];
+    }
+
+    /**
+     * Computes the mesh force on all particles.
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(final ParticleArrays p) {
+        int n = p.getSize();
+        if ( n == 0 ) return;
+        ForkJoinPool fjp = ( parallelism > 1 ? getPool() : null );
+        compute(p.x, p.y, p.mass, n, fjp);
+
+        int grain = Math.max(1024, n / (8*parallelism));
+        ParallelRange.forEach(fjp, n, grain, (lo, hi) -> {
+            double[] f = new double[2];
+            for ( int i=lo; i<hi; ++i ) {
+                force(i, p.x[i], p.y[i], p.mass[i], f);
+                p.fx[i] += f[0];
+                p.fy[i] += f[1];
+            }
+        });
+    }
+
+    /**
+     * Computes the field of the given particles on the grid.
+     */
+    private void compute(double[] x, double[] y, double[] m, int n,
+                         ForkJoinPool fjp)
+    {
+        px = x; py = y; pm = m; np = n;
+        if ( n == 0 ) return;
+        int g = Integer.highestOneBit(
+            Math.max((int)Math.ceil(params[GRID_SIZE]), 2) - 1) << 1;
+        if ( g != gsize || params[SOFTENING] != ksoft )
+            initGrid(g, params[SOFTENING], fjp);
+        final int f = fsize;
+
+        // fit the grid to the squarified bounds of the particles
+        double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+        double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+        for ( int i=0; i<n; ++i ) {
+            if ( x[i] < x1 ) x1 = x[i];
+            if ( y[i] < y1 ) y1 = y[i];
+            if ( x[i] > x2 ) x2 = x[i];
+            if ( y[i] > y2 ) y2 = y[i];
+        }
+        double s = Math.max(x2-x1, y2-y1);
+        x0 = x1; y0 = y1;
+        h = ( s > 0 ? s / (g-1) : 1 );
+
+        // spread the masses onto the grid using cloud-in-cell weights
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        for ( int i=0; i<n; ++i ) {
+            double u = (x[i]-x0)/h, v = (y[i]-y0)/h;
+            int cx = Math.min((int)u, g-2), cy = Math.min((int)v, g-2);
+            double wx = u-cx, wy = v-cy;
+            int k = cy*f + cx;
+            re[k]     += m[i] * (1-wx) * (1-wy);
+            re[k+1]   += m[i] * wx * (1-wy);
+            re[k+f]   += m[i] * (1-wx) * wy;
+            re[k+f+1] += m[i] * wx * wy;
+        }
+
+        // convolve with the kernel, the real and imaginary parts of the
+        // result holding the x and y components of the field
+        transform(re, im, g, false, fjp);
+        ParallelRange.forEach(fjp, f, 16, (lo, hi) -> {
+            for ( int k=lo*f; k<hi*f; ++k ) {
+                double a = re[k], b = im[k];
+                re[k] = a*kre[k] - b*kim[k];
+                im[k] = a*kim[k] + b*kre[k];
+            }
+        });
+        transform(re, im, g, true, fjp);
+
+        if ( params[NEAR_FIELD] > 0 )
+            bin(g);
+    }
+
+    /**
+     * Sorts the particles by grid cell for the near field computation.
+     */
+    private void bin(int g) {
+        if ( cellStart.length < g*g+1 )
+            cellStart = new int[g*g+1];
+        if ( cellPoints.length < np )
+            cellPoints = new int[np];
+        Arrays.fill(cellStart, 0, g*g+1, 0);
+        for ( int i=0; i<np; ++i )
+            ++cellStart[cellOf(i, g)+1];
+        for ( int c=0; c<g*g; ++c )
+            cellStart[c+1] += cellStart[c];
+        for ( int i=0; i<np; ++i ) {
+            int c = cellOf(i, g);
+            cellPoints[cellStart[c]++] = i;
+        }
+        for ( int c=g*g; c>0; --c )
+            cellStart[c] = cellStart[c-1];
+        cellStart[0] = 0;
+    }
+
+    private int cellOf(int i, int g) {
+        int cx = Math.min((int)((px[i]-x0)/h), g-1);
+        int cy = Math.min((int)((py[i]-y0)/h), g-1);
+        return cy*g + cx;
+    }
+
+    /**
+     * Calculates the force acting on a particle, interpolating the field
+     * from the grid and adding the near field correction.
+     * @param i the index of the particle, or -1 if it did not contribute
+     * to the field
+     * @param x the x-coordinate of the particle
+     * @param y the y-coordinate of the particle
+     * @param mass the mass of the particle
+     * @param f array receiving the force vector
+     */
+    private void force(int i, double x, double y, double mass, double[] f) {
+        int g = gsize, n = fsize;
+        double u = Math.max(0, Math.min((x-x0)/h, g-1));
+        double v = Math.max(0, Math.min((y-y0)/h, g-1));
+        int cx = Math.min((int)u, g-2), cy = Math.min((int)v, g-2);
+        double wx = u-cx, wy = v-cy;
+        int k = cy*n + cx;
+        double w00 = (1-wx)*(1-wy), w10 = wx*(1-wy);
+        double w01 = (1-wx)*wy, w11 = wx*wy;
+        double ex = w00*re[k] + w10*re[k+1] + w01*re[k+n] + w11*re[k+n+1];
+        double ey = w00*im[k] + w10*im[k+1] + w01*im[k+n] + w11*im[k+n+1];
+        ex /= h*h;
+        ey /= h*h;
+
+        double near = params[NEAR_FIELD];
+        if ( near > 0 ) {
+            // replace the softened force by the exact one at short range
+            int r = (int)Math.ceil(near);
+            double r2max = near*h * near*h;
+            double e2 = params[SOFTENING]*h * params[SOFTENING]*h;
+            int bx = Math.min((int)u, g-1), by = Math.min((int)v, g-1);
+            for ( int ny=Math.max(0, by-r); ny<=Math.min(g-1, by+r); ++ny ) {
+                for ( int nx=Math.max(0, bx-r); nx<=Math.min(g-1, bx+r); ++nx )
+                {
+                    int c = ny*g + nx;
+                    for ( int a=cellStart[c]; a<cellStart[c+1]; ++a ) {
+                        int j = cellPoints[a];
+                        if ( j == i ) continue;
+                        double dx = px[j]-x, dy = py[j]-y;
+                        double d2 = dx*dx + dy*dy;
+                        if ( d2 == 0 || d2 >= r2max ) continue;
+                        double s2 = d2 + e2;
+                        double w = pm[j] * (1/(d2*Math.sqrt(d2))
+                                            - 1/(s2*Math.sqrt(s2)));
+                        ex += w*dx;
+                        ey += w*dy;
+                    }
+                }
+            }
+        }
+        double gm = params[GRAVITATIONAL_CONST] * mass;
+        f[0] = gm*ex;
+        f[1] = gm*ey;
+    }
+
+    // ------------------------------------------------------------------------
+    // Grid and Transforms
+
+    /**
+     * Allocates the grid and computes the transformed kernel, with the
+     * inverse transform scaling folded in.
+     */
+    private void initGrid(int g, double soft, ForkJoinPool fjp) {
+        int n = 2*g;
+        gsize = g;
+        fsize = n;
+        ksoft = soft;
+        re = new double[n*n];
+        im = new double[n*n];
+        kre = new double[n*n];
+        kim = new double[n*n];
+
+        cos = new double[n/2];
+        sin = new double[n/2];
+        for ( int k=0; k<n/2; ++k ) {
+            cos[k] = Math.cos(2*Math.PI*k/n);
+            sin[k] = Math.sin(2*Math.PI*k/n);
+        }
+        bitrev = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for ( int k=0; k<n; ++k )
+            bitrev[k] = Integer.reverse(k) >>> (32-bits);
+
+        // the field at offset d from a unit mass, -d/(|d|^2+soft^2)^1.5,
+        // stored with wrap-around for negative offsets
+        double e2 = soft*soft;
+        for ( int dy=1-g; dy<g; ++dy ) {
+            for ( int dx=1-g; dx<g; ++dx ) {
+                double d2 = dx*dx + dy*dy + e2;
+                if ( d2 == 0 ) continue;
+                double w = 1 / (d2*Math.sqrt(d2) * n*n);
+                int k = ((dy+n) % n)*n + (dx+n) % n;
+                kre[k] = -dx*w;
+                kim[k] = -dy*w;
+            }
+        }
+        transform(kre, kim, n, false, fjp);
+    }
+
+    /**
+     * Computes the two-dimensional transform of a padded grid, of which
+     * only the given number of leading rows is non-zero before a forward
+     * transform, or needed after an inverse transform.
+     */
+    private void transform(final double[] re, final double[] im, int rows,
+                           final boolean inverse, ForkJoinPool fjp)
+    {
+        final int n = fsize;
+        ParallelRange.Body rowBody = (lo, hi) -> {
+            for ( int r=lo; r<hi; ++r )
+                fft(re, im, r*n, inverse);
+        };
+        ParallelRange.Body colBody = (lo, hi) -> {
+            double[] bre = new double[n], bim = new double[n];
+            for ( int c=lo; c<hi; ++c ) {
+                for ( int r=0, k=c; r<n; ++r, k+=n ) {
+                    bre[r] = re[k];
+                    bim[r] = im[k];
+                }
+                fft(bre, bim, 0, inverse);
+                for ( int r=0, k=c; r<n; ++r, k+=n ) {
+                    re[k] = bre[r];
+                    im[k] = bim[r];
+                }
+            }
+        };
+        if ( inverse ) {
+            ParallelRange.forEach(fjp, n, 16, colBody);
+            ParallelRange.forEach(fjp, rows, 16, rowBody);
+        } else {
+            ParallelRange.forEach(fjp, rows, 16, rowBody);
+            ParallelRange.forEach(fjp, n, 16, colBody);
+        }
+    }
+
+    /**
+     * Computes an unscaled in-place radix-2 transform of a line of the
+     * padded grid size starting at the given offset.
+     */
+    private void fft(double[] re, double[] im, int off, boolean inverse) {
+        int n = fsize;
+        for ( int k=0; k<n; ++k ) {
+            int j = bitrev[k];
+            if ( j > k ) {
+                double t = re[off+k]; re[off+k] = re[off+j]; re[off+j] = t;
+                t = im[off+k]; im[off+k] = im[off+j]; im[off+j] = t;
+            }
+        }
+        double sign = ( inverse ? 1 : -1 );
+        for ( int len=2; len<=n; len<<=1 ) {
+            int half = len >> 1, step = n / len;
+            for ( int s=off; s<off+n; s+=len ) {
+                for ( int k=0; k<half; ++k ) {
+                    double wr = cos[k*step], wi = sign*sin[k*step];
+                    int a = s+k, b = a+half;
+                    double tr = re[b]*wr - im[b]*wi;
+                    double ti = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+} // end of class ParticleMeshForce
@@ -0,0 +1,459 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>Linear quadtree over a set of weighted points, stored entirely in
+ * primitive arrays and used by {@link NBodyForce} to aggregate masses.
+ * Layouts computing other n-body interactions can build it over their own
+ * point arrays and traverse it using the read-only accessors.
+ * Points are sorted by the Morton code of their position within the
+ * squarified bounds, so that every node of the tree covers a contiguous
+ * range of the sorted points. The tree is built top-down by splitting
+ * these ranges and its masses are computed bottom-up, both iteratively, so
+ * the depth of the tree is not limited by the call stack. Node and point
+ * arrays are reused when the tree is rebuilt.</p>
+ *
+ * <p>Morton codes use {@link #MAX_DEPTH} bits per dimension. A node becomes
+ * a leaf once it holds a single point, reaches the maximum depth, or all
+ * its points share the same code, so points closer together than the
+ * finest grid cell, including any number of coincident points, are held
+ * by a single leaf rather than a chain of nodes.</p>
+ *
+ * <p>The structure of the tree only depends on the point positions. If a
+ * pool is given when building, the subtrees below a fixed depth are built
+ * in parallel and then joined, yielding the same tree as a sequential
+ * build.</p>
+ */
+public final class QuadTree {
+
+    /** The maximum depth of the tree, and the bits per dimension of the
+     *  Morton codes. */
+    static final int MAX_DEPTH = 16;
+    /** The depth below which subtrees are built in parallel. */
+    private static final int PARTITION_DEPTH = 4;
+    private static final long INDEX_MASK = 0x7FFFFFFFL;
+
+    // points sorted by Morton code, each key holding the code in its upper
+    // and the point index in its lower 31 bits
+    int      n;
+    long[]   keys  = new long[0];
+    int[]    order = new int[0];   // point index by sorted position
+    int[]    rank  = new int[0];   // sorted position by point index
+
+    // nodes, with the root at index zero and parents preceding their
+    // children. A child index of zero denotes a missing child.
+    int       count;
+    int[]     child = new int[4*64];
+    int[]     first = new int[64];  // first sorted position of the node
+    int[]     last  = new int[64];  // end of the sorted positions
+    int[]     depth = new int[64];
+    boolean[] leaf  = new boolean[64];
+    double[]  size  = new double[64];
+    double[]  mass  = new double[64];
+    double[]  comx  = new double[64];
+    double[]  comy  = new double[64];
+
+    private int[] stack = new int[64];
+    private QuadTree[] parts;
+    private int[] tasks;
+    private int ntasks;
+
+    /**
+     * Build the tree over the given points.
+     * @param x the x-coordinates of the points
+     * @param y the y-coordinates of the points
+     * @param m the masses of the points
+     * @param np the number of points
+     * @param pool the pool to build the tree on, or null to build it in the
+     * calling thread
+     */
+    public void build(final double[] x, final double[] y, final double[] m,
+                      final int np, ForkJoinPool pool)
+    {
+        n = np;
+        count = 0;
+        if ( n == 0 ) return;
+        if ( keys.length < n ) {
+            keys = new long[n];
+            order = new int[n];
+            rank = new int[n];
+        }
+
+        // compute and squarify bounds
+        double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+        double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+        for ( int i=0; i<n; ++i ) {
+            if ( x[i] < x1 ) x1 = x[i];
+            if ( y[i] < y1 ) y1 = y[i];
+            if ( x[i] > x2 ) x2 = x[i];
+            if ( y[i] > y2 ) y2 = y[i];
+        }
+        final double s = Math.max(x2-x1, y2-y1);
+        final double bx = x1, by = y1;
+        final double scale = ( s > 0 ? (1 << MAX_DEPTH) / s : 0 );
+
+        // sort the points by Morton code
+        ParallelRange.forEach(pool, n, 4096, (lo, hi) -> {
+            for ( int i=lo; i<hi; ++i ) {
+                long code = morton(cell((x[i]-bx)*scale),
+                                   cell((y[i]-by)*scale));
+                keys[i] = (code << 31) | i;
+            }
+        });
+        if ( pool == null )
+            Arrays.sort(keys, 0, n);
+        else
+            pool.submit(() -> Arrays.parallelSort(keys, 0, n)).join();
+        ParallelRange.forEach(pool, n, 4096, (lo, hi) -> {
+            for ( int j=lo; j<hi; ++j ) {
+                int i = (int)(keys[j] & INDEX_MASK);
+                order[j] = i;
+                rank[i] = j;
+            }
+        });
+
+        newNode(0, n, 0, s);
+        if ( pool == null ) {
+            expand(Integer.MAX_VALUE);
+            calcMass(x, y, m, 0, count);
+        } else {
+            buildPartitioned(x, y, m, pool);
+        }
+    }
+
+    /**
+     * Builds the top levels of the tree, then the subtrees of all nodes at
+     * the partition depth in parallel, and joins them.
+     */
+    private void buildPartitioned(final double[] x, final double[] y,
+                                  final double[] m, ForkJoinPool pool)
+    {
+        ntasks = 0;
+        expand(PARTITION_DEPTH);
+        int top = count;
+        if ( parts == null || parts.length < ntasks ) {
+            QuadTree[] p = new QuadTree[Math.max(ntasks, 16)];
+            if ( parts != null )
+                System.arraycopy(parts, 0, p, 0, parts.length);
+            parts = p;
+        }
+        for ( int t=0; t<ntasks; ++t ) {
+            if ( parts[t] == null )
+                parts[t] = new QuadTree();
+            QuadTree part = parts[t];
+            part.keys = keys;
+            part.order = order;
+            part.count = 0;
+            int k = tasks[t];
+            part.newNode(first[k], last[k], depth[k], size[k]);
+        }
+        ParallelRange.forEach(pool, ntasks, 1, (lo, hi) -> {
+            for ( int t=lo; t<hi; ++t ) {
+                parts[t].expand(Integer.MAX_VALUE);
+                parts[t].calcMass(x, y, m, 0, parts[t].count);
+            }
+        });
+        for ( int t=0; t<ntasks; ++t )
+            append(parts[t], tasks[t]);
+        calcMass(x, y, m, 0, top);
+    }
+
+    private int newNode(int lo, int hi, int level, double s) {
+        if ( count == leaf.length ) {
+            int cap = 2*count;
+            child = Arrays.copyOf(child, 4*cap);
+            first = Arrays.copyOf(first, cap);
+            last  = Arrays.copyOf(last, cap);
+            depth = Arrays.copyOf(depth, cap);
+            leaf  = Arrays.copyOf(leaf, cap);
+            size  = Arrays.copyOf(size, cap);
+            mass  = Arrays.copyOf(mass, cap);
+            comx  = Arrays.copyOf(comx, cap);
+            comy  = Arrays.copyOf(comy, cap);
+        }
+        int k = count++;
+        child[4*k] = child[4*k+1] = child[4*k+2] = child[4*k+3] = 0;
+        first[k] = lo;
+        last[k] = hi;
+        depth[k] = level;
+        leaf[k] = true;
+        size[k] = s;
+        return k;
+    }
+
+    private long code(int j) {
+        return keys[j] >>> 31;
+    }
+
+    /**
+     * Splits the nodes of this tree into children until they become
+     * leaves, using an explicit stack. Nodes at the given stop level that
+     * would be split are recorded as tasks instead.
+     */
+    private void expand(int stopLevel) {
+        int top = 0;
+        stack[top++] = 0;
+        while ( top > 0 ) {
+            int k = stack[--top];
+            int lo = first[k], hi = last[k], l = depth[k];
+            if ( hi-lo == 1 || l == MAX_DEPTH || code(lo) == code(hi-1) )
+                continue;
+            if ( l == stopLevel ) {
+                if ( tasks == null || ntasks == tasks.length )
+                    tasks = ( tasks == null ? new int[64]
+                                            : Arrays.copyOf(tasks, 2*ntasks) );
+                tasks[ntasks++] = k;
+                continue;
+            }
+            leaf[k] = false;
+            int shift = 2*(MAX_DEPTH-1-l);
+            double half = size[k]/2;
+            if ( top + 4 > stack.length )
+                stack = Arrays.copyOf(stack, 2*stack.length);
+            for ( int d=0, start=lo; d<4 && start<hi; ++d ) {
+                int end = ( d == 3 ? hi : digitEnd(start, hi, shift, d) );
+                if ( end > start ) {
+                    int c = newNode(start, end, l+1, half);
+                    child[4*k+d] = c;
+                    stack[top++] = c;
+                    start = end;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the first sorted position in the range whose code has a digit
+     * greater than d at the given shift. Within a node, the digits of the
+     * next level are sorted, so this is a binary search.
+     */
+    private int digitEnd(int lo, int hi, int shift, int d) {
+        while ( lo < hi ) {
+            int mid = (lo+hi) >>> 1;
+            if ( ((code(mid) >>> shift) & 3) <= d )
+                lo = mid+1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Computes masses and centers of mass for a range of nodes whose
+     * children are either in the range or already computed, visiting the
+     * nodes in reverse order so that children precede their parents.
+     */
+    private void calcMass(double[] x, double[] y, double[] m,
+                          int from, int to)
+    {
+        for ( int k=to-1; k>=from; --k ) {
+            double msum = 0, xcom = 0, ycom = 0;
+            if ( leaf[k] ) {
+                for ( int j=first[k]; j<last[k]; ++j ) {
+                    int i = order[j];
+                    msum += m[i];
+                    xcom += m[i] * x[i];
+                    ycom += m[i] * y[i];
+                }
+            } else {
+                for ( int d=0; d<4; ++d ) {
+                    int c = child[4*k+d];
+                    if ( c != 0 ) {
+                        msum += mass[c];
+                        xcom += mass[c] * comx[c];
+                        ycom += mass[c] * comy[c];
+                    }
+                }
+            }
+            mass[k] = msum;
+            comx[k] = xcom / msum;
+            comy[k] = ycom / msum;
+        }
+    }
+
+    /**
+     * Joins a separately built subtree, replacing the given node by the
+     * subtree root and appending all other subtree nodes.
+     */
+    private void append(QuadTree part, int k) {
+        int off = count-1, pc = part.count;
+        for ( int j=1; j<pc; ++j )
+            newNode(part.first[j], part.last[j], part.depth[j], part.size[j]);
+        for ( int j=0; j<pc; ++j ) {
+            int dst = ( j == 0 ? k : off+j );
+            leaf[dst] = part.leaf[j];
+            mass[dst] = part.mass[j];
+            comx[dst] = part.comx[j];
+            comy[dst] = part.comy[j];
+            for ( int d=0; d<4; ++d ) {
+                int c = part.child[4*j+d];
+                child[4*dst+d] = ( c == 0 ? 0 : off+c );
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors
+
+    /**
+     * Get the number of nodes of the tree. The root has index zero, if the
+     * tree holds any points, and parents precede their children.
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return count;
+    }
+
+    /**
+     * Get a child of a node.
+     * @param k the node index
+     * @param d the quadrant of the child, from 0 to 3
+     * @return the index of the child node, or zero if there is no child in
+     * the quadrant
+     */
+    public int getChild(int k, int d) {
+        return child[4*k+d];
+    }
+
+    /**
+     * Indicates if a node is a leaf. A leaf may hold several points, if
+     * they are closer together than the finest grid cell.
+     * @param k the node index
+     * @return true if the node has no children
+     */
+    public boolean isLeaf(int k) {
+        return leaf[k];
+    }
+
+    /**
+     * Get the first sorted position of the points held by a node.
+     * @param k the node index
+     * @return the first sorted position of the node
+     */
+    public int getFirst(int k) {
+        return first[k];
+    }
+
+    /**
+     * Get the end of the sorted positions of the points held by a node.
+     * @param k the node index
+     * @return the sorted position following the last point of the node
+     */
+    public int getLast(int k) {
+        return last[k];
+    }
+
+    /**
+     * Get the side length of the square covered by a node.
+     * @param k the node index
+     * @return the side length of the node
+     */
+    public double getSize(int k) {
+        return size[k];
+    }
+
+    /**
+     * Get the total mass of the points held by a node.
+     * @param k the node index
+     * @return the mass of the node
+     */
+    public double getMass(int k) {
+        return mass[k];
+    }
+
+    /**
+     * Get the x-coordinate of the center of mass of a node.
+     * @param k the node index
+     * @return the x-coordinate of the center of mass
+     */
+    public double getCenterX(int k) {
+        return comx[k];
+    }
+
+    /**
+     * Get the y-coordinate of the center of mass of a node.
+     * @param k the node index
+     * @return the y-coordinate of the center of mass
+     */
+    public double getCenterY(int k) {
+        return comy[k];
+    }
+
+    /**
+     * Get the point at a sorted position.
+     * @param j the sorted position
+     * @return the index of the point in the arrays the tree was built from
+     */
+    public int getPoint(int j) {
+        return order[j];
+    }
+
+    /**
+     * Get the sorted position of a point.
+     * @param i the index of the point in the arrays the tree was built from
+     * @return the sorted position of the point
+     */
+    public int getRank(int i) {
+        return rank[i];
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Clamps a scaled coordinate to a grid cell.
+     */
+    private static int cell(double v) {
+        int c = (int)v;
+        return ( c < 0 ? 0 : c >= (1 << MAX_DEPTH) ? (1 << MAX_DEPTH)-1 : c );
+    }
+
+    /**
+     * Interleaves the bits of two cell coordinates, x in the even and y in
+     * the odd bits, so that each pair of bits is a child index.
+     */
+    private static long morton(int cx, int cy) {
+        return spread(cx) | (spread(cy) << 1);
+    }
+
+    private static long spread(long v) {
+        v &= 0xFFFFL;
+        v = (v | (v << 8)) & 0x00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0FL;
+        v = (v | (v << 2)) & 0x33333333L;
+        v = (v | (v << 1)) & 0x55555555L;
+        return v;
+    }
+
+} // end of class QuadTree
@@ -39,10 +39,12 @@ import org.apache.logging.log4j.Logger;
  * Updates velocity and position data using the 4th-Order Runge-Kutta method.
  * It is slower but more accurate than other techniques such as Euler's Method.
  * The technique requires re-evaluating forces 4 times for a given timestep.
+ * The recommended next timestep shrinks while items oscillate, and is
+ * reduced when the Runge-Kutta coefficients indicate numerical instability.
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class RungeKuttaIntegrator implements Integrator {
+public class RungeKuttaIntegrator implements ArrayIntegrator {
 	
 	private static final Logger log = LogManager.getLogger(RungeKuttaIntegrator.class);
 	
@@ -51,6 +53,10 @@ public class RungeKuttaIntegrator implements Integrator {
 	// They are used to ensure numerical stability.
 	private static final double Q_MAX = 5.0;
 	private static final double Q_MIN = 0.2;
+	// Fraction of the items that may oscillate before the timestep is
+	// reduced. Unlike Euler's method, Runge-Kutta damps the oscillation
+	// of single items well within its range of stability.
+	private static final double OSC_TOLERANCE = 0.01;
     
     /**
      * @see prefux.util.force.Integrator#integrate(prefux.util.force.ForceSimulator, long)
@@ -133,10 +139,10 @@ public class RungeKuttaIntegrator implements Integrator {
         // recalculate forces
         sim.accumulate();
         // q-Factor is calculated by the coefficients of the Runge-Kutta calculation
-        // SQRT(SUM over all [(k3-k2)/(k2-k1)]^2)/nodes
+        // SQRT(SUM over all (k3-k2)^2 / SUM over all (k2-k1)^2)
         
-        double q=0.0;
-        int items=0;
+        double qn=0.0, qd=0.0;
+        int items=0, oscillating=0;
         iter = sim.getItems();
         while ( iter.hasNext() ) {
             ForceItem item = (ForceItem)iter.next();
@@ -157,9 +163,8 @@ public class RungeKuttaIntegrator implements Integrator {
             l[3][1] = coeff*item.force[1];
             item.location[0] = p[0] + (k[0][0]+k[3][0])/6.0 + (k[1][0]+k[2][0])/3.0;
             item.location[1] = p[1] + (k[0][1]+k[3][1])/6.0 + (k[1][1]+k[2][1])/3.0;
-            double qx = (k[2][0]- k[1][0])/(k[1][0]-k[0][0]);
-            double qy = (k[2][1]- k[1][1])/(k[1][1]-k[0][1]);
-            q+=qx*qx+qy*qx;
+            qn+=sq(k[2][0]-k[1][0]) + sq(k[2][1]-k[1][1]);
+            qd+=sq(k[1][0]-k[0][0]) + sq(k[1][1]-k[0][1]);
             items++;
             vx = (l[0][0]+l[3][0])/6.0 + (l[1][0]+l[2][0])/3.0;
             vy = (l[0][1]+l[3][1])/6.0 + (l[1][1]+l[2][1])/3.0;
@@ -168,19 +173,145 @@ public class RungeKuttaIntegrator implements Integrator {
                 vx = speedLimit * vx / v;
                 vy = speedLimit * vy / v;
             }
+            if ( sim.isOscillating(item.velocity[0], item.velocity[1],
+                                   item.velocity[0]+vx, item.velocity[1]+vy) )
+                ++oscillating;
             item.velocity[0] += vx;
             item.velocity[1] += vy;
         }
-        q=Math.sqrt(q)/items;
-        if (timestep==0 || q==Double.NaN) {
+        return nextTimestep(sim, qn, qd, oscillating, items, timestep);
+    }
+
+    /**
+     * @see prefux.util.force.ArrayIntegrator#integrate(prefux.util.force.ArrayForceSimulator, prefux.util.force.ParticleArrays, long)
+     */
+    public long integrate(ArrayForceSimulator sim, ParticleArrays p,
+                          long timestep)
+    {
+        double speedLimit = sim.getSpeedLimit();
+        int n = p.getSize();
+        double[] x = p.x, y = p.y, px = p.px, py = p.py;
+        double[] vx = p.vx, vy = p.vy, fx = p.fx, fy = p.fy, mass = p.mass;
+        double[] k0x = p.kx[0], k0y = p.ky[0], l0x = p.lx[0], l0y = p.ly[0];
+        double[] k1x = p.kx[1], k1y = p.ky[1], l1x = p.lx[1], l1y = p.ly[1];
+        double[] k2x = p.kx[2], k2y = p.ky[2], l2x = p.lx[2], l2y = p.ly[2];
+        double[] k3x = p.kx[3], k3y = p.ky[3], l3x = p.lx[3], l3y = p.ly[3];
+        double ux, uy, v, coeff;
+
+        for ( int i=0; i<n; ++i ) {
+            coeff = timestep / mass[i];
+            px[i] = x[i];
+            py[i] = y[i];
+            k0x[i] = timestep*vx[i];
+            k0y[i] = timestep*vy[i];
+            l0x[i] = coeff*fx[i];
+            l0y[i] = coeff*fy[i];
+            x[i] += 0.5*k0x[i];
+            y[i] += 0.5*k0y[i];
+        }
+        sim.accumulate(p);
+
+        for ( int i=0; i<n; ++i ) {
+            coeff = timestep / mass[i];
+            ux = vx[i] + .5*l0x[i];
+            uy = vy[i] + .5*l0y[i];
+            v = Math.sqrt(ux*ux+uy*uy);
+            if ( v > speedLimit ) {
+                ux = speedLimit * ux / v;
+                uy = speedLimit * uy / v;
+            }
+            k1x[i] = timestep*ux;
+            k1y[i] = timestep*uy;
+            l1x[i] = coeff*fx[i];
+            l1y[i] = coeff*fy[i];
+            x[i] = px[i] + 0.5*k1x[i];
+            y[i] = py[i] + 0.5*k1y[i];
+        }
+        sim.accumulate(p);
+
+        for ( int i=0; i<n; ++i ) {
+            coeff = timestep / mass[i];
+            ux = vx[i] + .5*l1x[i];
+            uy = vy[i] + .5*l1y[i];
+            v = Math.sqrt(ux*ux+uy*uy);
+            if ( v > speedLimit ) {
+                ux = speedLimit * ux / v;
+                uy = speedLimit * uy / v;
+            }
+            k2x[i] = timestep*ux;
+            k2y[i] = timestep*uy;
+            l2x[i] = coeff*fx[i];
+            l2y[i] = coeff*fy[i];
+            x[i] = px[i] + 0.5*k2x[i];
+            y[i] = py[i] + 0.5*k2y[i];
+        }
+        sim.accumulate(p);
+
+        double qn = 0.0, qd = 0.0;
+        int oscillating = 0;
+        for ( int i=0; i<n; ++i ) {
+            coeff = timestep / mass[i];
+            ux = vx[i] + l2x[i];
+            uy = vy[i] + l2y[i];
+            v = Math.sqrt(ux*ux+uy*uy);
+            if ( v > speedLimit ) {
+                ux = speedLimit * ux / v;
+                uy = speedLimit * uy / v;
+            }
+            k3x[i] = timestep*ux;
+            k3y[i] = timestep*uy;
+            l3x[i] = coeff*fx[i];
+            l3y[i] = coeff*fy[i];
+            x[i] = px[i] + (k0x[i]+k3x[i])/6.0 + (k1x[i]+k2x[i])/3.0;
+            y[i] = py[i] + (k0y[i]+k3y[i])/6.0 + (k1y[i]+k2y[i])/3.0;
+            qn += sq(k2x[i]-k1x[i]) + sq(k2y[i]-k1y[i]);
+            qd += sq(k1x[i]-k0x[i]) + sq(k1y[i]-k0y[i]);
+            ux = (l0x[i]+l3x[i])/6.0 + (l1x[i]+l2x[i])/3.0;
+            uy = (l0y[i]+l3y[i])/6.0 + (l1y[i]+l2y[i])/3.0;
+            v = Math.sqrt(ux*ux+uy*uy);
+            if ( v > speedLimit ) {
+                ux = speedLimit * ux / v;
+                uy = speedLimit * uy / v;
+            }
+            if ( sim.isOscillating(vx[i], vy[i], vx[i]+ux, vy[i]+uy) )
+                ++oscillating;
+            vx[i] += ux;
+            vy[i] += uy;
+        }
+        return nextTimestep(sim, qn, qd, oscillating, n, timestep);
+    }
+
+    private static double sq(double d) {
+        return d*d;
+    }
+
+    /**
+     * Computes the recommended next timestep from the number of oscillating
+     * items and the accumulated q-Factor sums of all items. The step
+     * shrinks while items oscillate, and is reduced further if the q-Factor
+     * is too large for numerical stability. The q-Factor compares the
+     * changes between the Runge-Kutta coefficients summed over all items,
+     * so that items at rest cannot dominate it.
+     */
+    private static long nextTimestep(ForceSimulator sim, double qn,
+                                     double qd, int oscillating, int items,
+                                     long timestep)
+    {
+        if (timestep==0) {
         	return 20;
-        } else if (q>5.0) {
-        	return (long)(timestep*.8);
-        } else if (q<0.2) {
-        	return (long)(timestep*1.2);
+        } else if (items==0) {
+        	return timestep;
+        }
+        long next = sim.adaptTimestep(oscillating,
+                                      (int)(OSC_TOLERANCE*items), timestep);
+        double q = ( qd > 0 ? Math.sqrt(qn/qd) : 0.0 );
+        if (q>Q_MAX) {
+        	next = Math.max(1, Math.min(next, (long)(timestep*.8)));
+        } else if (q<Q_MIN && next>timestep) {
+        	next = Math.max(next, (long)(timestep*1.2));
         }
         //log.debug("Q-Factor: "+q+" "+timestep);
-        return timestep;
+        return next;
     }
 
 } // end of class RungeKuttaIntegrator
@@ -0,0 +1,311 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * <p>Library routines for saving the full state of a {@link ForceSimulator}
+ * to a compact binary stream and restoring it later: the integrator, the
+ * parameters, noise counters and parallelism of all forces, the position,
+ * previous position, velocity, force, mass and fixed flag of all items,
+ * and all springs. A
+ * {@link ForceSimulator#setDeterministic(boolean) deterministic} simulation
+ * resumed from a saved state continues exactly as the original one would
+ * have, so long layouts can be computed offline, or in several sessions,
+ * and restored without repeating the work.</p>
+ *
+ * <p>The timestep is chosen by the code running the simulator, and is not
+ * part of the state. Resuming a simulation exactly requires running it
+ * with the same timesteps.</p>
+ */
+public class SimulationState {
+
+    /** Identifies the stream format, "PFXS" */
+    private static final int MAGIC = 0x50465853;
+    /** Version of the stream format. Version 1 lacked the parallelism of
+     *  the forces and the fixed flag of the items. */
+    private static final int VERSION = 2;
+
+    private SimulationState() {
+        // prevent instantiation
+    }
+
+    /**
+     * Write the state of a simulator to a stream. The stream is flushed,
+     * but not closed.
+     * @param fsim the simulator
+     * @param os the stream to write to
+     * @throws IOException if the stream can not be written
+     */
+    public static void write(ForceSimulator fsim, OutputStream os)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(os));
+        fsim.syncItems();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeUTF(fsim.getIntegrator().getClass().getName());
+        out.writeFloat(fsim.getSpeedLimit());
+        out.writeDouble(fsim.getConvergenceThreshold());
+        out.writeBoolean(fsim.isDeterministic());
+        out.writeDouble(fsim.getKineticEnergy());
+        out.writeDouble(fsim.getMaxDisplacement());
+        out.writeDouble(fsim.getMaxSpeed());
+        out.writeInt(fsim.getProgress());
+
+        Force[] forces = fsim.getForces();
+        out.writeInt(forces.length);
+        for ( int f=0; f<forces.length; ++f ) {
+            Force force = forces[f];
+            out.writeUTF(force.getClass().getName());
+            int np = force.getParameterCount();
+            out.writeInt(np);
+            for ( int i=0; i<np; ++i )
+                out.writeDouble(force.getParameter(i));
+            out.writeLong( force instanceof AbstractForce
+                ? ((AbstractForce)force).getNoiseRound() : 0 );
+            out.writeInt( force instanceof AbstractForce
+                ? ((AbstractForce)force).getParallelism() : 1 );
+        }
+
+        int n = fsim.getItemCount();
+        ForceItem[] items = new ForceItem[n];
+        Iterator<ForceItem> iter = fsim.getItems();
+        for ( int i=0; i<n; ++i )
+            items[i] = iter.next();
+        try {
+            out.writeInt(n);
+            for ( int i=0; i<n; ++i ) {
+                ForceItem item = items[i];
+                item.index = i;
+                out.writeDouble(item.mass);
+                out.writeDouble(item.location[0]);
+                out.writeDouble(item.location[1]);
+                out.writeDouble(item.plocation[0]);
+                out.writeDouble(item.plocation[1]);
+                out.writeDouble(item.velocity[0]);
+                out.writeDouble(item.velocity[1]);
+                out.writeDouble(item.force[0]);
+                out.writeDouble(item.force[1]);
+                out.writeBoolean(item.fixed);
+            }
+
+            // springs attached to items outside the simulation are skipped,
+            // as they do not take part in it
+            int ns = 0;
+            Iterator<Spring> siter = fsim.getSprings();
+            while ( siter.hasNext() ) {
+                if ( isSimulated(siter.next(), items) ) ++ns;
+            }
+            out.writeInt(ns);
+            siter = fsim.getSprings();
+            while ( siter.hasNext() ) {
+                Spring s = siter.next();
+                if ( !isSimulated(s, items) ) continue;
+                out.writeInt(s.item1.index);
+                out.writeInt(s.item2.index);
+                out.writeDouble(s.coeff);
+                out.writeDouble(s.length);
+            }
+        } finally {
+            for ( int i=0; i<n; ++i )
+                items[i].index = -1;
+        }
+        out.flush();
+    }
+
+    private static boolean isSimulated(Spring s, ForceItem[] items) {
+        int i1 = s.item1.index, i2 = s.item2.index;
+        return i1 >= 0 && i1 < items.length && items[i1] == s.item1
+            && i2 >= 0 && i2 < items.length && items[i2] == s.item2;
+    }
+
+    /**
+     * Restore the state of a simulator from a stream. If the simulator has
+     * no forces, forces of the saved classes are created using their
+     * default constructors; otherwise, its forces must be of the same
+     * classes and in the same order as the saved ones. If the simulator
+     * holds as many items as the saved state, the state is restored into
+     * these items, in the order they were added, so that callers keeping
+     * items associated with their own data can resume a simulation in
+     * place. Otherwise, the items are replaced by new ones. The springs
+     * are always replaced. The stream is not closed, and may have been
+     * read beyond the end of the state.
+     * @param fsim the simulator
+     * @param is the stream to read from
+     * @throws IOException if the stream can not be read, is not a saved
+     * simulator state, or does not match the forces of the simulator
+     */
+    public static void read(ForceSimulator fsim, InputStream is)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(is));
+        if ( in.readInt() != MAGIC )
+            throw new IOException("Not a simulator state");
+        int version = in.readInt();
+        if ( version < 1 || version > VERSION )
+            throw new IOException(
+                "Unsupported simulator state version: " + version);
+
+        String integr = in.readUTF();
+        if ( !integr.equals(fsim.getIntegrator().getClass().getName()) )
+            fsim.setIntegrator((Integrator)create(integr, Integrator.class));
+        fsim.setSpeedLimit(in.readFloat());
+        fsim.setConvergenceThreshold(in.readDouble());
+        boolean deterministic = in.readBoolean();
+        double kinetic = in.readDouble();
+        double displacement = in.readDouble();
+        double speed = in.readDouble();
+        int progress = in.readInt();
+
+        int nf = in.readInt();
+        Force[] forces = fsim.getForces();
+        boolean create = ( forces.length == 0 );
+        if ( !create && forces.length != nf )
+            throw new IOException("Simulator has " + forces.length
+                + " forces, the state has " + nf);
+        for ( int f=0; f<nf; ++f ) {
+            String name = in.readUTF();
+            Force force;
+            if ( create ) {
+                force = (Force)create(name, Force.class);
+                fsim.addForce(force);
+            } else {
+                force = forces[f];
+                if ( !name.equals(force.getClass().getName()) )
+                    throw new IOException("Force " + f + " is a "
+                        + force.getClass().getName() + ", not a " + name);
+            }
+            int np = in.readInt();
+            if ( np != force.getParameterCount() )
+                throw new IOException("Force " + name + " has "
+                    + force.getParameterCount() + " parameters, not " + np);
+            for ( int i=0; i<np; ++i )
+                force.setParameter(i, in.readDouble());
+            long round = in.readLong();
+            if ( force instanceof AbstractForce )
+                ((AbstractForce)force).setNoiseRound(round);
+            if ( version >= 2 ) {
+                int threads = in.readInt();
+                if ( threads < 1 )
+                    throw new IOException("Corrupt simulator state");
+                if ( force instanceof AbstractForce )
+                    ((AbstractForce)force).setParallelism(threads);
+            }
+        }
+        fsim.setDeterministic(deterministic);
+
+        int n = count(in.readInt());
+        ForceItem[] items = new ForceItem[n];
+        if ( fsim.getItemCount() == n ) {
+            // the registered items are overwritten
+            fsim.syncItems();
+            Iterator<ForceItem> iter = fsim.getItems();
+            for ( int i=0; i<n; ++i )
+                items[i] = iter.next();
+        } else {
+            for ( int i=0; i<n; ++i )
+                items[i] = new ForceItem();
+        }
+        for ( int i=0; i<n; ++i ) {
+            ForceItem item = items[i];
+            item.mass = in.readDouble();
+            item.location[0] = in.readDouble();
+            item.location[1] = in.readDouble();
+            item.plocation[0] = in.readDouble();
+            item.plocation[1] = in.readDouble();
+            item.velocity[0] = in.readDouble();
+            item.velocity[1] = in.readDouble();
+            item.force[0] = in.readDouble();
+            item.force[1] = in.readDouble();
+            if ( version >= 2 )
+                item.fixed = in.readBoolean();
+        }
+
+        int ns = count(in.readInt());
+        int[] s1 = new int[ns], s2 = new int[ns];
+        double[] coeff = new double[ns], length = new double[ns];
+        for ( int s=0; s<ns; ++s ) {
+            s1[s] = in.readInt();
+            s2[s] = in.readInt();
+            coeff[s] = in.readDouble();
+            length[s] = in.readDouble();
+            if ( s1[s] < 0 || s1[s] >= n || s2[s] < 0 || s2[s] >= n )
+                throw new IOException("Spring " + s + " refers to a "
+                    + "missing item");
+        }
+
+        // only replace the items once the state was read completely
+        fsim.clear();
+        for ( int i=0; i<n; ++i )
+            fsim.addItem(items[i]);
+        for ( int s=0; s<ns; ++s )
+            fsim.addSpring(items[s1[s]], items[s2[s]], coeff[s], length[s]);
+        fsim.setState(kinetic, displacement, speed, progress);
+    }
+
+    private static int count(int n) throws IOException {
+        if ( n < 0 )
+            throw new IOException("Corrupt simulator state");
+        return n;
+    }
+
+    /**
+     * Create an instance of a saved class using its default constructor.
+     * The class is not initialized unless it is of the expected type.
+     */
+    private static Object create(String name, Class<?> type)
+        throws IOException
+    {
+        try {
+            Class<?> c = Class.forName(name, false,
+                SimulationState.class.getClassLoader());
+            if ( !type.isAssignableFrom(c) )
+                throw new IOException(name + " is not a "
+                    + type.getSimpleName());
+            return c.getDeclaredConstructor().newInstance();
+        } catch ( ReflectiveOperationException e ) {
+            throw new IOException("Can't create a " + name, e);
+        }
+    }
+
+} // end of class SimulationState
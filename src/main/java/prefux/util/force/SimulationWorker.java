@@ -0,0 +1,413 @@
+/*  
+ * Copyright (c) 2004-2013 Regents of the University of California.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * 3.  Neither the name of the University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * Copyright (c) 2014 Martin Stockhammer
+ */
+package prefux.util.force;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Worker thread that runs a {@link ForceSimulator} continuously, decoupled
+ * from the thread displaying its results. The worker owns the simulated
+ * items while it runs: other threads hand it a model of items and springs
+ * with {@link #setModel(ForceItem[], int, int[], int[], double[], double[], int)},
+ * move or pin items through {@link #setPosition(int, double, double)} and
+ * {@link #setFixed(int, boolean)}, and read the item positions from
+ * {@link Snapshot snapshots} the worker publishes after every timestep.</p>
+ *
+ * <p>Snapshots are exchanged through an atomic swap between three buffers:
+ * one written by the worker, one held by the reader, and the latest
+ * complete one in between. Neither side ever waits for the other, the
+ * reader always sees a consistent set of positions, and no memory is
+ * allocated per step. A simulation step thus never delays the reader, and
+ * the reader only ever sees the latest finished step.</p>
+ *
+ * <p>Once the simulation {@link ForceSimulator#isConverged() converges},
+ * the worker sleeps until the model changes or an item is moved.</p>
+ */
+public class SimulationWorker extends Thread {
+
+    /**
+     * Positions of the simulated items after a timestep, indexed like the
+     * items of the model they were computed for.
+     */
+    public static final class Snapshot {
+        private int generation = -1;
+        private long step = -1;
+        private int size = 0;
+        private boolean converged;
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+
+        /**
+         * Get the generation of the model the positions were computed for,
+         * as returned by
+         * {@link SimulationWorker#setModel(ForceItem[], int, int[], int[], double[], double[], int)}.
+         * @return the model generation
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Get the number of timesteps run by the worker before this
+         * snapshot was taken.
+         * @return the step count
+         */
+        public long getStep() {
+            return step;
+        }
+
+        /**
+         * Get the number of items.
+         * @return the number of items
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Indicates if the simulation had converged in this snapshot.
+         * @return true if the simulation had converged
+         */
+        public boolean isConverged() {
+            return converged;
+        }
+
+        /**
+         * Get the x-coordinate of an item.
+         * @param i the item index
+         * @return the x-coordinate
+         */
+        public double getX(int i) {
+            return x[i];
+        }
+
+        /**
+         * Get the y-coordinate of an item.
+         * @param i the item index
+         * @return the y-coordinate
+         */
+        public double getY(int i) {
+            return y[i];
+        }
+    } // end of inner class Snapshot
+
+    private final ForceSimulator fsim;
+    private long maxstep = 50L;
+    private long timestep = 50L;
+    private volatile boolean running = true;
+
+    // model and item updates handed over to the worker, guarded by this
+    private int generation = 0;
+    private ForceItem[] nextItems;
+    private int nextSize;
+    private int[] nextSpring1, nextSpring2;
+    private double[] nextCoeff, nextLength;
+    private int nextSprings;
+    private boolean modelPending;
+    private int[] moveIndex = new int[16];
+    private double[] moveX = new double[16], moveY = new double[16];
+    private int moves;
+    private int[] fixIndex = new int[16];
+    private boolean[] fixValue = new boolean[16];
+    private int fixes;
+
+    // state owned by the worker thread
+    private ForceItem[] items = new ForceItem[0];
+    private int size = 0;
+    private int modelGeneration = -1;
+    private long steps = 0;
+    private boolean converged;
+
+    // triple buffer: written by the worker, latest, and held by the reader
+    private Snapshot back = new Snapshot();
+    private final AtomicReference<Snapshot> latest
+        = new AtomicReference<Snapshot>(new Snapshot());
+    private Snapshot front = new Snapshot();
+
+    /**
+     * Create a new SimulationWorker. The worker thread is a daemon thread
+     * and has to be started by calling {@link #start()}.
+     * @param fsim the force simulator to run. It must not be used by other
+     * threads while the worker is running.
+     */
+    public SimulationWorker(ForceSimulator fsim) {
+        super("prefux_SimulationWorker");
+        this.fsim = fsim;
+        setDaemon(true);
+    }
+
+    /**
+     * Get the force simulator run by this worker.
+     * @return the force simulator
+     */
+    public ForceSimulator getForceSimulator() {
+        return fsim;
+    }
+
+    /**
+     * Get the maximum timestep of the simulation, in milliseconds of
+     * simulated time.
+     * @return the maximum timestep
+     */
+    public synchronized long getMaxTimeStep() {
+        return maxstep;
+    }
+
+    /**
+     * Set the maximum timestep of the simulation, in milliseconds of
+     * simulated time. The worker runs its steps as fast as it can, so the
+     * timestep determines how fast the layout moves. Within this maximum,
+     * the worker follows the timestep recommended by the integrator.
+     * @param step the maximum timestep
+     */
+    public synchronized void setMaxTimeStep(long step) {
+        if ( step < 1 )
+            throw new IllegalArgumentException(
+                "Timestep must be positive: " + step);
+        maxstep = step;
+        timestep = step;
+    }
+
+    // ------------------------------------------------------------------------
+    // Updates
+
+    /**
+     * Replace the simulated items and springs. The worker adopts the new
+     * model before its next step; the arrays are not copied, and must not
+     * be modified afterwards. The items are owned by the worker from then
+     * on, and must not be accessed by other threads. Items whose
+     * {@link ForceItem#fixed fixed} flag is set are held in place until
+     * they are released. Items and springs share their indices with
+     * snapshots and with the other update methods, which refer to the
+     * latest model set.
+     * @param items the items to simulate
+     * @param n the number of items
+     * @param spring1 the index of the first item of each spring
+     * @param spring2 the index of the second item of each spring
+     * @param coeff the coefficient of each spring, negative for the
+     * default of the spring force, or null to use the default for all
+     * @param length the resting length of each spring, negative for the
+     * default of the spring force, or null to use the default for all
+     * @param nsprings the number of springs
+     * @return the generation of the new model, which snapshots computed
+     * for it carry
+     */
+    public synchronized int setModel(ForceItem[] items, int n,
+            int[] spring1, int[] spring2, double[] coeff, double[] length,
+            int nsprings)
+    {
+        nextItems = items;
+        nextSize = n;
+        nextSpring1 = spring1;
+        nextSpring2 = spring2;
+        nextCoeff = coeff;
+        nextLength = length;
+        nextSprings = nsprings;
+        modelPending = true;
+        // moves and pins refer to the items of the latest model
+        moves = 0;
+        fixes = 0;
+        notifyAll();
+        return ++generation;
+    }
+
+    /**
+     * Move an item of the latest model to a new position and stop its
+     * motion. Fixed items stay at the position they were last moved to.
+     * @param i the item index
+     * @param x the new x-coordinate
+     * @param y the new y-coordinate
+     */
+    public synchronized void setPosition(int i, double x, double y) {
+        if ( moves == moveIndex.length ) {
+            moveIndex = Arrays.copyOf(moveIndex, 2*moves);
+            moveX = Arrays.copyOf(moveX, 2*moves);
+            moveY = Arrays.copyOf(moveY, 2*moves);
+        }
+        moveIndex[moves] = i;
+        moveX[moves] = x;
+        moveY[moves] = y;
+        ++moves;
+        notifyAll();
+    }
+
+    /**
+     * Set if an item of the latest model is fixed. Forces act on fixed
+     * items, but they are not moved by the simulation. The worker sets the
+     * {@link ForceItem#fixed fixed} flag of the item, which the simulator
+     * reads on every step.
+     * @param i the item index
+     * @param fix true to fix the item, false to release it
+     */
+    public synchronized void setFixed(int i, boolean fix) {
+        if ( fixes == fixIndex.length ) {
+            fixIndex = Arrays.copyOf(fixIndex, 2*fixes);
+            fixValue = Arrays.copyOf(fixValue, 2*fixes);
+        }
+        fixIndex[fixes] = i;
+        fixValue[fixes] = fix;
+        ++fixes;
+        notifyAll();
+    }
+
+    /**
+     * Stop the worker thread after its current step. The worker can not be
+     * restarted.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    // ------------------------------------------------------------------------
+    // Snapshots
+
+    /**
+     * Get the latest snapshot published by the worker. The returned
+     * snapshot stays unchanged until the next call of this method, which
+     * may recycle it. This method must only be called by a single reader
+     * thread.
+     * @return the latest snapshot, with a generation of -1 if the worker
+     * has not completed any step yet
+     */
+    public Snapshot getSnapshot() {
+        if ( latest.get().step > front.step )
+            front = latest.getAndSet(front);
+        return front;
+    }
+
+    /**
+     * Copy the item positions into the back buffer and swap it with the
+     * latest snapshot.
+     */
+    private void publish() {
+        Snapshot s = back;
+        if ( s.x.length < size ) {
+            s.x = new double[items.length];
+            s.y = new double[items.length];
+        }
+        for ( int i=0; i<size; ++i ) {
+            s.x[i] = items[i].location[0];
+            s.y[i] = items[i].location[1];
+        }
+        s.size = size;
+        s.generation = modelGeneration;
+        s.converged = converged;
+        s.step = ++steps;
+        back = latest.getAndSet(s);
+    }
+
+    // ------------------------------------------------------------------------
+    // Simulation
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while ( running ) {
+            long step;
+            synchronized ( this ) {
+                // nothing to do, chill out until notified
+                while ( running && converged && !modelPending
+                        && moves == 0 && fixes == 0 )
+                {
+                    try {
+                        wait();
+                    } catch ( InterruptedException ex ) { }
+                }
+                if ( !running ) break;
+                applyUpdates();
+                step = timestep;
+            }
+            if ( size == 0 ) {
+                converged = true;
+                publish();
+                continue;
+            }
+
+            long next = fsim.runSimulator(step);
+            fsim.syncItems();
+            converged = fsim.isConverged();
+            synchronized ( this ) {
+                // follow the recommended timestep, but only grow it if it
+                // limited this step, and never beyond the maximum
+                if ( step == timestep )
+                    timestep = Math.max(1, Math.min(next, maxstep));
+            }
+            publish();
+        }
+    }
+
+    /**
+     * Adopt a new model and apply pending moves and pins. Must be called
+     * by the worker thread, holding the lock of this worker.
+     */
+    private void applyUpdates() {
+        if ( modelPending ) {
+            fsim.clear();
+            items = nextItems;
+            size = nextSize;
+            for ( int i=0; i<size; ++i )
+                fsim.addItem(items[i]);
+            for ( int s=0; s<nextSprings; ++s ) {
+                double c = ( nextCoeff == null ? -1 : nextCoeff[s] );
+                double l = ( nextLength == null ? -1 : nextLength[s] );
+                fsim.addSpring(items[nextSpring1[s]], items[nextSpring2[s]],
+                               c, l);
+            }
+            modelGeneration = generation;
+            converged = false;
+            nextItems = null;
+            nextSpring1 = nextSpring2 = null;
+            nextCoeff = nextLength = null;
+            modelPending = false;
+        }
+        for ( int k=0; k<fixes; ++k ) {
+            if ( fixIndex[k] < size )
+                items[fixIndex[k]].fixed = fixValue[k];
+        }
+        for ( int k=0; k<moves; ++k ) {
+            int i = moveIndex[k];
+            if ( i >= size ) continue;
+            ForceItem item = items[i];
+            item.location[0] = moveX[k];
+            item.location[1] = moveY[k];
+            item.velocity[0] = item.velocity[1] = 0;
+        }
+        if ( moves > 0 )
+            fsim.itemsChanged();
+        converged = converged && fixes == 0 && moves == 0;
+        fixes = 0;
+        moves = 0;
+    }
+
+} // end of class SimulationWorker
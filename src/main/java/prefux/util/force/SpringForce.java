@@ -31,13 +31,28 @@
 
 package prefux.util.force;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
- * Force function that computes the force acting on ForceItems due to a
- * given Spring.
+ * <p>Force function that computes the force acting on ForceItems due to a
+ * given Spring.</p>
+ *
+ * <p>When run on the particle arrays of an {@link ArrayForceSimulator},
+ * the spring forces can be spread over several threads using
+ * {@link #setParallelism(int)}. As each spring acts on both of its
+ * endpoints, threads cannot simply add spring forces to the particles.
+ * Instead, the force of each spring is first computed into a buffer
+ * indexed by spring, in parallel over the springs, and then gathered
+ * into the particles in parallel over the particles, using an index of
+ * the springs attached to each particle. Each particle sums its spring
+ * forces in the same order as a sequential evaluation, so the result
+ * does not depend on the number of threads.</p>
  * 
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class SpringForce extends AbstractForce {
+public class SpringForce extends AbstractForce implements ArrayForce {
 
     private static String[] pnames 
         = new String[] { "SpringCoefficient", "DefaultSpringLength" };
@@ -50,6 +65,27 @@ public class SpringForce extends AbstractForce {
     public static final double DEFAULT_MAX_SPRING_LENGTH = 200;
     public static final int SPRING_COEFF = 0;
     public static final int SPRING_LENGTH = 1;
+
+    private int parallelism = 1;
+    private boolean deterministic = false;
+    private ForkJoinPool pool;
+    private long round = 0; // evaluation counter, seeds deterministic noise
+    private int next = 0, count = 0; // springs evaluated item-wise
+
+    // spring forces, indexed by spring, for the parallel evaluation
+    private double[] sfx = new double[0];
+    private double[] sfy = new double[0];
+
+    // index of the springs attached to each particle: the entries of
+    // particle i are incident[start[i]] to incident[start[i+1]-1], holding
+    // s for springs starting and ~s for springs ending at the particle, in
+    // the order of the springs. The spring endpoints the index was built
+    // for are kept to detect changes.
+    private int[] start = new int[1];
+    private int[] incident = new int[0];
+    private int[] index1 = new int[0];
+    private int[] index2 = new int[0];
+    private int indexSize = 0, indexSprings = 0;
     
     /**
      * Create a new SpringForce.
@@ -88,6 +124,16 @@ public class SpringForce extends AbstractForce {
         return pnames;
     } 
     
+    /**
+     * Counts the evaluations of the spring forces.
+     * @see prefux.util.force.Force#init(prefux.util.force.ForceSimulator)
+     */
+    public void init(ForceSimulator fsim) {
+        ++round;
+        next = 0;
+        count = fsim.getSpringCount();
+    }
+
     /**
      * Calculates the force vector acting on the items due to the given spring.
      * @param s the Spring for which to compute the force
@@ -102,10 +148,20 @@ public class SpringForce extends AbstractForce {
         double dx = x2-x1, dy = y2-y1;
         double r  = (double)Math.sqrt(dx*dx+dy*dy);
         if ( r == 0.0 ) {
-            dx = ((double)Math.random()-0.5f) / 50.0f;
-            dy = ((double)Math.random()-0.5f) / 50.0f;
+            if ( deterministic ) {
+                // springs are evaluated in order, so the same noise as on
+                // particle arrays results
+                long h = NBodyForce.hash(round, next, count);
+                dx = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                h = NBodyForce.hash(h, next, count);
+                dy = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+            } else {
+                dx = ((double)Math.random()-0.5f) / 50.0f;
+                dy = ((double)Math.random()-0.5f) / 50.0f;
+            }
             r  = (double)Math.sqrt(dx*dx+dy*dy);
         }
+        ++next;
         double d  = r-length;
         double coeff = (s.coeff < 0 ? params[SPRING_COEFF] : s.coeff)*d/r;
         item1.force[0] += coeff*dx;
@@ -113,5 +169,232 @@ public class SpringForce extends AbstractForce {
         item2.force[0] += -coeff*dx;
         item2.force[1] += -coeff*dy;
     }
+
+    // ------------------------------------------------------------------------
+    // Parallelism
+
+    /**
+     * Get the number of threads used to compute forces on particle arrays.
+     * @return the parallelism level, 1 for sequential computation
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used to compute forces on particle arrays.
+     * With more than one thread, the forces of the springs are computed
+     * concurrently and then gathered into the particles concurrently. This
+     * pays off for graphs with many more springs than particles, and
+     * applies to simulations run by an {@link ArrayForceSimulator}; forces
+     * computed on individual Springs are always computed sequentially.
+     * @param threads the parallelism level, 1 for sequential computation
+     */
+    public synchronized void setParallelism(int threads) {
+        if ( threads < 1 )
+            throw new IllegalArgumentException(
+                "Parallelism must be at least 1: " + threads);
+        if ( threads != parallelism && pool != null ) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = threads;
+    }
+
+    /**
+     * Indicates if forces are computed deterministically.
+     * @return true if results are deterministic
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Set if forces are computed deterministically. The random noise that
+     * separates the endpoints of springs of zero length is normally drawn
+     * from a random generator. In deterministic mode, it is instead
+     * derived from the spring and the number of previous evaluations, so
+     * the computed forces are bit-for-bit identical across runs and
+     * independent of the parallelism level.
+     * @param d true for deterministic computation
+     */
+    public void setDeterministic(boolean d) {
+        deterministic = d;
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#setDeterministicNoise(boolean)
+     */
+    void setDeterministicNoise(boolean d) {
+        setDeterministic(d);
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#getNoiseRound()
+     */
+    long getNoiseRound() {
+        return round;
+    }
+
+    /**
+     * @see prefux.util.force.AbstractForce#setNoiseRound(long)
+     */
+    void setNoiseRound(long round) {
+        this.round = round;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if ( pool == null )
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    // ------------------------------------------------------------------------
+    // Particle Arrays
+
+    /**
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(ParticleArrays p) {
+        ++round;
+        if ( parallelism > 1 || deterministic )
+            accumulateGathered(p);
+        else
+            accumulateSequential(p);
+    }
+
+    /**
+     * Adds the spring forces to the particles one spring at a time.
+     */
+    private void accumulateSequential(ParticleArrays p) {
+        int ns = p.getSpringCount();
+        int[] s1 = p.spring1, s2 = p.spring2;
+        double[] x = p.x, y = p.y, fx = p.fx, fy = p.fy;
+        for ( int s=0; s<ns; ++s ) {
+            int i1 = s1[s], i2 = s2[s];
+            double length = p.springLength[s];
+            if ( length < 0 ) length = params[SPRING_LENGTH];
+            double dx = x[i2]-x[i1], dy = y[i2]-y[i1];
+            double r  = Math.sqrt(dx*dx+dy*dy);
+            if ( r == 0.0 ) {
+                dx = (Math.random()-0.5) / 50.0;
+                dy = (Math.random()-0.5) / 50.0;
+                r  = Math.sqrt(dx*dx+dy*dy);
+            }
+            double c = p.springCoeff[s];
+            double coeff = (c < 0 ? params[SPRING_COEFF] : c)*(r-length)/r;
+            fx[i1] += coeff*dx;
+            fy[i1] += coeff*dy;
+            fx[i2] -= coeff*dx;
+            fy[i2] -= coeff*dy;
+        }
+    }
+
+    /**
+     * Computes the spring forces into the spring buffers, then gathers them
+     * into the particles, running both phases in parallel if enabled.
+     */
+    private void accumulateGathered(final ParticleArrays p) {
+        final int n = p.getSize(), ns = p.getSpringCount();
+        if ( ns == 0 ) return;
+        ForkJoinPool fjp = ( parallelism > 1 ? getPool() : null );
+        updateIndex(p);
+        if ( sfx.length < ns ) {
+            sfx = new double[p.spring1.length];
+            sfy = new double[p.spring1.length];
+        }
+        final double[] sfx = this.sfx, sfy = this.sfy;
+        final int[] start = this.start, incident = this.incident;
+
+        int grain = Math.max(1024, ns / (8*parallelism));
+        ParallelRange.forEach(fjp, ns, grain, (lo, hi) -> {
+            int[] s1 = p.spring1, s2 = p.spring2;
+            double[] x = p.x, y = p.y;
+            for ( int s=lo; s<hi; ++s ) {
+                int i1 = s1[s], i2 = s2[s];
+                double length = p.springLength[s];
+                if ( length < 0 ) length = params[SPRING_LENGTH];
+                double dx = x[i2]-x[i1], dy = y[i2]-y[i1];
+                double r  = Math.sqrt(dx*dx+dy*dy);
+                if ( r == 0.0 ) {
+                    if ( deterministic ) {
+                        long h = NBodyForce.hash(round, s, ns);
+                        dx = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                        h = NBodyForce.hash(h, s, ns);
+                        dy = ((h >>> 11) / (double)(1L<<53) - 0.5) / 50.0;
+                    } else {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        dx = (rnd.nextDouble()-0.5) / 50.0;
+                        dy = (rnd.nextDouble()-0.5) / 50.0;
+                    }
+                    r  = Math.sqrt(dx*dx+dy*dy);
+                }
+                double c = p.springCoeff[s];
+                double coeff = (c < 0 ? params[SPRING_COEFF] : c)*(r-length)/r;
+                sfx[s] = coeff*dx;
+                sfy[s] = coeff*dy;
+            }
+        });
+
+        grain = Math.max(1024, n / (8*parallelism));
+        ParallelRange.forEach(fjp, n, grain, (lo, hi) -> {
+            double[] fx = p.fx, fy = p.fy;
+            for ( int i=lo; i<hi; ++i ) {
+                double f0 = fx[i], f1 = fy[i];
+                for ( int e=start[i]; e<start[i+1]; ++e ) {
+                    int s = incident[e];
+                    if ( s >= 0 ) {
+                        f0 += sfx[s];
+                        f1 += sfy[s];
+                    } else {
+                        f0 -= sfx[~s];
+                        f1 -= sfy[~s];
+                    }
+                }
+                fx[i] = f0;
+                fy[i] = f1;
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the index of the springs attached to each particle, unless
+     * the particles and springs are the same as on the last evaluation.
+     */
+    private void updateIndex(ParticleArrays p) {
+        int n = p.getSize(), ns = p.getSpringCount();
+        int[] s1 = p.spring1, s2 = p.spring2;
+        if ( n == indexSize && ns == indexSprings ) {
+            int s = 0;
+            while ( s < ns && s1[s] == index1[s] && s2[s] == index2[s] ) ++s;
+            if ( s == ns ) return;
+        }
+        if ( start.length < n+1 ) start = new int[p.x.length+1];
+        if ( incident.length < 2*ns ) {
+            incident = new int[2*s1.length];
+            index1 = new int[s1.length];
+            index2 = new int[s1.length];
+        }
+        // counting sort of the spring endpoints by particle
+        Arrays.fill(start, 0, n+1, 0);
+        for ( int s=0; s<ns; ++s ) {
+            ++start[s1[s]+1];
+            ++start[s2[s]+1];
+        }
+        for ( int i=0; i<n; ++i )
+            start[i+1] += start[i];
+        for ( int s=0; s<ns; ++s ) {
+            incident[start[s1[s]]++] = s;
+            incident[start[s2[s]]++] = ~s;
+        }
+        // the fill advanced each start to the next particle's start
+        for ( int i=n; i>0; --i )
+            start[i] = start[i-1];
+        start[0] = 0;
+        System.arraycopy(s1, 0, index1, 0, ns);
+        System.arraycopy(s2, 0, index2, 0, ns);
+        indexSize = n;
+        indexSprings = ns;
+    }
     
 } // end of class SpringForce
@@ -38,7 +38,7 @@ import java.awt.geom.Line2D;
  *
  * @author <a href="http://jheer.org">jeffrey heer</a>
  */
-public class WallForce extends AbstractForce {
+public class WallForce extends AbstractForce implements ArrayForce {
 
     private static String[] pnames = new String[] { "GravitationalConstant" };
     
@@ -115,4 +115,26 @@ public class WallForce extends AbstractForce {
             item.force[0] += -1*ccw*v*dy;
     }
 
+    /**
+     * @see prefux.util.force.ArrayForce#accumulate(prefux.util.force.ParticleArrays)
+     */
+    public void accumulate(ParticleArrays p) {
+        double g = params[GRAVITATIONAL_CONST];
+        double xmin = Math.min(x1,x2), xmax = Math.max(x1,x2);
+        double ymin = Math.min(y1,y2), ymax = Math.max(y1,y2);
+        int n = p.getSize();
+        double[] x = p.x, y = p.y, fx = p.fx, fy = p.fy, mass = p.mass;
+        for ( int i=0; i<n; ++i ) {
+            double px = x[i], py = y[i];
+            int ccw = Line2D.relativeCCW(x1,y1,x2,y2,px,py);
+            double r = Line2D.ptSegDist(x1,y1,x2,y2,px,py);
+            if ( r == 0.0 ) r = Math.random() / 100.0;
+            double v = g*mass[i] / (r*r*r);
+            if ( px >= xmin && px <= xmax )
+                fy[i] += ccw*v*dx;
+            if ( py >= ymin && py <= ymax )
+                fx[i] += -1*ccw*v*dy;
+        }
+    }
+
 } // end of class WallForce
@@ -77,7 +77,8 @@ public class AggregateTable extends VisualTable {
      * @param schema the Schema to use for this table
      */
     public AggregateTable(Visualization vis, String group, Schema schema) {
-        super(vis, group, schema, TableAggregateItem.class);
+        super(vis, group, schema, TableAggregateItem.class,
+              TableAggregateItem::new);
         m_aggregated = AGGREGATED_SCHEMA.instantiate();
         m_aggregated.index(AGGREGATE);
         m_aggregated.index(MEMBER_HASH);
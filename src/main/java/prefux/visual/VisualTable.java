@@ -40,6 +40,7 @@ import prefux.data.Table;
 import prefux.data.Tuple;
 import prefux.data.event.EventConstants;
 import prefux.data.expression.Predicate;
+import prefux.data.tuple.TupleFactory;
 import prefux.data.util.Rectangle2D;
 import prefux.visual.tuple.TableVisualItem;
 
@@ -114,6 +115,7 @@ public class VisualTable extends CascadedTable implements VisualTupleSet {
     public VisualTable(Table parent, Visualization vis, String group,
             Predicate rowFilter, Schema schema) {
         super(parent, rowFilter, null, TableVisualItem.class);
+        setTupleFactory(TableVisualItem::new);
         init(vis, group, schema);
     }
 
@@ -129,6 +131,7 @@ public class VisualTable extends CascadedTable implements VisualTupleSet {
      */
     public VisualTable(Visualization vis, String group) {
         super(TableVisualItem.class);
+        setTupleFactory(TableVisualItem::new);
         init(vis, group, VisualItem.SCHEMA);
     }
 
@@ -144,6 +147,7 @@ public class VisualTable extends CascadedTable implements VisualTupleSet {
      */
     public VisualTable(Visualization vis, String group, Schema schema) {
         super(TableVisualItem.class);
+        setTupleFactory(TableVisualItem::new);
         init(vis, group, schema);
     }
 
@@ -165,6 +169,27 @@ public class VisualTable extends CascadedTable implements VisualTupleSet {
         init(vis, group, schema);
     }
 
+    /**
+     * Create a new VisualTable without a parent table.
+     * 
+     * @param vis
+     *            the Visualization associated with this table
+     * @param group
+     *            the data group of this table
+     * @param schema
+     *            the data schema to use for the table's local columns
+     * @param tupleType
+     *            the type of Tuple instances to use
+     * @param factory
+     *            the factory creating Tuple instances of the given type
+     */
+    public VisualTable(Visualization vis, String group, Schema schema,
+            Class<? extends Tuple> tupleType, TupleFactory factory) {
+        super(tupleType);
+        setTupleFactory(factory);
+        init(vis, group, schema);
+    }
+
     /**
      * Initialize this VisualTable
      * 
@@ -761,8 +761,9 @@ public class TableVisualItem extends TableTuple<VisualTable> implements
 
     @Override
     public void tableChanged(Table t, int start, int end, int col, int type) {
+        // bulk updates of a column report a range of rows
         if (!ignoreTableUpdate && type == EventConstants.UPDATE
-                && (start == m_row) && (start == end)) {
+                && col >= 0 && start <= m_row && m_row <= end) {
             String colName = getColumnName(col);
             if (DOUBLE_PROPERTIES.containsKey(colName)) {
                 Platform.runLater(() -> {
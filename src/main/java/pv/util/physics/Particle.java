@@ -35,6 +35,10 @@ public class Particle {
 	
 	public Particle next = null;
 	
+	/** Index of this particle in the particle arrays of its simulation,
+	 *  valid while the simulation ticks. */
+	int index = -1;
+	
 	/**
 	 * Creates a new Particle with given parameters.
 	 * @param mass the mass (or charge) of the particle
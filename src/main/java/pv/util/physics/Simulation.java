@@ -2,14 +2,21 @@ package pv.util.physics;
 
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
 
+import prefux.util.force.ParticleArrays;
 import pv.util.ThreadPool;
 
 /**
  * A physical simulation involving particles, springs, and forces.
  * Useful for simulating a range of physical effects or layouts.
+ * 
+ * <p>The simulation runs on the array-based force engine of
+ * {@link prefux.util.force}: on each tick, the particles and springs are
+ * copied into {@link ParticleArrays}, the n-body and spring forces are
+ * computed by the {@link prefux.util.force.NBodyForce} and
+ * {@link prefux.util.force.SpringForce} of that engine, in parallel using
+ * {@link ThreadPool#getThreadCount()} threads, and the results are copied
+ * back once all iterations of the tick are done.</p>
  */
 public class Simulation {
 
@@ -18,12 +25,18 @@ public class Simulation {
 	private int _pcount = 0;
 	private int _scount = 0;
 	
-	private NBodyForce _nbody;
-	private ParticleInit _init;
-	private ParticleEval _eval;
-	private SpringForce _spring;
+	private float _gx, _gy, _dc;
+	private prefux.util.force.NBodyForce _nbody;
+	private prefux.util.force.SpringForce _spring;
 	private Rectangle2D _bounds = null;
 	
+	// particle and spring state while ticking
+	private ParticleArrays _arrays = new ParticleArrays();
+	private Particle[] _parr = new Particle[0];
+	private boolean[] _fixed = new boolean[0];
+	private double[] _hvx = new double[0], _hvy = new double[0];
+	private float[] _damping = new float[0];
+	
 	/** Sets a bounding box for particles in this simulation.
 	 *  Null (the default) indicates no boundaries. */
 	public Rectangle2D bounds() { return _bounds; }
@@ -41,24 +54,43 @@ public class Simulation {
 	}
 	
 	/** The gravitational force along the x-dimension. */
-	public float gravityX() { return _init._gx; }
-	public Simulation gravityX(float g) { _init._gx = g; return this; }
+	public float gravityX() { return _gx; }
+	public Simulation gravityX(float g) { _gx = g; return this; }
 	
 	/** The gravitational force along the y-dimension. */
-	public float gravityY() { return _init._gy; }
-	public Simulation gravityY(float g) { _init._gy = g; return this; }
+	public float gravityY() { return _gy; }
+	public Simulation gravityY(float g) { _gy = g; return this; }
 	
 	/**  The drag (viscosity) co-efficient. */
-	public float drag() { return _init._dc; }
-	public Simulation drag(float d) { _init._dc = d; return this; }
+	public float drag() { return _dc; }
+	public Simulation drag(float d) { _dc = d; return this; }
 	
 	/** The attraction (or repulsion if negative) between particles. */
-	public float attraction() { return _nbody.gravitation(); }
-	public Simulation attraction(float a) { _nbody.gravitation(a); return this; }
+	public float attraction() { return param(NBODY_G); }
+	public Simulation attraction(float a) { param(NBODY_G, a); return this; }
 	
 	/** The maximum range over which attractive/repulsive forces are exerted. */
-	public float range() { return _nbody.maxDistance(); }
-	public Simulation range(float r) { _nbody.maxDistance(r); return this; }
+	public float range() { return param(NBODY_MAX); }
+	public Simulation range(float r) { param(NBODY_MAX, r); return this; }
+	
+	/** The minimum distance over which attractive/repulsive forces are
+	 *  exerted; closer particles interact as if this far apart. */
+	public float minRange() { return param(NBODY_NEAR); }
+	public Simulation minRange(float r) { param(NBODY_NEAR, r); return this; }
+	
+	/** The n-body force computation, shared with prefux force simulations.
+	 *  Its parameters can also be set through this simulation. */
+	public prefux.util.force.NBodyForce nbodyForce() { return _nbody; }
+	
+	private static final int NBODY_G =
+		prefux.util.force.NBodyForce.GRAVITATIONAL_CONST;
+	private static final int NBODY_MAX =
+		prefux.util.force.NBodyForce.MIN_DISTANCE;
+	private static final int NBODY_NEAR =
+		prefux.util.force.NBodyForce.NEAR_DISTANCE;
+	
+	private float param(int i) { return (float)_nbody.getParameter(i); }
+	private void param(int i, float v) { _nbody.setParameter(i, v); }
 	
 	// ------------------------------------------------------------------------
 	
@@ -80,10 +112,11 @@ public class Simulation {
 	 */
 	public Simulation(float gx, float gy, float drag, float attraction)
 	{
-		_nbody = new NBodyForce(attraction);
-		_spring = new SpringForce();
-		_init = new ParticleInit(gx, gy, drag);
-		_eval = new ParticleEval();
+		// same defaults as the former list-based n-body force
+		_nbody = new prefux.util.force.NBodyForce(attraction, 500, 0.9f);
+		_nbody.setParameter(NBODY_NEAR, 2);
+		_spring = new prefux.util.force.SpringForce();
+		_gx = gx; _gy = gy; _dc = drag;
 	}
 	
 	// -- Init Simulation -------------------------------------------------
@@ -170,18 +203,6 @@ public class Simulation {
 	 */
 	public void tick(float dt, int iter)
 	{
-		_init._dt = dt;
-		_init.dt1 = dt/2;
-		_init.dt2 = dt*dt/2;
-		_eval.dt1 = _init.dt1;
-		_eval.bounds = (_bounds != null);
-		if (_eval.bounds) {
-			_eval.minX = (float)_bounds.getMinX();
-			_eval.maxX = (float)_bounds.getMaxX();
-			_eval.minY = (float)_bounds.getMinY();
-			_eval.maxY = (float)_bounds.getMaxY();
-		}
-
 		Particle p; Spring s;
 		
 		// remove springs connected to dead particles
@@ -206,210 +227,149 @@ public class Simulation {
 			}
 		}
 		
-		initTasks();
-		
-		while (--iter >= 0) {
-			// evaluate the forces
-			run(_init);
-			_nbody.run(this);
-			run(_spring); _spring.finish(_sh.next);
-			run(_eval);
-		}
-	}
-	
-	// -- Tasks and Functions -------------------------------------------------
-	
-	private List<ParticleTask> _ptasks = new ArrayList<ParticleTask>();
-	private List<SpringTask> _stasks = new ArrayList<SpringTask>();
-	
-	public void initTasks() {
 		int nt = ThreadPool.getThreadCount();
-		// set task counts
-		while (_ptasks.size() < nt) { _ptasks.add(new ParticleTask()); }
-		for (int i=_ptasks.size(); --i >= nt; ) { _ptasks.remove(i); }
-		while (_stasks.size() < nt) { _stasks.add(new SpringTask()); }
-		for (int i=_stasks.size(); --i >= nt; ) { _stasks.remove(i); }
-		
-		// init particle tasks
-		int pstep = (int)Math.ceil(_pcount / (double)nt);
-		Particle p = _ph.next;
-		for (int i=0, j=0; i<_pcount; ++i) {
-			if (i % pstep == 0) {
-				_ptasks.get(j).start = p;
-				if (j > 0) _ptasks.get(j-1).end = p;
-				j += 1;
-			}
-			p = p.next;
+		if (_nbody.getParallelism() != nt) {
+			_nbody.setParallelism(nt);
+			_spring.setParallelism(nt);
 		}
-		_ptasks.get(_ptasks.size()-1).end = null;
-		
-		// init spring tasks
-		int sstep = (int)Math.ceil(_scount / (double)nt);
-		Spring s = _sh.next;
-		for (int i=0, j=0; i<_scount; ++i) {
-			if (i % sstep == 0) {
-				_stasks.get(j).start = s;
-				if (j > 0) _stasks.get(j-1).end = s;
-				j += 1;
-			}
-			s = s.next;
+		load();
+		while (--iter >= 0) {
+			step(dt);
 		}
-		_stasks.get(_stasks.size()-1).end = null;
+		store();
 	}
 	
-	public void run(ParticleFunction pf) {
-		for (int i=0; i<_ptasks.size(); ++i)
-			_ptasks.get(i).function = pf;
-		try {
-			ThreadPool.getThreadPool().invokeAll(_ptasks);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * Copies the particles and springs into the particle arrays.
+	 */
+	private void load()
+	{
+		ParticleArrays a = _arrays;
+		int n = _pcount;
+		a.setSize(n);
+		if (_parr.length < n) {
+			_parr = new Particle[a.x.length];
+			_fixed = new boolean[a.x.length];
+			_hvx = new double[a.x.length];
+			_hvy = new double[a.x.length];
 		}
-	}
-	
-	public void run(SpringFunction sf) {
-		for (int i=0; i<_stasks.size(); ++i)
-			_stasks.get(i).function = sf;
-		try {
-			ThreadPool.getThreadPool().invokeAll(_stasks);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		int i = 0;
+		for (Particle p = _ph.next; p != null; p = p.next, ++i) {
+			_parr[i] = p;
+			p.index = i;
+			a.x[i] = p.x;   a.y[i] = p.y;
+			a.vx[i] = p.vx; a.vy[i] = p.vy;
+			a.fx[i] = p.fx; a.fy[i] = p.fy;
+			a.mass[i] = p.mass;
+			_fixed[i] = p.fixed;
 		}
-	}
-	
-	public static interface ParticleFunction {
-		void run(Particle start, Particle end);
-	}
-	
-	public static interface SpringFunction {
-		void run(Spring start, Spring end);
-	}
-	
-	public static class ParticleTask implements Callable<ParticleTask> {
-		public ParticleFunction function;
-		public Particle start, end;
 		
-		public ParticleTask call() throws Exception {
-			function.run(start, end);
-			return this;
+		a.setSpringCount(_scount);
+		if (_damping.length < _scount)
+			_damping = new float[a.spring1.length];
+		int j = 0;
+		for (Spring s = _sh.next; s != null; s = s.next) {
+			int i1 = s.p1.index, i2 = s.p2.index;
+			// ignore springs attached to particles of other simulations
+			if (i1 < 0 || i1 >= n || _parr[i1] != s.p1 ||
+				i2 < 0 || i2 >= n || _parr[i2] != s.p2)
+				continue;
+			a.spring1[j] = i1;
+			a.spring2[j] = i2;
+			a.springCoeff[j] = s.tension;
+			a.springLength[j] = s.restLength;
+			_damping[j] = s.damping;
+			++j;
 		}
+		a.setSpringCount(j);
 	}
 	
-	public static class SpringTask implements Callable<SpringTask> {
-		public SpringFunction function;
-		public Spring start, end;
-		
-		public SpringTask call() throws Exception {
-			function.run(start, end);
-			return this;
+	/**
+	 * Copies the particle state back into the particles.
+	 */
+	private void store()
+	{
+		ParticleArrays a = _arrays;
+		int n = a.getSize();
+		for (int i=0; i<n; ++i) {
+			Particle p = _parr[i];
+			p.x = (float)a.x[i];   p.y = (float)a.y[i];
+			p.vx = (float)a.vx[i]; p.vy = (float)a.vy[i];
+			p._vx = (float)_hvx[i]; p._vy = (float)_hvy[i];
+			p.fx = (float)a.fx[i]; p.fy = (float)a.fy[i];
+			p.index = -1;
+			_parr[i] = null;
 		}
 	}
 	
-	public static class ParticleInit implements ParticleFunction {
-		public float _dt, _dc, _gx, _gy;
-		public float dt1, dt2;
+	/**
+	 * Advances the particle arrays by one iteration, using Verlet
+	 * integration.
+	 */
+	private void step(float dt)
+	{
+		ParticleArrays a = _arrays;
+		int n = a.getSize(), ns = a.getSpringCount();
+		double[] x = a.x, y = a.y, vx = a.vx, vy = a.vy;
+		double[] fx = a.fx, fy = a.fy, mass = a.mass;
+		double dt1 = dt/2, dt2 = dt*dt/2;
 		
-		public ParticleInit(float gx, float gy, float drag) {
-			_gx = gx; _gy = gy; _dc = drag;
+		// update positions, then apply gravity and drag
+		for (int i=0; i<n; ++i) {
+			if (_fixed[i]) {
+				vx[i] = vy[i] = 0;
+				_hvx[i] = _hvy[i] = 0;
+			} else {
+				double ax = fx[i] / mass[i], ay = fy[i] / mass[i];
+				x[i] += vx[i]*dt + ax*dt2;
+				y[i] += vy[i]*dt + ay*dt2;
+				_hvx[i] = vx[i] + ax*dt1;
+				_hvy[i] = vy[i] + ay*dt1;
+			}
+			fx[i] = (_gx * mass[i]) - (_dc * vx[i]);
+			fy[i] = (_gy * mass[i]) - (_dc * vy[i]);
 		}
 		
-		public void run(Particle start, Particle end)
-		{	
-			float ax, ay;
-				
-			for (Particle p = start; p!=end; p=p.next) {
-				// update particle age
-				p.age += _dt;
-				
-				// update particles using Verlet integration
-				if (p.fixed) {
-					p.vx = p.vy = 0;
-				} else {
-					ax = p.fx / p.mass; ay = p.fy / p.mass;
-					p.x  += p.vx*_dt + ax*dt2;
-					p.y  += p.vy*_dt + ay*dt2;
-					p._vx = p.vx + ax*dt1;
-					p._vy = p.vy + ay*dt1;
-				}
-				
-				// apply gravity force and drag force
-				p.fx = (_gx * p.mass) - (_dc * p.vx);
-				p.fy = (_gy * p.mass) - (_dc * p.vy);
-			}
+		// particle and spring forces
+		if (_nbody.getParameter(NBODY_G) != 0)
+			_nbody.accumulate(a);
+		_spring.accumulate(a);
+		for (int s=0; s<ns; ++s) {
+			if (_damping[s] == 0) continue;
+			int i1 = a.spring1[s], i2 = a.spring2[s];
+			double dx = x[i1] - x[i2], dy = y[i1] - y[i2];
+			double dd = dx*dx + dy*dy;
+			if (dd == 0) continue;
+			double k = _damping[s] * (dx*(vx[i1]-vx[i2]) + dy*(vy[i1]-vy[i2]))
+				/ dd;
+			fx[i1] -= k*dx; fy[i1] -= k*dy;
+			fx[i2] += k*dx; fy[i2] += k*dy;
 		}
-	}
-	
-	public static class ParticleEval implements ParticleFunction {
-		float dt1, minX, minY, maxX, maxY;
-		boolean bounds;
 		
-		public void run(Particle start, Particle end)
-		{
-			for (Particle p = start; p!=end; p=p.next) {
-				if (!p.fixed) {
-					float ax = dt1 / p.mass;
-					p.vx = p._vx + p.fx * ax;
-					p.vy = p._vy + p.fy * ax;
-				}
-				if (bounds) {
-					if (p.x < minX) {
-						p.x = minX; p.vx = 0;
-					} else if (p.x > maxX) {
-						p.x = maxX; p.vx = 0;
-					}
-					if (p.y < minY) {
-						p.y = minY; p.vy = 0;
-					}
-					else if (p.y > maxY) {
-						p.y = maxY; p.vy = 0;
-					}
-				}
-			}
+		// update velocities and keep particles within bounds
+		boolean bounds = (_bounds != null);
+		double minX = 0, minY = 0, maxX = 0, maxY = 0;
+		if (bounds) {
+			minX = _bounds.getMinX(); maxX = _bounds.getMaxX();
+			minY = _bounds.getMinY(); maxY = _bounds.getMaxY();
 		}
-	}
-	
-	public static class SpringForce implements SpringFunction {
-		public void run(Spring start, Spring end) {
-			Particle p1, p2;
-			float dx, dy, dn, dd, k;
-			
-			for (Spring s = start; s!=end; s=s.next) {
-				p1 = s.p1;
-				p2 = s.p2;				
-				dx = p1.x - p2.x;
-				dy = p1.y - p2.y;
-				
-				dn = dx*dx + dy*dy;
-				if (dn > 0) {
-					float half = 0.5f*dn;
-					int i = Float.floatToIntBits(dn);
-					i = 0x5f3759df - (i>>1);
-					dn = Float.intBitsToFloat(i);
-					dn = dn*(1.5f - half*dn*dn);
-					dd = dn;
-					dn = 1/dn;
-				} else {
-					dd = 1;
+		for (int i=0; i<n; ++i) {
+			if (!_fixed[i]) {
+				double ax = dt1 / mass[i];
+				vx[i] = _hvx[i] + fx[i] * ax;
+				vy[i] = _hvy[i] + fy[i] * ax;
+			}
+			if (bounds) {
+				if (x[i] < minX) {
+					x[i] = minX; vx[i] = 0;
+				} else if (x[i] > maxX) {
+					x[i] = maxX; vx[i] = 0;
 				}
-				
-				k  = s.tension * (dn - s.restLength);
-				k += s.damping * (dx*(p1.vx-p2.vx) + dy*(p1.vy-p2.vy)) * dd;
-				k *= dd;
-				
-				// provide a random direction when needed
-				if (dn==0) {
-					dx = 0.01f * (float)(0.5-Math.random());
-					dy = 0.01f * (float)(0.5-Math.random());
+				if (y[i] < minY) {
+					y[i] = minY; vy[i] = 0;
+				} else if (y[i] > maxY) {
+					y[i] = maxY; vy[i] = 0;
 				}
-				s.fx = -k * dx;
-				s.fy = -k * dy;	
-			}
-		}
-		
-		public void finish(Spring s) {
-			for (; s!=null; s=s.next) {
-				s.p1.fx += s.fx; s.p1.fy += s.fy;
-				s.p2.fx -= s.fx; s.p2.fy -= s.fy;
 			}
 		}
 	}
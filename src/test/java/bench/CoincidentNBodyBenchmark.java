@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.Random;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.NBodyForce;
+
+/**
+ * Pathological n-body benchmark: most particles are placed at a handful of
+ * identical locations, or within a distance far below the resolution of
+ * the quadtree, with the rest scattered at random. A pointer based quadtree
+ * degenerates into deep chains of nodes on such inputs; the linear quadtree
+ * keeps each cluster in a single leaf, so the cost per step should stay
+ * close to that of a uniform layout. Both the object based and the array
+ * based simulators are measured.
+ *
+ * Usage: CoincidentNBodyBenchmark [particleCount] [clusters] [steps]
+ */
+public class CoincidentNBodyBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int clusters = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println("Simulating " + n + " particles, " + steps
+                + " steps per round");
+        for (int i = 0; i < 2; ++i) { // the first pass is JIT warm-up
+            boolean print = i > 0;
+            run("objects uniform", new ForceSimulator(), n, 0, 0, steps,
+                    print);
+            run("objects coincident", new ForceSimulator(), n, clusters,
+                    0, steps, print);
+            run("objects near", new ForceSimulator(), n, clusters, 1e-9,
+                    steps, print);
+            run("arrays uniform", new ArrayForceSimulator(), n, 0, 0, steps,
+                    print);
+            run("arrays coincident", new ArrayForceSimulator(), n, clusters,
+                    0, steps, print);
+            run("arrays near", new ArrayForceSimulator(), n, clusters, 1e-9,
+                    steps, print);
+        }
+    }
+
+    /**
+     * Runs a simulation where 90% of the particles are spread over the
+     * given number of clusters, jittered by at most the given spread.
+     */
+    private static void run(String name, ForceSimulator fsim, int n,
+            int clusters, double spread, int steps, boolean print) {
+        fsim.addForce(new NBodyForce());
+        fsim.addForce(new DragForce());
+
+        Random rand = new Random(42);
+        ForceItem[] items = new ForceItem[n];
+        for (int i = 0; i < n; ++i) {
+            items[i] = new ForceItem();
+            if (clusters > 0 && i % 10 != 0) {
+                int c = i % clusters;
+                items[i].location[0] = 100 + 200 * c
+                        + spread * rand.nextDouble();
+                items[i].location[1] = 500 + spread * rand.nextDouble();
+            } else {
+                items[i].location[0] = 1000 * rand.nextDouble();
+                items[i].location[1] = 1000 * rand.nextDouble();
+            }
+            fsim.addItem(items[i]);
+        }
+
+        long t0 = System.nanoTime();
+        for (int s = 0; s < steps; ++s)
+            fsim.runSimulator(50);
+        long t = System.nanoTime() - t0;
+        fsim.syncItems();
+
+        boolean finite = true;
+        for (ForceItem item : items)
+            finite &= !Double.isNaN(item.location[0])
+                    && !Double.isNaN(item.location[1]);
+        if (print) {
+            System.out.printf("%-20s %10.1f ms/step%s%n", name,
+                    t / 1e6 / steps, finite ? "" : "  (NaN positions!)");
+        }
+        fsim.clear();
+    }
+
+}
@@ -0,0 +1,97 @@
+package bench;
+
+import java.util.Random;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.Force;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.NBodyForce;
+import prefux.util.force.ParticleMeshForce;
+import prefux.util.force.SpringForce;
+
+/**
+ * Compares the per-timestep cost of the object based ForceSimulator with
+ * the structure-of-arrays ArrayForceSimulator on a random tree of
+ * particles, using the default n-body, spring and drag forces and the
+ * Runge-Kutta integrator. The array simulator is also run with a parallel
+ * NBodyForce, and twice in deterministic mode with different parallelism
+ * levels, which must produce identical positions. Finally, the n-body
+ * force is replaced by a ParticleMeshForce, which approximates it.
+ *
+ * Usage: ForceSimulatorBenchmark [particleCount] [steps] [threads]
+ */
+public class ForceSimulatorBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Simulating " + n + " particles, " + steps
+                + " steps per round");
+        for (int i = 0; i < 2; ++i) { // the first pass is JIT warm-up
+            boolean print = i > 0;
+            run("objects", new ForceSimulator(), nbody(1, false), n, steps,
+                    print);
+            run("arrays", new ArrayForceSimulator(), nbody(1, false), n,
+                    steps, print);
+            run("parallel", new ArrayForceSimulator(), nbody(threads, false),
+                    n, steps, print);
+            double d1 = run("determ. 1", new ArrayForceSimulator(),
+                    nbody(1, true), n, steps, print);
+            double dn = run("determ. " + threads, new ArrayForceSimulator(),
+                    nbody(threads, true), n, steps, print);
+            if (print && Double.doubleToLongBits(d1) != Double
+                    .doubleToLongBits(dn))
+                System.out.println("deterministic results differ!");
+            ParticleMeshForce mesh = new ParticleMeshForce();
+            mesh.setParallelism(threads);
+            run("mesh", new ArrayForceSimulator(), mesh, n, steps, print);
+        }
+    }
+
+    private static NBodyForce nbody(int threads, boolean deterministic) {
+        NBodyForce nbody = new NBodyForce();
+        nbody.setParallelism(threads);
+        nbody.setDeterministic(deterministic);
+        return nbody;
+    }
+
+    private static double run(String name, ForceSimulator fsim,
+            Force repulsion, int n, int steps, boolean print) {
+        fsim.addForce(repulsion);
+        fsim.addForce(new SpringForce());
+        fsim.addForce(new DragForce());
+
+        Random rand = new Random(42);
+        ForceItem[] items = new ForceItem[n];
+        for (int i = 0; i < n; ++i) {
+            items[i] = new ForceItem();
+            items[i].location[0] = 1000 * rand.nextDouble();
+            items[i].location[1] = 1000 * rand.nextDouble();
+            fsim.addItem(items[i]);
+            if (i > 0)
+                fsim.addSpring(items[rand.nextInt(i)], items[i]);
+        }
+
+        long t0 = System.nanoTime();
+        for (int s = 0; s < steps; ++s)
+            fsim.runSimulator(50);
+        long t = System.nanoTime() - t0;
+        fsim.syncItems();
+
+        double check = 0;
+        for (ForceItem item : items)
+            check += item.location[0] + item.location[1];
+        if (print) {
+            System.out.printf("%-10s %10.1f ms/step  (%.9f)%n", name,
+                    t / 1e6 / steps, check / n);
+        }
+        fsim.clear();
+        return check;
+    }
+
+}
@@ -0,0 +1,131 @@
+package bench;
+
+import java.util.Random;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.MultilevelSimulation;
+import prefux.util.force.NBodyForce;
+import prefux.util.force.ParticleMeshForce;
+import prefux.util.force.SpringForce;
+
+/**
+ * Compares a single level force simulation with a MultilevelSimulation on
+ * a square grid graph, starting from random positions. Layout quality is
+ * measured as the normalized stress between the layout distances and the
+ * grid distances of sampled node pairs, after optimal scaling: an
+ * untangled grid scores close to zero.
+ *
+ * Usage: MultilevelLayoutBenchmark [side] [flatIterations] [nbody|mesh]
+ */
+public class MultilevelLayoutBenchmark {
+
+    public static void main(String[] args) {
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int flat = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        boolean mesh = args.length > 2 && args[2].equals("mesh");
+        int n = side * side;
+
+        int[] src = new int[2 * n], trg = new int[2 * n];
+        int ne = 0;
+        for (int i = 0; i < side; ++i) {
+            for (int j = 0; j < side; ++j) {
+                int u = i * side + j;
+                if (j + 1 < side) {
+                    src[ne] = u;
+                    trg[ne++] = u + 1;
+                }
+                if (i + 1 < side) {
+                    src[ne] = u;
+                    trg[ne++] = u + side;
+                }
+            }
+        }
+        System.out.println("Grid graph with " + n + " nodes and " + ne
+                + " edges");
+
+        for (int iter : new int[] { flat / 10, flat / 3, flat }) {
+            ForceItem[] items = items(n);
+            Random rand = new Random(7);
+            double s = 50 * side;
+            for (ForceItem item : items) {
+                item.location[0] = s * rand.nextDouble();
+                item.location[1] = s * rand.nextDouble();
+            }
+            ForceSimulator fsim = simulator(mesh);
+            for (ForceItem item : items)
+                fsim.addItem(item);
+            for (int e = 0; e < ne; ++e)
+                fsim.addSpring(items[src[e]], items[trg[e]]);
+            long t0 = System.nanoTime();
+            long timestep = 1000L;
+            for (int i = 0; i < iter; ++i) {
+                timestep *= (1.0 - i / (double) iter);
+                fsim.runSimulator(timestep + 50);
+            }
+            long t = System.nanoTime() - t0;
+            fsim.syncItems();
+            System.out.printf("flat %5d steps  %9.1f ms  stress %.4f%n",
+                    iter, t / 1e6, stress(items, side));
+        }
+
+        for (int iter : new int[] { 25, 50, 100 }) {
+            ForceItem[] items = items(n);
+            MultilevelSimulation ml = new MultilevelSimulation(
+                    simulator(mesh));
+            ml.setIterations(iter);
+            long t0 = System.nanoTime();
+            ml.run(items, n, src, trg, ne);
+            long t = System.nanoTime() - t0;
+            System.out.printf("multilevel %3d steps x %2d levels  %9.1f ms"
+                    + "  stress %.4f%n", iter, ml.getLevelCount(), t / 1e6,
+                    stress(items, side));
+        }
+    }
+
+    private static ForceItem[] items(int n) {
+        ForceItem[] items = new ForceItem[n];
+        for (int i = 0; i < n; ++i)
+            items[i] = new ForceItem();
+        return items;
+    }
+
+    private static ForceSimulator simulator(boolean mesh) {
+        ForceSimulator fsim = new ArrayForceSimulator();
+        fsim.addForce(mesh ? new ParticleMeshForce() : new NBodyForce());
+        fsim.addForce(new SpringForce());
+        fsim.addForce(new DragForce());
+        return fsim;
+    }
+
+    /**
+     * Normalized stress of sampled node pairs, comparing layout distances
+     * with grid distances after scaling the layout optimally.
+     */
+    private static double stress(ForceItem[] items, int side) {
+        Random rand = new Random(11);
+        int samples = 100000;
+        double[] d = new double[samples], D = new double[samples];
+        double dd = 0, DD = 0;
+        for (int k = 0; k < samples; ++k) {
+            int a = rand.nextInt(items.length), b = rand.nextInt(items.length);
+            double gx = a / side - b / side, gy = a % side - b % side;
+            double lx = items[a].location[0] - items[b].location[0];
+            double ly = items[a].location[1] - items[b].location[1];
+            d[k] = Math.sqrt(gx * gx + gy * gy);
+            D[k] = Math.sqrt(lx * lx + ly * ly);
+            dd += D[k] * d[k];
+            DD += D[k] * D[k];
+        }
+        double alpha = dd / DD, num = 0, den = 0;
+        for (int k = 0; k < samples; ++k) {
+            double r = alpha * D[k] - d[k];
+            num += r * r;
+            den += d[k] * d[k];
+        }
+        return num / den;
+    }
+
+}
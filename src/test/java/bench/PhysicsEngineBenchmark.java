@@ -0,0 +1,142 @@
+package bench;
+
+import java.util.Random;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.EulerIntegrator;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.NBodyForce;
+import prefux.util.force.SpringForce;
+import pv.util.ThreadPool;
+import pv.util.physics.Particle;
+import pv.util.physics.Simulation;
+
+/**
+ * Compares the physics engines on identical random graphs: the pv
+ * simulation run with its original particle functions over linked lists
+ * (see {@link PvListEngine}), the pv simulation run on the shared array
+ * engine, and the prefux ForceSimulator with its object and array backends. The prefux
+ * simulators use the same forces, but their own integrator, so only the
+ * time per step is comparable. For the pv simulations, the mean edge
+ * length after the run is printed as a check that both compute the same
+ * layout.
+ *
+ * Usage: PhysicsEngineBenchmark [nodeCount] [edgesPerNode] [ticks] [threads]
+ */
+public class PhysicsEngineBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int degree = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        ThreadPool.setThreadCount(threads);
+
+        int m = n * degree;
+        Random rand = new Random(42);
+        float[] x = new float[n], y = new float[n];
+        for (int i = 0; i < n; ++i) {
+            x[i] = 1000 * rand.nextFloat();
+            y[i] = 1000 * rand.nextFloat();
+        }
+        int[] src = new int[m], dst = new int[m];
+        for (int e = 0; e < m; ++e) {
+            // a random tree plus random extra edges, so the graph is
+            // connected
+            dst[e] = e < n - 1 ? e + 1 : rand.nextInt(n);
+            src[e] = e < n - 1 ? rand.nextInt(e + 1) : rand.nextInt(n);
+        }
+
+        System.out.println("Simulating " + n + " nodes and " + m
+                + " edges, " + ticks + " ticks, " + threads + " threads");
+        for (int i = 0; i < 2; ++i) { // the first pass is JIT warm-up
+            boolean print = i > 0;
+            runPv("pv lists", true, x, y, src, dst, ticks, print);
+            runPv("pv arrays", false, x, y, src, dst, ticks, print);
+            runPrefux("prefux items", new ForceSimulator(
+                    new EulerIntegrator()), 1, x, y, src, dst, ticks, print);
+            runPrefux("prefux arrays", new ArrayForceSimulator(
+                    new EulerIntegrator()), threads, x, y, src, dst, ticks,
+                    print);
+        }
+        ThreadPool.shutdown();
+    }
+
+    private static Simulation pvSimulation(float[] x, float[] y, int[] src,
+            int[] dst, Particle[] p) {
+        Simulation sim = new Simulation(0, 0, 0.1f, -10);
+        for (int i = 0; i < x.length; ++i)
+            p[i] = sim.addParticle(1, x[i], y[i]);
+        for (int e = 0; e < src.length; ++e)
+            sim.addSpring(p[src[e]], p[dst[e]], 10, 0.01f, 0.001f);
+        return sim;
+    }
+
+    private static void runPv(String name, boolean lists, float[] x,
+            float[] y, int[] src, int[] dst, int ticks, boolean print) {
+        Particle[] p = new Particle[x.length];
+        Simulation sim = pvSimulation(x, y, src, dst, p);
+
+        long t0 = System.nanoTime();
+        if (lists) {
+            // the original engine, on the same particles and springs
+            PvListEngine engine = new PvListEngine(sim, 0, 0, 0.1f, -10);
+            for (int t = 0; t < ticks; ++t)
+                engine.tick(1, 1);
+        } else {
+            for (int t = 0; t < ticks; ++t)
+                sim.tick(1, 1);
+        }
+        long t = System.nanoTime() - t0;
+
+        if (print) {
+            double len = 0;
+            for (int e = 0; e < src.length; ++e) {
+                double dx = p[src[e]].x - p[dst[e]].x;
+                double dy = p[src[e]].y - p[dst[e]].y;
+                len += Math.sqrt(dx * dx + dy * dy);
+            }
+            System.out.printf("%-14s %10.2f ms/tick  mean edge %.2f%n", name,
+                    t / 1e6 / ticks, len / src.length);
+        }
+    }
+
+    private static void runPrefux(String name, ForceSimulator fsim,
+            int threads, float[] x, float[] y, int[] src, int[] dst,
+            int ticks, boolean print) {
+        NBodyForce nbody = new NBodyForce(-10, 500, 0.9);
+        nbody.setParameter(NBodyForce.NEAR_DISTANCE, 2);
+        nbody.setParallelism(threads);
+        SpringForce springs = new SpringForce();
+        springs.setParallelism(threads);
+        fsim.addForce(nbody);
+        fsim.addForce(springs);
+        fsim.addForce(new DragForce());
+
+        ForceItem[] items = new ForceItem[x.length];
+        for (int i = 0; i < x.length; ++i) {
+            items[i] = new ForceItem();
+            items[i].location[0] = x[i];
+            items[i].location[1] = y[i];
+            fsim.addItem(items[i]);
+        }
+        for (int e = 0; e < src.length; ++e)
+            fsim.addSpring(items[src[e]], items[dst[e]], 0.01, 10);
+
+        long t0 = System.nanoTime();
+        for (int t = 0; t < ticks; ++t)
+            fsim.runSimulator(1);
+        long t = System.nanoTime() - t0;
+        if (print) {
+            System.out.printf("%-14s %10.2f ms/tick%n", name,
+                    t / 1e6 / ticks);
+        }
+        nbody.setParallelism(1);
+        springs.setParallelism(1);
+        fsim.clear();
+    }
+
+}
@@ -0,0 +1,552 @@
+package bench;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import pv.util.ThreadPool;
+import pv.util.physics.Particle;
+import pv.util.physics.Simulation;
+import pv.util.physics.Spring;
+
+/**
+ * The original engine of the pv Simulation, kept for comparison with the
+ * array-based force engine it now runs on. Each tick runs particle
+ * functions over the particle and spring lists of a simulation, split into
+ * one task per thread of the pv ThreadPool, and computes the n-body forces
+ * with a Barnes-Hut quadtree of linked nodes. Only the public state of the
+ * particles and springs is used, so the simulation can be ticked by either
+ * engine.
+ */
+public class PvListEngine {
+
+    private final Simulation sim;
+    private final ParticleInit init;
+    private final ParticleEval eval = new ParticleEval();
+    private final SpringForce spring = new SpringForce();
+    private final NBodyForce nbody;
+
+    private final List<ParticleTask> ptasks = new ArrayList<ParticleTask>();
+    private final List<SpringTask> stasks = new ArrayList<SpringTask>();
+
+    /**
+     * Creates an engine for the given simulation.
+     * @param sim the simulation whose particles and springs are advanced
+     * @param gx the gravitational acceleration along the x dimension
+     * @param gy the gravitational acceleration along the y dimension
+     * @param drag the drag (viscosity) co-efficient
+     * @param attraction the gravitational constant of the n-body force,
+     *  negative values produce a repulsive force
+     */
+    public PvListEngine(Simulation sim, float gx, float gy, float drag,
+            float attraction) {
+        this.sim = sim;
+        init = new ParticleInit(gx, gy, drag);
+        nbody = new NBodyForce(attraction);
+    }
+
+    /**
+     * Advances the simulation for the specified time interval, as
+     * Simulation.tick did before it ran on the array engine. Particles and
+     * springs must not be added or removed while ticking.
+     * @param dt the time interval to step the simulation
+     * @param iter the number of iterations
+     */
+    public void tick(float dt, int iter) {
+        init.dt = dt;
+        init.dt1 = dt / 2;
+        init.dt2 = dt * dt / 2;
+        eval.dt1 = init.dt1;
+        Rectangle2D b = sim.bounds();
+        eval.bounds = (b != null);
+        if (eval.bounds) {
+            eval.minX = (float) b.getMinX();
+            eval.maxX = (float) b.getMaxX();
+            eval.minY = (float) b.getMinY();
+            eval.maxY = (float) b.getMaxY();
+        }
+
+        initTasks();
+        while (--iter >= 0) {
+            run(init);
+            nbody.run(this);
+            run(spring);
+            spring.finish(sim.springs());
+            run(eval);
+        }
+    }
+
+    // -- Tasks and Functions ------------------------------------------------
+
+    private void initTasks() {
+        int nt = ThreadPool.getThreadCount();
+        // set task counts
+        while (ptasks.size() < nt) { ptasks.add(new ParticleTask()); }
+        for (int i = ptasks.size(); --i >= nt;) { ptasks.remove(i); }
+        while (stasks.size() < nt) { stasks.add(new SpringTask()); }
+        for (int i = stasks.size(); --i >= nt;) { stasks.remove(i); }
+
+        // init particle tasks
+        int pcount = 0, scount = 0;
+        for (Particle p = sim.particles(); p != null; p = p.next)
+            ++pcount;
+        for (Spring s = sim.springs(); s != null; s = s.next)
+            ++scount;
+        for (ParticleTask t : ptasks)
+            t.start = t.end = null;
+        for (SpringTask t : stasks)
+            t.start = t.end = null;
+
+        int pstep = (int) Math.ceil(pcount / (double) nt);
+        Particle p = sim.particles();
+        for (int i = 0, j = 0; i < pcount; ++i) {
+            if (i % pstep == 0) {
+                ptasks.get(j).start = p;
+                if (j > 0) ptasks.get(j - 1).end = p;
+                j += 1;
+            }
+            p = p.next;
+        }
+
+        // init spring tasks
+        int sstep = (int) Math.ceil(scount / (double) nt);
+        Spring s = sim.springs();
+        for (int i = 0, j = 0; i < scount; ++i) {
+            if (i % sstep == 0) {
+                stasks.get(j).start = s;
+                if (j > 0) stasks.get(j - 1).end = s;
+                j += 1;
+            }
+            s = s.next;
+        }
+    }
+
+    private void run(ParticleFunction pf) {
+        for (int i = 0; i < ptasks.size(); ++i)
+            ptasks.get(i).function = pf;
+        try {
+            ThreadPool.getThreadPool().invokeAll(ptasks);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run(SpringFunction sf) {
+        for (int i = 0; i < stasks.size(); ++i)
+            stasks.get(i).function = sf;
+        try {
+            ThreadPool.getThreadPool().invokeAll(stasks);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    interface ParticleFunction {
+        void run(Particle start, Particle end);
+    }
+
+    interface SpringFunction {
+        void run(Spring start, Spring end);
+    }
+
+    static class ParticleTask implements Callable<ParticleTask> {
+        ParticleFunction function;
+        Particle start, end;
+
+        public ParticleTask call() throws Exception {
+            function.run(start, end);
+            return this;
+        }
+    }
+
+    static class SpringTask implements Callable<SpringTask> {
+        SpringFunction function;
+        Spring start, end;
+
+        public SpringTask call() throws Exception {
+            function.run(start, end);
+            return this;
+        }
+    }
+
+    static class ParticleInit implements ParticleFunction {
+        float dt, dc, gx, gy;
+        float dt1, dt2;
+
+        ParticleInit(float gx, float gy, float drag) {
+            this.gx = gx;
+            this.gy = gy;
+            dc = drag;
+        }
+
+        public void run(Particle start, Particle end) {
+            float ax, ay;
+
+            for (Particle p = start; p != end; p = p.next) {
+                // update particle age
+                p.age += dt;
+
+                // update particles using Verlet integration
+                if (p.fixed) {
+                    p.vx = p.vy = 0;
+                } else {
+                    ax = p.fx / p.mass;
+                    ay = p.fy / p.mass;
+                    p.x += p.vx * dt + ax * dt2;
+                    p.y += p.vy * dt + ay * dt2;
+                    p._vx = p.vx + ax * dt1;
+                    p._vy = p.vy + ay * dt1;
+                }
+
+                // apply gravity force and drag force
+                p.fx = (gx * p.mass) - (dc * p.vx);
+                p.fy = (gy * p.mass) - (dc * p.vy);
+            }
+        }
+    }
+
+    static class ParticleEval implements ParticleFunction {
+        float dt1, minX, minY, maxX, maxY;
+        boolean bounds;
+
+        public void run(Particle start, Particle end) {
+            for (Particle p = start; p != end; p = p.next) {
+                if (!p.fixed) {
+                    float ax = dt1 / p.mass;
+                    p.vx = p._vx + p.fx * ax;
+                    p.vy = p._vy + p.fy * ax;
+                }
+                if (bounds) {
+                    if (p.x < minX) {
+                        p.x = minX;
+                        p.vx = 0;
+                    } else if (p.x > maxX) {
+                        p.x = maxX;
+                        p.vx = 0;
+                    }
+                    if (p.y < minY) {
+                        p.y = minY;
+                        p.vy = 0;
+                    } else if (p.y > maxY) {
+                        p.y = maxY;
+                        p.vy = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    static class SpringForce implements SpringFunction {
+        public void run(Spring start, Spring end) {
+            Particle p1, p2;
+            float dx, dy, dn, dd, k;
+
+            for (Spring s = start; s != end; s = s.next) {
+                p1 = s.p1;
+                p2 = s.p2;
+                dx = p1.x - p2.x;
+                dy = p1.y - p2.y;
+
+                dn = dx * dx + dy * dy;
+                if (dn > 0) {
+                    float half = 0.5f * dn;
+                    int i = Float.floatToIntBits(dn);
+                    i = 0x5f3759df - (i >> 1);
+                    dn = Float.intBitsToFloat(i);
+                    dn = dn * (1.5f - half * dn * dn);
+                    dd = dn;
+                    dn = 1 / dn;
+                } else {
+                    dd = 1;
+                }
+
+                k = s.tension * (dn - s.restLength);
+                k += s.damping * (dx * (p1.vx - p2.vx) + dy * (p1.vy - p2.vy))
+                        * dd;
+                k *= dd;
+
+                // provide a random direction when needed
+                if (dn == 0) {
+                    dx = 0.01f * (float) (0.5 - Math.random());
+                    dy = 0.01f * (float) (0.5 - Math.random());
+                }
+                s.fx = -k * dx;
+                s.fy = -k * dy;
+            }
+        }
+
+        void finish(Spring s) {
+            for (; s != null; s = s.next) {
+                s.p1.fx += s.fx;
+                s.p1.fy += s.fy;
+                s.p2.fx -= s.fx;
+                s.p2.fy -= s.fy;
+            }
+        }
+    }
+
+    /**
+     * Computes attractive or repulsive forces between all particles, using
+     * the Barnes-Hut approximation over a quadtree of linked nodes.
+     */
+    static class NBodyForce {
+
+        private float g; // gravitational constant
+        private float t; // barnes-hut theta
+        private float max, max2; // max effective distance
+        private float min, min2; // min effective distance
+        private float eps; // epsilon for determining 'same' location
+
+        private float x1, y1, x2, y2;
+        private QuadTreeNode root = QuadTreeNode.node();
+
+        private final ParticleFunction forces = new ParticleFunction() {
+            public void run(Particle start, Particle end) {
+                for (Particle p = start; p != end; p = p.next) {
+                    forces(p, root, x1, y1, x2, y2);
+                }
+            }
+        };
+
+        NBodyForce(float g) {
+            this.g = g;
+            max = 500;
+            max2 = max * max;
+            min = 2;
+            min2 = min * min;
+            eps = 0.01f;
+            t = 0.9f;
+        }
+
+        void run(PvListEngine engine) {
+            if (g == 0) return;
+
+            // clear the quadtree
+            clear(root);
+            root = QuadTreeNode.node();
+            bounds(engine.sim);
+
+            // populate the tree
+            for (Particle p = engine.sim.particles(); p != null; p = p.next) {
+                insert(p, root, x1, y1, x2, y2);
+            }
+
+            // traverse tree to compute mass
+            accumulate(root);
+
+            // calculate forces on each particle
+            engine.run(forces);
+        }
+
+        private void accumulate(QuadTreeNode n) {
+            float xc = 0, yc = 0;
+            n.mass = 0;
+
+            // accumulate childrens' mass
+            if (n.hasChildren) {
+                QuadTreeNode c;
+                if ((c = n.c1) != null) {
+                    accumulate(c);
+                    n.mass += c.mass;
+                    xc += c.mass * c.cx;
+                    yc += c.mass * c.cy;
+                }
+                if ((c = n.c2) != null) {
+                    accumulate(c);
+                    n.mass += c.mass;
+                    xc += c.mass * c.cx;
+                    yc += c.mass * c.cy;
+                }
+                if ((c = n.c3) != null) {
+                    accumulate(c);
+                    n.mass += c.mass;
+                    xc += c.mass * c.cx;
+                    yc += c.mass * c.cy;
+                }
+                if ((c = n.c4) != null) {
+                    accumulate(c);
+                    n.mass += c.mass;
+                    xc += c.mass * c.cx;
+                    yc += c.mass * c.cy;
+                }
+            }
+
+            // accumulate own mass
+            if (n.p != null) {
+                n.mass += n.p.mass;
+                xc += n.p.mass * n.p.x;
+                yc += n.p.mass * n.p.y;
+            }
+            n.cx = xc / n.mass;
+            n.cy = yc / n.mass;
+        }
+
+        private void forces(Particle p, QuadTreeNode n, float x1, float y1,
+                float x2, float y2) {
+            float f = 0;
+            float dx = n.cx - p.x;
+            float dy = n.cy - p.y;
+            float dd = dx * dx + dy * dy, dn;
+
+            // fast inverse square root
+            float half = 0.5f * dd;
+            int i = Float.floatToIntBits(dd);
+            i = 0x5f3759df - (i >> 1);
+            dn = Float.intBitsToFloat(i);
+            dn = dn * (1.5f - half * dn * dn);
+
+            boolean far = max > 0 && dd > max2;
+            if (dd == 0) { // add direction when needed
+                dx = eps * (float) (0.5 - Math.random());
+                dy = eps * (float) (0.5 - Math.random());
+            }
+
+            // the Barnes-Hut approximation criteria is if the ratio of the
+            // size of the quadtree box to the distance between the point and
+            // the box's center of mass is beneath some threshold theta.
+            if ((!n.hasChildren && n.p != p) || ((x2 - x1) * dn < t)) {
+                if (far) return;
+                // either only 1 particle or we meet criteria
+                // for Barnes-Hut approximation, so calc force
+                dn = dd < min2 ? (1 / min) : dn;
+                f = g * p.mass * n.mass * (dn * dn * dn);
+                p.fx += f * dx;
+                p.fy += f * dy;
+            } else if (n.hasChildren) {
+                // recurse for more accurate calculation
+                float sx = (x1 + x2) / 2f;
+                float sy = (y1 + y2) / 2f;
+
+                if (n.c1 != null) forces(p, n.c1, x1, y1, sx, sy);
+                if (n.c2 != null) forces(p, n.c2, sx, y1, x2, sy);
+                if (n.c3 != null) forces(p, n.c3, x1, sy, sx, y2);
+                if (n.c4 != null) forces(p, n.c4, sx, sy, x2, y2);
+
+                if (far) return;
+                if (n.p != null && n.p != p) {
+                    dn = dd < min2 ? (1 / min) : dn;
+                    f = g * p.mass * n.p.mass * (dn * dn * dn);
+                    p.fx += f * dx;
+                    p.fy += f * dy;
+                }
+            }
+        }
+
+        private void insert(Particle p, QuadTreeNode n, float x1, float y1,
+                float x2, float y2) {
+            // ignore particles with NaN coordinates
+            if (Float.isNaN(p.x) || Float.isNaN(p.y)) return;
+
+            // by construction, each leaf will contain either 1 or 0 particles
+            if (n.hasChildren) {
+                insertHelper(p, n, x1, y1, x2, y2);
+            } else if (n.p != null) {
+                if (isSameLocation(n.p, p)) {
+                    insertHelper(p, n, x1, y1, x2, y2);
+                } else {
+                    Particle v = n.p;
+                    n.p = null;
+                    insertHelper(v, n, x1, y1, x2, y2);
+                    insertHelper(p, n, x1, y1, x2, y2);
+                }
+            } else {
+                n.p = p;
+            }
+        }
+
+        private void insertHelper(Particle p, QuadTreeNode n, float x1,
+                float y1, float x2, float y2) {
+            // determine split
+            float sx = (x1 + x2) / 2f;
+            float sy = (y1 + y2) / 2f;
+            int c = (p.x >= sx ? 1 : 0) + (p.y >= sy ? 2 : 0);
+
+            // update bounds
+            if (c == 1 || c == 3) x1 = sx; else x2 = sx;
+            if (c > 1) y1 = sy; else y2 = sy;
+
+            // update children
+            QuadTreeNode cn;
+            if (c == 0) {
+                if (n.c1 == null) n.c1 = QuadTreeNode.node();
+                cn = n.c1;
+            } else if (c == 1) {
+                if (n.c2 == null) n.c2 = QuadTreeNode.node();
+                cn = n.c2;
+            } else if (c == 2) {
+                if (n.c3 == null) n.c3 = QuadTreeNode.node();
+                cn = n.c3;
+            } else {
+                if (n.c4 == null) n.c4 = QuadTreeNode.node();
+                cn = n.c4;
+            }
+            n.hasChildren = true;
+            insert(p, cn, x1, y1, x2, y2);
+        }
+
+        private void clear(QuadTreeNode n) {
+            if (n.c1 != null) clear(n.c1);
+            if (n.c2 != null) clear(n.c2);
+            if (n.c3 != null) clear(n.c3);
+            if (n.c4 != null) clear(n.c4);
+            QuadTreeNode.reclaim(n);
+        }
+
+        private void bounds(Simulation sim) {
+            x1 = y1 = Float.MAX_VALUE;
+            x2 = y2 = Float.MIN_VALUE;
+
+            // get bounding box
+            for (Particle p = sim.particles(); p != null; p = p.next) {
+                if (p.x < x1) x1 = p.x;
+                if (p.y < y1) y1 = p.y;
+                if (p.x > x2) x2 = p.x;
+                if (p.y > y2) y2 = p.y;
+            }
+
+            // square the box
+            float dx = x2 - x1;
+            float dy = y2 - y1;
+            if (dx > dy) {
+                y2 = y1 + dx;
+            } else {
+                x2 = x1 + dy;
+            }
+        }
+
+        private boolean isSameLocation(Particle p1, Particle p2) {
+            return (Math.abs(p1.x - p2.x) < eps
+                    && Math.abs(p1.y - p2.y) < eps);
+        }
+    }
+
+    static class QuadTreeNode {
+        float mass = 0;
+        float cx = 0;
+        float cy = 0;
+        Particle p = null;
+        QuadTreeNode c1 = null;
+        QuadTreeNode c2 = null;
+        QuadTreeNode c3 = null;
+        QuadTreeNode c4 = null;
+        boolean hasChildren = false;
+
+        private static final ArrayList<QuadTreeNode> nodes =
+                new ArrayList<QuadTreeNode>();
+
+        static QuadTreeNode node() {
+            int len = nodes.size();
+            return len > 0 ? nodes.remove(len - 1) : new QuadTreeNode();
+        }
+
+        static void reclaim(QuadTreeNode n) {
+            n.mass = n.cx = n.cy = 0;
+            n.p = null;
+            n.hasChildren = false;
+            n.c1 = n.c2 = n.c3 = n.c4 = null;
+            nodes.add(n);
+        }
+    }
+
+}
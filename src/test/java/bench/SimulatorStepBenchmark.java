@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.NBodyForce;
+import prefux.util.force.SpringForce;
+
+/**
+ * JMH benchmark of a single timestep of the object based ForceSimulator
+ * and the structure-of-arrays ArrayForceSimulator, on a random tree of
+ * particles with the default n-body, spring and drag forces. Each step
+ * also publishes the positions to the ForceItems, as a layout does.
+ *
+ * Usage: SimulatorStepBenchmark, or any JMH runner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatorStepBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int particles;
+
+    @Param({ "objects", "arrays" })
+    public String backend;
+
+    private ForceSimulator fsim;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fsim = "arrays".equals(backend) ? new ArrayForceSimulator()
+                : new ForceSimulator();
+        fsim.addForce(new NBodyForce());
+        fsim.addForce(new SpringForce());
+        fsim.addForce(new DragForce());
+
+        Random rand = new Random(42);
+        ForceItem[] items = new ForceItem[particles];
+        for (int i = 0; i < particles; ++i) {
+            items[i] = new ForceItem();
+            items[i].location[0] = 1000 * rand.nextDouble();
+            items[i].location[1] = 1000 * rand.nextDouble();
+            fsim.addItem(items[i]);
+            if (i > 0)
+                fsim.addSpring(items[rand.nextInt(i)], items[i]);
+        }
+    }
+
+    @Benchmark
+    public ForceSimulator step() {
+        fsim.runSimulator(50);
+        fsim.syncItems();
+        return fsim;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SimulatorStepBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.util.Random;
+
+import prefux.util.force.ArrayForceSimulator;
+import prefux.util.force.DragForce;
+import prefux.util.force.ForceItem;
+import prefux.util.force.ForceSimulator;
+import prefux.util.force.SpringForce;
+
+/**
+ * Measures the cost of the spring forces on a random graph with many more
+ * springs than particles, computed sequentially and in parallel by an
+ * ArrayForceSimulator. The parallel evaluation gathers the spring forces
+ * into each particle in the sequential order, so all runs must produce
+ * identical positions.
+ *
+ * Usage: SpringForceBenchmark [particleCount] [springsPerParticle] [steps]
+ * [threads]
+ */
+public class SpringForceBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int degree = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Simulating " + n + " particles and " + n * degree
+                + " springs, " + steps + " steps per round");
+        for (int i = 0; i < 2; ++i) { // the first pass is JIT warm-up
+            boolean print = i > 0;
+            double s = run("sequential", 1, false, n, degree, steps, print);
+            double p = run("parallel " + threads, threads, false, n, degree,
+                    steps, print);
+            double d = run("determ. " + threads, threads, true, n, degree,
+                    steps, print);
+            if (print && (Double.doubleToLongBits(s) != Double
+                    .doubleToLongBits(p)
+                    || Double.doubleToLongBits(s) != Double
+                            .doubleToLongBits(d)))
+                System.out.println("parallel results differ!");
+        }
+    }
+
+    private static double run(String name, int threads,
+            boolean deterministic, int n, int degree, int steps,
+            boolean print) {
+        ForceSimulator fsim = new ArrayForceSimulator();
+        SpringForce springs = new SpringForce();
+        springs.setParallelism(threads);
+        springs.setDeterministic(deterministic);
+        fsim.addForce(springs);
+        fsim.addForce(new DragForce());
+
+        Random rand = new Random(42);
+        ForceItem[] items = new ForceItem[n];
+        for (int i = 0; i < n; ++i) {
+            items[i] = new ForceItem();
+            items[i].location[0] = 1000 * rand.nextDouble();
+            items[i].location[1] = 1000 * rand.nextDouble();
+            fsim.addItem(items[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            for (int k = 0; k < degree; ++k)
+                fsim.addSpring(items[i], items[rand.nextInt(n)]);
+        }
+
+        long t0 = System.nanoTime();
+        for (int s = 0; s < steps; ++s)
+            fsim.runSimulator(50);
+        long t = System.nanoTime() - t0;
+        fsim.syncItems();
+
+        double check = 0;
+        for (ForceItem item : items)
+            check += item.location[0] + item.location[1];
+        if (print) {
+            System.out.printf("%-12s %10.1f ms/step  (%.9f)%n", name,
+                    t / 1e6 / steps, check / n);
+        }
+        springs.setParallelism(1);
+        fsim.clear();
+        return check;
+    }
+
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+import prefux.data.tuple.TableNode;
+import prefux.data.tuple.TupleFactory;
+import prefux.data.tuple.TupleManager;
+
+/**
+ * Measures tuple materialization throughput of the different ways a
+ * TupleManager can create tuples: reflective instantiation, the default
+ * method handle based factory, a constructor reference, and batch
+ * pre-instantiation of a row range.
+ *
+ * Usage: TupleBenchmark [nodeCount] [rounds]
+ */
+public class TupleBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Graph g = new Graph();
+        for (int i = 0; i < n; ++i)
+            g.addNodeRow();
+        Table nodes = g.getNodeTable();
+
+        TupleFactory reflective = () -> {
+            try {
+                return TableNode.class.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        TupleFactory handle = TupleFactory.forType(TableNode.class);
+        TupleFactory ctor = TableNode::new;
+
+        System.out.println("Materializing " + n + " node tuples, best of "
+                + rounds + " rounds");
+        for (int i = 0; i < 2; ++i) { // the first pass is JIT warm-up
+            boolean print = i > 0;
+            run("reflection", nodes, g, reflective, false, rounds, print);
+            run("method handle", nodes, g, handle, false, rounds, print);
+            run("constructor ref", nodes, g, ctor, false, rounds, print);
+            run("batch instantiate", nodes, g, ctor, true, rounds, print);
+        }
+    }
+
+    private static void run(String name, Table nodes, Graph g,
+            TupleFactory factory, boolean batch, int rounds, boolean print) {
+        int n = nodes.getRowCount();
+        long best = Long.MAX_VALUE;
+        long check = 0;
+        for (int r = 0; r < rounds; ++r) {
+            TupleManager tm = new TupleManager(nodes, g, TableNode.class,
+                    factory);
+            long t0 = System.nanoTime();
+            if (batch)
+                tm.instantiate(0, n);
+            for (int row = 0; row < n; ++row)
+                check += tm.getTuple(row).getRow();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        if (print) {
+            System.out.printf("%-18s %8.1f ms  %10.0f tuples/s  (%d)%n", name,
+                    best / 1e6, n / (best / 1e9), check);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package prefux.action.layout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javafx.geometry.Rectangle2D;
+
+import prefux.Constants;
+import prefux.Visualization;
+import prefux.data.Table;
+import prefux.visual.VisualItem;
+import prefux.visual.VisualTable;
+
+/**
+ * Checks when a CachedLayout reuses stored results, and which positions it
+ * restores.
+ */
+public class CachedLayoutTest {
+
+    private static final int ROWS = 100;
+
+    private Visualization vis;
+    private VisualTable table;
+
+    @Before
+    public void setUp() {
+        Table data = new Table();
+        data.addColumn("value", int.class);
+        data.addRows(ROWS);
+        vis = new Visualization();
+        table = vis.addTable("data", data);
+    }
+
+    @Test
+    public void testHitRestoresPositions() {
+        RowLayout layout = new RowLayout(10, true);
+        CachedLayout cached = cached(layout);
+        cached.run(1.0);
+        assertEquals(1, layout.runs);
+
+        // move the items, as another layout would
+        for (int r = 0; r < ROWS; ++r)
+            setX(r, -r);
+        cached.run(1.0);
+        assertEquals(1, layout.runs);
+        for (int r = 0; r < ROWS; ++r) {
+            assertEquals(10.0 * r, table.getDouble(r, VisualItem.X), 0);
+            assertEquals(10.0 * r, table.getDouble(r, VisualItem.ENDX), 0);
+            // animations start where the items were
+            assertEquals(-r, table.getDouble(r, VisualItem.STARTX), 0);
+        }
+    }
+
+    @Test
+    public void testParameterChangeMisses() {
+        RowLayout layout = new RowLayout(10, true);
+        CachedLayout cached = cached(layout);
+        cached.run(1.0);
+        layout.spacing = 20;
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+        assertEquals(20.0, table.getDouble(1, VisualItem.X), 0);
+
+        layout.spacing = 10;
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+        assertEquals(10.0, table.getDouble(1, VisualItem.X), 0);
+    }
+
+    @Test
+    public void testDataChangeClearsCache() {
+        RowLayout layout = new RowLayout(10, true);
+        CachedLayout cached = cached(layout);
+        cached.run(1.0);
+        table.setInt(0, "value", 42);
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+    }
+
+    @Test
+    public void testLayoutWithoutKeyIsNotCached() {
+        RowLayout layout = new RowLayout(10, false);
+        CachedLayout cached = cached(layout);
+        cached.run(1.0);
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+    }
+
+    @Test
+    public void testMaxEntries() {
+        RowLayout layout = new RowLayout(10, true);
+        CachedLayout cached = cached(layout);
+        cached.setMaxEntries(1);
+        cached.run(1.0);
+        layout.spacing = 20;
+        cached.run(1.0);
+        layout.spacing = 10;
+        cached.run(1.0);
+        assertEquals(3, layout.runs);
+    }
+
+    @Test
+    public void testGridSizesRestoreVisibility() {
+        GridLayout grid = new GridLayout("data", 2, 2);
+        grid.setLayoutBounds(new Rectangle2D(0, 0, 100, 100));
+        CachedLayout cached = cached(grid);
+        cached.run(1.0);
+        assertEquals(4, visibleCount());
+
+        grid.setNumRows(10);
+        grid.setNumCols(10);
+        cached.run(1.0);
+        assertEquals(100, visibleCount());
+
+        // a cache hit, which must hide the items outside the small grid
+        grid.setNumRows(2);
+        grid.setNumCols(2);
+        cached.run(1.0);
+        assertEquals(4, visibleCount());
+        assertEquals(100.0, table.getDouble(3, VisualItem.X), 0);
+    }
+
+    @Test
+    public void testAxisRestoresOnlyItsAxis() {
+        for (int r = 0; r < ROWS; ++r)
+            table.setInt(r, "value", r);
+        AxisLayout axis = new AxisLayout("data", "value", Constants.X_AXIS);
+        axis.setLayoutBounds(new Rectangle2D(0, 0, 99, 99));
+        CachedLayout cached = cached(axis);
+        cached.run(1.0);
+        Object linear = axis.getParameterKey();
+        axis.setScale(Constants.SQRT_SCALE);
+        assertFalse(linear.equals(axis.getParameterKey()));
+        cached.run(1.0);
+
+        // another layout sets the y-coordinates, which must be kept
+        for (int r = 0; r < ROWS; ++r)
+            table.setDouble(r, VisualItem.Y, 7);
+        axis.setScale(Constants.LINEAR_SCALE);
+        assertEquals(linear, axis.getParameterKey());
+        cached.run(1.0);
+        for (int r = 0; r < ROWS; ++r) {
+            assertEquals(r, table.getDouble(r, VisualItem.X), 1e-9);
+            assertEquals(7, table.getDouble(r, VisualItem.Y), 0);
+        }
+    }
+
+    @Test
+    public void testDispose() {
+        RowLayout layout = new RowLayout(10, true);
+        CachedLayout cached = cached(layout);
+        cached.run(1.0);
+        cached.dispose();
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+        cached.run(1.0);
+        assertEquals(2, layout.runs);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private int visibleCount() {
+        int n = 0;
+        for (int r = 0; r < ROWS; ++r)
+            if (table.isVisible(r))
+                ++n;
+        return n;
+    }
+
+    private CachedLayout cached(Layout layout) {
+        CachedLayout cached = new CachedLayout(layout);
+        cached.setVisualization(vis);
+        return cached;
+    }
+
+    private void setX(int row, double x) {
+        table.setDouble(row, VisualItem.X, x);
+        table.setDouble(row, VisualItem.ENDX, x);
+    }
+
+    /**
+     * Places the rows of a table on a line, counting its runs.
+     */
+    private static class RowLayout extends Layout {
+        double spacing;
+        int runs = 0;
+        private final boolean keyed;
+
+        RowLayout(double spacing, boolean keyed) {
+            super("data");
+            this.spacing = spacing;
+            this.keyed = keyed;
+        }
+
+        public void run(double frac) {
+            ++runs;
+            VisualTable t = (VisualTable) m_vis.getGroup(m_group);
+            for (int r = 0; r < t.getRowCount(); ++r) {
+                t.setDouble(r, VisualItem.STARTX,
+                        t.getDouble(r, VisualItem.X));
+                t.setDouble(r, VisualItem.X, spacing * r);
+                t.setDouble(r, VisualItem.ENDX, spacing * r);
+            }
+        }
+
+        public Object getParameterKey() {
+            if (!keyed)
+                return super.getParameterKey();
+            return Arrays.asList(getBaseParameterKey(), spacing);
+        }
+    }
+
+}
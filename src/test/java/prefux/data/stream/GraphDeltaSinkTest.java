@@ -0,0 +1,129 @@
+package prefux.data.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import prefux.data.Graph;
+import prefux.data.Table;
+
+/**
+ * Checks the sliding edge window of the GraphDeltaSink.
+ */
+public class GraphDeltaSinkTest {
+
+    private Graph graph;
+    private GraphDeltaSink sink;
+
+    @Before
+    public void setUp() {
+        Table nodes = new Table();
+        nodes.addColumn("id", int.class);
+        graph = new Graph(nodes, true, "id", Graph.DEFAULT_SOURCE_KEY,
+                Graph.DEFAULT_TARGET_KEY);
+        sink = new GraphDeltaSink(graph);
+    }
+
+    @Test
+    public void testMaxEdgeCount() {
+        sink.setMaxEdgeCount(3);
+        GraphDelta delta = new GraphDelta().addEdge(0, 1).addEdge(1, 2)
+                .addEdge(2, 3).addEdge(3, 4);
+        sink.apply(delta);
+
+        assertEquals(3, graph.getEdgeCount());
+        assertEquals(3, sink.getWindowedEdgeCount());
+        assertEquals(5, graph.getNodeCount());
+        assertEquals(-1, edge(0, 1));
+        assertTrue(edge(1, 2) >= 0);
+        assertTrue(edge(3, 4) >= 0);
+        assertEquals(4, delta.getAddedEdges().length);
+        assertEquals(1, delta.getRemovedEdges().length);
+    }
+
+    @Test
+    public void testTimeWindow() {
+        sink.setTimeWindow(100);
+        GraphDelta delta = new GraphDelta().addEdge(0, 1, 0)
+                .addEdge(1, 2, 50).addEdge(2, 3, 120);
+        sink.apply(delta);
+
+        // the edge at 0 is older than 120 - 100
+        assertEquals(2, graph.getEdgeCount());
+        assertEquals(-1, edge(0, 1));
+        assertEquals(1, delta.getRemovedEdges().length);
+
+        final GraphDelta[] applied = new GraphDelta[1];
+        sink.addDeltaListener(new GraphDeltaListener() {
+            public void deltaApplied(GraphDeltaSink s, GraphDelta d) {
+                applied[0] = d;
+            }
+        });
+        int evicted = edge(1, 2);
+        sink.advanceTime(200);
+        assertEquals(1, graph.getEdgeCount());
+        assertEquals(1, sink.getWindowedEdgeCount());
+        assertTrue(edge(2, 3) >= 0);
+        assertArrayEquals(new int[] { evicted },
+                applied[0].getRemovedEdges());
+
+        // advancing time without evictions notifies nobody
+        applied[0] = null;
+        sink.advanceTime(210);
+        assertEquals(null, applied[0]);
+    }
+
+    @Test
+    public void testRemoveIsolatedNodes() {
+        sink.setMaxEdgeCount(1);
+        sink.setRemoveIsolatedNodes(true);
+        sink.apply(new GraphDelta().addEdge(1, 2).addEdge(2, 3));
+
+        // node 1 lost its only edge, node 2 is still connected to node 3
+        assertEquals(2, graph.getNodeCount());
+        assertEquals(-1, graph.getNodeIndex(1));
+        assertTrue(edge(2, 3) >= 0);
+    }
+
+    @Test
+    public void testRemovedEdgesLeaveTheWindow() {
+        sink.setMaxEdgeCount(2);
+        sink.apply(new GraphDelta().addEdge(1, 2).addEdge(2, 3));
+        sink.apply(new GraphDelta().removeEdge(1, 2));
+        assertEquals(1, sink.getWindowedEdgeCount());
+
+        // the row of the removed edge may be reused by a new edge, which
+        // must not be evicted in its place
+        sink.apply(new GraphDelta().addEdge(3, 4).addEdge(4, 5));
+        assertEquals(2, graph.getEdgeCount());
+        assertEquals(2, sink.getWindowedEdgeCount());
+        assertEquals(-1, edge(2, 3));
+        assertTrue(edge(3, 4) >= 0);
+        assertTrue(edge(4, 5) >= 0);
+    }
+
+    @Test
+    public void testEdgesOutsideWindowAreKept() {
+        sink.apply(new GraphDelta().addEdge(0, 1));
+        sink.setMaxEdgeCount(1);
+        sink.apply(new GraphDelta().addEdge(1, 2).addEdge(2, 3));
+
+        // the first edge was added while no window was set
+        assertEquals(2, graph.getEdgeCount());
+        assertTrue(edge(0, 1) >= 0);
+        assertEquals(-1, edge(1, 2));
+    }
+
+    // ------------------------------------------------------------------------
+
+    private int edge(int source, int target) {
+        int s = graph.getNodeIndex(source), t = graph.getNodeIndex(target);
+        if (s < 0 || t < 0)
+            return -1;
+        return graph.getEdge(s, t);
+    }
+
+}
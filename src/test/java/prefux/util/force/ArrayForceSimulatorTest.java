@@ -0,0 +1,198 @@
+package prefux.util.force;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the ArrayForceSimulator computes the same simulation as the
+ * object based ForceSimulator, that deterministic simulations are
+ * bit-for-bit reproducible, and that the particle arrays are synchronized
+ * with the ForceItems.
+ */
+public class ArrayForceSimulatorTest {
+
+    private static final int N = 300;
+    private static final int STEPS = 20;
+
+    @Test
+    public void testMatchesForceSimulator() {
+        ForceItem[] objects = items(N);
+        ForceItem[] arrays = items(N);
+        run(simulator(new ForceSimulator(), 1), objects, STEPS);
+        run(simulator(new ArrayForceSimulator(), 1), arrays, STEPS);
+        for (int i = 0; i < N; ++i) {
+            assertEquals(objects[i].location[0], arrays[i].location[0], 1e-6);
+            assertEquals(objects[i].location[1], arrays[i].location[1], 1e-6);
+            assertEquals(objects[i].velocity[0], arrays[i].velocity[0], 1e-6);
+            assertEquals(objects[i].velocity[1], arrays[i].velocity[1], 1e-6);
+        }
+    }
+
+    @Test
+    public void testDeterministicIsBitEqual() {
+        double[] first = locations(run(deterministic(1), items(N), STEPS));
+        double[] again = locations(run(deterministic(1), items(N), STEPS));
+        double[] parallel = locations(run(deterministic(4), items(N), STEPS));
+        assertArrayEquals(first, again, 0);
+        assertArrayEquals(first, parallel, 0);
+    }
+
+    @Test
+    public void testDeterministicCoincidentIsBitEqual() {
+        // coincident items are separated by noise, which must also be
+        // reproducible
+        ForceItem[] a = items(N), b = items(N);
+        for (int i = 0; i < N; i += 3) {
+            a[i].location[0] = b[i].location[0] = 500;
+            a[i].location[1] = b[i].location[1] = 500;
+        }
+        double[] first = locations(run(deterministic(1), a, STEPS));
+        double[] parallel = locations(run(deterministic(4), b, STEPS));
+        assertArrayEquals(first, parallel, 0);
+    }
+
+    @Test
+    public void testSyncItems() {
+        ForceItem[] items = items(N);
+        ForceSimulator fsim = simulator(new ArrayForceSimulator(), 1);
+        add(fsim, items);
+        double x = items[0].location[0];
+        fsim.runSimulator(50);
+        // the state is kept in the arrays until the items are synchronized
+        assertEquals(x, items[0].location[0], 0);
+        fsim.syncItems();
+        assertTrue(x != items[0].location[0]);
+    }
+
+    @Test
+    public void testItemsChanged() {
+        ForceItem[] moved = items(N), reference = items(N);
+        ForceSimulator fsim = simulator(new ArrayForceSimulator(), 1);
+        ForceSimulator ref = simulator(new ForceSimulator(), 1);
+        add(fsim, moved);
+        add(ref, reference);
+        fsim.runSimulator(50);
+        ref.runSimulator(50);
+
+        // move an item between steps, as a drag control would
+        fsim.syncItems();
+        moved[0].location[0] = reference[0].location[0] = -1000;
+        moved[0].velocity[0] = reference[0].velocity[0] = 0;
+        fsim.itemsChanged();
+        fsim.runSimulator(50);
+        ref.runSimulator(50);
+        fsim.syncItems();
+        for (int i = 0; i < N; ++i) {
+            assertEquals(reference[i].location[0], moved[i].location[0], 1e-6);
+            assertEquals(reference[i].location[1], moved[i].location[1], 1e-6);
+        }
+    }
+
+    @Test
+    public void testAddItemKeepsState() {
+        ForceItem[] items = items(N);
+        ForceSimulator fsim = simulator(new ArrayForceSimulator(), 1);
+        add(fsim, items);
+        fsim.runSimulator(50);
+        double[] before = locations(items);
+        // adding an item writes the state back, and reloads it before the
+        // next step
+        ForceItem extra = new ForceItem();
+        fsim.addItem(extra);
+        assertTrue(before[0] != items[0].location[0]);
+        fsim.runSimulator(50);
+        fsim.syncItems();
+        assertTrue(extra.location[0] != 0 || extra.location[1] != 0);
+    }
+
+    @Test
+    public void testFixedItemsAreHeld() {
+        for (ForceSimulator fsim : new ForceSimulator[] {
+                simulator(new ForceSimulator(), 1),
+                simulator(new ArrayForceSimulator(), 1) }) {
+            ForceItem[] items = items(N);
+            add(fsim, items);
+            fsim.runSimulator(50);
+            fsim.syncItems();
+            double x = items[0].location[0], y = items[0].location[1];
+
+            // the flag is read on every step, without reloading
+            items[0].fixed = true;
+            for (int s = 0; s < STEPS; ++s)
+                fsim.runSimulator(50);
+            fsim.syncItems();
+            assertEquals(x, items[0].location[0], 0);
+            assertEquals(y, items[0].location[1], 0);
+            assertEquals(0, items[0].velocity[0], 0);
+
+            items[0].fixed = false;
+            fsim.runSimulator(50);
+            fsim.syncItems();
+            assertTrue(x != items[0].location[0]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static ForceItem[] items(int n) {
+        Random rand = new Random(42);
+        ForceItem[] items = new ForceItem[n];
+        for (int i = 0; i < n; ++i) {
+            items[i] = new ForceItem();
+            items[i].location[0] = 1000 * rand.nextDouble();
+            items[i].location[1] = 1000 * rand.nextDouble();
+        }
+        return items;
+    }
+
+    private static ForceSimulator simulator(ForceSimulator fsim,
+            int threads) {
+        NBodyForce nbody = new NBodyForce();
+        nbody.setParallelism(threads);
+        SpringForce springs = new SpringForce();
+        springs.setParallelism(threads);
+        fsim.addForce(nbody);
+        fsim.addForce(springs);
+        fsim.addForce(new DragForce());
+        return fsim;
+    }
+
+    private static ForceSimulator deterministic(int threads) {
+        ForceSimulator fsim = simulator(new ArrayForceSimulator(), threads);
+        fsim.setDeterministic(true);
+        return fsim;
+    }
+
+    private static void add(ForceSimulator fsim, ForceItem[] items) {
+        Random rand = new Random(7);
+        for (int i = 0; i < items.length; ++i) {
+            fsim.addItem(items[i]);
+            if (i > 0)
+                fsim.addSpring(items[rand.nextInt(i)], items[i]);
+        }
+    }
+
+    private static ForceItem[] run(ForceSimulator fsim, ForceItem[] items,
+            int steps) {
+        add(fsim, items);
+        for (int s = 0; s < steps; ++s)
+            fsim.runSimulator(50);
+        fsim.syncItems();
+        return items;
+    }
+
+    private static double[] locations(ForceItem[] items) {
+        double[] xy = new double[2 * items.length];
+        for (int i = 0; i < items.length; ++i) {
+            xy[2 * i] = items[i].location[0];
+            xy[2 * i + 1] = items[i].location[1];
+        }
+        return xy;
+    }
+
+}
@@ -0,0 +1,58 @@
+package prefux.util.force;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that a MultilevelSimulation keeps fixed items in place on all
+ * levels, and lays out the other items around them.
+ */
+public class MultilevelSimulationTest {
+
+    private static final int N = 400;
+
+    @Test
+    public void testFixedItemsKeepTheirLocation() {
+        ForceItem[] items = new ForceItem[N];
+        for (int i = 0; i < N; ++i)
+            items[i] = new ForceItem();
+        // a path, with both of its ends fixed far apart
+        int[] src = new int[N - 1], trg = new int[N - 1];
+        for (int e = 0; e < N - 1; ++e) {
+            src[e] = e;
+            trg[e] = e + 1;
+        }
+        pin(items[0], -5000, 0);
+        pin(items[N - 1], 5000, 0);
+
+        MultilevelSimulation sim = new MultilevelSimulation(simulator());
+        sim.run(items, N, src, trg, N - 1);
+
+        assertTrue(sim.getLevelCount() > 1);
+        assertEquals(-5000, items[0].location[0], 0);
+        assertEquals(0, items[0].location[1], 0);
+        assertEquals(5000, items[N - 1].location[0], 0);
+        assertEquals(0, items[N - 1].location[1], 0);
+        // the path is stretched between its fixed ends
+        assertTrue(items[1].location[0] < items[N - 2].location[0]);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static void pin(ForceItem item, double x, double y) {
+        item.fixed = true;
+        item.location[0] = x;
+        item.location[1] = y;
+    }
+
+    private static ForceSimulator simulator() {
+        ForceSimulator fsim = new ArrayForceSimulator();
+        fsim.addForce(new NBodyForce());
+        fsim.addForce(new SpringForce());
+        fsim.addForce(new DragForce());
+        return fsim;
+    }
+
+}
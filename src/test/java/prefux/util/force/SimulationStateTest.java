@@ -0,0 +1,89 @@
+package prefux.util.force;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+/**
+ * Checks that a SimulationState restores the fixed flags and force
+ * parallelism, and only creates classes of the expected types.
+ */
+public class SimulationStateTest {
+
+    @Test
+    public void testFixedAndParallelismAreRestored() throws IOException {
+        ForceSimulator fsim = new ArrayForceSimulator();
+        NBodyForce nbody = new NBodyForce();
+        nbody.setParallelism(3);
+        fsim.addForce(nbody);
+        fsim.addForce(new SpringForce());
+        ForceItem a = new ForceItem(), b = new ForceItem();
+        a.fixed = true;
+        b.location[0] = 10;
+        fsim.addItem(a);
+        fsim.addItem(b);
+        fsim.addSpring(a, b);
+
+        ForceSimulator restored = new ArrayForceSimulator();
+        SimulationState.read(restored, new ByteArrayInputStream(save(fsim)));
+        Force[] forces = restored.getForces();
+        assertEquals(2, forces.length);
+        assertEquals(3, ((NBodyForce) forces[0]).getParallelism());
+        assertEquals(1, ((SpringForce) forces[1]).getParallelism());
+        Iterator<ForceItem> iter = restored.getItems();
+        ForceItem ra = iter.next(), rb = iter.next();
+        assertTrue(ra.fixed);
+        assertFalse(rb.fixed);
+        assertEquals(10, rb.location[0], 0);
+        // release the thread pools
+        nbody.setParallelism(1);
+        ((NBodyForce) forces[0]).setParallelism(1);
+    }
+
+    @Test
+    public void testRejectsOtherClasses() throws IOException {
+        ForceSimulator fsim = new ForceSimulator();
+        fsim.addForce(new DragForce());
+        byte[] state = save(fsim);
+        // name a class that is not a Force, of the same name length
+        replace(state, DragForce.class.getName(), ForceItem.class.getName());
+        try {
+            SimulationState.read(new ForceSimulator(),
+                    new ByteArrayInputStream(state));
+            fail("created a class that is not a Force");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("is not a Force"));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static byte[] save(ForceSimulator fsim) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SimulationState.write(fsim, out);
+        return out.toByteArray();
+    }
+
+    private static void replace(byte[] data, String from, String to) {
+        byte[] f = from.getBytes(), t = to.getBytes();
+        for (int i = 0; i + f.length <= data.length; ++i) {
+            boolean match = true;
+            for (int j = 0; j < f.length && match; ++j)
+                match = data[i + j] == f[j];
+            if (match) {
+                System.arraycopy(t, 0, data, i, t.length);
+                return;
+            }
+        }
+        throw new IllegalArgumentException(from);
+    }
+
+}